@@ -18,13 +18,22 @@ package com.android.messaging.datamodel;
 
 import android.content.Context;
 import android.content.CursorLoader;
+import android.database.Cursor;
 import android.net.Uri;
 
+import androidx.recyclerview.widget.DiffUtil;
+
 /**
  * Extension to basic cursor loader that has an attached binding id
  */
 public class BoundCursorLoader extends CursorLoader {
     private final String mBindingId;
+    private boolean mRowDiffsEnabled;
+    private boolean mReverseRowDiffs;
+    // Snapshot of the cursor last delivered, which the next load is diffed against
+    private volatile RowSnapshot mDeliveredSnapshot;
+    // Whether a cursor has been delivered since the loader started or was reset
+    private volatile boolean mDelivered;
 
     /**
      * Create cursor loader for associated binding id
@@ -43,4 +52,55 @@ public class BoundCursorLoader extends CursorLoader {
     public String getBindingId() {
         return mBindingId;
     }
+
+    /**
+     * Makes the loader deliver a {@link RowSnapshot.DiffCursor}, with the updates since the
+     * cursor it delivered before worked out on the loader thread, so that a list can be updated
+     * a row at a time rather than rebinding everything.
+     *
+     * @param reversed whether the cursor is shown last row first
+     */
+    public void setRowDiffsEnabled(final boolean reversed) {
+        mRowDiffsEnabled = true;
+        mReverseRowDiffs = reversed;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final Cursor cursor = super.loadInBackground();
+        if (!mRowDiffsEnabled || cursor == null) {
+            return cursor;
+        }
+        final RowSnapshot previous = mDeliveredSnapshot;
+        if (!mDelivered && !RowSnapshot.hasSource(cursor)) {
+            // There's nothing to diff the first load against, so it isn't worth a pass over
+            // every column of every row just to diff the next load. That one is snapshotted
+            // instead, and diffs are dispatched from the load after it.
+            return cursor;
+        }
+        RowSnapshot snapshot = RowSnapshot.create(cursor);
+        if (mReverseRowDiffs) {
+            snapshot = snapshot.reverse();
+        }
+        final DiffUtil.DiffResult diff = previous == null ? null : snapshot.diffFrom(previous);
+        return new RowSnapshot.DiffCursor(cursor, snapshot, previous, diff);
+    }
+
+    @Override
+    public void deliverResult(final Cursor cursor) {
+        if (!isReset()) {
+            mDelivered = true;
+            if (cursor instanceof RowSnapshot.DiffCursor) {
+                mDeliveredSnapshot = ((RowSnapshot.DiffCursor) cursor).getSnapshot();
+            }
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mDelivered = false;
+        mDeliveredSnapshot = null;
+    }
 }
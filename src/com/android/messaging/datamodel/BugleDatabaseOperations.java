@@ -19,6 +19,7 @@ package com.android.messaging.datamodel;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
@@ -38,6 +39,7 @@ import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.MessagePartData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
@@ -394,9 +396,14 @@ public class BugleDatabaseOperations {
         final String conversationId = Long.toString(conversationRowId);
 
         // Make sure that participants are added for this conversation
+        final DatabaseWrapper.BulkInsert conversationParticipantInsert =
+                dbWrapper.getBulkInsertInTransaction(
+                        DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE,
+                        CONVERSATION_PARTICIPANTS_INSERT_COLUMNS, SQLiteDatabase.CONFLICT_NONE);
         for (final ParticipantData participant : participants) {
             // TODO: Use blocking information
-            addParticipantToConversation(dbWrapper, participant, conversationId);
+            addParticipantToConversation(dbWrapper, conversationParticipantInsert, participant,
+                    conversationId);
         }
 
         // Now fully resolved participants available can update conversation name / avatar.
@@ -457,15 +464,20 @@ public class BugleDatabaseOperations {
             // Delete existing messages
             if (cutoffTimestamp == Long.MAX_VALUE) {
                 // Delete parts and messages
+                removePartsFromMediaDiskCache(dbWrapper, MessageColumns.CONVERSATION_ID + "=?",
+                        new String[] { conversationId });
                 dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 conversationMessagesDeleted = true;
             } else {
                 // Delete all messages prior to the cutoff
-                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
-                        MessageColumns.CONVERSATION_ID + "=? AND "
-                                + MessageColumns.RECEIVED_TIMESTAMP + "<=?",
-                                new String[] { conversationId, Long.toString(cutoffTimestamp) });
+                final String cutoffSelection = MessageColumns.CONVERSATION_ID + "=? AND "
+                        + MessageColumns.RECEIVED_TIMESTAMP + "<=?";
+                final String[] cutoffSelectionArgs =
+                        new String[] { conversationId, Long.toString(cutoffTimestamp) };
+                removePartsFromMediaDiskCache(dbWrapper, cutoffSelection, cutoffSelectionArgs);
+                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, cutoffSelection,
+                        cutoffSelectionArgs);
 
                 // Delete any draft message. The delete above may not always include the draft,
                 // because under certain scenarios (e.g. sending messages in progress), the draft
@@ -1208,12 +1220,53 @@ public class BugleDatabaseOperations {
      */
     static void deletePartsForMessage(final DatabaseWrapper dbWrapper,
             final String messageId) {
+        removePartsFromMediaDiskCache(dbWrapper, MessageColumns._ID + "=?",
+                new String[] { messageId });
         final int cnt = dbWrapper.delete(DatabaseHelper.PARTS_TABLE,
                 PartColumns.MESSAGE_ID + " =?",
                 new String[] { messageId });
         Assert.inRange(cnt, 0, Integer.MAX_VALUE);
     }
 
+    /**
+     * Drops the cached thumbnails of the parts of the messages about to be deleted, since the
+     * telephony provider can hand the same part uris out again. Their uris are read now, but the
+     * images are only dropped once the transaction has ended, on the media background thread.
+     */
+    private static void removePartsFromMediaDiskCache(final DatabaseWrapper dbWrapper,
+            final String messageSelection, final String[] selectionArgs) {
+        final ArrayList<Uri> partUris = new ArrayList<Uri>();
+        Cursor cursor = null;
+        try {
+            cursor = dbWrapper.query(DatabaseHelper.PARTS_TABLE,
+                    new String[] { PartColumns.CONTENT_URI },
+                    PartColumns.CONTENT_URI + " IS NOT NULL AND " + PartColumns.MESSAGE_ID
+                            + " IN (SELECT " + MessageColumns._ID + " FROM "
+                            + DatabaseHelper.MESSAGES_TABLE + " WHERE " + messageSelection + ")",
+                    selectionArgs, null, null, null);
+            while (cursor.moveToNext()) {
+                partUris.add(Uri.parse(cursor.getString(0)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        removeFromMediaDiskCacheAfterTransaction(partUris);
+    }
+
+    private static void removeFromMediaDiskCacheAfterTransaction(final List<Uri> partUris) {
+        if (partUris.isEmpty()) {
+            return;
+        }
+        DatabaseWrapper.runAfterTransaction(new Runnable() {
+            @Override
+            public void run() {
+                MediaResourceManager.get().removeFromDiskCache(partUris);
+            }
+        });
+    }
+
     /**
      * Delete one message and update the conversation (if necessary).
      *
@@ -1230,6 +1283,13 @@ public class BugleDatabaseOperations {
             int count = 0;
             if (message != null) {
                 final String conversationId = message.getConversationId();
+                final ArrayList<Uri> partUris = new ArrayList<Uri>();
+                for (final MessagePartData part : message.getParts()) {
+                    if (part.getContentUri() != null) {
+                        partUris.add(part.getContentUri());
+                    }
+                }
+                removeFromMediaDiskCacheAfterTransaction(partUris);
                 // Delete message
                 count = dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns._ID + "=?", new String[] { messageId });
@@ -1391,7 +1451,6 @@ public class BugleDatabaseOperations {
             final DatabaseWrapper db, final String conversationId) {
         Assert.isNotMainThread();
         final SQLiteStatement query = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_QUERY_CONVERSATIONS_LATEST_MESSAGE,
                 QUERY_CONVERSATIONS_LATEST_MESSAGE_SQL);
         query.clearBindings();
         query.bindString(1, conversationId);
@@ -1413,7 +1472,6 @@ public class BugleDatabaseOperations {
             final DatabaseWrapper db, final String conversationId) {
         Assert.isNotMainThread();
         final SQLiteStatement query = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_QUERY_MESSAGES_LATEST_MESSAGE,
                 QUERY_MESSAGES_LATEST_MESSAGE_SQL);
         query.clearBindings();
         query.bindString(1, conversationId);
@@ -1610,17 +1668,24 @@ public class BugleDatabaseOperations {
         return message;
     }
 
+    // Columns bound when adding a participant to a conversation
+    private static final String[] CONVERSATION_PARTICIPANTS_INSERT_COLUMNS = new String[] {
+        ConversationParticipantsColumns.CONVERSATION_ID,
+        ConversationParticipantsColumns.PARTICIPANT_ID
+    };
+
     // Internal
     private static void addParticipantToConversation(final DatabaseWrapper dbWrapper,
+            final DatabaseWrapper.BulkInsert conversationParticipantInsert,
             final ParticipantData participant, final String conversationId) {
         final String participantId = getOrCreateParticipantInTransaction(dbWrapper, participant);
         Assert.notNull(participantId);
 
         // Add the participant to the conversation participants table
-        final ContentValues values = new ContentValues();
-        values.put(ConversationParticipantsColumns.CONVERSATION_ID, conversationId);
-        values.put(ConversationParticipantsColumns.PARTICIPANT_ID, participantId);
-        dbWrapper.insert(DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE, null, values);
+        conversationParticipantInsert
+                .bindString(1, conversationId)
+                .bindString(2, participantId)
+                .execute();
     }
 
     /**
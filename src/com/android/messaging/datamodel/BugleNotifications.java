@@ -82,7 +82,10 @@ import com.android.messaging.util.PendingIntentConstants;
 import com.android.messaging.util.PhoneUtils;
 import com.android.messaging.util.ThreadUtil;
 import com.android.messaging.util.UriUtil;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -123,6 +126,10 @@ public class BugleNotifications {
     private static final Set<NotificationState> sPendingNotifications =
             new HashSet<NotificationState>();
 
+    // Bumped whenever message notifications are posted or canceled, so that an update with late
+    // images can tell whether it's been superseded. Guarded by sPendingNotifications.
+    private static int sNotificationGeneration;
+
     private static int sWearableImageWidth;
     private static int sWearableImageHeight;
     private static int sIconWidth;
@@ -139,6 +146,13 @@ public class BugleNotifications {
             new SimpleArrayMap<String, Long>();
     private static int sTimeBetweenDingsMs;
 
+    // How long received messages took to be notified about. Guarded by mLock.
+    private static int sPostCount;
+    private static long sTotalPostLatencyMillis;
+    private static long sMaxPostLatencyMillis;
+    private static int sPostWithoutImagesCount;
+    private static int sLateImageUpdateCount;
+
     /**
      * This is the volume at which to play the observable-conversation notification sound,
      * expressed as a fraction of the system notification volume.
@@ -168,6 +182,22 @@ public class BugleNotifications {
      */
     public static void update(final boolean silent, final String conversationId,
             final int coverage) {
+        update(silent, conversationId, coverage, -1 /* receivedRealtime */);
+    }
+
+    /**
+     * Entry point for posting notifications about a newly received message.
+     * Don't call this on the UI thread.
+     * @param silent If true, no ring will be played. If false, checks global settings before
+     * playing a ringtone
+     * @param conversationId Conversation ID where a new message was received
+     * @param coverage Indicates which notification types should be checked. Valid values are
+     * UPDATE_NONE, UPDATE_MESSAGES, UPDATE_ERRORS, or UPDATE_ALL
+     * @param receivedRealtime When the message was received, in
+     * {@link SystemClock#elapsedRealtime()} time, to keep track of how long notifying takes
+     */
+    public static void update(final boolean silent, final String conversationId,
+            final int coverage, final long receivedRealtime) {
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "Update: silent = " + silent
                     + " conversationId = " + conversationId
@@ -176,7 +206,7 @@ public class BugleNotifications {
     Assert.isNotMainThread();
         checkInitialized();
         if ((coverage & UPDATE_MESSAGES) != 0) {
-            createMessageNotification(silent, conversationId);
+            createMessageNotification(silent, conversationId, receivedRealtime);
         }
 
         if ((coverage & UPDATE_ERRORS) != 0) {
@@ -221,6 +251,7 @@ public class BugleNotifications {
 
         // Find all pending notifications and cancel them.
         synchronized (sPendingNotifications) {
+            sNotificationGeneration++;
             final Iterator<NotificationState> iter = sPendingNotifications.iterator();
             while (iter.hasNext()) {
                 final NotificationState notifState = iter.next();
@@ -360,8 +391,12 @@ public class BugleNotifications {
         }
     }
 
-    private static void processAndSend(final NotificationState state, final boolean silent,
-            final boolean softSound) {
+    /**
+     * Sets up the builder of the given notification, short of its images.
+     * @return false if the notification shouldn't be posted (a soft sound was played instead)
+     */
+    private static boolean prepareNotification(final NotificationState state,
+            final boolean silent, final boolean softSound) {
         final Context context = Factory.get().getApplicationContext();
         // TODO: Need to fix this for multi conversation notifications to rate limit dings.
         final String conversationId = state.mConversationIds.first();
@@ -377,12 +412,12 @@ public class BugleNotifications {
         // actual notification.
         if (softSound) {
             if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                LogUtil.v(TAG, "processAndSend: fromConversationId == " +
+                LogUtil.v(TAG, "prepareNotification: fromConversationId == " +
                         "sCurrentlyDisplayedConversationId so NOT showing notification," +
                         " but playing soft sound. conversationId: " + conversationId);
             }
             playObservableConversationNotificationSound(conversationId);
-            return;
+            return false;
         }
         state.mBaseRequestCode = state.mType;
 
@@ -426,61 +461,7 @@ public class BugleNotifications {
             notifBuilder.addExtras(people);
         }
 
-        if (state.mParticipantAvatarsUris != null) {
-            final Uri avatarUri = state.mParticipantAvatarsUris.get(0);
-            final AvatarRequestDescriptor descriptor = new AvatarRequestDescriptor(avatarUri,
-                    sIconWidth, sIconHeight, OsUtil.isAtLeastL());
-            final MediaRequest<ImageResource> imageRequest = descriptor.buildSyncMediaRequest(
-                    context);
-
-            synchronized (sPendingNotifications) {
-                sPendingNotifications.add(state);
-            }
-
-            // Synchronously load the avatar.
-            final ImageResource avatarImage =
-                    MediaResourceManager.get().requestMediaResourceSync(imageRequest);
-            if (avatarImage != null) {
-                ImageResource avatarHiRes = null;
-                try {
-                    if (isWearCompanionAppInstalled()) {
-                        // For Wear users, we need to request a high-res avatar image to use as the
-                        // notification card background. If the sender has a contact photo, we'll
-                        // request the display photo from the Contacts provider. Otherwise, we ask
-                        // the local content provider for a hi-res version of the generic avatar
-                        // (e.g. letter with colored background).
-                        avatarHiRes = requestContactDisplayPhoto(context,
-                                getDisplayPhotoUri(avatarUri));
-                        if (avatarHiRes == null) {
-                            final AvatarRequestDescriptor hiResDesc =
-                                    new AvatarRequestDescriptor(avatarUri,
-                                    sWearableImageWidth,
-                                    sWearableImageHeight,
-                                    false /* cropToCircle */,
-                                    true /* isWearBackground */);
-                            avatarHiRes = MediaResourceManager.get().requestMediaResourceSync(
-                                    hiResDesc.buildSyncMediaRequest(context));
-                        }
-                    }
-
-                    // We have to make copies of the bitmaps to hand to the NotificationManager
-                    // because the bitmap in the ImageResource is managed and will automatically
-                    // get released.
-                    Bitmap avatarBitmap = Bitmap.createBitmap(avatarImage.getBitmap());
-                    Bitmap avatarHiResBitmap = (avatarHiRes != null) ?
-                            Bitmap.createBitmap(avatarHiRes.getBitmap()) : null;
-                    sendNotification(state, avatarBitmap, avatarHiResBitmap);
-                    return;
-                } finally {
-                    avatarImage.release();
-                    if (avatarHiRes != null) {
-                        avatarHiRes.release();
-                    }
-                }
-            }
-        }
-        // We have no avatar. Post the notification anyway.
-        sendNotification(state, null, null);
+        return true;
     }
 
     /**
@@ -546,7 +527,7 @@ public class BugleNotifications {
     }
 
     private static void createMessageNotification(final boolean silent,
-            final String conversationId) {
+            final String conversationId, final long receivedRealtime) {
         final NotificationState state = MessageNotificationState.getNotificationState();
         final boolean softSound = DataModel.get().isNewMessageObservable(conversationId);
         if (state == null) {
@@ -556,7 +537,10 @@ public class BugleNotifications {
             }
             return;
         }
-        processAndSend(state, silent, softSound);
+        final List<NotificationState> states = new ArrayList<NotificationState>();
+        if (prepareNotification(state, silent, softSound)) {
+            states.add(state);
+        }
 
         // The rest of the logic here is for supporting Android Wear devices, specifically for when
         // we are notifying about multiple conversations. In that case, the Inbox-style summary
@@ -577,17 +561,305 @@ public class BugleNotifications {
         if (state instanceof MultiConversationNotificationState) {
             for (final NotificationState child :
                 ((MultiConversationNotificationState) state).mChildren) {
-                processAndSend(child, true /* silent */, softSound);
+                if (prepareNotification(child, true /* silent */, softSound)) {
+                    states.add(child);
+                }
                 if (child.mConversationIds != null) {
                     groupChildIds.add(child.mConversationIds.first());
                 }
             }
         }
+        sendNotifications(states, receivedRealtime);
 
         // Record the new set of group children.
         writeGroupChildIds(context, groupChildIds);
     }
 
+    /**
+     * Indexes of the images of a notification in its {@link NotificationImageLoader}, -1 for
+     * images it doesn't have
+     */
+    @VisibleForTesting
+    static class NotificationImages {
+        final NotificationState mState;
+        int mAvatarIndex = -1;
+        int mAvatarHiResIndex = -1;
+        int mAttachmentIndex = -1;
+        boolean mPostedWithAllImages;
+
+        NotificationImages(final NotificationState state) {
+            mState = state;
+        }
+    }
+
+    /**
+     * Loads the images of all the given (prepared) notifications in parallel and posts them. If
+     * the images take longer than the deadline, the notifications are posted without the missing
+     * ones and silently updated once they arrive.
+     * @param receivedRealtime when the message being notified about was received, in
+     *        {@link SystemClock#elapsedRealtime()} time, or -1 if unknown
+     */
+    private static void sendNotifications(final List<NotificationState> states,
+            final long receivedRealtime) {
+        if (states.isEmpty()) {
+            return;
+        }
+        final Context context = Factory.get().getApplicationContext();
+        final boolean loadAvatarHiRes = isWearCompanionAppInstalled();
+        final NotificationImageLoader loader = new NotificationImageLoader();
+        final List<NotificationImages> imagesList = new ArrayList<NotificationImages>();
+        for (final NotificationState state : states) {
+            imagesList.add(addImageLoads(context, loader, state, loadAvatarHiRes));
+        }
+
+        final int generation;
+        synchronized (sPendingNotifications) {
+            sPendingNotifications.addAll(states);
+            generation = ++sNotificationGeneration;
+        }
+        loader.start();
+        final boolean loadedInTime = loader.await(BugleGservices.get().getInt(
+                BugleGservicesKeys.NOTIFICATION_IMAGE_LOAD_DEADLINE_MILLIS,
+                BugleGservicesKeys.NOTIFICATION_IMAGE_LOAD_DEADLINE_MILLIS_DEFAULT));
+
+        // Time the first notification of the batch (the summary if there is one) from receipt to
+        // posting, if it does get posted
+        states.get(0).mReceivedRealtime = receivedRealtime;
+        states.get(0).mPostedBeforeImagesLoaded = !loadedInTime;
+        for (final NotificationImages images : imagesList) {
+            images.mPostedWithAllImages = loader.isLoaded(images.mAvatarIndex)
+                    && loader.isLoaded(images.mAvatarHiResIndex)
+                    && loader.isLoaded(images.mAttachmentIndex);
+            sendNotification(images.mState, loader.getBitmap(images.mAvatarIndex),
+                    loader.getBitmap(images.mAvatarHiResIndex),
+                    loader.getBitmap(images.mAttachmentIndex));
+        }
+
+        if (!loadedInTime) {
+            loader.runWhenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    updateWithLateImages(imagesList, loader, generation);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds loads for the avatar, wearable background and attachment picture (as applicable) of the
+     * given notification to the loader.
+     */
+    private static NotificationImages addImageLoads(final Context context,
+            final NotificationImageLoader loader, final NotificationState state,
+            final boolean loadAvatarHiRes) {
+        final NotificationImages images = new NotificationImages(state);
+        if (state.mParticipantAvatarsUris != null) {
+            final Uri avatarUri = state.mParticipantAvatarsUris.get(0);
+            images.mAvatarIndex = loader.add(new NotificationImageLoader.ImageLoad() {
+                @Override
+                public Bitmap load() {
+                    final AvatarRequestDescriptor descriptor = new AvatarRequestDescriptor(
+                            avatarUri, sIconWidth, sIconHeight, OsUtil.isAtLeastL());
+                    return copyAndRelease(MediaResourceManager.get().requestMediaResourceSync(
+                            descriptor.buildSyncMediaRequest(context)));
+                }
+            });
+            if (loadAvatarHiRes) {
+                images.mAvatarHiResIndex = loader.add(new NotificationImageLoader.ImageLoad() {
+                    @Override
+                    public Bitmap load() {
+                        // For Wear users, we need to request a high-res avatar image to use as
+                        // the notification card background. If the sender has a contact photo,
+                        // we'll request the display photo from the Contacts provider. Otherwise,
+                        // we ask the local content provider for a hi-res version of the generic
+                        // avatar (e.g. letter with colored background).
+                        ImageResource avatarHiRes = requestContactDisplayPhoto(context,
+                                getDisplayPhotoUri(avatarUri));
+                        if (avatarHiRes == null) {
+                            final AvatarRequestDescriptor hiResDesc =
+                                    new AvatarRequestDescriptor(avatarUri,
+                                    sWearableImageWidth,
+                                    sWearableImageHeight,
+                                    false /* cropToCircle */,
+                                    true /* isWearBackground */);
+                            avatarHiRes = MediaResourceManager.get().requestMediaResourceSync(
+                                    hiResDesc.buildSyncMediaRequest(context));
+                        }
+                        return copyAndRelease(avatarHiRes);
+                    }
+                });
+            }
+        }
+
+        final Uri attachmentUri = state.getAttachmentUri();
+        final String attachmentType = state.getAttachmentType();
+        // For messages with photo/video attachment, request an image to show in the notification.
+        if (attachmentUri != null && state.mNotificationStyle != null &&
+                (state.mNotificationStyle instanceof NotificationCompat.BigPictureStyle) &&
+                        (ContentType.isImageType(attachmentType) ||
+                                ContentType.isVideoType(attachmentType))) {
+            final boolean isVideo = ContentType.isVideoType(attachmentType);
+
+            final MediaRequest<ImageResource> imageRequest;
+            if (isVideo) {
+                Assert.isTrue(VideoThumbnailRequest.shouldShowIncomingVideoThumbnails());
+                final MessagePartVideoThumbnailRequestDescriptor videoDescriptor =
+                        new MessagePartVideoThumbnailRequestDescriptor(attachmentUri);
+                imageRequest = videoDescriptor.buildSyncMediaRequest(context);
+            } else {
+                final UriImageRequestDescriptor imageDescriptor =
+                        new UriImageRequestDescriptor(attachmentUri,
+                            sWearableImageWidth,
+                            sWearableImageHeight,
+                            false /* allowCompression */,
+                            true /* isStatic */,
+                            false /* cropToCircle */,
+                            ImageUtils.DEFAULT_CIRCLE_BACKGROUND_COLOR /* circleBackgroundColor */,
+                            ImageUtils.DEFAULT_CIRCLE_STROKE_COLOR /* circleStrokeColor */);
+                imageRequest = imageDescriptor.buildSyncMediaRequest(context);
+            }
+            images.mAttachmentIndex = loader.add(new NotificationImageLoader.ImageLoad() {
+                @Override
+                public Bitmap load() {
+                    return copyAndRelease(
+                            MediaResourceManager.get().requestMediaResourceSync(imageRequest));
+                }
+            });
+        }
+        return images;
+    }
+
+    /**
+     * We have to make copies of the bitmaps to hand to the NotificationManager because the bitmap
+     * in the ImageResource is managed by MediaResourceManager and will automatically get released.
+     */
+    private static Bitmap copyAndRelease(final ImageResource imageResource) {
+        if (imageResource == null) {
+            return null;
+        }
+        try {
+            final Bitmap imageResourceBitmap = imageResource.getBitmap();
+            Config config = imageResourceBitmap.getConfig();
+
+            // Make sure our bitmap has a valid format.
+            if (config == null) {
+                config = Bitmap.Config.ARGB_8888;
+            }
+            return imageResourceBitmap.copy(config, true);
+        } finally {
+            imageResource.release();
+        }
+    }
+
+    /**
+     * Reposts notifications which were posted before their images loaded, now that they have,
+     * unless the notifications have since been updated or canceled.
+     */
+    private static void updateWithLateImages(final List<NotificationImages> imagesList,
+            final NotificationImageLoader loader, final int generation) {
+        // Holding the lock keeps cancel() and newer notifications from interleaving with this
+        synchronized (BugleNotifications.class) {
+            repostWithLateImages(imagesList, loader, generation, new LateImagePoster() {
+                @Override
+                public void post(final NotificationState state, final Bitmap avatarIcon,
+                        final Bitmap avatarHiRes, final Bitmap attachmentBitmap) {
+                    // The builder is used up by posting, so start over with a fresh one
+                    state.mCanceled = false;
+                    if (!prepareNotification(state, true /* silent */, false /* softSound */)) {
+                        return;
+                    }
+                    state.mNotificationBuilder.setOnlyAlertOnce(true);
+                    sendNotification(state, avatarIcon, avatarHiRes, attachmentBitmap);
+                }
+            });
+        }
+    }
+
+    /**
+     * Posts a notification again with its images
+     */
+    @VisibleForTesting
+    interface LateImagePoster {
+        void post(NotificationState state, Bitmap avatarIcon, Bitmap avatarHiRes,
+                Bitmap attachmentBitmap);
+    }
+
+    /**
+     * Hands the notifications which were posted without some of their images to the poster,
+     * unless notifications have been posted or canceled since the given generation.
+     * @return false if superseded
+     */
+    @VisibleForTesting
+    static boolean repostWithLateImages(final List<NotificationImages> imagesList,
+            final NotificationImageLoader loader, final int generation,
+            final LateImagePoster poster) {
+        synchronized (sPendingNotifications) {
+            if (generation != sNotificationGeneration) {
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "updateWithLateImages: Notifications superseded; "
+                            + "dropping late images");
+                }
+                return false;
+            }
+        }
+        for (final NotificationImages images : imagesList) {
+            if (images.mPostedWithAllImages) {
+                continue;
+            }
+            poster.post(images.mState, loader.getBitmap(images.mAvatarIndex),
+                    loader.getBitmap(images.mAvatarHiResIndex),
+                    loader.getBitmap(images.mAttachmentIndex));
+        }
+        synchronized (mLock) {
+            sLateImageUpdateCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new generation of message notifications, superseding the current one
+     * @return the new generation
+     */
+    @VisibleForTesting
+    static int newNotificationGeneration() {
+        synchronized (sPendingNotifications) {
+            return ++sNotificationGeneration;
+        }
+    }
+
+    /**
+     * Keeps track of the time from receiving a message to posting its notification
+     */
+    private static void recordPostLatency(final long receivedRealtime,
+            final boolean loadedInTime) {
+        final long latencyMillis = SystemClock.elapsedRealtime() - receivedRealtime;
+        synchronized (mLock) {
+            sPostCount++;
+            sTotalPostLatencyMillis += latencyMillis;
+            sMaxPostLatencyMillis = Math.max(sMaxPostLatencyMillis, latencyMillis);
+            if (!loadedInTime) {
+                sPostWithoutImagesCount++;
+            }
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "Posted notification " + latencyMillis + " ms after receiving message"
+                    + (loadedInTime ? "" : " (without images)"));
+        }
+    }
+
+    /**
+     * Dumps how long received messages took to be notified about
+     */
+    public static void dump(final PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Notifications: " + sPostCount + " posted for received messages, "
+                    + "avg " + (sPostCount == 0 ? 0 : sTotalPostLatencyMillis / sPostCount)
+                    + " ms, max " + sMaxPostLatencyMillis + " ms after receipt; "
+                    + sPostWithoutImagesCount + " posted before images loaded, "
+                    + sLateImageUpdateCount + " updated with late images");
+        }
+    }
+
     private static void updateBuilderAudioVibrate(final NotificationState state,
             final NotificationCompat.Builder notifBuilder, final boolean silent,
             final String conversationId) {
@@ -628,7 +900,7 @@ public class BugleNotifications {
     private static final String CATEGORY_MESSAGE = "msg";
 
     private static void sendNotification(final NotificationState notificationState,
-            final Bitmap avatarIcon, final Bitmap avatarHiRes) {
+            final Bitmap avatarIcon, final Bitmap avatarHiRes, final Bitmap attachmentBitmap) {
         final Context context = Factory.get().getApplicationContext();
         if (notificationState.mCanceled) {
             if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
@@ -662,56 +934,6 @@ public class BugleNotifications {
             }
         }
 
-        final Uri attachmentUri = notificationState.getAttachmentUri();
-        final String attachmentType = notificationState.getAttachmentType();
-        Bitmap attachmentBitmap = null;
-
-        // For messages with photo/video attachment, request an image to show in the notification.
-        if (attachmentUri != null && notificationState.mNotificationStyle != null &&
-                (notificationState.mNotificationStyle instanceof
-                        NotificationCompat.BigPictureStyle) &&
-                        (ContentType.isImageType(attachmentType) ||
-                                ContentType.isVideoType(attachmentType))) {
-            final boolean isVideo = ContentType.isVideoType(attachmentType);
-
-            MediaRequest<ImageResource> imageRequest;
-            if (isVideo) {
-                Assert.isTrue(VideoThumbnailRequest.shouldShowIncomingVideoThumbnails());
-                final MessagePartVideoThumbnailRequestDescriptor videoDescriptor =
-                        new MessagePartVideoThumbnailRequestDescriptor(attachmentUri);
-                imageRequest = videoDescriptor.buildSyncMediaRequest(context);
-            } else {
-                final UriImageRequestDescriptor imageDescriptor =
-                        new UriImageRequestDescriptor(attachmentUri,
-                            sWearableImageWidth,
-                            sWearableImageHeight,
-                            false /* allowCompression */,
-                            true /* isStatic */,
-                            false /* cropToCircle */,
-                            ImageUtils.DEFAULT_CIRCLE_BACKGROUND_COLOR /* circleBackgroundColor */,
-                            ImageUtils.DEFAULT_CIRCLE_STROKE_COLOR /* circleStrokeColor */);
-                imageRequest = imageDescriptor.buildSyncMediaRequest(context);
-            }
-            final ImageResource imageResource =
-                    MediaResourceManager.get().requestMediaResourceSync(imageRequest);
-            if (imageResource != null) {
-                try {
-                    // Copy the bitmap, because the one in the ImageResource is managed by
-                    // MediaResourceManager.
-                    Bitmap imageResourceBitmap = imageResource.getBitmap();
-                    Config config = imageResourceBitmap.getConfig();
-
-                    // Make sure our bitmap has a valid format.
-                    if (config == null) {
-                        config = Bitmap.Config.ARGB_8888;
-                    }
-                    attachmentBitmap = imageResourceBitmap.copy(config, true);
-                } finally {
-                    imageResource.release();
-                }
-            }
-        }
-
         fireOffNotification(notificationState, attachmentBitmap, avatarIcon, avatarHiRes);
     }
 
@@ -945,6 +1167,12 @@ public class BugleNotifications {
                 NotificationManager.IMPORTANCE_DEFAULT,
                 NotificationsUtil.CONVERSATION_GROUP_NAME);
         notificationManager.notify(notificationTag, type, notification);
+        if (notificationState.mReceivedRealtime >= 0) {
+            recordPostLatency(notificationState.mReceivedRealtime,
+                    !notificationState.mPostedBeforeImagesLoaded);
+            // Reposts with late images don't count again
+            notificationState.mReceivedRealtime = -1;
+        }
 
         LogUtil.i(TAG, "Notifying for conversation " + conversationId + "; "
                 + "tag = " + notificationTag + ", type = " + type);
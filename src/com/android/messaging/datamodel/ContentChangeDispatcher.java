@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Sends the content change notifications of {@link MessagingContentProvider} to observers off
+ * the calling thread, batched and without duplicates.
+ *
+ * Notifications are held for a short window (see
+ * {@link BugleGservicesKeys#NOTIFY_CHANGE_WINDOW_MILLIS}) from the first one, so that a burst of
+ * writes, e.g. during sync or when many messages arrive at once, makes each loader requery once
+ * rather than once per write. A uri is sent once per window however many times it changed, and
+ * not at all if one of its ancestors is sent too, since notifying a uri also notifies observers
+ * of its descendants.
+ *
+ * Notifications made inside a database transaction are held until the outermost transaction on
+ * that thread ends. Observers can't see the changes before then, and a requery made too early
+ * would miss them.
+ */
+class ContentChangeDispatcher {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static ContentChangeDispatcher sInstance;
+
+    private final long mWindowMillis;
+    // Uris notified inside the transaction open on this thread
+    private final ThreadLocal<LinkedHashSet<Uri>> mHeldInTransaction =
+            new ThreadLocal<LinkedHashSet<Uri>>() {
+        @Override
+        protected LinkedHashSet<Uri> initialValue() {
+            return new LinkedHashSet<Uri>();
+        }
+    };
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    // Created along with its thread when the first notification is scheduled
+    private Handler mHandler;
+
+    // Uris waiting for the next flush, in the order first notified
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+    private boolean mFlushScheduled;
+    // Flush scheduled to run at the end of the window rather than right away
+    private boolean mFlushDelayed;
+
+    private long mRequestedCount;
+    private long mEmittedCount;
+    // Duplicates and descendants of uris that were sent anyway
+    private long mSuppressedCount;
+    private long mFlushCount;
+
+    static synchronized ContentChangeDispatcher get() {
+        if (sInstance == null) {
+            sInstance = new ContentChangeDispatcher(Factory.get().getBugleGservices().getLong(
+                    BugleGservicesKeys.NOTIFY_CHANGE_WINDOW_MILLIS,
+                    BugleGservicesKeys.NOTIFY_CHANGE_WINDOW_MILLIS_DEFAULT));
+        }
+        return sInstance;
+    }
+
+    ContentChangeDispatcher(final long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Queues a change notification for the uri
+     */
+    void notifyChange(final Uri uri) {
+        if (DatabaseWrapper.isInTransaction()) {
+            final boolean added = mHeldInTransaction.get().add(uri);
+            synchronized (this) {
+                mRequestedCount++;
+                if (!added) {
+                    mSuppressedCount++;
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            mRequestedCount++;
+            if (!mPending.add(uri)) {
+                mSuppressedCount++;
+            }
+            scheduleFlushLocked(mWindowMillis);
+        }
+    }
+
+    /**
+     * Called when the outermost database transaction on the calling thread ends; sends what was
+     * notified inside it without waiting for the window to close
+     */
+    void onTransactionEnded() {
+        final LinkedHashSet<Uri> held = mHeldInTransaction.get();
+        if (held.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (final Uri uri : held) {
+                if (!mPending.add(uri)) {
+                    mSuppressedCount++;
+                }
+            }
+            scheduleFlushLocked(0);
+        }
+        held.clear();
+    }
+
+    private void scheduleFlushLocked(final long delayMillis) {
+        if (mFlushScheduled && (!mFlushDelayed || delayMillis > 0)) {
+            return;
+        }
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread("ContentChangeDispatcher",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, delayMillis);
+        mFlushScheduled = true;
+        mFlushDelayed = delayMillis > 0;
+    }
+
+    /**
+     * Sends the pending notifications
+     */
+    void flush() {
+        final List<Uri> uris;
+        synchronized (this) {
+            mFlushScheduled = false;
+            uris = removeDescendants(mPending);
+            mSuppressedCount += mPending.size() - uris.size();
+            mPending.clear();
+            mEmittedCount += uris.size();
+            mFlushCount++;
+        }
+        for (final Uri uri : uris) {
+            dispatch(uri);
+        }
+    }
+
+    /**
+     * Sends a change notification to the observers of the uri (and of its descendants)
+     */
+    protected void dispatch(final Uri uri) {
+        final ContentResolver resolver =
+                Factory.get().getApplicationContext().getContentResolver();
+        resolver.notifyChange(uri, null);
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "ContentChangeDispatcher: notified " + uri);
+        }
+    }
+
+    /**
+     * @return the uris that don't have an ancestor in the set
+     */
+    private static List<Uri> removeDescendants(final LinkedHashSet<Uri> uris) {
+        final List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (final Uri uri : uris) {
+            boolean covered = false;
+            for (final Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAncestor(final Uri ancestor, final Uri uri) {
+        if (!ancestor.getAuthority().equals(uri.getAuthority())) {
+            return false;
+        }
+        final List<String> ancestorPath = ancestor.getPathSegments();
+        final List<String> path = uri.getPathSegments();
+        return ancestorPath.size() < path.size()
+                && path.subList(0, ancestorPath.size()).equals(ancestorPath);
+    }
+
+    /**
+     * @return number of notifications requested so far
+     */
+    synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * @return number of notifications sent to observers so far
+     */
+    synchronized long getEmittedCount() {
+        return mEmittedCount;
+    }
+
+    /**
+     * @return number of notifications dropped as duplicates of ones sent anyway
+     */
+    synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    synchronized void dump(final PrintWriter writer) {
+        writer.println("Content change notifications: " + mRequestedCount + " requested, "
+                + mEmittedCount + " emitted in " + mFlushCount + " flushes, "
+                + mSuppressedCount + " suppressed, " + mPending.size() + " pending");
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.ConversationMessageData.PartsCursor;
+import com.android.messaging.util.Assert;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * All of the messages of a conversation, newest first, loaded a page at a time.
+ *
+ * When it's created, which happens on the loader's thread, it reads the (received timestamp, id)
+ * keyset of every message from the messages table's conversation index. That gives the full
+ * count, so the list and its fast scroller can reach the oldest message, and lets any page be
+ * selected by the keyset of the last message of the page before it, so SQLite seeks straight to
+ * it in the index rather than skipping over all the newer messages. The newest pages, up to the
+ * window it's created with, are loaded right away so that moving through them never runs a query
+ * on the main thread. Older pages are loaded when the cursor is moved onto them, and only the
+ * most recently used {@link #MAX_LOADED_PAGES} pages are kept, so scrolling through a long
+ * history doesn't bring all of it into memory.
+ *
+ * The parts of each page's messages are loaded with a second query, ordered by message id, and
+ * handed to {@link ConversationMessageData#bind} through {@link PartsCursor} so that binding a
+ * message reads typed part columns instead of splitting group_concat'ed strings.
+ *
+ * Its {@link RowSnapshot} is hashed from the pages loaded up front and from the status of the
+ * other messages, so diffing it against the previous load doesn't need another query.
+ */
+class ConversationMessagesCursor extends AbstractCursor
+        implements PartsCursor, RowSnapshot.Source {
+    static final int PAGE_SIZE = 100;
+    static final int MAX_LOADED_PAGES = 16;
+    private static final String[] NO_KEYSET =
+            new String[] { String.valueOf(Long.MAX_VALUE), String.valueOf(Long.MAX_VALUE) };
+
+    private final DatabaseWrapper mDatabase;
+    private final String mConversationId;
+    private final int mCount;
+    private final String[] mColumnNames;
+    private final int mIdColumn;
+
+    // The id and status of each message, newest first
+    private final long[] mIds;
+    private final int[] mStatuses;
+    // The received timestamp of the last message of each page
+    private final long[] mPageEndTimestamps;
+    // The pages loaded when the cursor was created
+    private final int mPreloadedPageCount;
+
+    // Loaded pages by page index, least recently used first; all but the last page are full
+    private final LinkedHashMap<Integer, Page> mPages =
+            new LinkedHashMap<Integer, Page>(MAX_LOADED_PAGES + 1, 0.75f, true /* accessOrder */);
+    // The page holding the current row
+    private Page mPage;
+    private int mPageLoadCount;
+
+    /**
+     * The messages of a page along with their parts
+     */
+    private static class Page {
+        final Cursor mMessages;
+        // Null if the page is empty
+        final Cursor mParts;
+        // The message id of each row of mParts, in ascending order
+        final long[] mPartMessageIds;
+
+        Page(final Cursor messages, final Cursor parts) {
+            mMessages = messages;
+            mParts = parts;
+            mPartMessageIds = new long[parts == null ? 0 : parts.getCount()];
+            if (parts != null) {
+                final int messageIdColumn =
+                        ConversationMessageData.getPartsQueryMessageIdColumn();
+                while (parts.moveToNext()) {
+                    mPartMessageIds[parts.getPosition()] = parts.getLong(messageIdColumn);
+                }
+            }
+        }
+
+        Cursor moveToParts(final long messageId) {
+            int position = Arrays.binarySearch(mPartMessageIds, messageId);
+            if (position < 0) {
+                return null;
+            }
+            while (position > 0 && mPartMessageIds[position - 1] == messageId) {
+                position--;
+            }
+            mParts.moveToPosition(position);
+            return mParts;
+        }
+
+        void close() {
+            mMessages.close();
+            if (mParts != null) {
+                mParts.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the messages of a conversation and loads the pages holding the given number of the
+     * newest ones. Must not be called on the main thread.
+     */
+    ConversationMessagesCursor(final DatabaseWrapper database, final String conversationId,
+            final int window) {
+        Assert.isNotMainThread();
+        Assert.isTrue(window > 0);
+        mDatabase = database;
+        mConversationId = conversationId;
+
+        final Cursor keys = mDatabase.rawQuery(
+                ConversationMessageData.getConversationMessageKeysQuerySql(),
+                new String[] { conversationId });
+        try {
+            mCount = keys.getCount();
+            mIds = new long[mCount];
+            mStatuses = new int[mCount];
+            mPageEndTimestamps = new long[(mCount + PAGE_SIZE - 1) / PAGE_SIZE];
+            final int idColumn = keys.getColumnIndexOrThrow(MessageColumns._ID);
+            final int timestampColumn =
+                    keys.getColumnIndexOrThrow(MessageColumns.RECEIVED_TIMESTAMP);
+            final int statusColumn = keys.getColumnIndexOrThrow(MessageColumns.STATUS);
+            while (keys.moveToNext()) {
+                final int position = keys.getPosition();
+                mIds[position] = keys.getLong(idColumn);
+                mStatuses[position] = keys.getInt(statusColumn);
+                mPageEndTimestamps[position / PAGE_SIZE] = keys.getLong(timestampColumn);
+            }
+        } finally {
+            keys.close();
+        }
+
+        // Always load the first page, even of an empty conversation, for its column names
+        final int windowPageCount = (window - 1) / PAGE_SIZE + 1;
+        mPreloadedPageCount = Math.max(1, Math.min(MAX_LOADED_PAGES,
+                Math.min(windowPageCount, mPageEndTimestamps.length)));
+        Page page = null;
+        for (int pageIndex = mPreloadedPageCount - 1; pageIndex >= 0; pageIndex--) {
+            page = getPage(pageIndex);
+        }
+        mColumnNames = page.mMessages.getColumnNames();
+        mIdColumn = page.mMessages.getColumnIndexOrThrow(MessageColumns._ID);
+    }
+
+    /**
+     * Gets a page, loading it if it isn't loaded, and closes the least recently used page if
+     * that leaves too many loaded
+     */
+    private Page getPage(final int pageIndex) {
+        Page page = mPages.get(pageIndex);
+        if (page != null) {
+            return page;
+        }
+        final String[] keyset = pageIndex == 0 ? NO_KEYSET : new String[] {
+                String.valueOf(mPageEndTimestamps[pageIndex - 1]),
+                String.valueOf(mIds[pageIndex * PAGE_SIZE - 1]) };
+        page = loadPage(keyset);
+        mPages.put(pageIndex, page);
+        if (mPages.size() > MAX_LOADED_PAGES) {
+            final Iterator<Map.Entry<Integer, Page>> iterator = mPages.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Page eldest = iterator.next().getValue();
+                // The current row is still read from its page until the move completes
+                if (eldest != mPage && eldest != page) {
+                    iterator.remove();
+                    eldest.close();
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    private Page loadPage(final String[] keyset) {
+        final Cursor messages = mDatabase.rawQuery(
+                ConversationMessageData.getConversationMessagesPageQuerySql(),
+                new String[] { mConversationId, keyset[0], keyset[0], keyset[1],
+                        String.valueOf(PAGE_SIZE) });
+        mPageLoadCount++;
+        if (!messages.moveToFirst()) {
+            return new Page(messages, null);
+        }
+        // Load the parts of the messages from the newest to the oldest of the page
+        final String[] newest = getKeyset(messages);
+        messages.moveToLast();
+        final String[] oldest = getKeyset(messages);
+        final Cursor parts = mDatabase.rawQuery(
+                ConversationMessageData.getConversationMessagePartsQuerySql(),
+                new String[] { mConversationId, oldest[0], oldest[0], oldest[1],
+                        newest[0], newest[0], newest[1] });
+        return new Page(messages, parts);
+    }
+
+    private static String[] getKeyset(final Cursor messages) {
+        return new String[] {
+                String.valueOf(messages.getLong(messages.getColumnIndexOrThrow(
+                        MessageColumns.RECEIVED_TIMESTAMP))),
+                String.valueOf(messages.getLong(messages.getColumnIndexOrThrow(
+                        MessageColumns._ID))) };
+    }
+
+    /**
+     * @return number of page queries run
+     */
+    int getPageLoadCount() {
+        return mPageLoadCount;
+    }
+
+    /**
+     * @return number of pages currently loaded
+     */
+    int getLoadedPageCount() {
+        return mPages.size();
+    }
+
+    @Override
+    public boolean onMove(final int oldPosition, final int newPosition) {
+        final Page page = getPage(newPosition / PAGE_SIZE);
+        if (!page.mMessages.moveToPosition(newPosition % PAGE_SIZE)) {
+            return false;
+        }
+        mPage = page;
+        return true;
+    }
+
+    /**
+     * Takes the snapshot without a query, hashing each message of the pages loaded up front
+     * along with the rows of its parts and each of the other messages by its status. Moves the
+     * pages, so it's called on the loader thread before the cursor is delivered.
+     */
+    @Override
+    public RowSnapshot getRowSnapshot() {
+        final long[] ids = Arrays.copyOf(mIds, mCount);
+        final int[] hashes = Arrays.copyOf(mStatuses, mCount);
+        final int partsMessageIdColumn = ConversationMessageData.getPartsQueryMessageIdColumn();
+        for (int pageIndex = 0; pageIndex < mPreloadedPageCount; pageIndex++) {
+            final Page page = mPages.get(pageIndex);
+            if (page == null) {
+                continue;
+            }
+            final Cursor messages = page.mMessages;
+            final int columnCount = messages.getColumnCount();
+            messages.moveToPosition(-1);
+            while (messages.moveToNext()) {
+                final int position = pageIndex * PAGE_SIZE + messages.getPosition();
+                if (position >= mCount) {
+                    break;
+                }
+                final long id = messages.getLong(mIdColumn);
+                int hash = RowSnapshot.hashRow(messages, columnCount);
+                final Cursor parts = page.moveToParts(id);
+                if (parts != null) {
+                    final int partsColumnCount = parts.getColumnCount();
+                    do {
+                        hash = 31 * hash + RowSnapshot.hashRow(parts, partsColumnCount);
+                    } while (parts.moveToNext() && parts.getLong(partsMessageIdColumn) == id);
+                }
+                ids[position] = id;
+                hashes[position] = hash;
+            }
+        }
+        moveToPosition(-1);
+        // Messages are clustered with their neighbors, so a change to one may change how the
+        // messages on either side of it are drawn
+        return new RowSnapshot(ids, hashes).includeNeighbors();
+    }
+
+    @Override
+    public Cursor moveToMessageParts() {
+        return mPage.moveToParts(mPage.mMessages.getLong(mIdColumn));
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(final int column) {
+        return mPage.mMessages.getString(column);
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return mPage.mMessages.getShort(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return mPage.mMessages.getInt(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        return mPage.mMessages.getLong(column);
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return mPage.mMessages.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        return mPage.mMessages.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(final int column) {
+        return mPage.mMessages.getBlob(column);
+    }
+
+    @Override
+    public int getType(final int column) {
+        return mPage.mMessages.getType(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return mPage.mMessages.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (final Page page : mPages.values()) {
+            page.close();
+        }
+        mPages.clear();
+        mPage = null;
+    }
+}
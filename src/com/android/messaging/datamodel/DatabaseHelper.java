@@ -32,6 +32,7 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.LogUtil;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ObjectArrays;
 
 /**
  * TODO: Open Issues:
@@ -294,6 +295,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + MessageColumns.STATUS + ", "
                     + MessageColumns.RECEIVED_TIMESTAMP + ")";
 
+    // Index for paging through a conversation's messages by (received timestamp, id).
+    static final String MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL =
+            "CREATE INDEX index_" + MESSAGES_TABLE + "_conversation_timestamp ON "
+                    + MESSAGES_TABLE + "("
+                    + MessageColumns.CONVERSATION_ID + ", "
+                    + MessageColumns.RECEIVED_TIMESTAMP + ")";
+
     private static final String MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL =
             "CREATE INDEX index_" + MESSAGES_TABLE + "_status_seen ON " +  MESSAGES_TABLE + "("
                     + MessageColumns.STATUS + ", "
@@ -526,24 +534,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         CREATE_PARTS_TABLE_SQL,
         CREATE_PARTICIPANTS_TABLE_SQL,
         CREATE_CONVERSATION_PARTICIPANTS_TABLE_SQL,
+        ConversationListItemData.getConversationListTableSql(),
     };
 
     // List of all our indices
-    private static final String[] CREATE_INDEX_SQLS = new String[] {
+    private static final String[] CREATE_INDEX_SQLS = ObjectArrays.concat(new String[] {
         CONVERSATIONS_TABLE_SMS_THREAD_ID_INDEX_SQL,
         CONVERSATIONS_TABLE_ARCHIVE_STATUS_INDEX_SQL,
         CONVERSATIONS_TABLE_SORT_TIMESTAMP_INDEX_SQL,
         MESSAGES_TABLE_SORT_INDEX_SQL,
+        MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL,
         MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL,
         PARTS_TABLE_MESSAGE_INDEX_SQL,
         CONVERSATION_PARTICIPANTS_TABLE_CONVERSATION_ID_INDEX_SQL,
-    };
+    }, ConversationListItemData.getConversationListTableIndexSqls(), String.class);
 
     // List of all our SQL triggers
-    private static final String[] CREATE_TRIGGER_SQLS = new String[] {
+    private static final String[] CREATE_TRIGGER_SQLS = ObjectArrays.concat(new String[] {
             CREATE_PARTS_TRIGGER_SQL,
             CREATE_MESSAGES_TRIGGER_SQL,
-    };
+    }, ObjectArrays.concat(ConversationListItemData.getConversationListTableTriggerSqls(),
+            MessageSearchIndex.getTriggerSqls(), String.class), String.class);
 
     // List of all our views
     private static final String[] CREATE_VIEW_SQLS = new String[] {
@@ -668,6 +679,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Refills the conversation list table from its view, e.g. after the view or the tables
+     * behind it were changed without firing the triggers that keep it current.
+     */
+    public static void refillConversationListTable(final SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + ConversationListItemData.getConversationListTable());
+        db.execSQL(ConversationListItemData.getConversationListTableFillSql());
+    }
+
     /**
      * Drops all user-defined tables from the given database.
      */
@@ -778,6 +798,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         for (final String sql : CREATE_TABLE_SQLS) {
             db.execSQL(sql);
         }
+        MessageSearchIndex.createTable(db);
 
         for (final String sql : CREATE_INDEX_SQLS) {
             db.execSQL(sql);
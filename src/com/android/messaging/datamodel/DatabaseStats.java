@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency histograms of database operations keyed by query shape (the SQL with literals
+ * replaced by ?), plus a ring buffer of recent slow operations along with their query plans.
+ * Always on, so recording only costs a normalization pass over the SQL and a locked counter
+ * update.
+ */
+class DatabaseStats {
+    // Upper bounds of the histogram buckets in ms; the last bucket is unbounded
+    private static final long[] BUCKET_LIMITS_MILLIS =
+            new long[] { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+    // Most query shapes tracked; beyond this operations are counted under OTHER_SHAPE
+    private static final int MAX_SHAPES = 256;
+    private static final String OTHER_SHAPE = "(other)";
+    // Number of slow operations kept
+    private static final int MAX_SLOW_OPERATIONS = 32;
+
+    /**
+     * Latencies of one query shape
+     */
+    private static class Histogram {
+        final String mShape;
+        final long[] mBuckets = new long[BUCKET_LIMITS_MILLIS.length + 1];
+        long mCount;
+        long mTotalMicros;
+        long mMaxMicros;
+
+        Histogram(final String shape) {
+            mShape = shape;
+        }
+
+        void add(final long micros) {
+            final long millis = micros / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MILLIS.length
+                    && millis >= BUCKET_LIMITS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+        }
+
+        /**
+         * @return upper bound in ms of the bucket holding the given percentile, -1 if unbounded
+         */
+        long getPercentileMillis(final float fraction) {
+            final long target = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_LIMITS_MILLIS.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return BUCKET_LIMITS_MILLIS[i];
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US,
+                    "%d ops, avg %.1f ms, p50 %s, p95 %s, max %.1f ms [", mCount,
+                    mTotalMicros / 1000f / mCount, formatPercentile(0.5f),
+                    formatPercentile(0.95f), mMaxMicros / 1000f));
+            for (int i = 0; i < mBuckets.length; i++) {
+                sb.append(i > 0 ? " " : "").append(mBuckets[i]);
+            }
+            return sb.append("] ").append(mShape).toString();
+        }
+
+        private String formatPercentile(final float fraction) {
+            final long millis = getPercentileMillis(fraction);
+            if (millis < 0) {
+                return ">=" + BUCKET_LIMITS_MILLIS[BUCKET_LIMITS_MILLIS.length - 1] + " ms";
+            }
+            return "<" + millis + " ms";
+        }
+    }
+
+    /**
+     * One operation that took longer than the slow threshold
+     */
+    private static class SlowOperation {
+        final long mTimestamp;
+        final String mThreadName;
+        final String mSql;
+        final long mMillis;
+        final String mDetail;
+
+        SlowOperation(final String sql, final long millis, final String detail) {
+            mTimestamp = System.currentTimeMillis();
+            mThreadName = Thread.currentThread().getName();
+            mSql = sql;
+            mMillis = millis;
+            mDetail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return mTimestamp + " [" + mThreadName + "] " + mMillis + " ms: " + mSql
+                    + (mDetail == null ? "" : "\n      " + mDetail.replace("\n", "\n      "));
+        }
+    }
+
+    private final long mSlowThresholdMillis;
+    private final HashMap<String, Histogram> mHistograms = new HashMap<String, Histogram>();
+    private final ArrayDeque<SlowOperation> mSlowOperations = new ArrayDeque<SlowOperation>();
+
+    DatabaseStats(final long slowThresholdMillis) {
+        mSlowThresholdMillis = slowThresholdMillis;
+    }
+
+    /**
+     * Record how long an operation took
+     * @param sql SQL (or description) of the operation, normalized into its shape here
+     * @param durationNanos time the operation took
+     * @return true if the operation was slow and should be passed to {@link #recordSlow}
+     */
+    boolean record(final String sql, final long durationNanos) {
+        final String shape = normalize(sql);
+        synchronized (mHistograms) {
+            Histogram histogram = mHistograms.get(shape);
+            if (histogram == null) {
+                final String key = mHistograms.size() < MAX_SHAPES ? shape : OTHER_SHAPE;
+                histogram = mHistograms.get(key);
+                if (histogram == null) {
+                    histogram = new Histogram(key);
+                    mHistograms.put(key, histogram);
+                }
+            }
+            histogram.add(durationNanos / 1000);
+        }
+        return durationNanos / 1000000 >= mSlowThresholdMillis;
+    }
+
+    /**
+     * Add a slow operation to the slow query log
+     * @param sql SQL (or description) of the operation
+     * @param durationNanos time the operation took
+     * @param detail query plan or other detail, may be null
+     */
+    void recordSlow(final String sql, final long durationNanos, final String detail) {
+        final SlowOperation operation = new SlowOperation(sql, durationNanos / 1000000, detail);
+        synchronized (mSlowOperations) {
+            if (mSlowOperations.size() >= MAX_SLOW_OPERATIONS) {
+                mSlowOperations.removeFirst();
+            }
+            mSlowOperations.addLast(operation);
+        }
+    }
+
+    /**
+     * Reduce SQL to its shape: string and numeric literals become ?, runs of whitespace become
+     * one space and lists of ? (e.g. from IN clauses) become a single ?
+     */
+    static String normalize(final String sql) {
+        if (sql == null) {
+            return "";
+        }
+        final int length = sql.length();
+        final StringBuilder sb = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            final char c = sql.charAt(i);
+            if (c == '\'') {
+                // String literal, '' escapes a quote
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                appendPlaceholder(sb);
+            } else if (Character.isDigit(c) && (sb.length() == 0
+                    || !isIdentifierChar(sb.charAt(sb.length() - 1)))) {
+                // Numeric literal (not the tail of an identifier like "part1")
+                while (i < length && (isIdentifierChar(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendPlaceholder(sb);
+            } else if (c == '?') {
+                i++;
+                appendPlaceholder(sb);
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static boolean isIdentifierChar(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Append ? unless it would just extend a list of them, e.g. "?, ?, ?" stays "?"
+     */
+    private static void appendPlaceholder(final StringBuilder sb) {
+        int end = sb.length();
+        while (end > 0 && sb.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end > 0 && sb.charAt(end - 1) == ',') {
+            int previous = end - 1;
+            while (previous > 0 && sb.charAt(previous - 1) == ' ') {
+                previous--;
+            }
+            if (previous > 0 && sb.charAt(previous - 1) == '?') {
+                sb.setLength(previous);
+                return;
+            }
+        }
+        sb.append('?');
+    }
+
+    void dump(final PrintWriter writer) {
+        final ArrayList<Histogram> histograms;
+        synchronized (mHistograms) {
+            histograms = new ArrayList<Histogram>(mHistograms.size());
+            for (final Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                final Histogram copy = new Histogram(entry.getKey());
+                final Histogram histogram = entry.getValue();
+                System.arraycopy(histogram.mBuckets, 0, copy.mBuckets, 0, copy.mBuckets.length);
+                copy.mCount = histogram.mCount;
+                copy.mTotalMicros = histogram.mTotalMicros;
+                copy.mMaxMicros = histogram.mMaxMicros;
+                histograms.add(copy);
+            }
+        }
+        // Most total time first
+        Collections.sort(histograms, new Comparator<Histogram>() {
+            @Override
+            public int compare(final Histogram lhs, final Histogram rhs) {
+                return Long.compare(rhs.mTotalMicros, lhs.mTotalMicros);
+            }
+        });
+        final StringBuilder buckets = new StringBuilder();
+        for (final long limit : BUCKET_LIMITS_MILLIS) {
+            buckets.append("<").append(limit).append(" ");
+        }
+        writer.println("Database operation latencies (buckets in ms: " + buckets + ">="
+                + BUCKET_LIMITS_MILLIS[BUCKET_LIMITS_MILLIS.length - 1] + ")");
+        for (final Histogram histogram : histograms) {
+            writer.println("  " + histogram);
+        }
+        writer.println("Slow database operations (>= " + mSlowThresholdMillis + " ms)");
+        synchronized (mSlowOperations) {
+            for (final SlowOperation operation : mSlowOperations) {
+                writer.println("  " + operation);
+            }
+        }
+    }
+}
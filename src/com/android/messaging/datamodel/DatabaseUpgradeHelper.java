@@ -19,6 +19,7 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 
@@ -48,10 +49,21 @@ public class DatabaseUpgradeHelper {
         if (currentVersion < 2) {
             currentVersion = upgradeToVersion2(db);
         }
+        if (currentVersion < 3) {
+            currentVersion = upgradeToVersion3(db);
+        }
+        if (currentVersion < 4) {
+            currentVersion = upgradeToVersion4(db);
+        }
+        if (currentVersion < 5) {
+            currentVersion = upgradeToVersion5(db);
+        }
         // Rebuild all the views
         final Context context = Factory.get().getApplicationContext();
         DatabaseHelper.dropAllViews(db);
         DatabaseHelper.rebuildAllViews(new DatabaseWrapper(context, db));
+        // The conversation list table holds the rows of its view, which may have just changed
+        DatabaseHelper.refillConversationListTable(db);
         // Finally, check if we have arrived at the final version.
         checkAndUpdateVersionAtReleaseEnd(currentVersion, Integer.MAX_VALUE, newVersion);
     }
@@ -63,6 +75,35 @@ public class DatabaseUpgradeHelper {
         return 2;
     }
 
+    private int upgradeToVersion3(final SQLiteDatabase db) {
+        db.execSQL(DatabaseHelper.MESSAGES_TABLE_CONVERSATION_TIMESTAMP_INDEX_SQL);
+        LogUtil.i(TAG, "Upgraded database to version 3");
+        return 3;
+    }
+
+    private int upgradeToVersion4(final SQLiteDatabase db) {
+        db.execSQL(ConversationListItemData.getConversationListTableSql());
+        for (final String sql : ConversationListItemData.getConversationListTableIndexSqls()) {
+            db.execSQL(sql);
+        }
+        for (final String sql : ConversationListItemData.getConversationListTableTriggerSqls()) {
+            db.execSQL(sql);
+        }
+        LogUtil.i(TAG, "Upgraded database to version 4");
+        return 4;
+    }
+
+    private int upgradeToVersion5(final SQLiteDatabase db) {
+        MessageSearchIndex.createTable(db);
+        for (final String sql : MessageSearchIndex.getTriggerSqls()) {
+            db.execSQL(sql);
+        }
+        // Index the text of the existing messages
+        db.execSQL(MessageSearchIndex.getRebuildSql());
+        LogUtil.i(TAG, "Upgraded database to version 5");
+        return 5;
+    }
+
     /**
      * Checks db version correctness at the end of each milestone release. If target database
      * version lies beyond the version range that the current release may handle, we snap the
@@ -24,7 +24,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
-import android.util.SparseArray;
+import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.messaging.Factory;
 import com.android.messaging.R;
@@ -34,8 +35,14 @@ import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.UiUtils;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class DatabaseWrapper {
@@ -52,15 +59,69 @@ public class DatabaseWrapper {
     private final String mExplainQueryPlanRegexp;
     private static final int sTimingThreshold = 50;        // in milliseconds
 
-    public static final int INDEX_INSERT_MESSAGE_PART = 0;
-    public static final int INDEX_INSERT_MESSAGE = 1;
-    public static final int INDEX_QUERY_CONVERSATIONS_LATEST_MESSAGE = 2;
-    public static final int INDEX_QUERY_MESSAGES_LATEST_MESSAGE = 3;
+    // Most compiled statements kept cached; beyond this the least recently used one is dropped,
+    // and closed once no open transaction uses it
+    private static final int MAX_COMPILED_STATEMENTS = 32;
 
-    private final SparseArray<SQLiteStatement> mCompiledStatements;
+    // Conflict clauses indexed by SQLiteDatabase.CONFLICT_* (as used by insertWithOnConflict)
+    private static final String[] CONFLICT_VALUES = new String[] {
+        "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"
+    };
+
+    // Compiled statements keyed by their SQL. Their use counts are guarded by the cache.
+    private final LruCache<String, CachedStatement> mCompiledStatements;
+
+    /**
+     * A compiled statement from the cache. Each transaction that gets it holds a use of it until
+     * the transaction ends, so a statement dropped from the cache meanwhile (by this thread or
+     * by another one while this one yields) isn't closed from under it.
+     */
+    private class CachedStatement {
+        final SQLiteStatement mStatement;
+        int mUseCount;
+        boolean mRemoved;
+
+        CachedStatement(final SQLiteStatement statement) {
+            mStatement = statement;
+        }
+
+        void release() {
+            synchronized (mCompiledStatements) {
+                mUseCount--;
+                closeIfUnused();
+            }
+        }
+
+        void closeIfUnused() {
+            Assert.isTrue(Thread.holdsLock(mCompiledStatements));
+            if (mRemoved && mUseCount == 0) {
+                mStatement.close();
+            }
+        }
+    }
+
+    // Cached statements used in the outermost transaction open on this thread
+    private static ThreadLocal<Set<CachedStatement>> sStatementsInUse =
+            new ThreadLocal<Set<CachedStatement>>() {
+        @Override
+        public Set<CachedStatement> initialValue() {
+            return new HashSet<CachedStatement>();
+        }
+    };
+
+    /**
+     * Slowest query made outside of a transaction (i.e. reads on behalf of the UI, which have
+     * to wait for any writer holding the database) since last reset
+     */
+    private final AtomicLong mMaxReadTimeMillis = new AtomicLong();
+
+    // Latency histograms per query shape and the slow query log, included in dumpsys
+    private final DatabaseStats mStats;
 
     static class TransactionData {
         long time;
+        // System.nanoTime() once the transaction (i.e. the database lock) was acquired
+        long startNanos;
         boolean transactionSuccessful;
     }
 
@@ -73,6 +134,20 @@ public class DatabaseWrapper {
         }
     };
 
+    // Work to run once the outermost transaction on the thread has ended
+    private static ThreadLocal<List<Runnable>> sAfterTransaction =
+            new ThreadLocal<List<Runnable>>() {
+        @Override
+        public List<Runnable> initialValue() {
+            return new ArrayList<Runnable>();
+        }
+    };
+
+    // Shapes under which transactions are recorded in the latency histograms
+    private static final String BEGIN_TRANSACTION_SHAPE = "BEGIN TRANSACTION (lock wait)";
+    private static final String TRANSACTION_SHAPE = "TRANSACTION";
+    private static final String NESTED_TRANSACTION_SHAPE = "TRANSACTION (nested)";
+
     private static String[] sFormatStrings = new String[] {
         "took %d ms to %s",
         "   took %d ms to %s",
@@ -85,19 +160,187 @@ public class DatabaseWrapper {
                 BugleGservicesKeys.EXPLAIN_QUERY_PLAN_REGEXP, null);
         mDatabase = db;
         mContext = context;
-        mCompiledStatements = new SparseArray<SQLiteStatement>();
+        mStats = new DatabaseStats(Factory.get().getBugleGservices().getLong(
+                BugleGservicesKeys.SLOW_QUERY_THRESHOLD_MILLIS,
+                BugleGservicesKeys.SLOW_QUERY_THRESHOLD_MILLIS_DEFAULT));
+        mCompiledStatements = new LruCache<String, CachedStatement>(MAX_COMPILED_STATEMENTS) {
+            @Override
+            protected void entryRemoved(final boolean evicted, final String sql,
+                    final CachedStatement oldValue, final CachedStatement newValue) {
+                synchronized (mCompiledStatements) {
+                    oldValue.mRemoved = true;
+                    oldValue.closeIfUnused();
+                }
+            }
+        };
     }
 
-    public SQLiteStatement getStatementInTransaction(final int index, final String statement) {
+    /**
+     * Get a compiled statement for the SQL, compiling it the first time it is seen. Statements
+     * are shared, so the caller must bind and execute it within its transaction. It stays open
+     * until the transaction ends, even if it's dropped from the cache before then.
+     */
+    public SQLiteStatement getStatementInTransaction(final String sql) {
         // Use transaction to serialize access to statements
         Assert.isTrue(mDatabase.inTransaction());
-        SQLiteStatement compiled = mCompiledStatements.get(index);
-        if (compiled == null) {
-            compiled = mDatabase.compileStatement(statement);
-            Assert.isTrue(compiled.toString().contains(statement.trim()));
-            mCompiledStatements.put(index, compiled);
+        synchronized (mCompiledStatements) {
+            CachedStatement cached = mCompiledStatements.get(sql);
+            if (cached == null) {
+                final SQLiteStatement compiled = mDatabase.compileStatement(sql);
+                Assert.isTrue(compiled.toString().contains(sql.trim()));
+                cached = new CachedStatement(compiled);
+                mCompiledStatements.put(sql, cached);
+            }
+            // Only transactions begun through this class are seen ending
+            if (isInTransaction() && sStatementsInUse.get().add(cached)) {
+                cached.mUseCount++;
+            }
+            return cached.mStatement;
+        }
+    }
+
+    /**
+     * Releases the statements used by the outermost transaction on this thread, which just ended
+     */
+    private static void releaseStatementsInUse() {
+        final Set<CachedStatement> statementsInUse = sStatementsInUse.get();
+        for (final CachedStatement cached : statementsInUse) {
+            cached.release();
+        }
+        statementsInUse.clear();
+    }
+
+    /**
+     * Typed insert of many rows into one table through a cached compiled statement. Values are
+     * bound directly rather than boxed into ContentValues and the SQL is only built once per
+     * batch. Only valid within the transaction it was created in.
+     */
+    public static class BulkInsert {
+        private final SQLiteStatement mStatement;
+
+        private BulkInsert(final SQLiteStatement statement) {
+            mStatement = statement;
+            mStatement.clearBindings();
+        }
+
+        /**
+         * @param index 1-based index into the columns passed to
+         *        {@link DatabaseWrapper#getBulkInsertInTransaction}
+         */
+        public BulkInsert bindLong(final int index, final long value) {
+            mStatement.bindLong(index, value);
+            return this;
+        }
+
+        /**
+         * @param index 1-based index into the columns passed to
+         *        {@link DatabaseWrapper#getBulkInsertInTransaction}
+         * @param value value to bind, null binds NULL
+         */
+        public BulkInsert bindString(final int index, final String value) {
+            if (value == null) {
+                mStatement.bindNull(index);
+            } else {
+                mStatement.bindString(index, value);
+            }
+            return this;
+        }
+
+        public BulkInsert bindNull(final int index) {
+            mStatement.bindNull(index);
+            return this;
+        }
+
+        /**
+         * Insert a row with the bound values and clear the bindings for the next row
+         * @return row id of the inserted row, -1 if it was ignored
+         */
+        public long execute() {
+            try {
+                return mStatement.executeInsert();
+            } finally {
+                mStatement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Start a typed bulk insert (or, with {@link SQLiteDatabase#CONFLICT_REPLACE}, an upsert)
+     * into a table within the current transaction
+     * @param table table to insert into
+     * @param columns columns bound for each row, in bind index order
+     * @param conflictAlgorithm one of the SQLiteDatabase CONFLICT_* constants
+     */
+    public BulkInsert getBulkInsertInTransaction(final String table, final String[] columns,
+            final int conflictAlgorithm) {
+        final StringBuilder sql = new StringBuilder("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+        return new BulkInsert(getStatementInTransaction(sql.toString()));
+    }
+
+    /**
+     * @return slowest read made outside of a transaction since the last call
+     */
+    public long getAndResetMaxReadTimeMillis() {
+        return mMaxReadTimeMillis.getAndSet(0);
+    }
+
+    private void recordReadTime(final long readTimeMillis) {
+        if (!sTransactionDepth.get().isEmpty()) {
+            return;
+        }
+        long max = mMaxReadTimeMillis.get();
+        while (readTimeMillis > max && !mMaxReadTimeMillis.compareAndSet(max, readTimeMillis)) {
+            max = mMaxReadTimeMillis.get();
         }
-        return compiled;
+    }
+
+    /**
+     * Record the latency of a read; slow reads are logged with their query plan
+     * @param sql full SQL of the query
+     * @param args query arguments, used to get the query plan
+     * @param startNanos System.nanoTime() before the query was made
+     */
+    private void recordQuery(final String sql, final String[] args, final long startNanos) {
+        final long durationNanos = System.nanoTime() - startNanos;
+        recordReadTime(durationNanos / 1000000);
+        if (mStats.record(sql, durationNanos)) {
+            mStats.recordSlow(sql, durationNanos, getQueryPlan(sql, args));
+        }
+    }
+
+    /**
+     * Record the latency of a write; slow ones are logged with the plan for finding their rows
+     * @param description shape of the write, e.g. "UPDATE table WHERE ..."
+     * @param table table written
+     * @param whereClause selection of rows updated or deleted, null for inserts
+     * @param whereArgs selection arguments
+     * @param startNanos System.nanoTime() before the write was made
+     */
+    private void recordWrite(final String description, final String table,
+            final String whereClause, final String[] whereArgs, final long startNanos) {
+        final long durationNanos = System.nanoTime() - startNanos;
+        if (mStats.record(description, durationNanos)) {
+            final String plan = TextUtils.isEmpty(whereClause) ? null : getQueryPlan(
+                    "SELECT rowid FROM " + table + " WHERE " + whereClause, whereArgs);
+            mStats.recordSlow(description, durationNanos, plan);
+        }
+    }
+
+    /**
+     * Dump the per query shape latency histograms and the slow query log
+     */
+    public void dump(final PrintWriter writer) {
+        mStats.dump(writer);
     }
 
     private void maybePlayDebugNoise() {
@@ -120,6 +363,26 @@ public class DatabaseWrapper {
         return mContext;
     }
 
+    /**
+     * @return whether the calling thread has a transaction open
+     */
+    static boolean isInTransaction() {
+        return !sTransactionDepth.get().isEmpty();
+    }
+
+    /**
+     * Runs the given work once the outermost transaction open on the calling thread has ended,
+     * or right away if there's none, e.g. to clean up files only once the rows naming them are
+     * gone. It runs on the calling thread, so slow work should be handed off from there.
+     */
+    public static void runAfterTransaction(final Runnable runnable) {
+        if (isInTransaction()) {
+            sAfterTransaction.get().add(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
     public void beginTransaction() {
         final long t1 = System.currentTimeMillis();
 
@@ -128,7 +391,14 @@ public class DatabaseWrapper {
         f.time = t1;
         sTransactionDepth.get().push(f);
 
+        final long waitStartNanos = System.nanoTime();
         mDatabase.beginTransaction();
+        f.startNanos = System.nanoTime();
+        // Time spent waiting for another thread's transaction to release the database
+        final long waitNanos = f.startNanos - waitStartNanos;
+        if (mStats.record(BEGIN_TRANSACTION_SHAPE, waitNanos)) {
+            mStats.recordSlow(BEGIN_TRANSACTION_SHAPE, waitNanos, getCaller());
+        }
     }
 
     public void setTransactionSuccessful() {
@@ -157,6 +427,26 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to endTransaction", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        final long transactionNanos = System.nanoTime() - f.startNanos;
+        final String shape = sTransactionDepth.get().isEmpty() ? TRANSACTION_SHAPE
+                : NESTED_TRANSACTION_SHAPE;
+        if (mStats.record(shape, transactionNanos)) {
+            mStats.recordSlow(shape, transactionNanos, getCaller());
+        }
+        if (sTransactionDepth.get().isEmpty()) {
+            releaseStatementsInUse();
+            // Let observers know about the changes made in the transaction now they're visible
+            ContentChangeDispatcher.get().onTransactionEnded();
+            final List<Runnable> afterTransaction = sAfterTransaction.get();
+            if (!afterTransaction.isEmpty()) {
+                final Runnable[] runnables =
+                        afterTransaction.toArray(new Runnable[afterTransaction.size()]);
+                afterTransaction.clear();
+                for (final Runnable runnable : runnables) {
+                    runnable.run();
+                }
+            }
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     ">>> endTransaction (total for this transaction: %d)",
@@ -217,8 +507,19 @@ public class DatabaseWrapper {
         if (!Pattern.matches(mExplainQueryPlanRegexp, sql)) {
             return;
         }
-        final Cursor planCursor = db.rawQuery("explain query plan " + sql, queryArgs);
+        final String plan = getQueryPlan(sql, queryArgs);
+        if (plan != null) {
+            LogUtil.v(TAG, "for query " + sql + "\nplan is: " + plan);
+        }
+    }
+
+    /**
+     * @return query plan of the SQL, one line per step, or null if it couldn't be explained
+     */
+    private String getQueryPlan(final String sql, final String[] queryArgs) {
+        Cursor planCursor = null;
         try {
+            planCursor = mDatabase.rawQuery("explain query plan " + sql, queryArgs);
             if (planCursor != null && planCursor.moveToFirst()) {
                 final int detailColumn = planCursor.getColumnIndex("detail");
                 final StringBuilder sb = new StringBuilder();
@@ -229,8 +530,7 @@ public class DatabaseWrapper {
                 if (sb.length() > 0) {
                     sb.setLength(sb.length() - 1);
                 }
-                LogUtil.v(TAG, "for query " + sql + "\nplan is: "
-                        + sb.toString());
+                return sb.toString();
             }
         } catch (final Exception e) {
             LogUtil.w(TAG, "Query plan failed ", e);
@@ -239,6 +539,19 @@ public class DatabaseWrapper {
                 planCursor.close();
             }
         }
+        return null;
+    }
+
+    /**
+     * @return first stack frame outside of this class, identifying who made a slow transaction
+     */
+    private static String getCaller() {
+        for (final StackTraceElement element : new Throwable().getStackTrace()) {
+            if (!DatabaseWrapper.class.getName().equals(element.getClassName())) {
+                return "from " + element;
+            }
+        }
+        return null;
     }
 
     public Cursor query(final String searchTable, final String[] projection,
@@ -256,8 +569,14 @@ public class DatabaseWrapper {
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
+        final long startNanos = System.nanoTime();
         final Cursor cursor = mDatabase.query(searchTable, projection, selection, selectionArgs,
                 groupBy, having, orderBy, limit);
+        // Cursors run their query when first counted; do that here so it is timed
+        cursor.getCount();
+        recordQuery(SQLiteQueryBuilder.buildQueryString(false /* distinct */, searchTable,
+                projection, selection, groupBy, having, orderBy, limit), selectionArgs,
+                startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -287,8 +606,13 @@ public class DatabaseWrapper {
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
+        final long startNanos = System.nanoTime();
         final Cursor cursor = qb.query(mDatabase, projection, selection, queryArgs, groupBy,
                 having, sortOrder, limit);
+        // Cursors run their query when first counted; do that here so it is timed
+        cursor.getCount();
+        recordQuery(qb.buildQuery(projection, selection, groupBy, having, sortOrder, limit),
+                queryArgs, startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -325,7 +649,11 @@ public class DatabaseWrapper {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
+        final long startNanos = System.nanoTime();
         final Cursor cursor = mDatabase.rawQuery(sql, args);
+        // Cursors run their query when first counted; do that here so it is timed
+        cursor.getCount();
+        recordQuery(sql, args, startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -342,12 +670,15 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         int count = 0;
+        final long startNanos = System.nanoTime();
         try {
             count = mDatabase.update(table, values, selection, selectionArgs);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to update", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordWrite("UPDATE " + table + " WHERE " + selection, table, selection, selectionArgs,
+                startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "update %s with %s ==> %d",
                     table, selection, count));
@@ -362,12 +693,15 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         int count = 0;
+        final long startNanos = System.nanoTime();
         try {
             count = mDatabase.delete(table, whereClause, whereArgs);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to delete", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordWrite("DELETE FROM " + table + " WHERE " + whereClause, table, whereClause,
+                whereArgs, startNanos);
         if (mLog) {
             printTiming(t1,
                     String.format(Locale.US, "delete from %s with %s ==> %d", table,
@@ -384,12 +718,14 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         long rowId = -1;
+        final long startNanos = System.nanoTime();
         try {
             rowId = mDatabase.insert(table, nullColumnHack, values);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to insert", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordWrite("INSERT INTO " + table, table, null, null, startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "insert to %s", table));
         }
@@ -404,12 +740,14 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         long rowId = -1;
+        final long startNanos = System.nanoTime();
         try {
             rowId = mDatabase.replace(table, nullColumnHack, values);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to replace", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordWrite("REPLACE INTO " + table, table, null, null, startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "replace to %s", table));
         }
@@ -15,17 +15,18 @@
  */
 package com.android.messaging.datamodel;
 
+import android.database.AbstractCursor;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import androidx.collection.SimpleArrayMap;
 
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.ContactUtil;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * A cursor builder that takes the frequent contacts cursor and aggregate it with the all contacts
@@ -82,7 +83,6 @@ public class FrequentContactsCursorBuilder {
             // Frequent contacts cursor has one record per contact, plus it doesn't contain info
             // such as phone number and type. In order for the records to be usable by Bugle, we
             // would like to populate it with information from the all contacts cursor.
-            final MatrixCursor retCursor = new MatrixCursor(ContactUtil.PhoneQuery.PROJECTION);
 
             // First, go through the frequents cursor and take note of all lookup keys and their
             // corresponding rank in the frequents list.
@@ -99,103 +99,270 @@ public class FrequentContactsCursorBuilder {
             mFrequentContactsCursor.moveToPosition(oldPosition);
 
             // Second, go through the all contacts cursor once and retrieve all information
-            // (multiple phone numbers etc.) and store that in an array list. Since the all
-            // contacts list only contains phone contacts, this step will ensure that we filter
-            // out any invalid/email contacts in the frequents list.
-            final ArrayList<Object[]> rows =
-                    new ArrayList<Object[]>(mFrequentContactsCursor.getCount());
+            // (multiple phone numbers etc.) into columns. Since the all contacts list only
+            // contains phone contacts, this step will ensure that we filter out any
+            // invalid/email contacts in the frequents list. A number already added with the
+            // same type is skipped.
+            final PhoneColumnsCursor retCursor = new PhoneColumnsCursor(getAllContacts
+                    ? mAllContactsCursor.getCount() : mFrequentContactsCursor.getCount());
+            final HashSet<String> addedNumbers = new HashSet<String>();
+            final ArrayList<Integer> ranks = new ArrayList<Integer>();
             oldPosition = mAllContactsCursor.getPosition();
             mAllContactsCursor.moveToPosition(-1);
             while (mAllContactsCursor.moveToNext()) {
                 final String lookupKey = mAllContactsCursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
-                if (lookupKeyToRankMap.containsKey(lookupKey) || getAllContacts) {
-                    final Object[] row = new Object[ContactUtil.PhoneQuery.PROJECTION.length];
-                    row[ContactUtil.INDEX_DATA_ID] =
-                            mAllContactsCursor.getLong(ContactUtil.INDEX_DATA_ID);
-                    row[ContactUtil.INDEX_CONTACT_ID] =
-                            mAllContactsCursor.getLong(ContactUtil.INDEX_CONTACT_ID);
-                    row[ContactUtil.INDEX_LOOKUP_KEY] =
-                            mAllContactsCursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
-                    row[ContactUtil.INDEX_DISPLAY_NAME] =
-                            mAllContactsCursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
-                    row[ContactUtil.INDEX_PHOTO_URI] =
-                            mAllContactsCursor.getString(ContactUtil.INDEX_PHOTO_URI);
-                    row[ContactUtil.INDEX_PHONE_EMAIL] =
-                            mAllContactsCursor.getString(ContactUtil.INDEX_PHONE_EMAIL)
-                                    .replaceAll("[^\\d+]", "");
-                    row[ContactUtil.INDEX_PHONE_EMAIL_TYPE] =
-                            mAllContactsCursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE);
-                    row[ContactUtil.INDEX_PHONE_EMAIL_LABEL] =
-                            mAllContactsCursor.getString(ContactUtil.INDEX_PHONE_EMAIL_LABEL);
-
-                    boolean numberAlreadyAdded = false;
-                    for (Object[] oldRow : rows) {
-                        final int idxType = ContactUtil.INDEX_PHONE_EMAIL_TYPE;
-                        final int idxPhone = ContactUtil.INDEX_PHONE_EMAIL;
-                        if (oldRow[idxType] == row[idxType] &&
-                                oldRow[idxPhone].toString().equals(row[idxPhone].toString())) {
-                            numberAlreadyAdded = true;
-                            break;
-                        }
-                    }
-                    if (!numberAlreadyAdded) {
-                        rows.add(row);
-                    }
+                final Integer contactRank = lookupKeyToRankMap.get(lookupKey);
+                if (contactRank == null && !getAllContacts) {
+                    continue;
+                }
+                final String number = normalizeNumber(
+                        mAllContactsCursor.getString(ContactUtil.INDEX_PHONE_EMAIL));
+                final int type = mAllContactsCursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE);
+                if (!addedNumbers.add(type + ":" + number)) {
+                    continue;
+                }
+                retCursor.addRow(mAllContactsCursor.getLong(ContactUtil.INDEX_DATA_ID),
+                        mAllContactsCursor.getLong(ContactUtil.INDEX_CONTACT_ID),
+                        lookupKey,
+                        mAllContactsCursor.getString(ContactUtil.INDEX_DISPLAY_NAME),
+                        mAllContactsCursor.getString(ContactUtil.INDEX_PHOTO_URI),
+                        number, type,
+                        mAllContactsCursor.getString(ContactUtil.INDEX_PHONE_EMAIL_LABEL));
+                if (!getAllContacts) {
+                    ranks.add(contactRank);
                 }
             }
             mAllContactsCursor.moveToPosition(oldPosition);
 
             // We can return all rows at this point, no sorting or further filtering needed
             if (getAllContacts) {
-                for (final Object[] row : rows) {
-                    retCursor.addRow(row);
-                }
                 return retCursor;
             }
 
-            // Now we have a list of rows containing frequent contacts in alphabetical order.
-            // Therefore, sort all the rows according to their actual ranks in the frequents list.
-            Collections.sort(rows, new Comparator<Object[]>() {
-                @Override
-                public int compare(final Object[] lhs, final Object[] rhs) {
-                    final String lookupKeyLhs = (String) lhs[ContactUtil.INDEX_LOOKUP_KEY];
-                    final String lookupKeyRhs = (String) rhs[ContactUtil.INDEX_LOOKUP_KEY];
-                    Assert.isTrue(lookupKeyToRankMap.containsKey(lookupKeyLhs) &&
-                            lookupKeyToRankMap.containsKey(lookupKeyRhs));
-                    final int rankLhs = lookupKeyToRankMap.get(lookupKeyLhs);
-                    final int rankRhs = lookupKeyToRankMap.get(lookupKeyRhs);
-                    if (rankLhs < rankRhs) {
-                        return -1;
-                    } else if (rankLhs > rankRhs) {
-                        return 1;
-                    } else {
-                        // Same rank, so it's two contact records for the same contact.
-                        // Perform secondary sorting on the phone type. Always place
-                        // mobile before everything else.
-                        final int phoneTypeLhs = (int) lhs[ContactUtil.INDEX_PHONE_EMAIL_TYPE];
-                        final int phoneTypeRhs = (int) rhs[ContactUtil.INDEX_PHONE_EMAIL_TYPE];
-                        if (phoneTypeLhs == Phone.TYPE_MOBILE &&
-                                phoneTypeRhs == Phone.TYPE_MOBILE) {
-                            return 0;
-                        } else if (phoneTypeLhs == Phone.TYPE_MOBILE) {
-                            return -1;
-                        } else if (phoneTypeRhs == Phone.TYPE_MOBILE) {
-                            return 1;
-                        } else {
-                            // Use the default sort order, i.e. sort by phoneType value.
-                            return phoneTypeLhs < phoneTypeRhs ? -1 :
-                                    (phoneTypeLhs == phoneTypeRhs ? 0 : 1);
-                        }
-                    }
-                }
-            });
-
-            // Finally, add all the rows to this cursor.
-            for (final Object[] row : rows) {
-                retCursor.addRow(row);
+            // Now we have rows of frequent contacts in alphabetical order. Therefore, order
+            // them by their actual ranks in the frequents list. Two rows with the same rank are
+            // numbers of the same contact, which go by phone type, mobile first. Rows that tie
+            // keep their alphabetical order.
+            final int rowCount = ranks.size();
+            final long[] sortKeys = new long[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                sortKeys[row] = ((long) ranks.get(row) << (2 * SORT_KEY_FIELD_BITS))
+                        | ((long) getPhoneTypeOrder(retCursor.mTypes[row]) << SORT_KEY_FIELD_BITS)
+                        | row;
+            }
+            Arrays.sort(sortKeys);
+            final int[] order = new int[rowCount];
+            for (int position = 0; position < rowCount; position++) {
+                order[position] = (int) (sortKeys[position] & SORT_KEY_FIELD_MASK);
             }
+            retCursor.setOrder(order);
             return retCursor;
         }
         return null;
     }
+
+    // Rows are ordered by (rank, phone type order, row) packed into a long, a field each
+    private static final int SORT_KEY_FIELD_BITS = 21;
+    private static final long SORT_KEY_FIELD_MASK = (1L << SORT_KEY_FIELD_BITS) - 1;
+
+    /**
+     * @return where numbers of the phone type go among the numbers of a contact; mobile first,
+     * then the other types by their value
+     */
+    private static int getPhoneTypeOrder(final int phoneType) {
+        if (phoneType == Phone.TYPE_MOBILE) {
+            return 0;
+        }
+        // Custom types are 0, below every other type
+        return (int) Math.min(Math.max(phoneType, 0) + 1L, SORT_KEY_FIELD_MASK);
+    }
+
+    /**
+     * Strips everything but digits and '+' from the number. This runs for every phone number of
+     * every contact, so it only copies the number when there is something to strip.
+     */
+    @VisibleForTesting
+    static String normalizeNumber(final String number) {
+        if (number == null) {
+            return null;
+        }
+        final int length = number.length();
+        int start = 0;
+        while (start < length && isNumberChar(number.charAt(start))) {
+            start++;
+        }
+        if (start == length) {
+            return number;
+        }
+        final StringBuilder normalized = new StringBuilder(length);
+        normalized.append(number, 0, start);
+        for (int i = start + 1; i < length; i++) {
+            final char c = number.charAt(i);
+            if (isNumberChar(c)) {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isNumberChar(final char c) {
+        return (c >= '0' && c <= '9') || c == '+';
+    }
+
+    /**
+     * Cursor over the built rows, with the columns of {@link ContactUtil.PhoneQuery#PROJECTION}.
+     * Each column is kept in its own array rather than each row in an Object[] as MatrixCursor
+     * does, so that ids and phone types aren't boxed and building the cursor for thousands of
+     * contacts doesn't allocate an array per row.
+     */
+    private static class PhoneColumnsCursor extends AbstractCursor {
+        private int mRowCount;
+        private long[] mDataIds;
+        private long[] mContactIds;
+        private String[] mLookupKeys;
+        private String[] mDisplayNames;
+        private String[] mPhotoUris;
+        private String[] mNumbers;
+        private int[] mTypes;
+        private String[] mLabels;
+        // Row shown at each position, or null to show the rows in the order they were added
+        private int[] mOrder;
+        // Row at the current position
+        private int mRow;
+
+        PhoneColumnsCursor(final int capacity) {
+            allocate(Math.max(capacity, 1));
+        }
+
+        private void allocate(final int capacity) {
+            mDataIds = mDataIds == null ? new long[capacity] : Arrays.copyOf(mDataIds, capacity);
+            mContactIds = mContactIds == null ? new long[capacity]
+                    : Arrays.copyOf(mContactIds, capacity);
+            mLookupKeys = grow(mLookupKeys, capacity);
+            mDisplayNames = grow(mDisplayNames, capacity);
+            mPhotoUris = grow(mPhotoUris, capacity);
+            mNumbers = grow(mNumbers, capacity);
+            mTypes = mTypes == null ? new int[capacity] : Arrays.copyOf(mTypes, capacity);
+            mLabels = grow(mLabels, capacity);
+        }
+
+        private static String[] grow(final String[] column, final int capacity) {
+            return column == null ? new String[capacity] : Arrays.copyOf(column, capacity);
+        }
+
+        void addRow(final long dataId, final long contactId, final String lookupKey,
+                final String displayName, final String photoUri, final String number,
+                final int type, final String label) {
+            if (mRowCount == mTypes.length) {
+                allocate(mRowCount * 2);
+            }
+            mDataIds[mRowCount] = dataId;
+            mContactIds[mRowCount] = contactId;
+            mLookupKeys[mRowCount] = lookupKey;
+            mDisplayNames[mRowCount] = displayName;
+            mPhotoUris[mRowCount] = photoUri;
+            mNumbers[mRowCount] = number;
+            mTypes[mRowCount] = type;
+            mLabels[mRowCount] = label;
+            mRowCount++;
+        }
+
+        void setOrder(final int[] order) {
+            Assert.equals(mRowCount, order.length);
+            mOrder = order;
+        }
+
+        @Override
+        public boolean onMove(final int oldPosition, final int newPosition) {
+            mRow = mOrder == null ? newPosition : mOrder[newPosition];
+            return true;
+        }
+
+        @Override
+        public int getCount() {
+            return mRowCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return ContactUtil.PhoneQuery.PROJECTION;
+        }
+
+        @Override
+        public int getType(final int column) {
+            switch (column) {
+                case ContactUtil.INDEX_DATA_ID:
+                case ContactUtil.INDEX_CONTACT_ID:
+                case ContactUtil.INDEX_PHONE_EMAIL_TYPE:
+                    return FIELD_TYPE_INTEGER;
+                default:
+                    return getString(column) == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+            }
+        }
+
+        @Override
+        public String getString(final int column) {
+            checkPosition();
+            switch (column) {
+                case ContactUtil.INDEX_DATA_ID:
+                case ContactUtil.INDEX_CONTACT_ID:
+                case ContactUtil.INDEX_PHONE_EMAIL_TYPE:
+                    return Long.toString(getLong(column));
+                case ContactUtil.INDEX_LOOKUP_KEY:
+                    return mLookupKeys[mRow];
+                case ContactUtil.INDEX_DISPLAY_NAME:
+                    return mDisplayNames[mRow];
+                case ContactUtil.INDEX_PHOTO_URI:
+                    return mPhotoUris[mRow];
+                case ContactUtil.INDEX_PHONE_EMAIL:
+                    return mNumbers[mRow];
+                case ContactUtil.INDEX_PHONE_EMAIL_LABEL:
+                    return mLabels[mRow];
+                default:
+                    // The sort key isn't filled in
+                    return null;
+            }
+        }
+
+        @Override
+        public long getLong(final int column) {
+            checkPosition();
+            switch (column) {
+                case ContactUtil.INDEX_DATA_ID:
+                    return mDataIds[mRow];
+                case ContactUtil.INDEX_CONTACT_ID:
+                    return mContactIds[mRow];
+                case ContactUtil.INDEX_PHONE_EMAIL_TYPE:
+                    return mTypes[mRow];
+                default:
+                    final String value = getString(column);
+                    return value == null ? 0 : Long.parseLong(value);
+            }
+        }
+
+        @Override
+        public short getShort(final int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(final int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(final int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(final int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(final int column) {
+            return getType(column) == FIELD_TYPE_NULL;
+        }
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Full text index over the text of message parts, used to search messages.
+ *
+ * The index is an FTS4 table whose content is the parts table itself, so it only stores the
+ * index and not a second copy of the text. Triggers on the parts table keep it current for every
+ * write, including the messages inserted by sync. Results are ranked by how many times the
+ * search terms occur in the part, then newest first, and come with a snippet of the text around
+ * the matches.
+ */
+public class MessageSearchIndex {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_TAG;
+
+    private static final String TABLE_NAME = "parts_fts";
+
+    // Results beyond this many are dropped
+    static final int MAX_RESULTS = 200;
+
+    // Marks around the matched terms in snippets
+    public static final String SNIPPET_MATCH_START = "\u0001";
+    public static final String SNIPPET_MATCH_END = "\u0002";
+    private static final String SNIPPET_ELLIPSIS = "\u2026";
+    // Number of tokens in a snippet
+    private static final int SNIPPET_TOKENS = 12;
+
+    // Folds case and strips diacritics beyond ASCII, so "cafe" finds "Café"; not built into
+    // every SQLite this runs against, in which case the ASCII only simple tokenizer is used
+    private static final String TOKENIZER = "unicode61";
+    private static final String FALLBACK_TOKENIZER = "simple";
+
+    private static final String INDEX_NEW_PART_SQL = "INSERT INTO " + TABLE_NAME
+            + "(docid, " + PartColumns.TEXT + ") VALUES (NEW." + PartColumns._ID + ", NEW."
+            + PartColumns.TEXT + ");";
+
+    // With an external content table the old text has to be removed from the index while it is
+    // still in the parts table, so this runs before the part is updated or deleted
+    private static final String UNINDEX_OLD_PART_SQL = "DELETE FROM " + TABLE_NAME
+            + " WHERE docid=OLD." + PartColumns._ID + ";";
+
+    private static final String[] TRIGGER_SQLS = new String[] {
+        "CREATE TRIGGER " + TABLE_NAME + "_insert AFTER INSERT ON "
+                + DatabaseHelper.PARTS_TABLE + " FOR EACH ROW WHEN NEW." + PartColumns.TEXT
+                + " IS NOT NULL BEGIN " + INDEX_NEW_PART_SQL + " END",
+        "CREATE TRIGGER " + TABLE_NAME + "_before_update BEFORE UPDATE OF " + PartColumns.TEXT
+                + " ON " + DatabaseHelper.PARTS_TABLE + " FOR EACH ROW WHEN OLD."
+                + PartColumns.TEXT + " IS NOT NULL BEGIN " + UNINDEX_OLD_PART_SQL + " END",
+        "CREATE TRIGGER " + TABLE_NAME + "_after_update AFTER UPDATE OF " + PartColumns.TEXT
+                + " ON " + DatabaseHelper.PARTS_TABLE + " FOR EACH ROW WHEN NEW."
+                + PartColumns.TEXT + " IS NOT NULL BEGIN " + INDEX_NEW_PART_SQL + " END",
+        "CREATE TRIGGER " + TABLE_NAME + "_delete BEFORE DELETE ON "
+                + DatabaseHelper.PARTS_TABLE + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT
+                + " IS NOT NULL BEGIN " + UNINDEX_OLD_PART_SQL + " END",
+    };
+
+    // Rebuilds the whole index from the parts table
+    private static final String REBUILD_SQL =
+            "INSERT INTO " + TABLE_NAME + "(" + TABLE_NAME + ") VALUES('rebuild')";
+
+    public static class Columns implements BaseColumns {
+        // _ID is the id of the matching part
+        public static final String MESSAGE_ID = "message_id";
+        public static final String CONVERSATION_ID = MessageColumns.CONVERSATION_ID;
+        public static final String CONVERSATION_NAME = "conversation_name";
+        public static final String RECEIVED_TIMESTAMP = MessageColumns.RECEIVED_TIMESTAMP;
+        public static final String SENDER_FULL_NAME = "sender_full_name";
+        public static final String SENDER_DISPLAY_DESTINATION = "sender_display_destination";
+        public static final String SNIPPET = "snippet";
+        public static final String MATCH_COUNT = "match_count";
+    }
+
+    // offsets() lists four integers for each matched term, separated by spaces
+    private static final String OFFSETS_SQL = "offsets(" + TABLE_NAME + ")";
+    private static final String MATCH_COUNT_SQL = "((length(" + OFFSETS_SQL + ") - length("
+            + "replace(" + OFFSETS_SQL + ", ' ', '')) + 1) / 4)";
+
+    private static final String QUERY_SQL = "SELECT "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns._ID + " as " + Columns._ID + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + " as " + Columns.MESSAGE_ID + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID
+            + " as " + Columns.CONVERSATION_ID + ", "
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NAME
+            + " as " + Columns.CONVERSATION_NAME + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+            + " as " + Columns.RECEIVED_TIMESTAMP + ", "
+            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.FULL_NAME
+            + " as " + Columns.SENDER_FULL_NAME + ", "
+            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.DISPLAY_DESTINATION
+            + " as " + Columns.SENDER_DISPLAY_DESTINATION + ", "
+            + "snippet(" + TABLE_NAME + ", '" + SNIPPET_MATCH_START + "', '" + SNIPPET_MATCH_END
+            + "', '" + SNIPPET_ELLIPSIS + "', -1, " + SNIPPET_TOKENS + ")"
+            + " as " + Columns.SNIPPET + ", "
+            + MATCH_COUNT_SQL + " as " + Columns.MATCH_COUNT
+            + " FROM " + TABLE_NAME
+            + " JOIN " + DatabaseHelper.PARTS_TABLE + " ON (" + TABLE_NAME + ".docid="
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns._ID + ")"
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID + "="
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ")"
+            + " JOIN " + DatabaseHelper.CONVERSATIONS_TABLE + " ON ("
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID + "="
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID + ")"
+            + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE + " ON ("
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID + "="
+            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")"
+            + " WHERE " + TABLE_NAME + " MATCH ?"
+            // Drafts are not shown
+            + " AND " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.STATUS + "<>"
+            + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " ORDER BY " + Columns.MATCH_COUNT + " DESC, "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC"
+            + " LIMIT " + MAX_RESULTS;
+
+    static String getTableName() {
+        return TABLE_NAME;
+    }
+
+    private static String getCreateSql(final String tokenizer) {
+        return "CREATE VIRTUAL TABLE " + TABLE_NAME
+                + " USING fts4(content=\"" + DatabaseHelper.PARTS_TABLE + "\", "
+                + PartColumns.TEXT + ", tokenize=" + tokenizer + ")";
+    }
+
+    /**
+     * Create the (empty) index table, with the best tokenizer this SQLite has
+     */
+    static void createTable(final SQLiteDatabase db) {
+        try {
+            db.execSQL(getCreateSql(TOKENIZER));
+        } catch (final SQLiteException e) {
+            LogUtil.w(TAG, "MessageSearchIndex: " + TOKENIZER + " tokenizer not available, "
+                    + "using " + FALLBACK_TOKENIZER, e);
+            db.execSQL(getCreateSql(FALLBACK_TOKENIZER));
+        }
+    }
+
+    static String[] getTriggerSqls() {
+        return TRIGGER_SQLS;
+    }
+
+    static String getRebuildSql() {
+        return REBUILD_SQL;
+    }
+
+    /**
+     * Query for the parts matching the expression from {@link #buildMatchExpression}
+     */
+    static String getQuerySql() {
+        return QUERY_SQL;
+    }
+
+    /**
+     * Turns what the user typed into an FTS match expression that finds parts containing all the
+     * words, the last of them as a prefix since it may still be being typed. The words are quoted
+     * so that FTS operators and unbalanced quotes in the text are searched for literally rather
+     * than making the query fail.
+     *
+     * @return the match expression, or null if there is nothing to search for
+     */
+    static String buildMatchExpression(final String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder expression = new StringBuilder();
+        for (final String word : query.trim().split("\\s+")) {
+            final String term = word.replace("\"", "");
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append("\" ");
+            }
+            expression.append('"').append(term);
+        }
+        if (expression.length() == 0) {
+            return null;
+        }
+        // The prefix wildcard goes inside the quotes of the last term
+        return expression.append("*\"").toString();
+    }
+}
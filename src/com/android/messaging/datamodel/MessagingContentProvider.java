@@ -16,7 +16,6 @@
 package com.android.messaging.datamodel;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
@@ -32,9 +31,10 @@ import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.data.ConversationListItemData;
-import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
+import com.android.messaging.mmslib.util.PduCache;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -71,6 +71,11 @@ public class MessagingContentProvider extends ContentProvider {
 
     public static final Uri CONVERSATION_MESSAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             MESSAGES_QUERY + "/conversation");
+    // How many of the newest messages a conversation messages query loads up front, on the
+    // loader's thread; older messages are loaded a page at a time as the cursor reaches them
+    private static final String PARAM_WINDOW = "window";
+    // The window when none is given
+    public static final int CONVERSATION_MESSAGES_WINDOW_SIZE = 500;
 
     // Conversation participants query
     private static final String PARTICIPANTS_QUERY = "participants";
@@ -95,6 +100,12 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri DRAFT_IMAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             DRAFT_IMAGES_QUERY);
 
+    // Message search query
+    private static final String MESSAGE_SEARCH_QUERY = "search";
+
+    public static final Uri MESSAGE_SEARCH_URI = Uri.parse(CONTENT_AUTHORITY +
+            MESSAGE_SEARCH_QUERY);
+
     /**
      * Notifies that <i>all</i> data exposed by the provider needs to be refreshed.
      * <p>
@@ -104,9 +115,8 @@ public class MessagingContentProvider extends ContentProvider {
      */
     public static void notifyEverythingChanged() {
         final Uri uri = Uri.parse(CONTENT_AUTHORITY);
+        ContentChangeDispatcher.get().notifyChange(uri);
         final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
 
         // Notify any conversations widgets the conversation list has changed.
         BugleWidgetProvider.notifyConversationListChanged(context);
@@ -126,18 +136,15 @@ public class MessagingContentProvider extends ContentProvider {
 
     public static void notifyParticipantsChanged(final String conversationId) {
         final Uri uri = buildConversationParticipantsUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        ContentChangeDispatcher.get().notifyChange(uri);
     }
 
     public static void notifyAllMessagesChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_MESSAGES_URI, null);
+        ContentChangeDispatcher.get().notifyChange(CONVERSATION_MESSAGES_URI);
     }
 
     public static void notifyAllParticipantsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_PARTICIPANTS_URI, null);
+        ContentChangeDispatcher.get().notifyChange(CONVERSATION_PARTICIPANTS_URI);
     }
 
     // Default value for unknown dimension of image
@@ -152,6 +159,7 @@ public class MessagingContentProvider extends ContentProvider {
     private static final int CONVERSATION_IMAGES_QUERY_CODE = 50;
     private static final int DRAFT_IMAGES_QUERY_CODE = 60;
     private static final int PARTICIPANTS_QUERY_CODE = 70;
+    private static final int MESSAGE_SEARCH_QUERY_CODE = 80;
 
     // TODO: Move to a better structured URI namespace.
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -167,6 +175,7 @@ public class MessagingContentProvider extends ContentProvider {
                 CONVERSATION_IMAGES_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, DRAFT_IMAGES_QUERY + "/*",
                 DRAFT_IMAGES_QUERY_CODE);
+        sURIMatcher.addURI(AUTHORITY, MESSAGE_SEARCH_QUERY + "/*", MESSAGE_SEARCH_QUERY_CODE);
     }
 
     /**
@@ -178,14 +187,24 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    /**
+     * Build a messages uri from the conversation id, loading the given number of its newest
+     * messages up front. Change notifications are still sent to the uri without the window.
+     */
+    public static Uri buildConversationMessagesUri(final String conversationId,
+            final int window) {
+        return buildConversationMessagesUri(conversationId).buildUpon()
+                .appendQueryParameter(PARAM_WINDOW, String.valueOf(window))
+                .build();
+    }
+
     public static void notifyMessagesChanged(final String conversationId) {
         final Uri uri = buildConversationMessagesUri(conversationId);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
+        ContentChangeDispatcher.get().notifyChange(uri);
         notifyConversationListChanged();
 
         // Notify the widget the messages changed
+        final Context context = Factory.get().getApplicationContext();
         WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
     }
 
@@ -200,20 +219,17 @@ public class MessagingContentProvider extends ContentProvider {
 
     public static void notifyConversationMetadataChanged(final String conversationId) {
         final Uri uri = buildConversationMetadataUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        ContentChangeDispatcher.get().notifyChange(uri);
         notifyConversationListChanged();
     }
 
     public static void notifyPartsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(PARTS_URI, null);
+        ContentChangeDispatcher.get().notifyChange(PARTS_URI);
     }
 
     public static void notifyConversationListChanged() {
+        ContentChangeDispatcher.get().notifyChange(CONVERSATIONS_URI);
         final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(CONVERSATIONS_URI, null);
 
         // Notify the widget the conversation list changed
         BugleWidgetProvider.notifyConversationListChanged(context);
@@ -237,6 +253,16 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    /**
+     * Build a uri for the messages whose text matches what the user typed. See
+     * {@link MessageSearchIndex.Columns} for the columns of the result.
+     */
+    public static Uri buildMessageSearchUri(final String query) {
+        final Uri.Builder builder = MESSAGE_SEARCH_URI.buildUpon();
+        builder.appendPath(query);
+        return builder.build();
+    }
+
     private DatabaseHelper mDatabaseHelper;
     private DatabaseWrapper mDatabaseWrapper;
 
@@ -277,12 +303,12 @@ public class MessagingContentProvider extends ContentProvider {
         String limit = null;
         switch (match) {
             case CONVERSATIONS_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 // Hide empty conversations (ones with 0 sort_timestamp)
                 queryBuilder.appendWhere(ConversationColumns.SORT_TIMESTAMP + " > 0 ");
                 break;
             case CONVERSATION_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 if (uri.getPathSegments().size() == 2) {
                     queryBuilder.appendWhere(ConversationColumns._ID + "=?");
                     // Get the conversation id from the uri
@@ -364,6 +390,19 @@ public class MessagingContentProvider extends ContentProvider {
                     throw new IllegalArgumentException("Malformed URI " + uri);
                 }
                 break;
+            case MESSAGE_SEARCH_QUERY_CODE:
+                if (uri.getPathSegments().size() == 2) {
+                    // Like the conversation messages query, this is a raw query that doesn't
+                    // take a selection or sort order
+                    if (selection == null && selectionArgs == null && sortOrder == null) {
+                        return queryMessageSearch(uri.getPathSegments().get(1));
+                    } else {
+                        throw new IllegalArgumentException(
+                                "Cannot set selection or sort order with this query");
+                    }
+                } else {
+                    throw new IllegalArgumentException("Malformed URI " + uri);
+                }
             default: {
                 throw new IllegalArgumentException("Unknown URI " + uri);
             }
@@ -375,11 +414,34 @@ public class MessagingContentProvider extends ContentProvider {
         return cursor;
     }
 
-    private Cursor queryConversationMessages(final String conversationId, final Uri notifyUri) {
-        final String[] queryArgs = { conversationId };
-        final Cursor cursor = getDatabaseWrapper().rawQuery(
-                ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
-        cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
+    private Cursor queryConversationMessages(final String conversationId, final Uri uri) {
+        final String windowParam = uri.getQueryParameter(PARAM_WINDOW);
+        int window = CONVERSATION_MESSAGES_WINDOW_SIZE;
+        if (windowParam != null) {
+            try {
+                window = Integer.parseInt(windowParam);
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed URI " + uri);
+            }
+            if (window <= 0) {
+                throw new IllegalArgumentException("Malformed URI " + uri);
+            }
+        }
+        // Load just the newest messages up front, so that long conversations open quickly
+        final Cursor cursor = new ConversationMessagesCursor(getDatabaseWrapper(), conversationId,
+                window);
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                buildConversationMessagesUri(conversationId));
+        return cursor;
+    }
+
+    private Cursor queryMessageSearch(final String query) {
+        final String matchExpression = MessageSearchIndex.buildMatchExpression(query);
+        // An empty match expression matches nothing
+        final Cursor cursor = getDatabaseWrapper().rawQuery(MessageSearchIndex.getQuerySql(),
+                new String[] { matchExpression == null ? "" : matchExpression });
+        // Results change along with the messages of any conversation
+        cursor.setNotificationUri(getContext().getContentResolver(), CONVERSATION_MESSAGES_URI);
         return cursor;
     }
 
@@ -462,6 +524,20 @@ public class MessagingContentProvider extends ContentProvider {
             }
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        // Then sync progress and batch sizing decisions
+        DataModel.get().getSyncManager().dump(writer);
+        // Then action lane backlog and queue wait times
+        DataModel.get().getActionService().dump(writer);
+        // Then database latencies and slow queries
+        DataModel.get().getDatabase().dump(writer);
+        // Then how many change notifications were batched away
+        ContentChangeDispatcher.get().dump(writer);
+        // Then media loading backlog and time to first pixel
+        MediaResourceManager.get().dump(writer);
+        // Then how well loaded MMS pdus are cached
+        PduCache.getInstance().dump(writer);
+        // Then how long received messages took to be notified about
+        BugleNotifications.dump(writer);
         // Now dump logs
         LogUtil.dump(writer);
     }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.SafeAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the images for a batch of notifications (avatars, wearable backgrounds and attachment
+ * pictures) all at once on the thread pool, so posting waits for the slowest image rather than
+ * the sum of them, and never longer than a deadline.
+ * <p>
+ * If the deadline passes first, the caller posts with whatever has loaded and hands over a
+ * callback, which is run on the loading thread once the remaining images arrive.
+ */
+class NotificationImageLoader {
+    private static final String TAG = LogUtil.BUGLE_NOTIFICATIONS_TAG;
+
+    /**
+     * A single image to load
+     */
+    interface ImageLoad {
+        /**
+         * Called on a thread pool thread
+         * @return a bitmap the caller owns (not one managed by MediaResourceManager), or null
+         */
+        Bitmap load();
+    }
+
+    private static final Executor THREAD_POOL = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            SafeAsyncTask.executeOnThreadPool(runnable, true /* withWakeLock */);
+        }
+    };
+
+    private final Executor mExecutor;
+    private final List<ImageLoad> mLoads = new ArrayList<ImageLoad>();
+
+    // All guarded by this
+    private Bitmap[] mBitmaps;
+    private boolean[] mLoaded;
+    private int mRemaining;
+    private Runnable mOnLateCompletion;
+
+    NotificationImageLoader() {
+        this(THREAD_POOL);
+    }
+
+    @VisibleForTesting
+    NotificationImageLoader(final Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds an image to load; only valid before {@link #start()}
+     * @return index to get the image with
+     */
+    int add(final ImageLoad load) {
+        mLoads.add(load);
+        return mLoads.size() - 1;
+    }
+
+    /**
+     * Kicks off all the loads at once
+     */
+    void start() {
+        final int count = mLoads.size();
+        synchronized (this) {
+            mBitmaps = new Bitmap[count];
+            mLoaded = new boolean[count];
+            mRemaining = count;
+        }
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap bitmap = null;
+                    try {
+                        bitmap = mLoads.get(index).load();
+                    } finally {
+                        onLoaded(index, bitmap);
+                    }
+                }
+            });
+        }
+    }
+
+    private void onLoaded(final int index, final Bitmap bitmap) {
+        Runnable onLateCompletion = null;
+        synchronized (this) {
+            mBitmaps[index] = bitmap;
+            mLoaded[index] = true;
+            mRemaining--;
+            if (mRemaining == 0) {
+                notifyAll();
+                onLateCompletion = mOnLateCompletion;
+                mOnLateCompletion = null;
+            }
+        }
+        if (onLateCompletion != null) {
+            onLateCompletion.run();
+        }
+    }
+
+    /**
+     * Waits for all the images to load, up to the given time.
+     * @param timeoutMillis how long to wait at most
+     * @return true if all images loaded in time
+     */
+    boolean await(final long timeoutMillis) {
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (this) {
+            long remainingMillis = timeoutMillis;
+            while (mRemaining > 0 && remainingMillis > 0) {
+                try {
+                    wait(remainingMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remainingMillis = deadline - SystemClock.elapsedRealtime();
+            }
+            if (mRemaining == 0) {
+                return true;
+            }
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "NotificationImageLoader: " + mRemaining + " of " + mLoads.size()
+                        + " images not loaded after " + timeoutMillis + " ms");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs the given callback once all the images have loaded: straight away on this thread if
+     * they already have, otherwise on the thread which loads the last one.
+     */
+    void runWhenLoaded(final Runnable onLoaded) {
+        synchronized (this) {
+            if (mRemaining > 0) {
+                mOnLateCompletion = onLoaded;
+                return;
+            }
+        }
+        onLoaded.run();
+    }
+
+    /**
+     * @return true if the load at the given index is done (or there's no such load)
+     */
+    synchronized boolean isLoaded(final int index) {
+        return (index < 0) || mLoaded[index];
+    }
+
+    /**
+     * @return the image at the given index, null if it hasn't loaded (yet) or failed to
+     */
+    synchronized Bitmap getBitmap(final int index) {
+        return (index < 0) ? null : mBitmaps[index];
+    }
+}
@@ -67,6 +67,11 @@ public abstract class NotificationState {
     public int mBaseRequestCode;
     public ArrayList<Uri> mParticipantAvatarsUris = null;
     public ArrayList<Uri> mParticipantContactUris = null;
+    // When the message notified about was received, in elapsedRealtime, for timing how long the
+    // notification takes to post; -1 if not timed (or already posted)
+    public long mReceivedRealtime = -1;
+    // Whether the notification is posted before all the batch's images loaded
+    public boolean mPostedBeforeImagesLoaded;
 
     NotificationState(final ConversationIdSet conversationIds) {
         mConversationIds = conversationIds;
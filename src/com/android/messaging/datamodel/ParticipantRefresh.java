@@ -21,6 +21,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.graphics.Color;
+import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import androidx.collection.ArrayMap;
 import android.telephony.SubscriptionInfo;
@@ -32,6 +33,7 @@ import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsCo
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
+import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.ContactUtil;
@@ -43,6 +45,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -585,6 +588,11 @@ public class ParticipantRefresh {
                 // Update the send destination to the new one entered by user in Contacts.
                 participantData.setSendDestination(matchingDestination);
             }
+            if (isPhotoUrlChanged && !TextUtils.isEmpty(currentPhotoUri)) {
+                // Don't show the old photo from the disk cache
+                MediaResourceManager.get().removeFromDiskCache(
+                        Collections.singletonList(Uri.parse(currentPhotoUri)));
+            }
             updated = true;
         }
 
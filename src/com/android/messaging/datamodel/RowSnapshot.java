@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.util.Arrays;
+
+/**
+ * The id and a hash of the contents of each row of a cursor, in cursor order. Comparing the
+ * snapshots of two loads of the same query tells which rows were inserted, removed, moved or
+ * changed without having to keep the old cursor open.
+ */
+public class RowSnapshot {
+    /**
+     * Implemented by cursors that can take their snapshot more cheaply than by reading every
+     * column of every row, e.g. because their rows are loaded lazily.
+     */
+    public interface Source {
+        RowSnapshot getRowSnapshot();
+    }
+
+    /**
+     * A cursor along with its snapshot and how it differs from the previous load, as returned by
+     * a {@link BoundCursorLoader} with row diffs enabled.
+     */
+    public static class DiffCursor extends CursorWrapper {
+        private final RowSnapshot mSnapshot;
+        private final RowSnapshot mPreviousSnapshot;
+        private final DiffUtil.DiffResult mDiff;
+
+        DiffCursor(final Cursor cursor, final RowSnapshot snapshot,
+                final RowSnapshot previousSnapshot, final DiffUtil.DiffResult diff) {
+            super(cursor);
+            mSnapshot = snapshot;
+            mPreviousSnapshot = previousSnapshot;
+            mDiff = diff;
+        }
+
+        public RowSnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        /**
+         * @return the snapshot the diff was computed from, or null if there is no diff
+         */
+        public RowSnapshot getPreviousSnapshot() {
+            return mPreviousSnapshot;
+        }
+
+        public DiffUtil.DiffResult getDiff() {
+            return mDiff;
+        }
+
+        /**
+         * @return the DiffCursor that the given cursor wraps (or is), or null if none
+         */
+        public static DiffCursor find(Cursor cursor) {
+            while (cursor instanceof CursorWrapper) {
+                if (cursor instanceof DiffCursor) {
+                    return (DiffCursor) cursor;
+                }
+                cursor = ((CursorWrapper) cursor).getWrappedCursor();
+            }
+            return null;
+        }
+    }
+
+    private final long[] mIds;
+    private final int[] mHashes;
+
+    public RowSnapshot(final long[] ids, final int[] hashes) {
+        mIds = ids;
+        mHashes = hashes;
+    }
+
+    /**
+     * @return whether the cursor (or the one it wraps) takes its own snapshot, see {@link Source}
+     */
+    static boolean hasSource(Cursor cursor) {
+        while (cursor instanceof CursorWrapper) {
+            cursor = ((CursorWrapper) cursor).getWrappedCursor();
+        }
+        return cursor instanceof Source;
+    }
+
+    /**
+     * Takes the snapshot of a cursor, keyed by its _id column. Leaves the cursor before the first
+     * row.
+     */
+    public static RowSnapshot create(final Cursor cursor) {
+        Cursor inner = cursor;
+        while (inner instanceof CursorWrapper) {
+            inner = ((CursorWrapper) inner).getWrappedCursor();
+        }
+        if (inner instanceof Source) {
+            return ((Source) inner).getRowSnapshot();
+        }
+
+        final int count = cursor.getCount();
+        final int idColumn = cursor.getColumnIndexOrThrow("_id");
+        final int columnCount = cursor.getColumnCount();
+        final long[] ids = new long[count];
+        final int[] hashes = new int[count];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final int position = cursor.getPosition();
+            ids[position] = cursor.getLong(idColumn);
+            hashes[position] = hashRow(cursor, columnCount);
+        }
+        cursor.moveToPosition(-1);
+        return new RowSnapshot(ids, hashes);
+    }
+
+    /**
+     * @return a hash of the first columns of the current row of a cursor
+     */
+    static int hashRow(final Cursor cursor, final int columnCount) {
+        int hash = 0;
+        for (int column = 0; column < columnCount; column++) {
+            final int columnHash;
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    columnHash = hashLong(cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    columnHash = hashLong(Double.doubleToLongBits(cursor.getDouble(column)));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    columnHash = cursor.getString(column).hashCode();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    columnHash = Arrays.hashCode(cursor.getBlob(column));
+                    break;
+                default:
+                    columnHash = 0;
+                    break;
+            }
+            hash = 31 * hash + columnHash;
+        }
+        return hash;
+    }
+
+    private static int hashLong(final long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return the same snapshot in the opposite order, for cursors that are shown reversed
+     */
+    public RowSnapshot reverse() {
+        final int count = mIds.length;
+        final long[] ids = new long[count];
+        final int[] hashes = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = mIds[count - i - 1];
+            hashes[i] = mHashes[count - i - 1];
+        }
+        return new RowSnapshot(ids, hashes);
+    }
+
+    /**
+     * Folds the hash of each row's neighbors into its own, for lists whose rows are drawn
+     * differently depending on the rows next to them (e.g. clustered messages)
+     */
+    public RowSnapshot includeNeighbors() {
+        final int count = mHashes.length;
+        final int[] hashes = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int previous = i > 0 ? mHashes[i - 1] : 0;
+            final int next = i < count - 1 ? mHashes[i + 1] : 0;
+            hashes[i] = 31 * (31 * mHashes[i] + previous) + next;
+        }
+        return new RowSnapshot(mIds, hashes);
+    }
+
+    /**
+     * Works out the updates that turn the previous snapshot into this one. This can be slow for
+     * large cursors with many changes, so it shouldn't be called on the main thread.
+     */
+    public DiffUtil.DiffResult diffFrom(final RowSnapshot previous) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return previous.mIds.length;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return mIds.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(final int oldPosition, final int newPosition) {
+                return previous.mIds[oldPosition] == mIds[newPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(final int oldPosition, final int newPosition) {
+                return previous.mHashes[oldPosition] == mHashes[newPosition];
+            }
+        }, true /* detectMoves */);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Picks the number of messages to write in each sync batch transaction.
+ *
+ * Keeps an exponentially weighted moving average of the per message write cost and grows the
+ * batch additively while transactions stay within the latency target, backing off
+ * multiplicatively when a transaction overruns the target or when UI queries (which wait on the
+ * sync transaction for the database lock) get slow. The batch is never allowed to exceed what
+ * the averaged cost predicts will fit in the target.
+ */
+public class SyncBatchSizeController {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Weight of the latest batch in the per message cost average
+    private static final float COST_SMOOTHING = 0.3f;
+    // Fraction of the batch size kept after a latency violation
+    private static final float DECREASE_FACTOR = 0.5f;
+    // Number of batch decisions kept for dumpsys
+    private static final int MAX_DECISIONS = 32;
+
+    /**
+     * One batch size decision, kept for diagnostics
+     */
+    private static class Decision {
+        final long mTimestamp;
+        final int mMessages;
+        final long mTxnTimeMillis;
+        final long mUiQueryTimeMillis;
+        final float mCostMillis;
+        final int mNextBatchSize;
+        final String mReason;
+
+        Decision(final int messages, final long txnTimeMillis, final long uiQueryTimeMillis,
+                final float costMillis, final int nextBatchSize, final String reason) {
+            mTimestamp = System.currentTimeMillis();
+            mMessages = messages;
+            mTxnTimeMillis = txnTimeMillis;
+            mUiQueryTimeMillis = uiQueryTimeMillis;
+            mCostMillis = costMillis;
+            mNextBatchSize = nextBatchSize;
+            mReason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d: %d msgs in %d ms (ui query %d ms, "
+                    + "avg %.2f ms/msg) -> %d [%s]", mTimestamp, mMessages, mTxnTimeMillis,
+                    mUiQueryTimeMillis, mCostMillis, mNextBatchSize, mReason);
+        }
+    }
+
+    // Averaged write cost per message in ms, < 0 until the first batch is measured
+    private float mCostMillis = -1f;
+    // Current batch size, 0 until the first batch is measured
+    private int mBatchSize = 0;
+    private final ArrayDeque<Decision> mDecisions = new ArrayDeque<Decision>();
+
+    /**
+     * @return number of messages to update in the next sync batch (0 if nothing measured yet,
+     *         callers clamp this to the gservices min/max)
+     */
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Record the outcome of a sync batch write and decide the next batch size
+     * @param messages number of messages updated in the batch
+     * @param txnTimeMillis time the local transaction took
+     * @param uiQueryTimeMillis slowest UI query seen while the batch was running
+     * @return number of messages to update in the next sync batch
+     */
+    public synchronized int onBatchWritten(final int messages, final long txnTimeMillis,
+            final long uiQueryTimeMillis) {
+        final BugleGservices bugleGservices = BugleGservices.get();
+        final long targetMillis = bugleGservices.getLong(
+                BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS,
+                BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS_DEFAULT);
+        final long uiQueryLimitMillis = bugleGservices.getLong(
+                BugleGservicesKeys.SMS_SYNC_UI_QUERY_TIME_LIMIT_MILLIS,
+                BugleGservicesKeys.SMS_SYNC_UI_QUERY_TIME_LIMIT_MILLIS_DEFAULT);
+        final int minBatchSize = bugleGservices.getInt(
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN,
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN_DEFAULT);
+        final int maxBatchSize = bugleGservices.getInt(
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX,
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX_DEFAULT);
+        return onBatchWritten(messages, txnTimeMillis, uiQueryTimeMillis, targetMillis,
+                uiQueryLimitMillis, minBatchSize, maxBatchSize);
+    }
+
+    synchronized int onBatchWritten(final int messages, final long txnTimeMillis,
+            final long uiQueryTimeMillis, final long targetMillis, final long uiQueryLimitMillis,
+            final int minBatchSize, final int maxBatchSize) {
+        if (messages <= 0) {
+            return mBatchSize;
+        }
+        final float cost = Math.max(txnTimeMillis, 1L) / (float) messages;
+        mCostMillis = (mCostMillis < 0) ? cost
+                : COST_SMOOTHING * cost + (1 - COST_SMOOTHING) * mCostMillis;
+        // Largest batch the averaged cost predicts fits in the target
+        final int predicted = (int) (targetMillis / mCostMillis);
+
+        final int current = Math.max(mBatchSize, messages);
+        final String reason;
+        int next;
+        if (txnTimeMillis > targetMillis) {
+            next = (int) (current * DECREASE_FACTOR);
+            reason = "txn over target";
+        } else if (uiQueryTimeMillis > uiQueryLimitMillis) {
+            next = (int) (current * DECREASE_FACTOR);
+            reason = "ui query over limit";
+        } else {
+            next = current + minBatchSize;
+            reason = "increase";
+        }
+        next = Math.min(next, predicted);
+        next = Math.max(minBatchSize, Math.min(next, maxBatchSize));
+        mBatchSize = next;
+
+        final Decision decision = new Decision(messages, txnTimeMillis, uiQueryTimeMillis,
+                mCostMillis, next, reason);
+        if (mDecisions.size() >= MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.addLast(decision);
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "SyncBatchSizeController: " + decision);
+        }
+        return next;
+    }
+
+    public synchronized void dump(final PrintWriter writer) {
+        writer.println("Sync batch size: " + mBatchSize + String.format(Locale.US,
+                " (avg write cost %.2f ms/msg)", mCostMillis));
+        for (final Decision decision : mDecisions) {
+            writer.println("  " + decision);
+        }
+    }
+}
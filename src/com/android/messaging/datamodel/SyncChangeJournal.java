@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
+import android.text.TextUtils;
+import androidx.collection.LongSparseArray;
+
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.LogUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Journal of the telephony SMS/MMS rows named by change notifications since the last sync.
+ *
+ * When every change since the last sync names a specific row, sync can look those rows up by id
+ * instead of diffing the whole window since the last sync. Any sms/mms notification that doesn't
+ * name a row (or too many changes) overflows the journal, and the cursor pair diff takes over
+ * again. The diff also runs periodically as a consistency check.
+ *
+ * Telephony follows each sms/mms row notification with one for content://mms-sms/ (and on some
+ * versions content://mms-sms/conversations/), which names no row. Those companions are left out
+ * of the journal, so they don't overflow it. A change that only shows up on mms-sms (e.g. a
+ * thread deleted through it) leaves nothing pending, and then the sync it triggers diffs the
+ * cursor pair as usual.
+ */
+public class SyncChangeJournal {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    /**
+     * Most rows synced by id; keeps the id lists well within one IN query and under the
+     * minimum sync batch size
+     */
+    static final int MAX_ENTRIES = 64;
+
+    // Path segments of the sms and mms message box uris
+    private static final List<String> MESSAGE_BOXES = Arrays.asList(
+            "inbox", "sent", "draft", "drafts", "outbox", "failed", "queued");
+
+    private final LongSparseArray<Boolean> mSmsIds = new LongSparseArray<Boolean>();
+    private final LongSparseArray<Boolean> mMmsIds = new LongSparseArray<Boolean>();
+    // Set when a change could not be attributed to a row
+    private boolean mOverflow = false;
+    // Time of the last cursor pair sync, -1 if none since process start
+    private long mLastConsistencyCheckTimestamp = -1L;
+
+    /**
+     * Record a change notification from telephony
+     * @param uri the changed uri, may be null on old platforms
+     */
+    public synchronized void onChange(final Uri uri) {
+        if (uri != null && MmsSms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            return;
+        }
+        final long id = getRowId(uri);
+        if (id < 0) {
+            mOverflow = true;
+        } else if (Sms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            mSmsIds.put(id, Boolean.TRUE);
+        } else {
+            mMmsIds.put(id, Boolean.TRUE);
+        }
+        if (mSmsIds.size() + mMmsIds.size() > MAX_ENTRIES) {
+            mOverflow = true;
+        }
+    }
+
+    /**
+     * @return row id named by an sms/mms uri or -1 if it doesn't name a single row
+     */
+    static long getRowId(final Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        final String authority = uri.getAuthority();
+        if (!Sms.CONTENT_URI.getAuthority().equals(authority)
+                && !Mms.CONTENT_URI.getAuthority().equals(authority)) {
+            return -1;
+        }
+        final List<String> segments = uri.getPathSegments();
+        // Either <id> or <box>/<id>, e.g. content://sms/inbox/12; not other tables such as
+        // content://sms/conversations/3 or content://mms/part/5
+        if (segments.isEmpty() || segments.size() > 2
+                || (segments.size() == 2 && !MESSAGE_BOXES.contains(segments.get(0)))) {
+            return -1;
+        }
+        final String last = segments.get(segments.size() - 1);
+        if (!TextUtils.isDigitsOnly(last) || TextUtils.isEmpty(last)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(last);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check whether the next incremental sync can be served from the journal alone
+     * @param now current time
+     */
+    public synchronized boolean isUsable(final long now) {
+        final long checkIntervalMillis = BugleGservices.get().getLong(
+                BugleGservicesKeys.SMS_SYNC_CONSISTENCY_CHECK_INTERVAL_MILLIS,
+                BugleGservicesKeys.SMS_SYNC_CONSISTENCY_CHECK_INTERVAL_MILLIS_DEFAULT);
+        final boolean usable = !mOverflow && hasPendingChanges()
+                && mLastConsistencyCheckTimestamp >= 0
+                && now - mLastConsistencyCheckTimestamp < checkIntervalMillis;
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "SyncChangeJournal: " + mSmsIds.size() + " SMS, " + mMmsIds.size()
+                    + " MMS changed" + (mOverflow ? " (overflowed)" : "") + "; last consistency "
+                    + "check at " + mLastConsistencyCheckTimestamp + "; usable = " + usable);
+        }
+        return usable;
+    }
+
+    public synchronized boolean hasPendingChanges() {
+        return mOverflow || mSmsIds.size() > 0 || mMmsIds.size() > 0;
+    }
+
+    /**
+     * @return ids of the changed SMS rows, which are removed from the journal
+     */
+    public synchronized long[] drainSmsIds() {
+        return drain(mSmsIds);
+    }
+
+    /**
+     * @return ids of the changed MMS rows, which are removed from the journal
+     */
+    public synchronized long[] drainMmsIds() {
+        return drain(mMmsIds);
+    }
+
+    private static long[] drain(final LongSparseArray<Boolean> ids) {
+        final long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.keyAt(i);
+        }
+        ids.clear();
+        return result;
+    }
+
+    /**
+     * Called when a cursor pair sync starts, which covers everything journaled so far
+     * @param timestamp time the sync started
+     */
+    public synchronized void onConsistencyCheck(final long timestamp) {
+        mSmsIds.clear();
+        mMmsIds.clear();
+        mOverflow = false;
+        mLastConsistencyCheckTimestamp = timestamp;
+    }
+}
@@ -16,10 +16,12 @@
 
 package com.android.messaging.datamodel;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import androidx.collection.LongSparseArray;
 
@@ -36,9 +38,11 @@ import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 import com.google.common.collect.Lists;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This class manages message sync with the Telephony SmsProvider/MmsProvider.
@@ -79,8 +83,21 @@ public class SyncManager {
      */
     private long mMaxRecentChangeTimestamp = -1L;
 
+    /**
+     * Set while a sync batch is being written to the local database - a pipelined batch that
+     * has already been handed to the background worker waits on this before reading local
+     * messages
+     */
+    private boolean mBatchWriteInProgress = false;
+
     private final ThreadInfoCache mThreadInfoCache = new ThreadInfoCache();
 
+    private final SyncStats mSyncStats = new SyncStats();
+
+    private final SyncBatchSizeController mBatchSizeController = new SyncBatchSizeController();
+
+    private final SyncChangeJournal mChangeJournal = new SyncChangeJournal();
+
     /**
      * User customization to conversations. If this is set, we need to recover them after
      * a full sync.
@@ -160,6 +177,39 @@ public class SyncManager {
         }
     }
 
+    /**
+     * Called from data model thread before writing a sync batch to the local database
+     */
+    public synchronized void beginBatchWrite() {
+        Assert.isTrue(!mBatchWriteInProgress);
+        mBatchWriteInProgress = true;
+    }
+
+    /**
+     * Called from data model thread once the sync batch write has committed (or failed)
+     */
+    public synchronized void endBatchWrite() {
+        mBatchWriteInProgress = false;
+        notifyAll();
+    }
+
+    /**
+     * Called from background worker thread to wait for the previous sync batch to be written
+     * @return time spent waiting in ms
+     */
+    public synchronized long awaitBatchWrite() {
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        while (mBatchWriteInProgress) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return SystemClock.elapsedRealtime() - startTimeMillis;
+    }
+
     /**
      * Synchronously checks whether sync is allowed and starts sync if allowed
      * @param full - true indicates a full (not incremental) sync operation
@@ -196,6 +246,7 @@ public class SyncManager {
         }
 
         mSyncInProgressTimestamp = startTimestamp;
+        mSyncStats.reset();
 
         return true;
     }
@@ -258,6 +309,9 @@ public class SyncManager {
             LogUtil.d(TAG, "SyncManager: Sync started at " + mSyncInProgressTimestamp
                     + " marked as complete");
         }
+        if (mSyncStats.getMessagesWritten() > 0) {
+            LogUtil.i(TAG, "SyncManager: " + mSyncStats);
+        }
         mSyncInProgressTimestamp = -1L;
         // Conversation customization only used once
         mCustomization = null;
@@ -299,11 +353,16 @@ public class SyncManager {
                 mSyncOnChanges = false;
             }
         }
+        // Drop any earlier registrations, so that each change is only delivered once per uri
+        final ContentResolver resolver = context.getContentResolver();
+        resolver.unregisterContentObserver(mMmsSmsObserver);
         if (mNotifyOnChanges || mSyncOnChanges) {
-            context.getContentResolver().registerContentObserver(Telephony.MmsSms.CONTENT_URI,
-                    true, mMmsSmsObserver);
-        } else {
-            context.getContentResolver().unregisterContentObserver(mMmsSmsObserver);
+            // Sms and mms changes are observed on their own uris, which name the changed row
+            // (see SyncChangeJournal), and mms-sms for changes that only show up there
+            resolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, mMmsSmsObserver);
+            resolver.registerContentObserver(Telephony.Mms.CONTENT_URI, true, mMmsSmsObserver);
+            resolver.registerContentObserver(Telephony.MmsSms.CONTENT_URI, true,
+                    mMmsSmsObserver);
         }
     }
 
@@ -351,8 +410,11 @@ public class SyncManager {
             }
 
             if (mSyncOnChanges) {
+                // Remember which row changed so that sync can look it up by id
+                mChangeJournal.onChange(uri);
                 // If sync is already running this will do nothing - but at end of each sync
-                // action there is a check for recent messages that should catch new changes.
+                // action there is a check for recent messages and journaled changes that should
+                // catch new changes.
                 SyncManager.immediateSync();
             }
             if (mNotifyOnChanges) {
@@ -365,6 +427,114 @@ public class SyncManager {
         return mThreadInfoCache;
     }
 
+    /**
+     * Telephony rows changed since the last sync
+     */
+    public SyncChangeJournal getChangeJournal() {
+        return mChangeJournal;
+    }
+
+    /**
+     * Controller deciding how many messages each sync batch writes
+     */
+    public SyncBatchSizeController getBatchSizeController() {
+        return mBatchSizeController;
+    }
+
+    public void dump(final PrintWriter writer) {
+        writer.println("Sync in progress: " + isSyncing());
+        writer.println(mSyncStats);
+        mBatchSizeController.dump(writer);
+    }
+
+    /**
+     * Progress and per stage throughput of the sync in progress (or of the last sync)
+     */
+    public SyncStats getSyncStats() {
+        return mSyncStats;
+    }
+
+    public static class SyncStats {
+        // Read stage: telephony query, cursor diff, MMS part and sender loading
+        private int mBatchesRead;
+        private long mMessagesScanned;
+        private long mReadTimeMillis;
+        // Time pipelined batches spent waiting for the previous batch to be written
+        private long mWaitTimeMillis;
+        // MMS part and addr queries made against telephony
+        private long mMmsQueries;
+        // Write stage: local database transaction
+        private int mBatchesWritten;
+        private long mMessagesWritten;
+        private long mWriteTimeMillis;
+
+        public synchronized void reset() {
+            mBatchesRead = 0;
+            mMessagesScanned = 0;
+            mReadTimeMillis = 0;
+            mWaitTimeMillis = 0;
+            mMmsQueries = 0;
+            mBatchesWritten = 0;
+            mMessagesWritten = 0;
+            mWriteTimeMillis = 0;
+        }
+
+        public synchronized void onBatchRead(final int messagesScanned, final long readTimeMillis,
+                final long waitTimeMillis, final int mmsQueries) {
+            mBatchesRead++;
+            mMessagesScanned += messagesScanned;
+            mReadTimeMillis += readTimeMillis;
+            mWaitTimeMillis += waitTimeMillis;
+            mMmsQueries += mmsQueries;
+        }
+
+        public synchronized void onBatchWritten(final int messagesWritten,
+                final long writeTimeMillis) {
+            mBatchesWritten++;
+            mMessagesWritten += messagesWritten;
+            mWriteTimeMillis += writeTimeMillis;
+        }
+
+        public synchronized long getMessagesScanned() {
+            return mMessagesScanned;
+        }
+
+        public synchronized long getMessagesWritten() {
+            return mMessagesWritten;
+        }
+
+        public synchronized long getWriteTimeMillis() {
+            return mWriteTimeMillis;
+        }
+
+        /**
+         * @return messages per second scanned by the read stage
+         */
+        public synchronized float getReadThroughput() {
+            return throughput(mMessagesScanned, mReadTimeMillis);
+        }
+
+        /**
+         * @return messages per second committed by the write stage
+         */
+        public synchronized float getWriteThroughput() {
+            return throughput(mMessagesWritten, mWriteTimeMillis);
+        }
+
+        private static float throughput(final long messages, final long timeMillis) {
+            return timeMillis <= 0 ? 0f : messages * 1000f / timeMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "Sync read %d messages in %d batches (%.1f msg/s, "
+                    + "%d MMS queries, %d ms waiting on writes); wrote %d messages in %d batches "
+                    + "(%.1f msg/s)",
+                    mMessagesScanned, mBatchesRead, getReadThroughput(), mMmsQueries,
+                    mWaitTimeMillis, mMessagesWritten, mBatchesWritten, getWriteThroughput());
+        }
+    }
+
     public static class ThreadInfoCache {
         // Cache of thread->conversationId map
         private final LongSparseArray<String> mThreadToConversationId =
@@ -23,6 +23,7 @@ import android.text.TextUtils;
 
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DataModelException;
+import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.action.ActionMonitor.ActionCompletedListener;
 import com.android.messaging.datamodel.action.ActionMonitor.ActionExecutedListener;
 import com.android.messaging.util.LogUtil;
@@ -120,6 +121,79 @@ public abstract class Action implements Parcelable {
         return null;
     }
 
+    /** Lane for user initiated work that the UI is waiting on (the default) */
+    public static final int LANE_INTERACTIVE = 0;
+    /** Lane for long running maintenance work (sync, redownload, cleanup) */
+    public static final int LANE_BULK = 1;
+    /** Lane for sending outgoing messages, which can block on the radio */
+    public static final int LANE_SEND = 2;
+
+    /**
+     * @return lane that all stages of this action are run on, {@link #LANE_INTERACTIVE},
+     *         {@link #LANE_BULK} or {@link #LANE_SEND}
+     */
+    protected int getLane() {
+        return LANE_INTERACTIVE;
+    }
+
+    /**
+     * Stages of actions with the same ordering key (in any lane) run one at a time in the
+     * order they were queued. By default all actions of a class are ordered with each other;
+     * actions scoped to a conversation can use {@link #getConversationOrderingKey} instead.
+     */
+    protected String getOrderingKey() {
+        return getClass().getName();
+    }
+
+    /**
+     * Whether this action's action service stages insert messages into the local database,
+     * announcing them with {@link SyncManager#onNewMessageInserted}. Such stages never run while
+     * a sync batch is checked for conflicting inserts and written, so the check can't miss them.
+     * (Inserts from background work are covered by the sync window instead.)
+     */
+    protected boolean insertsMessages() {
+        return false;
+    }
+
+    /**
+     * Whether this action's action service stages check sync batches for conflicting message
+     * inserts and write them. Such stages never run at the same time as those of actions which
+     * {@link #insertsMessages}.
+     */
+    protected boolean writesSyncBatches() {
+        return false;
+    }
+
+    /**
+     * Helper for derived classes ordering their work by conversation
+     * @param conversationId conversation the action works on, may be null
+     */
+    protected final String getConversationOrderingKey(final String conversationId) {
+        if (TextUtils.isEmpty(conversationId)) {
+            return getClass().getName();
+        }
+        return "conversation:" + conversationId;
+    }
+
+    /**
+     * Actions with the same coalescing key are duplicates: when one is queued while another is
+     * still waiting to execute, it is folded into the waiting one by {@link #coalesce} and never
+     * executes itself.
+     * @return coalescing key, or null (the default) if this action always runs on its own
+     */
+    protected String getCoalescingKey() {
+        return null;
+    }
+
+    /**
+     * Merge a later duplicate (with the same coalescing key) into this action, which hasn't
+     * started executing yet. Runs on the ActionService thread. The default keeps this action's
+     * parameters, which suits actions whose duplicates are identical.
+     * @param duplicate the action that will not be executed
+     */
+    protected void coalesce(final Action duplicate) {
+    }
+
     /**
      * Constructor
      */
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collapses actions queued to the ActionService into an identical action that is still waiting
+ * to execute (see {@link Action#getCoalescingKey}).
+ *
+ * An action is only merged into one that hasn't started executing yet, so the merged action
+ * still runs after everything that caused the duplicate to be queued.
+ */
+class ActionCoalescer {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Queued actions that haven't started executing, keyed by coalescing key
+    private final HashMap<String, Action> mPending = new HashMap<String, Action>();
+    // Number of executions saved per action class
+    private final TreeMap<String, Integer> mSavedExecutions = new TreeMap<String, Integer>();
+    // Number of actions with a coalescing key queued per action class
+    private final TreeMap<String, Integer> mQueued = new TreeMap<String, Integer>();
+
+    /**
+     * Called when an action is queued for execution
+     * @param action the action being queued
+     * @return true if the action was merged into a pending one and must not be executed
+     */
+    synchronized boolean coalesce(final Action action) {
+        final String key = action.getCoalescingKey();
+        if (key == null) {
+            return false;
+        }
+        final String actionClass = action.getClass().getSimpleName();
+        increment(mQueued, actionClass);
+        final Action pending = mPending.get(key);
+        if (pending == null) {
+            mPending.put(key, action);
+            return false;
+        }
+        pending.coalesce(action);
+        increment(mSavedExecutions, actionClass);
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "ActionCoalescer: merged " + action.actionKey + " into "
+                    + pending.actionKey);
+        }
+        return true;
+    }
+
+    /**
+     * Called right before an action starts executing; later duplicates can't be merged into it
+     */
+    synchronized void onExecutionStarting(final Action action) {
+        final String key = action.getCoalescingKey();
+        if (key != null && mPending.get(key) == action) {
+            mPending.remove(key);
+        }
+    }
+
+    private static void increment(final Map<String, Integer> counters, final String name) {
+        final Integer count = counters.get(name);
+        counters.put(name, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @return number of executions of the action class saved by coalescing
+     */
+    synchronized int getSavedExecutions(final Class<? extends Action> actionClass) {
+        final Integer count = mSavedExecutions.get(actionClass.getSimpleName());
+        return count == null ? 0 : count;
+    }
+
+    synchronized void dump(final PrintWriter writer) {
+        writer.println("Coalesced actions: " + mPending.size() + " pending");
+        for (final Map.Entry<String, Integer> entry : mQueued.entrySet()) {
+            final Integer saved = mSavedExecutions.get(entry.getKey());
+            writer.println("  " + entry.getKey() + ": " + entry.getValue() + " queued, "
+                    + (saved == null ? 0 : saved) + " executions saved");
+        }
+    }
+}
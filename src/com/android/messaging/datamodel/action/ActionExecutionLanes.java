@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs action stages on per lane thread pools so that slow bulk work (sync, redownload, cleanup)
+ * and message sends waiting on the radio don't hold up user initiated actions queued behind it.
+ *
+ * Stages that share an ordering key (see {@link Action#getOrderingKey}) run one at a time in the
+ * order they were submitted, even when they are on different lanes. Each lane only accepts a
+ * bounded number of pending stages; once it is full, {@link #execute} blocks the submitting
+ * service thread.
+ *
+ * The JobIntentService considers a piece of work done once its handler returns, so the service
+ * calls {@link #awaitIdleOrQueuedWork} before returning: this keeps the job (and so the process)
+ * alive until the lanes drain, while still letting newly queued work through. A partial wake
+ * lock is held while any stage is pending in case the job is stopped early anyway.
+ */
+class ActionExecutionLanes {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Most stages pending (queued or running) in one lane before submitters block
+    private static final int MAX_PENDING_PER_LANE = 64;
+    // How often a service thread waiting for the lanes to drain checks whether its job was stopped
+    static final long IDLE_POLL_MILLIS = 1000;
+
+    /**
+     * One stage of an action (execute, background work or response processing)
+     */
+    private class Stage implements Runnable {
+        final Action mAction;
+        final Runnable mWork;
+        final Lane mLane;
+        final String mOrderingKey;
+        final long mQueuedTime;
+
+        Stage(final Action action, final Runnable work, final Lane lane) {
+            mAction = action;
+            mWork = work;
+            mLane = lane;
+            mOrderingKey = action.getOrderingKey();
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            recordQueueWait(mAction.getClass().getSimpleName(),
+                    SystemClock.elapsedRealtime() - mQueuedTime);
+            try {
+                mWork.run();
+            } finally {
+                mLane.onStageComplete(this);
+            }
+        }
+    }
+
+    /**
+     * A bounded thread pool
+     */
+    private class Lane {
+        final String mName;
+        final ExecutorService mExecutor;
+        final Semaphore mPending = new Semaphore(MAX_PENDING_PER_LANE);
+
+        Lane(final String name, final int threads) {
+            mName = name;
+            mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int mCount = 0;
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, mName + "-" + (mCount++));
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+
+        void submit(final Stage stage) {
+            mPending.acquireUninterruptibly();
+            onStageSubmitted();
+            synchronized (mBlocked) {
+                final ArrayDeque<Stage> waiting = mBlocked.get(stage.mOrderingKey);
+                if (waiting != null) {
+                    waiting.addLast(stage);
+                    return;
+                }
+                mBlocked.put(stage.mOrderingKey, new ArrayDeque<Stage>());
+            }
+            mExecutor.execute(stage);
+        }
+
+        void onStageComplete(final Stage stage) {
+            final Stage next;
+            synchronized (mBlocked) {
+                final ArrayDeque<Stage> waiting = mBlocked.get(stage.mOrderingKey);
+                next = waiting.pollFirst();
+                if (next == null) {
+                    mBlocked.remove(stage.mOrderingKey);
+                }
+            }
+            if (next != null) {
+                // Go to the back of its lane's pool queue so one busy key can't starve the others
+                next.mLane.mExecutor.execute(next);
+            }
+            mPending.release();
+            onStageFinished();
+        }
+
+        int getPendingCount() {
+            return MAX_PENDING_PER_LANE - mPending.availablePermits();
+        }
+    }
+
+    /**
+     * Queue wait times of one action class
+     */
+    private static class WaitStats {
+        long mCount;
+        long mTotalMillis;
+        long mMaxMillis;
+    }
+
+    private final String mName;
+    private final Lane mInteractiveLane;
+    private final Lane mBulkLane;
+    private final Lane mSendLane;
+    // Stages waiting for an earlier stage with the same ordering key (in any lane), keyed by that
+    // key. A key is present while one of its stages is running.
+    private final HashMap<String, ArrayDeque<Stage>> mBlocked =
+            new HashMap<String, ArrayDeque<Stage>>();
+    // Stages pending in all lanes and work queued to the service but not yet handed to a lane,
+    // both guarded by mIdleLock
+    private final Object mIdleLock = new Object();
+    private int mPendingStages;
+    private int mQueuedWork;
+    private final TreeMap<String, WaitStats> mWaitStats = new TreeMap<String, WaitStats>();
+    private final Object mWakeLockLock = new Object();
+    private PowerManager.WakeLock mWakeLock;
+
+    /**
+     * @param name used to name the lane threads and the wake lock
+     * @param interactiveThreads number of threads running interactive actions
+     * @param bulkThreads number of threads running bulk actions
+     */
+    ActionExecutionLanes(final String name, final int interactiveThreads,
+            final int bulkThreads) {
+        this(name, interactiveThreads, bulkThreads, 1 /* sendThreads */);
+    }
+
+    /**
+     * @param name used to name the lane threads and the wake lock
+     * @param interactiveThreads number of threads running interactive actions
+     * @param bulkThreads number of threads running bulk actions
+     * @param sendThreads number of threads running message sends
+     */
+    ActionExecutionLanes(final String name, final int interactiveThreads,
+            final int bulkThreads, final int sendThreads) {
+        mName = name;
+        mInteractiveLane = new Lane(name + "-interactive", interactiveThreads);
+        mBulkLane = new Lane(name + "-bulk", bulkThreads);
+        mSendLane = new Lane(name + "-send", sendThreads);
+    }
+
+    /**
+     * Run a stage of an action on the lane the action asks for
+     * @param action the action the work belongs to
+     * @param work the stage to run
+     */
+    void execute(final Action action, final Runnable work) {
+        final Lane lane;
+        switch (action.getLane()) {
+            case Action.LANE_INTERACTIVE:
+                lane = mInteractiveLane;
+                break;
+            case Action.LANE_BULK:
+                lane = mBulkLane;
+                break;
+            case Action.LANE_SEND:
+                lane = mSendLane;
+                break;
+            default:
+                Assert.fail("Unknown lane " + action.getLane() + " for " + action.actionKey);
+                lane = mInteractiveLane;
+                break;
+        }
+        lane.submit(new Stage(action, work, lane));
+    }
+
+    private void recordQueueWait(final String actionClass, final long waitMillis) {
+        synchronized (mWaitStats) {
+            WaitStats stats = mWaitStats.get(actionClass);
+            if (stats == null) {
+                stats = new WaitStats();
+                mWaitStats.put(actionClass, stats);
+            }
+            stats.mCount++;
+            stats.mTotalMillis += waitMillis;
+            stats.mMaxMillis = Math.max(stats.mMaxMillis, waitMillis);
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, mName + ": " + actionClass + " waited " + waitMillis + "ms");
+        }
+    }
+
+    private void onStageSubmitted() {
+        synchronized (mIdleLock) {
+            mPendingStages++;
+        }
+        acquireWakeLock();
+    }
+
+    private void onStageFinished() {
+        synchronized (mIdleLock) {
+            mPendingStages--;
+            if (mPendingStages == 0) {
+                mIdleLock.notifyAll();
+            }
+        }
+        releaseWakeLock();
+    }
+
+    /**
+     * Called when work is queued to the service, before it's handed to {@link #execute}
+     */
+    void onWorkQueued() {
+        synchronized (mIdleLock) {
+            mQueuedWork++;
+            mIdleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when the service starts handling work queued with {@link #onWorkQueued}
+     */
+    void onWorkDequeued() {
+        synchronized (mIdleLock) {
+            // Work redelivered after a restart was never counted
+            if (mQueuedWork > 0) {
+                mQueuedWork--;
+            }
+        }
+    }
+
+    /**
+     * Blocks the service thread while stages are pending and no more work is queued
+     * @param timeoutMillis how long to wait at most
+     * @return true if the service may finish handling its current work: the lanes are idle or
+     *         there is more work to hand off
+     */
+    boolean awaitIdleOrQueuedWork(final long timeoutMillis) {
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (mIdleLock) {
+            long remainingMillis = timeoutMillis;
+            while (mPendingStages > 0 && mQueuedWork == 0 && remainingMillis > 0) {
+                try {
+                    mIdleLock.wait(remainingMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                remainingMillis = deadline - SystemClock.elapsedRealtime();
+            }
+            return mPendingStages == 0 || mQueuedWork > 0;
+        }
+    }
+
+    private void acquireWakeLock() {
+        synchronized (mWakeLockLock) {
+            if (mWakeLock == null) {
+                final Context context = Factory.get().getApplicationContext();
+                final PowerManager pm =
+                        (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+                mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, mName);
+                mWakeLock.setReferenceCounted(true);
+            }
+            mWakeLock.acquire();
+        }
+    }
+
+    private void releaseWakeLock() {
+        synchronized (mWakeLockLock) {
+            mWakeLock.release();
+        }
+    }
+
+    void dump(final PrintWriter writer) {
+        writer.println(mName + " lanes: " + mInteractiveLane.getPendingCount()
+                + " interactive, " + mBulkLane.getPendingCount() + " bulk, "
+                + mSendLane.getPendingCount() + " send pending");
+        synchronized (mWaitStats) {
+            for (final Map.Entry<String, WaitStats> entry : mWaitStats.entrySet()) {
+                final WaitStats stats = entry.getValue();
+                writer.println(String.format(Locale.US,
+                        "  %s: %d queued, avg wait %d ms, max wait %d ms", entry.getKey(),
+                        stats.mCount, stats.mTotalMillis / stats.mCount, stats.mMaxMillis));
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.os.Bundle;
 
+import java.io.PrintWriter;
+
 /**
  * Class providing interface for the ActionService - can be stubbed for testing
  */
@@ -60,4 +62,11 @@ public class ActionService {
             final Exception exception) {
         ActionServiceImpl.handleFailureFromBackgroundWorker(action, exception);
     }
+
+    /**
+     * Dump the state of the action execution lanes and action coalescing
+     */
+    public void dump(final PrintWriter writer) {
+        ActionServiceImpl.dump(writer);
+    }
 }
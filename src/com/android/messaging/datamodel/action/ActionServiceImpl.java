@@ -32,6 +32,10 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * ActionService used to perform background processing for data model
  */
@@ -134,6 +138,25 @@ public class ActionServiceImpl extends JobIntentService {
 
     private BackgroundWorker mBackgroundWorker;
 
+    // Lanes outlive the service instance since work may still be running when the job is stopped
+    private static final ActionExecutionLanes sLanes =
+            new ActionExecutionLanes("bugle_action_service", 2 /* interactiveThreads */,
+                    1 /* bulkThreads */);
+    private static final ActionCoalescer sCoalescer = new ActionCoalescer();
+    // Keeps message inserts from running between a sync batch's conflict check and its write, as
+    // when all action service stages ran on a single thread
+    private static final ReentrantReadWriteLock sSyncWriteLock = new ReentrantReadWriteLock();
+
+    /**
+     * Dump lane state, per action class queue wait times and coalescing counters for dumpsys
+     */
+    static void dump(final PrintWriter writer) {
+        sLanes.dump(writer);
+        sCoalescer.dump(writer);
+        SendWindowController.get().dump(writer);
+        BackgroundWorkerService.dump(writer);
+    }
+
     /**
      * Allocate an intent with a specific opcode.
      */
@@ -229,6 +252,7 @@ public class ActionServiceImpl extends JobIntentService {
     }
 
     public static void enqueueWork(Context context, Intent work) {
+        sLanes.onWorkQueued();
         enqueueWork(context, ActionServiceImpl.class, JOB_ID, work);
     }
 
@@ -237,6 +261,17 @@ public class ActionServiceImpl extends JobIntentService {
      */
     @Override
     protected void onHandleWork(final Intent intent) {
+        sLanes.onWorkDequeued();
+        handleWork(intent);
+        // Keep the job open while the work handed to the lanes is still running
+        while (!isStopped()) {
+            if (sLanes.awaitIdleOrQueuedWork(ActionExecutionLanes.IDLE_POLL_MILLIS)) {
+                break;
+            }
+        }
+    }
+
+    private void handleWork(final Intent intent) {
         if (intent == null) {
             // Shouldn't happen but sometimes does following another crash.
             LogUtil.w(TAG, "ActionService.onHandleIntent: Called with null intent");
@@ -244,26 +279,47 @@ public class ActionServiceImpl extends JobIntentService {
         }
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
 
-        Action action;
         final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
         actionBundle.setClassLoader(getClassLoader());
+        final Action action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+        final BackgroundWorker backgroundWorker = mBackgroundWorker;
+        final Runnable work;
         switch(opcode) {
             case OP_START_ACTION: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
-                executeAction(action);
+                if (sCoalescer.coalesce(action)) {
+                    // Merged into an identical action that is still waiting to execute
+                    action.markBeginExecute();
+                    action.markEndExecute(null);
+                    return;
+                }
+                work = new Runnable() {
+                    @Override
+                    public void run() {
+                        sCoalescer.onExecutionStarting(action);
+                        executeAction(action);
+                    }
+                };
                 break;
             }
 
             case OP_RECEIVE_BACKGROUND_RESPONSE: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
                 final Bundle response = intent.getBundleExtra(EXTRA_WORKER_RESPONSE);
-                processBackgroundResponse(action, response);
+                work = new Runnable() {
+                    @Override
+                    public void run() {
+                        processBackgroundResponse(action, response);
+                    }
+                };
                 break;
             }
 
             case OP_RECEIVE_BACKGROUND_FAILURE: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
-                processBackgroundFailure(action);
+                work = new Runnable() {
+                    @Override
+                    public void run() {
+                        processBackgroundFailure(action);
+                    }
+                };
                 break;
             }
 
@@ -271,14 +327,42 @@ public class ActionServiceImpl extends JobIntentService {
                 throw new RuntimeException("Unrecognized opcode in ActionServiceImpl");
         }
 
-        action.sendBackgroundActions(mBackgroundWorker);
+        final Lock syncLock = getSyncLock(action);
+        sLanes.execute(action, new Runnable() {
+            @Override
+            public void run() {
+                if (syncLock != null) {
+                    syncLock.lock();
+                }
+                try {
+                    work.run();
+                    action.sendBackgroundActions(backgroundWorker);
+                } finally {
+                    if (syncLock != null) {
+                        syncLock.unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the lock an action's stages hold against sync batch writes, null if none
+     */
+    private static Lock getSyncLock(final Action action) {
+        if (action.writesSyncBatches()) {
+            return sSyncWriteLock.writeLock();
+        } else if (action.insertsMessages()) {
+            return sSyncWriteLock.readLock();
+        }
+        return null;
     }
 
     private static final long EXECUTION_TIME_WARN_LIMIT_MS = 1000; // 1 second
     /**
-     * Local execution of action on ActionService thread
+     * Local execution of action on an ActionService lane thread
      */
-    private void executeAction(final Action action) {
+    private static void executeAction(final Action action) {
         action.markBeginExecute();
 
         final LoggingTimer timer = createLoggingTimer(action, "#executeAction");
@@ -292,9 +376,9 @@ public class ActionServiceImpl extends JobIntentService {
     }
 
     /**
-     * Process response on ActionService thread
+     * Process response on an ActionService lane thread
      */
-    private void processBackgroundResponse(final Action action, final Bundle response) {
+    private static void processBackgroundResponse(final Action action, final Bundle response) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundResponse");
         timer.start();
 
@@ -304,9 +388,9 @@ public class ActionServiceImpl extends JobIntentService {
     }
 
     /**
-     * Process failure on ActionService thread
+     * Process failure on an ActionService lane thread
      */
-    private void processBackgroundFailure(final Action action) {
+    private static void processBackgroundFailure(final Action action) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundFailure");
         timer.start();
 
@@ -30,6 +30,7 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -48,6 +49,15 @@ public class BackgroundWorkerService extends JobIntentService {
 
     private final ActionService mHost;
 
+    // Lanes outlive the service instance since work may still be running when the job is stopped
+    private static final ActionExecutionLanes sLanes =
+            new ActionExecutionLanes("bugle_background_worker", 2 /* interactiveThreads */,
+                    1 /* bulkThreads */, SendWindowController.MAX_SEND_THREADS /* sendThreads */);
+
+    static void dump(final PrintWriter writer) {
+        sLanes.dump(writer);
+    }
+
     public BackgroundWorkerService() {
         super();
         mHost = DataModel.get().getActionService();
@@ -98,11 +108,23 @@ public class BackgroundWorkerService extends JobIntentService {
     }
 
     public static void enqueueWork(Context context, Intent work) {
+        sLanes.onWorkQueued();
         enqueueWork(context, BackgroundWorkerService.class, JOB_ID, work);
     }
 
     @Override
     protected void onHandleWork(final Intent intent) {
+        sLanes.onWorkDequeued();
+        handleWork(intent);
+        // Keep the job open while the work handed to the lanes is still running
+        while (!isStopped()) {
+            if (sLanes.awaitIdleOrQueuedWork(ActionExecutionLanes.IDLE_POLL_MILLIS)) {
+                break;
+            }
+        }
+    }
+
+    private void handleWork(final Intent intent) {
         if (intent == null) {
             // Shouldn't happen but sometimes does following another crash.
             LogUtil.w(TAG, "BackgroundWorkerService.onHandleIntent: Called with null intent");
@@ -114,7 +136,12 @@ public class BackgroundWorkerService extends JobIntentService {
             case OP_PROCESS_REQUEST: {
                 final Action action = intent.getParcelableExtra(EXTRA_ACTION);
                 final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
-                doBackgroundWork(action, attempt);
+                sLanes.execute(action, new Runnable() {
+                    @Override
+                    public void run() {
+                        doBackgroundWork(action, attempt);
+                    }
+                });
                 break;
             }
 
@@ -125,7 +152,7 @@ public class BackgroundWorkerService extends JobIntentService {
     }
 
     /**
-     * Local execution of background work for action on ActionService thread
+     * Local execution of background work for action on a BackgroundWorkerService lane thread
      */
     private void doBackgroundWork(final Action action, final int attempt) {
         action.markBackgroundWorkStarting();
@@ -180,6 +180,11 @@ public class DeleteConversationAction extends Action implements Parcelable {
         }
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         requestBackgroundWork();
@@ -104,6 +104,11 @@ public class DownloadMmsAction extends Action implements Parcelable {
         super();
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     @Override
     protected Object executeAction() {
         Assert.fail("DownloadMmsAction must be queued rather than started");
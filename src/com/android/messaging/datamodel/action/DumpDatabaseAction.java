@@ -21,6 +21,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
@@ -31,6 +32,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 
 public class DumpDatabaseAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -48,6 +51,11 @@ public class DumpDatabaseAction extends Action implements Parcelable {
     private DumpDatabaseAction() {
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     @Override
     protected Object executeAction() {
         final Context context = Factory.get().getApplicationContext();
@@ -95,6 +103,10 @@ public class DumpDatabaseAction extends Action implements Parcelable {
                 DebugUtils.ensureReadable(outFile);
                 LogUtil.i(TAG, "Dump complete; orig size: " + originalSize +
                         ", copy size: " + totalBytes);
+                // Include sync batch sizing decisions to help make sense of the copy
+                final StringWriter syncDump = new StringWriter();
+                DataModel.get().getSyncManager().dump(new PrintWriter(syncDump));
+                LogUtil.i(TAG, syncDump.toString());
             }
         }
         return null;
@@ -41,6 +41,11 @@ public class FixupMessageStatusOnStartupAction extends Action implements Parcela
     private FixupMessageStatusOnStartupAction() {
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     @Override
     protected Object executeAction() {
         // Now mark any messages in active sending or downloading state as inactive
@@ -50,6 +50,11 @@ public class HandleLowStorageAction extends Action implements Parcelable {
         actionParameters.putLong(KEY_CUTOFF_DURATION_MILLIS, durationInMillis);
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     @Override
     protected Object executeAction() {
         final int subOpCode = actionParameters.getInt(KEY_SUB_OP_CODE);
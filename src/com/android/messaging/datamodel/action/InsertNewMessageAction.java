@@ -113,6 +113,11 @@ public class InsertNewMessageAction extends Action implements Parcelable {
         actionParameters.putString(KEY_SUBJECT_TEXT, subject);
     }
 
+    @Override
+    protected boolean insertsMessages() {
+        return true;
+    }
+
     /**
      * Add message to database in pending state and queue actual sending
      */
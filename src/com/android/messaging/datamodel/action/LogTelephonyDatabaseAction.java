@@ -66,6 +66,11 @@ public class LogTelephonyDatabaseAction extends Action implements Parcelable {
     private LogTelephonyDatabaseAction() {
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     @Override
     protected Object executeAction() {
         final Context context = Factory.get().getApplicationContext();
@@ -50,6 +50,11 @@ public class MarkAsReadAction extends Action implements Parcelable {
         actionParameters.putString(KEY_CONVERSATION_ID, conversationId);
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId = actionParameters.getString(KEY_CONVERSATION_ID);
@@ -61,6 +61,17 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         actionParameters.putString(KEY_CONVERSATION_ID, conversationId);
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
+    @Override
+    protected String getCoalescingKey() {
+        final String conversationId = actionParameters.getString(KEY_CONVERSATION_ID);
+        return getClass().getName() + ":" + (conversationId == null ? "" : conversationId);
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId =
@@ -51,6 +51,7 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -200,6 +201,21 @@ public class ProcessDownloadedMmsAction extends Action {
         // Callers must use one of the static methods above
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
+    @Override
+    protected boolean insertsMessages() {
+        return true;
+    }
+
     @Override
     protected Object executeAction() {
         // Fire up the background worker
@@ -245,9 +261,11 @@ public class ProcessDownloadedMmsAction extends Action {
             if (resultCode == Activity.RESULT_OK) {
                 final Uri contentUri = actionParameters.getParcelable(KEY_CONTENT_URI);
                 final File downloadedFile = MmsFileProvider.getFile(contentUri);
-                byte[] downloadedData = null;
+                ByteBuffer downloadedData = null;
                 try {
-                    downloadedData = Files.toByteArray(downloadedFile);
+                    // Mapped rather than read, so the parts are only copied when persisted.
+                    // The mapping stays valid after the file is deleted below.
+                    downloadedData = Files.map(downloadedFile);
                 } catch (final FileNotFoundException e) {
                     LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
                             + downloadedFile.getAbsolutePath());
@@ -269,7 +287,9 @@ public class ProcessDownloadedMmsAction extends Action {
                     final RetrieveConf retrieveConf =
                             MmsSender.parseRetrieveConf(downloadedData, subId);
                     if (MmsUtils.isDumpMmsEnabled()) {
-                        MmsUtils.dumpPdu(downloadedData, retrieveConf);
+                        final byte[] rawPdu = new byte[downloadedData.remaining()];
+                        downloadedData.duplicate().get(rawPdu);
+                        MmsUtils.dumpPdu(rawPdu, retrieveConf);
                     }
                     if (retrieveConf != null) {
                         // Insert the downloaded MMS into telephony
@@ -42,14 +42,17 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Action used to lookup any messages in the pending send/download state and either fail them or
- * retry their action based on subscriptions. This action only initiates one retry at a time for
- * both sending/downloading. Further retries should be triggered by successful sending/downloading
- * of a message, network status change or exponential backoff timer.
+ * retry their action based on subscriptions. This action initiates one download at a time, and
+ * sends up to the subscription's send window (see {@link SendWindowController}) at a time with no
+ * more than one from each conversation. Further retries should be triggered by successful
+ * sending/downloading of a message, network status change or exponential backoff timer.
  */
 public class ProcessPendingMessagesAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -58,6 +61,10 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
 
     private static final String KEY_SUB_ID = "sub_id";
 
+    // Held while picking messages to send and marking them sending, so that two of these running
+    // at once don't both pick the same messages
+    private static final Object sSendQueueLock = new Object();
+
     public static void processFirstPendingMessage() {
         PhoneUtils.forEachActiveSubscription(new PhoneUtils.SubscriptionRunnable() {
             @Override
@@ -226,8 +233,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
-        if (toSendMessageId != null) {
+        if (!findMessagesToSend(db, now, selfId, subId).isEmpty()) {
             return true;
         } else {
             final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
@@ -262,21 +268,26 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        // Will queue no more than one message to send plus one message to download
-        // This keeps outgoing messages "in order" but allow downloads to happen even if sending
-        // gets blocked until messages time out. Manual resend bumps messages to head of queue.
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
-        final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
-        if (toSendMessageId != null) {
-            LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toSendMessageId
-                    + " for sending");
-            // This could queue nothing
-            if (!SendMessageAction.queueForSendInBackground(toSendMessageId, processingAction)) {
-                LogUtil.w(TAG, "ProcessPendingMessagesAction: Failed to queue message "
-                        + toSendMessageId + " for sending");
-                succeeded = false;
+        // Will queue no more than one message to send per conversation, up to the send window,
+        // plus one message to download. This keeps outgoing messages "in order" within each
+        // conversation but allows downloads to happen even if sending gets blocked until messages
+        // time out. Manual resend bumps messages to head of queue.
+        final List<String> toSendMessageIds;
+        synchronized (sSendQueueLock) {
+            toSendMessageIds = findMessagesToSend(db, now, selfId, subId);
+            for (final String toSendMessageId : toSendMessageIds) {
+                LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toSendMessageId
+                        + " for sending");
+                // This could queue nothing
+                if (!SendMessageAction.queueForSendInBackground(toSendMessageId,
+                        processingAction)) {
+                    LogUtil.w(TAG, "ProcessPendingMessagesAction: Failed to queue message "
+                            + toSendMessageId + " for sending");
+                    succeeded = false;
+                }
             }
         }
+        final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
         if (toDownloadMessageId != null) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toDownloadMessageId
                     + " for download");
@@ -288,7 +299,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                 succeeded = false;
             }
         }
-        if (toSendMessageId == null && toDownloadMessageId == null) {
+        if (toSendMessageIds.isEmpty() && toDownloadMessageId == null) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: No messages to send or download");
         }
         return succeeded;
@@ -316,24 +327,37 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         return null;
     }
 
-    private static String findNextMessageToSend(final DatabaseWrapper db, final long now,
-            final String selfId) {
-        String toSendMessageId = null;
+    /**
+     * Fail any pending messages that can no longer be sent and pick the ones to send next: the
+     * oldest pending message of each conversation that has nothing sending, oldest first, until
+     * the subscription's send window is full.
+     */
+    private static List<String> findMessagesToSend(final DatabaseWrapper db, final long now,
+            final String selfId, final int subId) {
+        final List<String> toSendMessageIds = new ArrayList<String>();
+        final int window = SendWindowController.get().getWindow(subId);
         Cursor cursor = null;
         int sendingCnt = 0;
         int pendingCnt = 0;
         int failedCnt = 0;
         db.beginTransaction();
         try {
-            // First check to see if we have any messages already sending
-            sendingCnt = (int) db.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
+            // First find the conversations that already have a message sending
+            final Set<String> busyConversationIds = new HashSet<String>();
+            cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
+                    new String[] { DatabaseHelper.MessageColumns.CONVERSATION_ID },
                     DatabaseHelper.MessageColumns.STATUS + " IN (?, ?) AND "
                     + DatabaseHelper.MessageColumns.SELF_PARTICIPANT_ID + " =? ",
                     new String[] {
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_SENDING),
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_RESENDING),
-                        selfId}
-                    );
+                        selfId},
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                sendingCnt++;
+                busyConversationIds.add(cursor.getString(0));
+            }
+            cursor.close();
 
             // Look for messages we could send
             cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
@@ -363,6 +387,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     isActiveSubscription = false;
                 }
             }
+            int slots = window - sendingCnt;
             while (cursor.moveToNext()) {
                 final MessageData message = new MessageData();
                 message.bind(cursor);
@@ -376,12 +401,15 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     BugleDatabaseOperations.updateMessageRow(db, message.getMessageId(), values);
                     MessagingContentProvider.notifyMessagesChanged(message.getConversationId());
                 } else {
-                    // If no messages currently sending
-                    if (sendingCnt == 0) {
-                        // Send this message
-                        toSendMessageId = message.getMessageId();
+                    if (slots <= 0) {
+                        // Window is full; later messages wait for sends to finish
+                        break;
+                    }
+                    // Only the oldest message of a conversation, and only if none is sending
+                    if (busyConversationIds.add(message.getConversationId())) {
+                        toSendMessageIds.add(message.getMessageId());
+                        slots--;
                     }
-                    break;
                 }
             }
             db.setTransactionSuccessful();
@@ -392,14 +420,16 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             }
         }
 
+        SendWindowController.get().onOutboxState(subId, sendingCnt + pendingCnt - failedCnt);
         if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
             LogUtil.d(TAG, "ProcessPendingMessagesAction: "
                     + sendingCnt + " messages already sending, "
                     + pendingCnt + " messages to send, "
-                    + failedCnt + " failed messages");
+                    + failedCnt + " failed messages, "
+                    + toSendMessageIds.size() + " picked with send window " + window);
         }
 
-        return toSendMessageId;
+        return toSendMessageIds;
     }
 
     private static String findNextMessageToDownload(final DatabaseWrapper db, final long now,
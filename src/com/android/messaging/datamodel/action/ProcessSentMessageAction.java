@@ -283,6 +283,9 @@ public class ProcessSentMessageAction extends Action {
                 + " in conversation " + conversationId
                 + "; status is " + MmsUtils.getRequestStatusDescription(status));
 
+        // Failures shrink the number of messages sent at once on the subscription
+        SendWindowController.get().onSendResult(subId, status == MmsUtils.MMS_REQUEST_SUCCEEDED);
+
         // Whether we succeeded or failed we will check and maybe schedule some more work
         ProcessPendingMessagesAction.scheduleProcessPendingMessagesAction(
                 status != MmsUtils.MMS_REQUEST_SUCCEEDED, processingAction);
@@ -79,6 +79,11 @@ public class ReadDraftDataAction extends Action implements Parcelable {
         }
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final DatabaseWrapper db = DataModel.get().getDatabase();
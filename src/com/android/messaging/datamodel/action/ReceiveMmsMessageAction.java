@@ -57,6 +57,11 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
         actionParameters.putByteArray(KEY_PUSH_DATA, pushData);
     }
 
+    @Override
+    protected boolean insertsMessages() {
+        return true;
+    }
+
     @Override
     protected Object executeAction() {
         final Context context = Factory.get().getApplicationContext();
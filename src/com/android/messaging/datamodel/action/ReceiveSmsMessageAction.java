@@ -21,6 +21,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.Telephony.Sms;
 import android.text.TextUtils;
 
@@ -45,12 +46,19 @@ public class ReceiveSmsMessageAction extends Action implements Parcelable {
 
     private static final String KEY_MESSAGE_VALUES = "message_values";
     private static final String KEY_SUB_ID = "sub_id";
+    private static final String KEY_RECEIVED_REALTIME = "received_realtime";
 
     /**
      * Create a message received from a particular number in a particular conversation
      */
     public ReceiveSmsMessageAction(final ContentValues messageValues) {
         actionParameters.putParcelable(KEY_MESSAGE_VALUES, messageValues);
+        actionParameters.putLong(KEY_RECEIVED_REALTIME, SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    protected boolean insertsMessages() {
+        return true;
     }
 
     @Override
@@ -168,7 +176,8 @@ public class ReceiveSmsMessageAction extends Action implements Parcelable {
             }
         }
         // Show a notification to let the user know a new message has arrived
-        BugleNotifications.update(false/*silent*/, conversationId, BugleNotifications.UPDATE_ALL);
+        BugleNotifications.update(false/*silent*/, conversationId, BugleNotifications.UPDATE_ALL,
+                actionParameters.getLong(KEY_RECEIVED_REALTIME, -1));
 
         MessagingContentProvider.notifyMessagesChanged(conversationId);
         MessagingContentProvider.notifyPartsChanged();
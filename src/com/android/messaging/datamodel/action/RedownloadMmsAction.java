@@ -69,6 +69,11 @@ public class RedownloadMmsAction extends Action implements Parcelable {
         actionParameters.putString(KEY_MESSAGE_ID, messageId);
     }
 
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
     /**
      * Read message from database and change status to allow downloading
      */
@@ -176,6 +176,21 @@ public class SendMessageAction extends Action implements Parcelable {
     }
 
 
+    @Override
+    protected int getLane() {
+        return LANE_SEND;
+    }
+
+    /**
+     * Messages in one conversation are sent one at a time in order; different conversations
+     * (and subscriptions) send in parallel
+     */
+    @Override
+    protected String getOrderingKey() {
+        final MessageData message = actionParameters.getParcelable(KEY_MESSAGE);
+        return getConversationOrderingKey(message == null ? null : message.getConversationId());
+    }
+
     /**
      * Never called
      */
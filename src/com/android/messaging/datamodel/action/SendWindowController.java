@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+
+/**
+ * Picks how many outgoing messages to have sending at once on each subscription.
+ *
+ * The window starts at the gservices max and grows by one with each message sent, halving when
+ * a send fails (carrier errors, no service, radio off) so that a struggling radio isn't handed
+ * more work than it can take. Also times how long each outbox takes to drain, from the first
+ * message queued while the outbox was empty to the last one finishing.
+ */
+class SendWindowController {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Number of background worker threads sending messages; a larger window just queues
+    static final int MAX_SEND_THREADS = 4;
+
+    private static final SendWindowController sInstance = new SendWindowController();
+
+    static SendWindowController get() {
+        return sInstance;
+    }
+
+    /**
+     * Window and outbox drain stats for one subscription
+     */
+    private static class SubscriptionState {
+        // Current window, 0 until first used
+        int mWindow;
+        int mSendsSucceeded;
+        int mSendsFailed;
+        // Time the outbox went from empty to non empty, 0 while it is empty
+        long mDrainStartMillis;
+        int mDrainMessages;
+        int mDrainCount;
+        long mTotalDrainMillis;
+        long mMaxDrainMillis;
+        int mMaxDrainMessages;
+    }
+
+    private final SparseArray<SubscriptionState> mStates = new SparseArray<SubscriptionState>();
+
+    private SubscriptionState getState(final int subId, final int maxWindow) {
+        SubscriptionState state = mStates.get(subId);
+        if (state == null) {
+            state = new SubscriptionState();
+            mStates.put(subId, state);
+        }
+        state.mWindow = (state.mWindow == 0) ? maxWindow
+                : Math.max(1, Math.min(state.mWindow, maxWindow));
+        return state;
+    }
+
+    private static int getMaxWindow() {
+        return Math.max(1, BugleGservices.get().getInt(
+                BugleGservicesKeys.MAX_CONCURRENT_SENDS_PER_SUBSCRIPTION,
+                BugleGservicesKeys.MAX_CONCURRENT_SENDS_PER_SUBSCRIPTION_DEFAULT));
+    }
+
+    /**
+     * @return max number of messages (from different conversations) to have sending at once on
+     *         the subscription
+     */
+    int getWindow(final int subId) {
+        return getWindow(subId, getMaxWindow());
+    }
+
+    synchronized int getWindow(final int subId, final int maxWindow) {
+        return getState(subId, maxWindow).mWindow;
+    }
+
+    /**
+     * Record the outcome of sending a message
+     * @param subId subscription the message was sent on
+     * @param succeeded false if the send failed or will be retried
+     */
+    void onSendResult(final int subId, final boolean succeeded) {
+        onSendResult(subId, succeeded, getMaxWindow());
+    }
+
+    synchronized void onSendResult(final int subId, final boolean succeeded,
+            final int maxWindow) {
+        final SubscriptionState state = getState(subId, maxWindow);
+        final int window = state.mWindow;
+        if (succeeded) {
+            state.mSendsSucceeded++;
+            if (state.mDrainStartMillis != 0) {
+                state.mDrainMessages++;
+            }
+            state.mWindow = Math.min(window + 1, maxWindow);
+        } else {
+            state.mSendsFailed++;
+            state.mWindow = Math.max(1, window / 2);
+        }
+        if (state.mWindow != window) {
+            LogUtil.i(TAG, "SendWindowController: Send window for subId " + subId + " now "
+                    + state.mWindow);
+        }
+    }
+
+    /**
+     * Record how many messages are waiting to send or sending on the subscription, to time how
+     * long the outbox takes to drain
+     */
+    void onOutboxState(final int subId, final int outstanding) {
+        onOutboxState(subId, outstanding, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void onOutboxState(final int subId, final int outstanding,
+            final long nowMillis) {
+        SubscriptionState state = mStates.get(subId);
+        if (state == null) {
+            if (outstanding == 0) {
+                return;
+            }
+            state = new SubscriptionState();
+            mStates.put(subId, state);
+        }
+        if (outstanding > 0) {
+            if (state.mDrainStartMillis == 0) {
+                state.mDrainStartMillis = nowMillis;
+                state.mDrainMessages = 0;
+            }
+        } else if (state.mDrainStartMillis != 0) {
+            final long drainMillis = nowMillis - state.mDrainStartMillis;
+            state.mDrainStartMillis = 0;
+            state.mDrainCount++;
+            state.mTotalDrainMillis += drainMillis;
+            if (drainMillis > state.mMaxDrainMillis) {
+                state.mMaxDrainMillis = drainMillis;
+                state.mMaxDrainMessages = state.mDrainMessages;
+            }
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "SendWindowController: Outbox for subId " + subId + " drained "
+                        + state.mDrainMessages + " messages in " + drainMillis + " ms");
+            }
+        }
+    }
+
+    synchronized long getAverageDrainMillis(final int subId) {
+        final SubscriptionState state = mStates.get(subId);
+        return (state == null || state.mDrainCount == 0) ? 0
+                : state.mTotalDrainMillis / state.mDrainCount;
+    }
+
+    synchronized int getDrainCount(final int subId) {
+        final SubscriptionState state = mStates.get(subId);
+        return (state == null) ? 0 : state.mDrainCount;
+    }
+
+    synchronized void dump(final PrintWriter writer) {
+        for (int i = 0; i < mStates.size(); i++) {
+            final SubscriptionState state = mStates.valueAt(i);
+            writer.println("Send window subId " + mStates.keyAt(i) + ": " + state.mWindow
+                    + " (" + state.mSendsSucceeded + " sent, " + state.mSendsFailed + " failed)"
+                    + ", " + state.mDrainCount + " outbox drains avg "
+                    + (state.mDrainCount == 0 ? 0 : state.mTotalDrainMillis / state.mDrainCount)
+                    + " ms, max " + state.mMaxDrainMillis + " ms for "
+                    + state.mMaxDrainMessages + " msgs"
+                    + (state.mDrainStartMillis != 0 ? ", draining" : ""));
+        }
+    }
+}
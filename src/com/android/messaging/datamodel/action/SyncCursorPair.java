@@ -16,9 +16,12 @@
 
 package com.android.messaging.datamodel.action;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteException;
+import android.net.Uri;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import androidx.collection.LongSparseArray;
@@ -42,6 +45,7 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.google.common.collect.Sets;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -124,14 +128,94 @@ class SyncCursorPair {
                 Mms.THREAD_ID, Long.toString(threadId));
     }
 
+    /**
+     * Cursor pair over specific telephony rows (and the local messages imported from them)
+     * @param smsIds ids of the SMS rows
+     * @param mmsIds ids of the MMS rows
+     * @param upperBound exclusive upper bound on the message timestamps
+     */
+    SyncCursorPair(final long[] smsIds, final long[] mmsIds, final long upperBound) {
+        final StringBuilder localUris = new StringBuilder();
+        for (final long id : smsIds) {
+            appendQuotedUri(localUris, Sms.CONTENT_URI, id);
+        }
+        for (final long id : mmsIds) {
+            appendQuotedUri(localUris, Mms.CONTENT_URI, id);
+        }
+        mLocalSelection = getTimeConstrainedQuery(
+                LOCAL_MESSAGES_SELECTION + " AND " + MessageColumns.SMS_MESSAGE_URI
+                        + " IN (" + localUris + ")",
+                MessageColumns.RECEIVED_TIMESTAMP,
+                -1L,
+                upperBound,
+                null /* threadColumn */, null /* threadId */);
+        mRemoteSmsSelection = getTimeConstrainedQuery(
+                getSmsTypeSelectionSql() + " AND " + Sms._ID + " IN (" + joinIds(smsIds) + ")",
+                "date",
+                -1L,
+                upperBound,
+                null /* threadColumn */, null /* threadId */);
+        mRemoteMmsSelection = getTimeConstrainedQuery(
+                getMmsTypeSelectionSql() + " AND " + Mms._ID + " IN (" + joinIds(mmsIds) + ")",
+                "date",
+                -1L,
+                ((upperBound < 0) ? upperBound : (upperBound + 999) / 1000),  /*seconds*/
+                null /* threadColumn */, null /* threadId */);
+    }
+
+    private static void appendQuotedUri(final StringBuilder builder, final Uri contentUri,
+            final long id) {
+        if (builder.length() > 0) {
+            builder.append(',');
+        }
+        DatabaseUtils.appendEscapedSQLString(builder,
+                ContentUris.withAppendedId(contentUri, id).toString());
+    }
+
+    private static String joinIds(final long[] ids) {
+        final StringBuilder builder = new StringBuilder();
+        for (final long id : ids) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+
     void query(final DatabaseWrapper db) {
-        // Load local messages in the sync window
-        mLocalCursorIterator = new LocalCursorIterator(db, mLocalSelection);
-        // Load remote messages in the sync window
+        queryRemote();
+        queryLocal(db);
+    }
+
+    /**
+     * Load remote messages in the sync window. Split out from {@link #query} so that a pipelined
+     * sync batch can read from telephony while the previous batch is still being written locally.
+     */
+    void queryRemote() {
         mRemoteCursorsIterator = new RemoteCursorsIterator(mRemoteSmsSelection,
                 mRemoteMmsSelection);
     }
 
+    /**
+     * Load local messages in the sync window. Must only be called once all earlier sync batches
+     * have been committed to the local database.
+     */
+    void queryLocal(final DatabaseWrapper db) {
+        mLocalCursorIterator = new LocalCursorIterator(db, mLocalSelection);
+    }
+
+    /**
+     * Read ahead up to maxMessages remote messages so that the expensive telephony reads happen
+     * before the local cursor is opened.
+     * @param maxMessages maximum number of remote messages to buffer
+     * @param prefetchedMms filled with the buffered remote MMS messages, keyed by id
+     * @return number of messages buffered
+     */
+    int prefetchRemote(final int maxMessages, final LongSparseArray<MmsMessage> prefetchedMms) {
+        return mRemoteCursorsIterator.prefetch(maxMessages, prefetchedMms);
+    }
+
     boolean isSynchronized(final DatabaseWrapper db) {
         return isSynchronized(db, mLocalSelection, null, mRemoteSmsSelection,
                 null, mRemoteMmsSelection, null);
@@ -432,6 +516,8 @@ class SyncCursorPair {
         private Cursor mMmsCursor;
         private DatabaseMessage mNextSms;
         private DatabaseMessage mNextMms;
+        // Messages read ahead of the scan by prefetch(), in DESC order
+        private final ArrayDeque<DatabaseMessage> mPrefetched = new ArrayDeque<DatabaseMessage>();
 
         RemoteCursorsIterator(final String smsSelection, final String mmsSelection)
                 throws SQLiteException {
@@ -486,8 +572,31 @@ class SyncCursorPair {
             }
         }
 
+        int prefetch(final int maxMessages,
+                final LongSparseArray<MmsMessage> prefetchedMms) {
+            while (mPrefetched.size() < maxMessages) {
+                final DatabaseMessage message = nextFromCursors();
+                if (message == null) {
+                    break;
+                }
+                mPrefetched.add(message);
+                if (message.getProtocol() == MessageData.PROTOCOL_MMS) {
+                    final MmsMessage mms = (MmsMessage) message;
+                    prefetchedMms.append(mms.getId(), mms);
+                }
+            }
+            return mPrefetched.size();
+        }
+
         @Override
         public DatabaseMessage next() {
+            if (!mPrefetched.isEmpty()) {
+                return mPrefetched.poll();
+            }
+            return nextFromCursors();
+        }
+
+        private DatabaseMessage nextFromCursors() {
             DatabaseMessage result = null;
             if (mNextSms != null && mNextMms != null) {
                 if (mNextSms.getTimestampInMillis() >= mNextMms.getTimestampInMillis()) {
@@ -527,7 +636,7 @@ class SyncCursorPair {
         // Return approximate cursor position allowing for read ahead on two cursors (hence -1)
         public int getPosition() {
             return (mSmsCursor == null ? 0 : mSmsCursor.getPosition()) +
-                    (mMmsCursor == null ? 0 : mMmsCursor.getPosition()) - 1;
+                    (mMmsCursor == null ? 0 : mMmsCursor.getPosition()) - 1 - mPrefetched.size();
         }
 
         @Override
@@ -546,6 +655,7 @@ class SyncCursorPair {
                 mMmsCursor.close();
                 mMmsCursor = null;
             }
+            mPrefetched.clear();
         }
     }
 
@@ -16,41 +16,31 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.SystemClock;
-import android.provider.Telephony.Mms;
 import androidx.collection.LongSparseArray;
 
-import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.datamodel.SyncChangeJournal;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
-import com.android.messaging.datamodel.data.ParticipantData;
-import com.android.messaging.mmslib.SqliteWrapper;
-import com.android.messaging.sms.DatabaseMessages;
 import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
 import com.android.messaging.sms.DatabaseMessages.MmsMessage;
 import com.android.messaging.sms.DatabaseMessages.SmsMessage;
-import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.BuglePrefs;
 import com.android.messaging.util.BuglePrefsKeys;
-import com.android.messaging.util.ContentType;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
 
 /**
  * Action used to sync messages from smsmms db to local database
@@ -64,6 +54,9 @@ public class SyncMessagesAction extends Action implements Parcelable {
     private static final String KEY_MAX_UPDATE = "max_update";
     private static final String KEY_LOWER_BOUND = "lower_bound";
     private static final String KEY_UPPER_BOUND = "upper_bound";
+    private static final String KEY_PIPELINED = "pipelined";
+    private static final String KEY_CHANGED_SMS_IDS = "changed_sms_ids";
+    private static final String KEY_CHANGED_MMS_IDS = "changed_mms_ids";
     private static final String BUNDLE_KEY_LAST_TIMESTAMP = "last_timestamp";
     private static final String BUNDLE_KEY_SMS_MESSAGES = "sms_to_add";
     private static final String BUNDLE_KEY_MMS_MESSAGES = "mms_to_add";
@@ -133,10 +126,54 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
     private SyncMessagesAction(final long lowerBound, final long upperBound,
             final int maxMessagesToUpdate, final long startTimestamp) {
+        this(lowerBound, upperBound, maxMessagesToUpdate, startTimestamp, false /*pipelined*/);
+    }
+
+    /**
+     * @param pipelined true if this batch is handed to the background worker before the previous
+     *         batch has been written, in which case it reads from telephony straight away but
+     *         waits for that write to commit before comparing against local messages
+     */
+    private SyncMessagesAction(final long lowerBound, final long upperBound,
+            final int maxMessagesToUpdate, final long startTimestamp, final boolean pipelined) {
         actionParameters.putLong(KEY_LOWER_BOUND, lowerBound);
         actionParameters.putLong(KEY_UPPER_BOUND, upperBound);
         actionParameters.putInt(KEY_MAX_UPDATE, maxMessagesToUpdate);
         actionParameters.putLong(KEY_START_TIMESTAMP, startTimestamp);
+        actionParameters.putBoolean(KEY_PIPELINED, pipelined);
+    }
+
+    @Override
+    protected int getLane() {
+        return LANE_BULK;
+    }
+
+    @Override
+    protected boolean writesSyncBatches() {
+        return true;
+    }
+
+    @Override
+    protected String getCoalescingKey() {
+        // Only sync requests are started through the ActionService; batches go straight to the
+        // background worker
+        return getClass().getName();
+    }
+
+    /**
+     * Widen this pending sync request to cover the duplicate: the earlier lower bound (a full
+     * sync wins) and the later upper bound
+     */
+    @Override
+    protected void coalesce(final Action duplicate) {
+        final Bundle other = duplicate.actionParameters;
+        actionParameters.putLong(KEY_LOWER_BOUND, Math.min(
+                actionParameters.getLong(KEY_LOWER_BOUND), other.getLong(KEY_LOWER_BOUND)));
+        actionParameters.putLong(KEY_UPPER_BOUND, Math.max(
+                actionParameters.getLong(KEY_UPPER_BOUND), other.getLong(KEY_UPPER_BOUND)));
+        actionParameters.putLong(KEY_START_TIMESTAMP, Math.max(
+                actionParameters.getLong(KEY_START_TIMESTAMP),
+                other.getLong(KEY_START_TIMESTAMP)));
     }
 
     @Override
@@ -156,7 +193,12 @@ public class SyncMessagesAction extends Action implements Parcelable {
         }
 
         final SyncManager syncManager = DataModel.get().getSyncManager();
-        if (lowerBoundTimeMillis >= 0) {
+        final SyncChangeJournal journal = syncManager.getChangeJournal();
+        // Incremental syncs where every change since the last sync named its telephony row only
+        // need to look at those rows
+        final boolean syncChangedRows = lowerBoundTimeMillis >= 0
+                && journal.isUsable(System.currentTimeMillis());
+        if (lowerBoundTimeMillis >= 0 && !syncChangedRows) {
             // Cursors
             final SyncCursorPair cursors = new SyncCursorPair(-1L, lowerBoundTimeMillis);
             final boolean inSync = cursors.isSynchronized(db);
@@ -183,6 +225,13 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         // Check if sync allowed (can be too soon after last or one is already running)
         if (syncManager.shouldSync(lowerBoundTimeMillis < 0, startTimestamp)) {
+            if (syncChangedRows) {
+                actionParameters.putLongArray(KEY_CHANGED_SMS_IDS, journal.drainSmsIds());
+                actionParameters.putLongArray(KEY_CHANGED_MMS_IDS, journal.drainMmsIds());
+            } else {
+                // The cursor pair diff covers everything journaled so far
+                journal.onConsistencyCheck(System.currentTimeMillis());
+            }
             syncManager.startSyncBatch(upperBoundTimeMillis);
             requestBackgroundWork();
         }
@@ -213,18 +262,19 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         final long lowerBoundTimeMillis = actionParameters.getLong(KEY_LOWER_BOUND);
         final long upperBoundTimeMillis = actionParameters.getLong(KEY_UPPER_BOUND);
+        final boolean pipelined = actionParameters.getBoolean(KEY_PIPELINED);
 
-        LogUtil.i(TAG, "SyncMessagesAction: Starting batch for messages from "
-                + lowerBoundTimeMillis + " to " + upperBoundTimeMillis
+        LogUtil.i(TAG, "SyncMessagesAction: Starting " + (pipelined ? "pipelined " : "")
+                + "batch for messages from " + lowerBoundTimeMillis + " to " + upperBoundTimeMillis
                 + " (message update limit = " + maxMessagesToUpdate + ", message scan limit = "
                 + maxMessagesToScan + ")");
 
         // Clear last change time so that we can work out if this batch is dirty when it completes
         final SyncManager syncManager = DataModel.get().getSyncManager();
 
-        // Clear the singleton cache that maps threads to recipients and to conversations.
+        // The singleton cache that maps threads to recipients and to conversations. It is cleared
+        // once any previous batch (which may still be using it) has been written.
         final SyncManager.ThreadInfoCache cache = syncManager.getThreadInfoCache();
-        cache.clear();
 
         // Sms messages to store
         final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>();
@@ -237,12 +287,16 @@ public class SyncMessagesAction extends Action implements Parcelable {
         long lastTimestampMillis = SYNC_FAILED;
         if (syncManager.isSyncing(upperBoundTimeMillis)) {
             // Cursors
-            final SyncCursorPair cursors = new SyncCursorPair(lowerBoundTimeMillis,
-                    upperBoundTimeMillis);
+            final long[] changedSmsIds = actionParameters.getLongArray(KEY_CHANGED_SMS_IDS);
+            final long[] changedMmsIds = actionParameters.getLongArray(KEY_CHANGED_MMS_IDS);
+            final SyncCursorPair cursors = (changedSmsIds != null && changedMmsIds != null)
+                    ? new SyncCursorPair(changedSmsIds, changedMmsIds, upperBoundTimeMillis)
+                    : new SyncCursorPair(lowerBoundTimeMillis, upperBoundTimeMillis);
 
             // Actually compare the messages using cursor pair
             lastTimestampMillis = syncCursorPair(db, cursors, smsToAdd, mmsToAdd,
-                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache);
+                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache,
+                    syncManager, pipelined, lowerBoundTimeMillis < 0 /*prefetchParts*/);
         }
         final Bundle response = new Bundle();
 
@@ -273,24 +327,51 @@ public class SyncMessagesAction extends Action implements Parcelable {
      * @param maxMessagesToScan max messages to scan for changes
      * @param maxMessagesToUpdate max messages to return for updates
      * @param cache cache for conversation id / thread id / recipient set mapping
+     * @param syncManager sync manager used to wait for pending writes and record throughput
+     * @param pipelined true if the previous batch may still be writing to the local database
+     * @param prefetchParts true to load parts for read ahead MMS messages before the previous
+     *         batch is written (worthwhile when most remote messages are expected to be new)
      * @return timestamp of the oldest message seen during the sync scan
      */
     private long syncCursorPair(final DatabaseWrapper db, final SyncCursorPair cursors,
             final ArrayList<SmsMessage> smsToAdd, final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete, final int maxMessagesToScan,
-            final int maxMessagesToUpdate, final ThreadInfoCache cache) {
+            final int maxMessagesToUpdate, final ThreadInfoCache cache,
+            final SyncManager syncManager, final boolean pipelined, final boolean prefetchParts) {
         long lastTimestampMillis;
         final long startTimeMillis = SystemClock.elapsedRealtime();
+        long waitTimeMillis = 0;
 
         // Number of messages scanned local and remote
         int localPos = 0;
         int remotePos = 0;
         int localTotal = 0;
         int remoteTotal = 0;
+        // MMS messages whose parts were loaded while waiting for the previous batch
+        final LongSparseArray<MmsMessage> prefetchedMms = new LongSparseArray<MmsMessage>();
+        final SyncMmsPrefetch mmsPrefetch = new SyncMmsPrefetch();
         // Scan through the messages on both sides and prepare messages for local message table
         // changes (including adding and deleting)
         try {
-            cursors.query(db);
+            cursors.queryRemote();
+            if (pipelined) {
+                // Overlap the telephony reads with the local write of the previous batch
+                final int prefetched = cursors.prefetchRemote(maxMessagesToScan, prefetchedMms);
+                if (prefetchParts) {
+                    mmsPrefetch.loadParts(prefetchedMms);
+                } else {
+                    prefetchedMms.clear();
+                }
+                waitTimeMillis = syncManager.awaitBatchWrite();
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "SyncMessagesAction: Read ahead " + prefetched + " remote "
+                            + "messages (" + prefetchedMms.size() + " MMS with parts); waited "
+                            + waitTimeMillis + " ms for previous batch");
+                }
+            }
+            // Clear the singleton cache that maps threads to recipients and to conversations.
+            cache.clear();
+            cursors.queryLocal(db);
 
             localTotal = cursors.getLocalCount();
             remoteTotal = cursors.getRemoteCount();
@@ -315,9 +396,20 @@ public class SyncMessagesAction extends Action implements Parcelable {
             }
 
             // Batch loading the parts of the MMS messages in this batch
-            loadMmsParts(mmsToAdd);
+            if (prefetchedMms.size() == 0) {
+                mmsPrefetch.loadParts(mmsToAdd);
+            } else {
+                final LongSparseArray<MmsMessage> mmsWithoutParts =
+                        new LongSparseArray<MmsMessage>();
+                for (int i = 0; i < mmsToAdd.size(); i++) {
+                    if (prefetchedMms.get(mmsToAdd.keyAt(i)) == null) {
+                        mmsWithoutParts.append(mmsToAdd.keyAt(i), mmsToAdd.valueAt(i));
+                    }
+                }
+                mmsPrefetch.loadParts(mmsWithoutParts);
+            }
             // Lookup senders for incoming mms messages
-            setMmsSenders(mmsToAdd, cache);
+            mmsPrefetch.loadSenders(mmsToAdd, cache);
         } catch (final SQLiteException e) {
             LogUtil.e(TAG, "SyncMessagesAction: Database exception", e);
             // Let's abort
@@ -335,12 +427,16 @@ public class SyncMessagesAction extends Action implements Parcelable {
         }
 
         final long endTimeMillis = SystemClock.elapsedRealtime();
+        syncManager.getSyncStats().onBatchRead(localPos + remotePos,
+                endTimeMillis - startTimeMillis - waitTimeMillis, waitTimeMillis,
+                mmsPrefetch.getQueryCount());
 
         if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
             LogUtil.d(TAG, "SyncMessagesAction: Scan complete (took "
                     + (endTimeMillis - startTimeMillis) + " ms). " + smsToAdd.size()
                     + " remote SMS to add, " + mmsToAdd.size() + " MMS to add, "
-                    + messagesToDelete.size() + " local messages to delete. "
+                    + messagesToDelete.size() + " local messages to delete, "
+                    + mmsPrefetch.getQueryCount() + " MMS part/addr queries. "
                     + "Oldest timestamp seen = " + lastTimestampMillis);
         }
 
@@ -402,16 +498,55 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
                 final int messagesUpdated = smsToAdd.size() + mmsToAdd.size()
                         + messagesToDelete.size();
+                final boolean moreMessages =
+                        lastTimestampMillis >= 0 && lastTimestampMillis >= lowerBoundTimeMillis;
+
+                boolean pipelined = false;
+                if (moreMessages && messagesUpdated > 0 && isPipelineEnabled()) {
+                    // Hand the next batch to the background worker before writing this one so
+                    // that it can read from telephony while the local transaction runs. It
+                    // waits for this write before looking at local messages.
+                    final long newUpperBoundTimeMillis = lastTimestampMillis + 1;
+                    final int newMaxMessagesToUpdate =
+                            syncManager.getBatchSizeController().getBatchSize();
+
+                    final SyncMessagesAction nextBatch =
+                            new SyncMessagesAction(lowerBoundTimeMillis, newUpperBoundTimeMillis,
+                                    newMaxMessagesToUpdate, startTimestamp, true /*pipelined*/);
+
+                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                        LogUtil.d(TAG, "SyncMessagesAction: More messages to sync; pipelining "
+                                + "next sync batch with this write.");
+                    }
+
+                    syncManager.startSyncBatch(newUpperBoundTimeMillis);
+                    syncManager.beginBatchWrite();
+                    requestBackgroundWork(nextBatch);
+                    sendBackgroundActions(DataModel.get().getBackgroundWorkerForActionService());
+                    pipelined = true;
+                }
 
                 // Perform local database changes in one transaction
-                long txnTimeMillis = 0;
+                int newMaxMessagesToUpdate = 0;
                 if (messagesUpdated > 0) {
+                    final DatabaseWrapper db = DataModel.get().getDatabase();
+                    // Only count UI reads that overlap this write
+                    db.getAndResetMaxReadTimeMillis();
                     final long startTimeMillis = SystemClock.elapsedRealtime();
                     final SyncMessageBatch batch = new SyncMessageBatch(smsToAdd, mmsToAdd,
                             messagesToDelete, syncManager.getThreadInfoCache());
-                    batch.updateLocalDatabase();
+                    try {
+                        batch.updateLocalDatabase();
+                    } finally {
+                        if (pipelined) {
+                            syncManager.endBatchWrite();
+                        }
+                    }
                     final long endTimeMillis = SystemClock.elapsedRealtime();
-                    txnTimeMillis = endTimeMillis - startTimeMillis;
+                    final long txnTimeMillis = endTimeMillis - startTimeMillis;
+                    syncManager.getSyncStats().onBatchWritten(messagesUpdated, txnTimeMillis);
+                    newMaxMessagesToUpdate = syncManager.getBatchSizeController().onBatchWritten(
+                            messagesUpdated, txnTimeMillis, db.getAndResetMaxReadTimeMillis());
 
                     LogUtil.i(TAG, "SyncMessagesAction: Updated local database "
                             + "(took " + txnTimeMillis + " ms). Added "
@@ -434,7 +569,9 @@ public class SyncMessagesAction extends Action implements Parcelable {
                     }
                 }
                 // Determine if there are more messages that need to be scanned
-                if (lastTimestampMillis >= 0 && lastTimestampMillis >= lowerBoundTimeMillis) {
+                if (pipelined) {
+                    // Next batch already queued
+                } else if (moreMessages) {
                     if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
                         LogUtil.d(TAG, "SyncMessagesAction: More messages to sync; scheduling next "
                                 + "sync batch now.");
@@ -442,8 +579,6 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
                     // Include final millisecond of last sync in next sync
                     final long newUpperBoundTimeMillis = lastTimestampMillis + 1;
-                    final int newMaxMessagesToUpdate = nextBatchSize(messagesUpdated,
-                            txnTimeMillis);
 
                     final SyncMessagesAction nextBatch =
                             new SyncMessagesAction(lowerBoundTimeMillis, newUpperBoundTimeMillis,
@@ -492,125 +627,25 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
                         // All done, in sync
                         syncManager.complete();
-                    }
-                }
-                // Either sync should be complete or we should have a follow up request
-                Assert.isTrue(hasBackgroundActions() || !syncManager.isSyncing());
-            }
-        }
-
-        return null;
-    }
-
-    /**
-     * Decide the next batch size based on the stats we collected with past batch
-     * @param messagesUpdated number of messages updated in this batch
-     * @param txnTimeMillis time the transaction took in ms
-     * @return Target number of messages to sync for next batch
-     */
-    private static int nextBatchSize(final int messagesUpdated, final long txnTimeMillis) {
-        final BugleGservices bugleGservices = BugleGservices.get();
-        final long smsSyncSubsequentBatchTimeLimitMillis = bugleGservices.getLong(
-                BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS,
-                BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS_DEFAULT);
 
-        if (txnTimeMillis <= 0) {
-            return 0;
-        }
-        // Number of messages we can sync within the batch time limit using
-        // the average sync time calculated based on the stats we collected
-        // in previous batch
-        return (int) ((double) (messagesUpdated) / (double) txnTimeMillis
-                        * smsSyncSubsequentBatchTimeLimitMillis);
-    }
-
-    /**
-     * Batch loading MMS parts for the messages in current batch
-     */
-    private void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
-        final Context context = Factory.get().getApplicationContext();
-        final int totalIds = mmses.size();
-        for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
-            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, totalIds); //excluding
-            final int count = end - start;
-            final String batchSelection = String.format(
-                    Locale.US,
-                    "%s != '%s' AND %s IN %s",
-                    Mms.Part.CONTENT_TYPE,
-                    ContentType.APP_SMIL,
-                    Mms.Part.MSG_ID,
-                    MmsUtils.getSqlInOperand(count));
-            final String[] batchSelectionArgs = new String[count];
-            for (int i = 0; i < count; i++) {
-                batchSelectionArgs[i] = Long.toString(mmses.valueAt(start + i).getId());
-            }
-            final Cursor cursor = SqliteWrapper.query(
-                    context,
-                    context.getContentResolver(),
-                    MmsUtils.MMS_PART_CONTENT_URI,
-                    DatabaseMessages.MmsPart.PROJECTION,
-                    batchSelection,
-                    batchSelectionArgs,
-                    null/*sortOrder*/);
-            if (cursor != null) {
-                try {
-                    while (cursor.moveToNext()) {
-                        // Delay loading the media content for parsing for efficiency
-                        // TODO: load the media and fill in the dimensions when
-                        // we actually display it
-                        final DatabaseMessages.MmsPart part =
-                                DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
-                        final DatabaseMessages.MmsMessage mms = mmses.get(part.mMessageId);
-                        if (mms != null) {
-                            mms.addPart(part);
+                        if (syncManager.getChangeJournal().hasPendingChanges()) {
+                            // Telephony changed while this sync was running
+                            sync();
                         }
                     }
-                } finally {
-                    cursor.close();
                 }
+                // Either sync should be complete or we should have a follow up request
+                Assert.isTrue(hasBackgroundActions() || pipelined || !syncManager.isSyncing());
             }
         }
-    }
 
-    /**
-     * Batch loading MMS sender for the messages in current batch
-     */
-    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
-            final ThreadInfoCache cache) {
-        // Store all the MMS messages
-        for (int i = 0; i < mmses.size(); i++) {
-            final MmsMessage mms = mmses.valueAt(i);
-
-            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
-            String senderId = null;
-            if (!isOutgoing) {
-                // We only need to find out sender phone number for received message
-                senderId = getMmsSender(mms, cache);
-                if (senderId == null) {
-                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
-                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
-                    senderId = ParticipantData.getUnknownSenderDestination();
-                }
-            }
-            mms.setSender(senderId);
-        }
+        return null;
     }
 
-    /**
-     * Find out the sender of an MMS message
-     */
-    private String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
-        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
-        Assert.notNull(recipients);
-        Assert.isTrue(recipients.size() > 0);
-
-        if (recipients.size() == 1
-                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
-            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
-                    + "(thread id = " + mms.mThreadId + ")");
-        }
-
-        return MmsUtils.getMmsSender(recipients, mms.mUri);
+    private static boolean isPipelineEnabled() {
+        return BugleGservices.get().getBoolean(
+                BugleGservicesKeys.SMS_SYNC_PIPELINE_ENABLED,
+                BugleGservicesKeys.SMS_SYNC_PIPELINE_ENABLED_DEFAULT);
     }
 
     private SyncMessagesAction(final Parcel in) {
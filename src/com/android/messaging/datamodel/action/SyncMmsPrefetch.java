@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.Telephony.Mms;
+import androidx.collection.LongSparseArray;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.mmslib.SqliteWrapper;
+import com.android.messaging.sms.DatabaseMessages;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Bulk loads the parts and senders of the MMS messages in a sync batch. Parts of dense runs of
+ * message ids are read with msg_id range queries (the ids of messages in a timestamp window are
+ * mostly contiguous), the rest with IN queries of up to {@link MmsUtils#MAX_IDS_PER_QUERY} ids,
+ * and joined back to their messages through the id keyed batch map.
+ */
+class SyncMmsPrefetch {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    /**
+     * Largest run of unwanted msg_ids a range query may cover before it is split in two. Parts of
+     * the unwanted messages in a gap are read and dropped, so this trades round trips against
+     * wasted rows.
+     */
+    static final long MAX_RANGE_GAP = 64;
+
+    /**
+     * The part queries for a batch of messages
+     */
+    static class QueryPlan {
+        // Flattened inclusive msg_id range start and end pairs
+        final long[] mRanges;
+        // The ids outside of the ranges, one query's worth per list
+        final List<String[]> mIdLists;
+
+        QueryPlan(final long[] ranges, final List<String[]> idLists) {
+            mRanges = ranges;
+            mIdLists = idLists;
+        }
+
+        int getQueryCount() {
+            return mRanges.length / 2 + mIdLists.size();
+        }
+    }
+
+    private static final String PART_RANGE_SELECTION = String.format(
+            Locale.US,
+            "%s != '%s' AND %s >= ? AND %s <= ?",
+            Mms.Part.CONTENT_TYPE,
+            ContentType.APP_SMIL,
+            Mms.Part.MSG_ID,
+            Mms.Part.MSG_ID);
+
+    private static String getPartIdsSelection(final int count) {
+        return String.format(
+                Locale.US,
+                "%s != '%s' AND %s IN %s",
+                Mms.Part.CONTENT_TYPE,
+                ContentType.APP_SMIL,
+                Mms.Part.MSG_ID,
+                MmsUtils.getSqlInOperand(count));
+    }
+
+    // Number of queries made against the telephony provider
+    private int mQueryCount;
+
+    /**
+     * Load the parts of the given MMS messages
+     * @param mmses messages to load parts for, keyed by telephony id
+     */
+    void loadParts(final LongSparseArray<MmsMessage> mmses) {
+        final QueryPlan plan = planQueries(mmses, MAX_RANGE_GAP, MmsUtils.MAX_IDS_PER_QUERY);
+        for (int i = 0; i < plan.mRanges.length; i += 2) {
+            queryParts(mmses, PART_RANGE_SELECTION, new String[] {
+                    Long.toString(plan.mRanges[i]), Long.toString(plan.mRanges[i + 1]) });
+        }
+        for (final String[] ids : plan.mIdLists) {
+            queryParts(mmses, getPartIdsSelection(ids.length), ids);
+        }
+    }
+
+    private void queryParts(final LongSparseArray<MmsMessage> mmses, final String selection,
+            final String[] selectionArgs) {
+        final Context context = Factory.get().getApplicationContext();
+        mQueryCount++;
+        final Cursor cursor = SqliteWrapper.query(
+                context,
+                context.getContentResolver(),
+                MmsUtils.MMS_PART_CONTENT_URI,
+                DatabaseMessages.MmsPart.PROJECTION,
+                selection,
+                selectionArgs,
+                null/*sortOrder*/);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    // Delay loading the media content for parsing for efficiency
+                    final DatabaseMessages.MmsPart part =
+                            DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
+                    final MmsMessage mms = mmses.get(part.mMessageId);
+                    // Messages inside the range gaps are not part of this batch
+                    if (mms != null) {
+                        mms.addPart(part);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Set the sender of the given MMS messages (only incoming messages need a lookup)
+     */
+    void loadSenders(final LongSparseArray<MmsMessage> mmses, final ThreadInfoCache cache) {
+        for (int i = 0; i < mmses.size(); i++) {
+            final MmsMessage mms = mmses.valueAt(i);
+
+            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
+            String senderId = null;
+            if (!isOutgoing) {
+                // We only need to find out sender phone number for received message
+                senderId = getSender(mms, cache);
+                if (senderId == null) {
+                    LogUtil.w(TAG, "SyncMmsPrefetch: Could not find sender of incoming MMS "
+                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
+                    senderId = ParticipantData.getUnknownSenderDestination();
+                }
+            }
+            mms.setSender(senderId);
+        }
+    }
+
+    /**
+     * Find out the sender of an MMS message. The telephony provider only exposes addr rows per
+     * message, so group messages still cost one query each; 1:1 threads use the cached
+     * recipients.
+     */
+    private String getSender(final MmsMessage mms, final ThreadInfoCache cache) {
+        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
+        Assert.notNull(recipients);
+        Assert.isTrue(recipients.size() > 0);
+
+        if (recipients.size() == 1
+                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
+            LogUtil.w(TAG, "SyncMmsPrefetch: MMS message " + mms.mUri + " has unknown sender "
+                    + "(thread id = " + mms.mThreadId + ")");
+        }
+
+        if (recipients.size() != 1) {
+            mQueryCount++;
+        }
+        return MmsUtils.getMmsSender(recipients, mms.mUri);
+    }
+
+    /**
+     * @return number of telephony queries made so far
+     */
+    int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * Plan the part queries for the (sorted) ids of the messages. The ids are grouped into runs,
+     * starting a new run whenever the gap to the previous id is larger than maxGap. A run with at
+     * least maxIdsPerQuery ids is read with one range query; the ids of the smaller runs go into
+     * IN lists of up to maxIdsPerQuery ids. So the plan never takes more queries than IN lists
+     * alone would, however sparse the ids are.
+     */
+    static QueryPlan planQueries(final LongSparseArray<?> mmses, final long maxGap,
+            final int maxIdsPerQuery) {
+        final int count = mmses.size();
+        final long[] ranges = new long[count * 2];
+        int rangeCount = 0;
+        final String[] ids = new String[count];
+        int idCount = 0;
+        int runStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i < count && mmses.keyAt(i) - mmses.keyAt(i - 1) <= maxGap) {
+                continue;
+            }
+            // The run ends at i - 1
+            if (i - runStart >= maxIdsPerQuery) {
+                ranges[rangeCount++] = mmses.keyAt(runStart);
+                ranges[rangeCount++] = mmses.keyAt(i - 1);
+            } else {
+                for (int j = runStart; j < i; j++) {
+                    ids[idCount++] = Long.toString(mmses.keyAt(j));
+                }
+            }
+            runStart = i;
+        }
+        final List<String[]> idLists = new ArrayList<String[]>();
+        for (int start = 0; start < idCount; start += maxIdsPerQuery) {
+            final int end = Math.min(start + maxIdsPerQuery, idCount); // excluding
+            idLists.add(Arrays.copyOfRange(ids, start, end));
+        }
+        return new QueryPlan(Arrays.copyOf(ranges, rangeCount), idLists);
+    }
+}
@@ -102,6 +102,11 @@ public class UpdateDestinationBlockedAction extends Action {
         actionParameters.putString(KEY_CONVERSATION_ID, conversationId);
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final String destination = actionParameters.getString(KEY_DESTINATION);
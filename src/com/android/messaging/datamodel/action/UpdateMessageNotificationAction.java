@@ -33,6 +33,12 @@ public class UpdateMessageNotificationAction extends Action {
     private UpdateMessageNotificationAction() {
     }
 
+    @Override
+    protected String getCoalescingKey() {
+        // Every update re-reads the notification state, so one queued update covers them all
+        return getClass().getName();
+    }
+
     @Override
     protected Object executeAction() {
         BugleNotifications.update(true /* silent */, BugleNotifications.UPDATE_MESSAGES);
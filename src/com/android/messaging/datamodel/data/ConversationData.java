@@ -254,10 +254,14 @@ public class ConversationData extends BindableData {
             final String bindingId = args.getString(BINDING_ID);
             // Check if data still bound to the requesting ui element
             if (isBound(bindingId)) {
-                final Uri uri =
-                        MessagingContentProvider.buildConversationMessagesUri(mConversationId);
-                loader = new BoundCursorLoader(bindingId, mContext, uri,
-                        ConversationMessageData.getProjection(), null, null, null);
+                final Uri uri = MessagingContentProvider.buildConversationMessagesUri(
+                        mConversationId,
+                        MessagingContentProvider.CONVERSATION_MESSAGES_WINDOW_SIZE);
+                final BoundCursorLoader messagesLoader = new BoundCursorLoader(bindingId,
+                        mContext, uri, ConversationMessageData.getProjection(), null, null, null);
+                // The cursor is sorted DESC and reversed when loaded, see onLoadFinished
+                messagesLoader.setRowDiffsEnabled(true /* reversed */);
+                loader = messagesLoader;
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
             } else {
@@ -33,6 +33,7 @@ import com.android.messaging.util.Dates;
 import com.google.common.base.Joiner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -259,17 +260,40 @@ public class ConversationListItemData {
     }
 
     /**
-     * Get the name of the view for this data item
+     * Get the name of the table to query for this data item. It holds the rows of
+     * conversation_list_view, kept current by triggers, so that reading the conversation list
+     * doesn't join every conversation with its latest message and that message's sender.
      */
-    public static final String getConversationListView() {
-        return CONVERSATION_LIST_VIEW;
+    public static final String getConversationListTable() {
+        return CONVERSATION_LIST_TABLE;
     }
 
     public static final String getConversationListViewSql() {
         return CONVERSATION_LIST_VIEW_SQL;
     }
 
+    public static final String getConversationListTableSql() {
+        return CONVERSATION_LIST_TABLE_SQL;
+    }
+
+    public static final String[] getConversationListTableIndexSqls() {
+        return CONVERSATION_LIST_TABLE_INDEX_SQLS;
+    }
+
+    public static final String[] getConversationListTableTriggerSqls() {
+        return CONVERSATION_LIST_TABLE_TRIGGER_SQLS;
+    }
+
+    /**
+     * Statement that copies every row of the view into the (empty) conversation list table
+     */
+    public static final String getConversationListTableFillSql() {
+        return "INSERT INTO " + CONVERSATION_LIST_TABLE + " (" + CONVERSATION_LIST_COLUMNS
+                + ") SELECT " + CONVERSATION_LIST_COLUMNS + " FROM " + CONVERSATION_LIST_VIEW;
+    }
+
     private static final String CONVERSATION_LIST_VIEW = "conversation_list_view";
+    private static final String CONVERSATION_LIST_TABLE = "conversation_list";
 
     private static final String CONVERSATION_LIST_VIEW_PROJECTION =
             DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
@@ -340,7 +364,9 @@ public class ConversationListItemData {
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SNIPPET_TEXT
             + " as " + ConversationListViewColumns.SNIPPET_TEXT + ", "
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SUBJECT_TEXT
-            + " as " + ConversationListViewColumns.SUBJECT_TEXT + " "
+            + " as " + ConversationListViewColumns.SUBJECT_TEXT + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
+            + " as " + ConversationListViewColumns.SNIPPET_SENDER_ID + " "
             + " FROM " + DatabaseHelper.CONVERSATIONS_TABLE
             + " LEFT JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' +  ConversationColumns.LATEST_MESSAGE_ID
@@ -381,6 +407,7 @@ public class ConversationListItemData {
         static final String SNIPPET_SENDER_DISPLAY_DESTINATION =
                 "snippet_sender_display_destination";
         static final String IS_ENTERPRISE = ConversationColumns.IS_ENTERPRISE;
+        static final String SNIPPET_SENDER_ID = "snippet_sender_id";
     }
 
     public static final String[] PROJECTION = {
@@ -441,6 +468,96 @@ public class ConversationListItemData {
     private static final int INDEX_SNIPPET_SENDER_DISPLAY_DESTINATION = 25;
     private static final int INDEX_IS_ENTERPRISE = 26;
 
+    // Columns of the view, and of the table that materializes it
+    private static final String CONVERSATION_LIST_COLUMNS =
+            TextUtils.join(", ", getConversationListColumns());
+
+    private static String[] getConversationListColumns() {
+        final String[] columns = Arrays.copyOf(PROJECTION, PROJECTION.length + 1);
+        columns[PROJECTION.length] = ConversationListViewColumns.SNIPPET_SENDER_ID;
+        return columns;
+    }
+
+    private static String makeConversationListTableSql() {
+        final StringBuilder sql = new StringBuilder("CREATE TABLE " + CONVERSATION_LIST_TABLE
+                + " (" + ConversationListViewColumns._ID + " INTEGER PRIMARY KEY");
+        for (final String column : getConversationListColumns()) {
+            if (!ConversationListViewColumns._ID.equals(column)) {
+                sql.append(", ").append(column);
+            }
+        }
+        return sql.append(")").toString();
+    }
+
+    private static final String CONVERSATION_LIST_TABLE_SQL = makeConversationListTableSql();
+
+    private static final String[] CONVERSATION_LIST_TABLE_INDEX_SQLS = new String[] {
+        "CREATE INDEX index_" + CONVERSATION_LIST_TABLE + "_"
+                + ConversationListViewColumns.SORT_TIMESTAMP + " ON " + CONVERSATION_LIST_TABLE
+                + "(" + ConversationListViewColumns.SORT_TIMESTAMP + ")",
+        "CREATE INDEX index_" + CONVERSATION_LIST_TABLE + "_"
+                + ConversationListViewColumns.SNIPPET_SENDER_ID + " ON " + CONVERSATION_LIST_TABLE
+                + "(" + ConversationListViewColumns.SNIPPET_SENDER_ID + ")",
+    };
+
+    // Copies the view rows matching the where clause into the table, replacing the old rows
+    private static String makeRefreshSql(final String where) {
+        return "INSERT OR REPLACE INTO " + CONVERSATION_LIST_TABLE + " ("
+                + CONVERSATION_LIST_COLUMNS + ") SELECT " + CONVERSATION_LIST_COLUMNS
+                + " FROM " + CONVERSATION_LIST_VIEW + " WHERE " + where + ";";
+    }
+
+    private static String makeTriggerSql(final String name, final String event,
+            final String when, final String statement) {
+        return "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_" + name + " AFTER " + event
+                + " FOR EACH ROW" + (when != null ? " WHEN " + when : "")
+                + " BEGIN " + statement + " END";
+    }
+
+    // Whether the given message row is the latest message of its conversation
+    private static String makeIsLatestMessageSql(final String message) {
+        return message + "." + MessageColumns._ID + "=(SELECT "
+                + ConversationColumns.LATEST_MESSAGE_ID + " FROM "
+                + DatabaseHelper.CONVERSATIONS_TABLE + " WHERE " + ConversationColumns._ID + "="
+                + message + "." + MessageColumns.CONVERSATION_ID + ")";
+    }
+
+    // The table only depends on a conversation's row, its latest message and that message's
+    // sender, so those are the changes that need to be copied over from the view.
+    private static final String[] CONVERSATION_LIST_TABLE_TRIGGER_SQLS = new String[] {
+        makeTriggerSql("conversation_insert", "INSERT ON " + DatabaseHelper.CONVERSATIONS_TABLE,
+                null, makeRefreshSql(ConversationListViewColumns._ID + "=NEW."
+                        + ConversationColumns._ID)),
+        makeTriggerSql("conversation_update", "UPDATE ON " + DatabaseHelper.CONVERSATIONS_TABLE,
+                null, makeRefreshSql(ConversationListViewColumns._ID + "=NEW."
+                        + ConversationColumns._ID)),
+        makeTriggerSql("conversation_delete", "DELETE ON " + DatabaseHelper.CONVERSATIONS_TABLE,
+                null, "DELETE FROM " + CONVERSATION_LIST_TABLE + " WHERE "
+                        + ConversationListViewColumns._ID + "=OLD." + ConversationColumns._ID
+                        + ";"),
+        makeTriggerSql("message_insert", "INSERT ON " + DatabaseHelper.MESSAGES_TABLE,
+                makeIsLatestMessageSql("NEW"),
+                makeRefreshSql(ConversationListViewColumns._ID + "=NEW."
+                        + MessageColumns.CONVERSATION_ID)),
+        makeTriggerSql("message_update", "UPDATE OF " + MessageColumns.READ + ", "
+                + MessageColumns.STATUS + ", " + MessageColumns.RAW_TELEPHONY_STATUS + ", "
+                + MessageColumns.SENDER_PARTICIPANT_ID + " ON " + DatabaseHelper.MESSAGES_TABLE,
+                makeIsLatestMessageSql("NEW"),
+                makeRefreshSql(ConversationListViewColumns._ID + "=NEW."
+                        + MessageColumns.CONVERSATION_ID)),
+        makeTriggerSql("message_delete", "DELETE ON " + DatabaseHelper.MESSAGES_TABLE,
+                makeIsLatestMessageSql("OLD"),
+                makeRefreshSql(ConversationListViewColumns._ID + "=OLD."
+                        + MessageColumns.CONVERSATION_ID)),
+        makeTriggerSql("participant_update", "UPDATE OF " + ParticipantColumns.FIRST_NAME + ", "
+                + ParticipantColumns.DISPLAY_DESTINATION + " ON "
+                + DatabaseHelper.PARTICIPANTS_TABLE, null,
+                makeRefreshSql(ConversationListViewColumns._ID + " IN (SELECT "
+                        + ConversationListViewColumns._ID + " FROM " + CONVERSATION_LIST_TABLE
+                        + " WHERE " + ConversationListViewColumns.SNIPPET_SENDER_ID + "=NEW."
+                        + ParticipantColumns._ID + ")")),
+    };
+
     private static final String DIVIDER_TEXT = ", ";
 
     public static boolean hasAnyEnterpriseContact(
@@ -468,7 +585,7 @@ public class ConversationListItemData {
         Cursor cursor = null;
         try {
             // TODO: Should we be able to read a row from just the conversation table?
-            cursor = dbWrapper.query(getConversationListView(),
+            cursor = dbWrapper.query(getConversationListTable(),
                     PROJECTION,
                     ConversationColumns._ID + "=?",
                     new String[] { conversationId },
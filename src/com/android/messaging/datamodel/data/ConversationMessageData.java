@@ -16,6 +16,7 @@
 package com.android.messaging.datamodel.data;
 
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
@@ -83,21 +84,40 @@ public class ConversationMessageData {
     public ConversationMessageData() {
     }
 
+    /**
+     * A cursor over conversation messages that loads their parts with
+     * {@link #getConversationMessagePartsQuerySql()}, ordered by message id, rather than
+     * group_concat'ing them into the message rows. Its part columns are left null.
+     */
+    public interface PartsCursor extends Cursor {
+        /**
+         * @return the parts cursor moved to the first part of the message at the current
+         *         position, or null if it has no parts
+         */
+        Cursor moveToMessageParts();
+    }
+
     public void bind(final Cursor cursor) {
         mMessageId = cursor.getString(INDEX_MESSAGE_ID);
         mConversationId = cursor.getString(INDEX_CONVERSATION_ID);
         mParticipantId = cursor.getString(INDEX_PARTICIPANT_ID);
         mPartsCount = cursor.getInt(INDEX_PARTS_COUNT);
 
-        mParts = makeParts(
-                cursor.getString(INDEX_PARTS_IDS),
-                cursor.getString(INDEX_PARTS_CONTENT_TYPES),
-                cursor.getString(INDEX_PARTS_CONTENT_URIS),
-                cursor.getString(INDEX_PARTS_WIDTHS),
-                cursor.getString(INDEX_PARTS_HEIGHTS),
-                cursor.getString(INDEX_PARTS_TEXTS),
-                mPartsCount,
-                mMessageId);
+        final PartsCursor partsCursor = getPartsCursor(cursor);
+        if (partsCursor != null) {
+            mParts = makeParts(partsCursor.moveToMessageParts(), cursor.getLong(INDEX_MESSAGE_ID),
+                    mMessageId);
+        } else {
+            mParts = makeParts(
+                    cursor.getString(INDEX_PARTS_IDS),
+                    cursor.getString(INDEX_PARTS_CONTENT_TYPES),
+                    cursor.getString(INDEX_PARTS_CONTENT_URIS),
+                    cursor.getString(INDEX_PARTS_WIDTHS),
+                    cursor.getString(INDEX_PARTS_HEIGHTS),
+                    cursor.getString(INDEX_PARTS_TEXTS),
+                    mPartsCount,
+                    mMessageId);
+        }
 
         mSentTimestamp = cursor.getLong(INDEX_SENT_TIMESTAMP);
         mReceivedTimestamp = cursor.getLong(INDEX_RECEIVED_TIMESTAMP);
@@ -252,6 +272,23 @@ public class ConversationMessageData {
             final String contentHeight,
             final String text,
             final String messageId) {
+        if (ContentType.isTextType(contentType)) {
+            return makePartData(partId, contentType, null, 0, 0, text, messageId);
+        } else {
+            return makePartData(partId, contentType, contentUriString,
+                    Integer.parseInt(contentWidth), Integer.parseInt(contentHeight), text,
+                    messageId);
+        }
+    }
+
+    private static MessagePartData makePartData(
+            final String partId,
+            final String contentType,
+            final String contentUriString,
+            final int width,
+            final int height,
+            final String text,
+            final String messageId) {
         if (ContentType.isTextType(contentType)) {
             final MessagePartData textPart = MessagePartData.createTextMessagePart(text);
             textPart.updatePartId(partId);
@@ -259,8 +296,6 @@ public class ConversationMessageData {
             return textPart;
         } else {
             final Uri contentUri = Uri.parse(contentUriString);
-            final int width = Integer.parseInt(contentWidth);
-            final int height = Integer.parseInt(contentHeight);
             final MessagePartData attachmentPart = MessagePartData.createMediaMessagePart(
                     contentType, contentUri, width, height);
             attachmentPart.updatePartId(partId);
@@ -304,6 +339,41 @@ public class ConversationMessageData {
         return parts;
     }
 
+    /**
+     * Reads the parts of a message from a cursor over {@link #getConversationMessagePartsQuerySql}
+     * positioned at its first part (or null if it has none). Values are read straight from their
+     * columns, so unlike the group_concat'ed columns nothing needs to be split or unquoted.
+     */
+    @VisibleForTesting
+    static List<MessagePartData> makeParts(
+            final Cursor partsCursor,
+            final long rowId,
+            final String messageId) {
+        final List<MessagePartData> parts = new LinkedList<MessagePartData>();
+        if (partsCursor == null) {
+            return parts;
+        }
+        do {
+            parts.add(makePartData(
+                    partsCursor.getString(INDEX_PART_ID),
+                    partsCursor.getString(INDEX_PART_CONTENT_TYPE),
+                    partsCursor.getString(INDEX_PART_CONTENT_URI),
+                    partsCursor.getInt(INDEX_PART_WIDTH),
+                    partsCursor.getInt(INDEX_PART_HEIGHT),
+                    partsCursor.getString(INDEX_PART_TEXT),
+                    messageId));
+        } while (partsCursor.moveToNext()
+                && partsCursor.getLong(INDEX_PART_MESSAGE_ID) == rowId);
+        return parts;
+    }
+
+    private static PartsCursor getPartsCursor(Cursor cursor) {
+        while (cursor instanceof CursorWrapper) {
+            cursor = ((CursorWrapper) cursor).getWrappedCursor();
+        }
+        return cursor instanceof PartsCursor ? (PartsCursor) cursor : null;
+    }
+
     @VisibleForTesting
     static void unpackMessageParts(
             final List<MessagePartData> parts,
@@ -620,12 +690,37 @@ public class ConversationMessageData {
 
     // Data definitions
 
-    public static final String getConversationMessagesQuerySql() {
-        return CONVERSATION_MESSAGES_QUERY_SQL
-                + " AND "
-                // Inject the conversation id
-                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?)"
-                + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
+    /**
+     * Query for one page of a conversation's messages, newest first. Arguments are the
+     * conversation id, the received timestamp of the last message before the page (twice), its
+     * id and the page size.
+     */
+    public static final String getConversationMessagesPageQuerySql() {
+        return CONVERSATION_MESSAGES_PAGE_QUERY_SQL;
+    }
+
+    /**
+     * Query for the id, received timestamp and status of each of a conversation's messages,
+     * newest first. The argument is the conversation id.
+     */
+    public static final String getConversationMessageKeysQuerySql() {
+        return CONVERSATION_MESSAGES_KEYS_QUERY_SQL;
+    }
+
+    /**
+     * Query for the parts of a range of a conversation's messages, ordered by message id.
+     * Arguments are the conversation id, then the received timestamp (twice) and id of the oldest
+     * message of the range, then those of the newest.
+     */
+    public static final String getConversationMessagePartsQuerySql() {
+        return CONVERSATION_MESSAGES_PARTS_QUERY_SQL;
+    }
+
+    /**
+     * Column of {@link #getConversationMessagePartsQuerySql()} holding the message id
+     */
+    public static final int getPartsQueryMessageIdColumn() {
+        return INDEX_PART_MESSAGE_ID;
     }
 
     static final String getConversationMessageIdsQuerySql() {
@@ -703,15 +798,8 @@ public class ConversationMessageData {
 
     private static final String EMPTY_STRING = "";
 
-    private static final String CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL =
-            DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
-            + " as " + ConversationMessageViewColumns._ID + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID
-            + " as " + ConversationMessageViewColumns.CONVERSATION_ID + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
-            + " as " + ConversationMessageViewColumns.PARTICIPANT_ID + ", "
-
-            + makeCaseWhenString(PartColumns._ID, false,
+    private static final String CONVERSATION_MESSAGES_QUERY_PARTS_PROJECTION_SQL =
+            makeCaseWhenString(PartColumns._ID, false,
                     ConversationMessageViewColumns.PARTS_IDS) + ", "
             + makeCaseWhenString(PartColumns.CONTENT_TYPE, true,
                     ConversationMessageViewColumns.PARTS_CONTENT_TYPES) + ", "
@@ -723,9 +811,31 @@ public class ConversationMessageData {
                     ConversationMessageViewColumns.PARTS_HEIGHTS) + ", "
             + makeCaseWhenString(PartColumns.TEXT, true,
                     ConversationMessageViewColumns.PARTS_TEXTS) + ", "
-
             + CONVERSATION_MESSAGE_VIEW_PARTS_COUNT
-            + " as " + ConversationMessageViewColumns.PARTS_COUNT + ", "
+            + " as " + ConversationMessageViewColumns.PARTS_COUNT + ", ";
+
+    // For queries whose parts are read separately (see PartsCursor), so only the count is needed
+    private static final String CONVERSATION_MESSAGES_PAGE_PARTS_PROJECTION_SQL =
+            "NULL as " + ConversationMessageViewColumns.PARTS_IDS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_CONTENT_TYPES + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_CONTENT_URIS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_WIDTHS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_HEIGHTS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_TEXTS + ", "
+            + "(SELECT count(*) FROM " + DatabaseHelper.PARTS_TABLE
+            + " WHERE " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID + "="
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ")"
+            + " as " + ConversationMessageViewColumns.PARTS_COUNT + ", ";
+
+    private static String makeProjectionSql(final String partsProjectionSql) {
+        return DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + " as " + ConversationMessageViewColumns._ID + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID
+            + " as " + ConversationMessageViewColumns.CONVERSATION_ID + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
+            + " as " + ConversationMessageViewColumns.PARTICIPANT_ID + ", "
+
+            + partsProjectionSql
 
             + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENT_TIMESTAMP
             + " as " + ConversationMessageViewColumns.SENT_TIMESTAMP + ", "
@@ -767,19 +877,85 @@ public class ConversationMessageData {
             + " as " + ConversationMessageViewColumns.SENDER_CONTACT_ID + ", "
             + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.LOOKUP_KEY
             + " as " + ConversationMessageViewColumns.SENDER_CONTACT_LOOKUP_KEY + " ";
+    }
 
-    private static final String CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL =
-            " FROM " + DatabaseHelper.MESSAGES_TABLE
-            + " LEFT JOIN " + DatabaseHelper.PARTS_TABLE
+    private static final String CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL =
+            makeProjectionSql(CONVERSATION_MESSAGES_QUERY_PARTS_PROJECTION_SQL);
+
+    private static final String CONVERSATION_MESSAGES_PARTICIPANTS_JOIN_SQL =
+            " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " ON (" + DatabaseHelper.MESSAGES_TABLE + '.' +  MessageColumns.SENDER_PARTICIPANT_ID
+            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")";
+
+    private static final String CONVERSATION_MESSAGES_QUERY_JOIN_SQL =
+            " LEFT JOIN " + DatabaseHelper.PARTS_TABLE
             + " ON (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
             + "=" + DatabaseHelper.PARTS_TABLE + "." + PartColumns.MESSAGE_ID + ") "
-            + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE
-            + " ON (" + DatabaseHelper.MESSAGES_TABLE + '.' +  MessageColumns.SENDER_PARTICIPANT_ID
-            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")"
+            + CONVERSATION_MESSAGES_PARTICIPANTS_JOIN_SQL;
+
+    private static final String CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL =
+            " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_MESSAGES_QUERY_JOIN_SQL
             // Exclude draft messages from main view
             + " WHERE (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS
             + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT;
 
+    // Selects one page of a conversation's messages, newest first, starting right after the
+    // message with the given (received timestamp, id) keyset and limited to the page size.
+    // The page is selected from the messages table alone so that the participants join only
+    // runs on the rows of the page. Parts are read by CONVERSATION_MESSAGES_PARTS_QUERY_SQL.
+    private static final String CONVERSATION_MESSAGES_PAGE_QUERY_SQL = "SELECT "
+            + makeProjectionSql(CONVERSATION_MESSAGES_PAGE_PARTS_PROJECTION_SQL)
+            + " FROM (SELECT * FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=?"
+            + " AND " + MessageColumns.STATUS + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND (" + MessageColumns.RECEIVED_TIMESTAMP + "<? OR ("
+            + MessageColumns.RECEIVED_TIMESTAMP + "=? AND " + MessageColumns._ID + "<?))"
+            + " ORDER BY " + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+            + MessageColumns._ID + " DESC"
+            + " LIMIT ?) AS " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_MESSAGES_PARTICIPANTS_JOIN_SQL
+            + " ORDER BY "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " DESC";
+
+    // The (received timestamp, id) keyset and status of every message of a conversation, newest
+    // first. Only reads the messages table, in the order of its (conversation id, received
+    // timestamp) index, so it's cheap enough to run over the whole conversation to count it and
+    // find where each page starts.
+    private static final String CONVERSATION_MESSAGES_KEYS_QUERY_SQL = "SELECT "
+            + MessageColumns._ID + ", "
+            + MessageColumns.RECEIVED_TIMESTAMP + ", "
+            + MessageColumns.STATUS
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=?"
+            + " AND " + MessageColumns.STATUS + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " ORDER BY " + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+            + MessageColumns._ID + " DESC";
+
+    // The parts of the messages of a conversation between two (received timestamp, id) keysets,
+    // inclusive, ordered by message id. Selecting by the range a page actually covers rather
+    // than by limit and offset means that a message arriving in between the two queries can't
+    // shift the parts out of line with the page.
+    private static final String CONVERSATION_MESSAGES_PARTS_QUERY_SQL = "SELECT "
+            + PartColumns.MESSAGE_ID + ", "
+            + PartColumns._ID + ", "
+            + PartColumns.CONTENT_TYPE + ", "
+            + PartColumns.CONTENT_URI + ", "
+            + PartColumns.WIDTH + ", "
+            + PartColumns.HEIGHT + ", "
+            + PartColumns.TEXT
+            + " FROM " + DatabaseHelper.PARTS_TABLE
+            + " WHERE " + PartColumns.MESSAGE_ID + " IN (SELECT " + MessageColumns._ID
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=?"
+            + " AND " + MessageColumns.STATUS + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND (" + MessageColumns.RECEIVED_TIMESTAMP + ">? OR ("
+            + MessageColumns.RECEIVED_TIMESTAMP + "=? AND " + MessageColumns._ID + ">=?))"
+            + " AND (" + MessageColumns.RECEIVED_TIMESTAMP + "<? OR ("
+            + MessageColumns.RECEIVED_TIMESTAMP + "=? AND " + MessageColumns._ID + "<=?)))"
+            + " ORDER BY " + PartColumns.MESSAGE_ID + ", " + PartColumns._ID;
+
     // This query is mostly static, except for the injection of conversation id. This is for
     // performance reasons, to ensure that the query uses indices and does not trigger full scans
     // of the messages table. See b/17160946 for more details.
@@ -841,6 +1017,14 @@ public class ConversationMessageData {
         static final String PARTS_TEXTS = "parts_texts";
     }
 
+    private static final int INDEX_PART_MESSAGE_ID               = 0;
+    private static final int INDEX_PART_ID                       = 1;
+    private static final int INDEX_PART_CONTENT_TYPE             = 2;
+    private static final int INDEX_PART_CONTENT_URI              = 3;
+    private static final int INDEX_PART_WIDTH                    = 4;
+    private static final int INDEX_PART_HEIGHT                   = 5;
+    private static final int INDEX_PART_TEXT                     = 6;
+
     private static int sIndexIncrementer = 0;
 
     private static final int INDEX_MESSAGE_ID                    = sIndexIncrementer++;
@@ -442,8 +442,7 @@ public class MessageData implements Parcelable {
      * while they call this and use the returned value.
      */
     public SQLiteStatement getInsertStatement(final DatabaseWrapper db) {
-        final SQLiteStatement insert = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_INSERT_MESSAGE, INSERT_MESSAGE_SQL);
+        final SQLiteStatement insert = db.getStatementInTransaction(INSERT_MESSAGE_SQL);
         insert.clearBindings();
         insert.bindString(INDEX_CONVERSATION_ID, mConversationId);
         insert.bindString(INDEX_PARTICIPANT_ID, mParticipantId);
@@ -266,8 +266,7 @@ public class MessagePartData implements Parcelable {
      */
     public SQLiteStatement getInsertStatement(final DatabaseWrapper db,
                                               final String conversationId) {
-        final SQLiteStatement insert = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_INSERT_MESSAGE_PART, INSERT_MESSAGE_PART_SQL);
+        final SQLiteStatement insert = db.getStatementInTransaction(INSERT_MESSAGE_PART_SQL);
         insert.clearBindings();
         insert.bindString(INDEX_MESSAGE_ID, mMessageId);
         if (mText != null) {
@@ -505,7 +504,9 @@ public class MessagePartData implements Parcelable {
                 // Wish we could save the size here, but we don't have a part id yet
                 decodeAndSaveSizeIfImage(false /* saveToStorage */);
                 return GifTranscoder.canBeTranscoded(mWidth, mHeight) ?
-                        GifTranscoder.estimateFileSizeAfterTranscode(originalImageSize)
+                        Math.min(originalImageSize, GifTranscoder.estimateFileSizeAfterTranscode(
+                                Factory.get().getApplicationContext(), mContentUri,
+                                originalImageSize))
                         : originalImageSize;
             }
             // Other images should be arbitrarily resized by ImageResizer before sending.
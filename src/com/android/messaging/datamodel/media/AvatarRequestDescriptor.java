@@ -18,6 +18,7 @@ package com.android.messaging.datamodel.media;
 
 import android.content.Context;
 import android.net.Uri;
+import android.text.format.DateUtils;
 
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.AvatarUriUtil;
@@ -48,6 +49,22 @@ public class AvatarRequestDescriptor extends UriImageRequestDescriptor {
         this.isWearBackground = isWearBackground;
     }
 
+    @Override
+    public Uri getDiskCacheSourceUri() {
+        // Only photos are worth keeping; letter tiles and default avatars are cheap to draw
+        if (uri == null || UriUtil.isLocalResourceUri(uri)) {
+            return uri;
+        }
+        return AvatarUriUtil.TYPE_LOCAL_RESOURCE_URI.equals(AvatarUriUtil.getAvatarType(uri)) ?
+                AvatarUriUtil.getPrimaryUri(uri) : null;
+    }
+
+    @Override
+    public long getDiskCacheMaxAgeMillis() {
+        // Contact photos can change behind the same uri
+        return DateUtils.DAY_IN_MILLIS;
+    }
+
     @Override
     public MediaRequest<ImageResource> buildSyncMediaRequest(final Context context) {
         final String avatarType = uri == null ? null : AvatarUriUtil.getAvatarType(uri);
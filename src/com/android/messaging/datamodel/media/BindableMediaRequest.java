@@ -28,11 +28,37 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         extends BindableOnceData
         implements MediaRequest<T>, MediaResourceLoadListener<T> {
     private MediaResourceLoadListener<T> mListener;
+    private volatile int mPriority = PRIORITY_VISIBLE;
+    // The scheduled load of this request while it's waiting to run
+    private volatile MediaLoadingScheduler.Task mPendingTask;
 
     public BindableMediaRequest(final MediaResourceLoadListener<T> listener) {
         mListener = listener;
     }
 
+    /**
+     * @return the scheduling priority of this request, {@link #PRIORITY_VISIBLE} by default
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the scheduling priority of this request. If the request is already waiting to be
+     * loaded it's moved accordingly.
+     */
+    public void setPriority(final int priority) {
+        mPriority = priority;
+        final MediaLoadingScheduler.Task pendingTask = mPendingTask;
+        if (pendingTask != null) {
+            pendingTask.setPriority(priority);
+        }
+    }
+
+    void setPendingTask(final MediaLoadingScheduler.Task pendingTask) {
+        mPendingTask = pendingTask;
+    }
+
     /**
      * Delegates the media resource callback to the listener. Performs binding check to ensure
      * the listener is still bound to this request.
@@ -59,5 +85,11 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
     @Override
     protected void unregisterListeners() {
         mListener = null;
+        // Nobody is waiting for the media anymore, don't load it if it hasn't started yet
+        final MediaLoadingScheduler.Task pendingTask = mPendingTask;
+        if (pendingTask != null) {
+            pendingTask.cancel();
+            mPendingTask = null;
+        }
     }
 }
@@ -26,6 +26,7 @@ import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 
 
@@ -96,6 +97,30 @@ public class DecodedImageResource extends ImageResource {
         return null;
     }
 
+    /**
+     * Encodes the bitmap to be written to the {@link MediaDiskCache}. Unlike {@link #getBytes()}
+     * this keeps transparency, e.g. of avatars cropped to a circle, which JPEG can't hold.
+     */
+    byte[] getBytesForDiskCache() {
+        acquireLock();
+        try {
+            if (mBitmap == null) {
+                return null;
+            }
+            if (!mBitmap.hasAlpha()) {
+                return ImageUtils.bitmapToBytes(mBitmap, COMPRESS_QUALITY);
+            }
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            mBitmap.compress(Bitmap.CompressFormat.PNG, BITMAP_QUALITY, os);
+            return os.toByteArray();
+        } catch (final Exception e) {
+            LogUtil.e(LogUtil.BUGLE_IMAGE_TAG, "Error encoding bitmap for disk cache", e);
+        } finally {
+            releaseLock();
+        }
+        return null;
+    }
+
     /**
      * Gets the orientation of the image as one of the ExifInterface.ORIENTATION_* constants
      */
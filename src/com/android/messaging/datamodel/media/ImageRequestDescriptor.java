@@ -16,6 +16,7 @@
 package com.android.messaging.datamodel.media;
 
 import android.content.Context;
+import android.net.Uri;
 
 import com.android.messaging.util.Assert;
 
@@ -107,6 +108,23 @@ public abstract class ImageRequestDescriptor extends MediaRequestDescriptor<Imag
     @Override
     public abstract MediaRequest<ImageResource> buildSyncMediaRequest(Context context);
 
+    /**
+     * Returns the uri of the source of the image if the loaded image may be kept in the
+     * {@link MediaDiskCache}, or null if it may not. Cached images are dropped when their source
+     * is deleted.
+     */
+    public Uri getDiskCacheSourceUri() {
+        return null;
+    }
+
+    /**
+     * How long an image may be served from the {@link MediaDiskCache}, for sources that can change
+     * without us being told.
+     */
+    public long getDiskCacheMaxAgeMillis() {
+        return Long.MAX_VALUE;
+    }
+
     // Called once source dimensions finally determined upon loading the image
     public void updateSourceDimensions(final int sourceWidth, final int sourceHeight) {
     }
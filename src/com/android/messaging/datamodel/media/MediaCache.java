@@ -15,38 +15,92 @@
  */
 package com.android.messaging.datamodel.media;
 
-import android.util.LruCache;
-
 import com.android.messaging.util.LogUtil;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * A modified LruCache that is able to hold RefCountedMediaResource instances. It releases
+ * An LRU cache that is able to hold RefCountedMediaResource instances. It releases
  * ref on the entries as they are evicted from the cache, and it uses the media resource
  * size in kilobytes, instead of the entry count, as the size of the cache.
  *
+ * The entries are striped over a number of independently locked segments so that the media
+ * loading threads and the UI thread don't serialize on a single lock when hitting the cache.
+ * The size budget is shared by all the segments, and eviction picks the least recently used
+ * entry across all of them using a cache-wide access clock.
+ *
  * This class is used by the MediaResourceManager class to maintain a number of caches for
  * holding different types of {@link RefCountedMediaResource}
  */
-public class MediaCache<T extends RefCountedMediaResource> extends LruCache<String, T> {
+public class MediaCache<T extends RefCountedMediaResource> {
     private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
 
     // Default memory cache size in kilobytes
     protected static final int DEFAULT_MEDIA_RESOURCE_CACHE_SIZE_IN_KILOBYTES = 1024 * 5;  // 5MB
 
+    // Number of lock stripes, must be a power of two
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * A cached resource along with its size and the time it was last accessed
+     */
+    private static class Entry<T> {
+        final String mKey;
+        final T mValue;
+        final int mSize;
+        // Value of the cache access clock at the last access, guarded by the segment lock
+        long mAccessTime;
+
+        Entry(final String key, final T value, final int size) {
+            mKey = key;
+            mValue = value;
+            mSize = size;
+        }
+    }
+
+    /**
+     * One lock stripe of the cache, holding its entries in access order
+     */
+    private static class Segment<T> {
+        final LinkedHashMap<String, Entry<T>> mEntries =
+                new LinkedHashMap<String, Entry<T>>(16, 0.75f, true /* accessOrder */);
+        int mHitCount;
+        int mMissCount;
+    }
+
     // Unique identifier for the cache.
     private final int mId;
     // Descriptive name given to the cache for debugging purposes.
     private final String mName;
+    private final int mMaxSize;
+    private final Segment<T>[] mSegments;
+    // Total size of all entries in kilobytes
+    private final AtomicInteger mSize = new AtomicInteger();
+    // Ticks on every access and insertion; orders entries across segments for eviction
+    private final AtomicLong mAccessClock = new AtomicLong();
+    // Serializes evictions so concurrent inserts don't evict more than needed
+    private final Object mEvictionLock = new Object();
 
     // Convenience constructor that uses the default cache size.
     public MediaCache(final int id, final String name) {
         this(DEFAULT_MEDIA_RESOURCE_CACHE_SIZE_IN_KILOBYTES, id, name);
     }
 
+    @SuppressWarnings("unchecked")
     public MediaCache(final int maxSize, final int id, final String name) {
-        super(maxSize);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
         mId = id;
         mName = name;
+        mSegments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            mSegments[i] = new Segment<T>();
+        }
     }
 
     public void destroy() {
@@ -62,40 +116,211 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
     }
 
     /**
-     * Gets a media resource from this cache. Must use this method to get resource instead of get()
-     * to ensure addRef() on the resource.
+     * Gets a media resource from this cache. Must use this method to get resource to ensure
+     * addRef() on the resource.
      */
-    public synchronized T fetchResourceFromCache(final String key) {
-        final T ret = get(key);
-        if (ret != null) {
-            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                LogUtil.v(TAG, "cache hit in mediaCache @ " + getName() +
-                        ", total cache hit = " + hitCount() +
-                        ", total cache miss = " + missCount());
+    public T fetchResourceFromCache(final String key) {
+        final Segment<T> segment = segmentFor(key);
+        final T ret;
+        synchronized (segment) {
+            final Entry<T> entry = segment.mEntries.get(key);
+            if (entry != null) {
+                entry.mAccessTime = mAccessClock.incrementAndGet();
+                segment.mHitCount++;
+                ret = entry.mValue;
+                // Add the ref while still holding the segment lock, so that the resource can't be
+                // evicted and closed in between
+                ret.addRef();
+            } else {
+                segment.mMissCount++;
+                ret = null;
             }
-            ret.addRef();
-        } else if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "cache miss in mediaCache @ " + getName() +
-                    ", total cache hit = " + hitCount() +
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "cache " + (ret != null ? "hit" : "miss") + " in mediaCache @ " +
+                    getName() + ", total cache hit = " + hitCount() +
                     ", total cache miss = " + missCount());
         }
         return ret;
     }
 
     /**
-     * Add a media resource to this cache. Must use this method to add resource instead of put()
-     * to ensure addRef() on the resource.
+     * Add a media resource to this cache. Must use this method to add resource to ensure addRef()
+     * on the resource.
+     * @return the resource previously cached under the key, if any
      */
-    public synchronized T addResourceToCache(final String key, final T mediaResource) {
+    public T addResourceToCache(final String key, final T mediaResource) {
         mediaResource.addRef();
-        return put(key, mediaResource);
+        final Entry<T> entry = new Entry<T>(key, mediaResource, sizeOf(key, mediaResource));
+        final Segment<T> segment = segmentFor(key);
+        final Entry<T> previous;
+        synchronized (segment) {
+            entry.mAccessTime = mAccessClock.incrementAndGet();
+            previous = segment.mEntries.put(key, entry);
+            mSize.addAndGet(entry.mSize - (previous != null ? previous.mSize : 0));
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous.mValue, mediaResource);
+        }
+        trimToSize(mMaxSize);
+        return previous != null ? previous.mValue : null;
+    }
+
+    /**
+     * Removes the entry for the key, releasing the cache's ref on it.
+     * @return the removed resource, if any
+     */
+    public T remove(final String key) {
+        final Segment<T> segment = segmentFor(key);
+        final Entry<T> removed;
+        synchronized (segment) {
+            removed = segment.mEntries.remove(key);
+            if (removed != null) {
+                mSize.addAndGet(-removed.mSize);
+            }
+        }
+        if (removed == null) {
+            return null;
+        }
+        entryRemoved(false, key, removed.mValue, null);
+        return removed.mValue;
+    }
+
+    /**
+     * Removes the entry for the key if it still holds the given resource and the cache holds the
+     * only ref on it. On success the caller is handed a ref on the resource, which it must
+     * release once done with it.
+     * @return true if the resource was removed
+     */
+    boolean removeIfUnreferenced(final String key, final T mediaResource) {
+        final Segment<T> segment = segmentFor(key);
+        final Entry<T> removed;
+        synchronized (segment) {
+            final Entry<T> entry = segment.mEntries.get(key);
+            if (entry == null || entry.mValue != mediaResource) {
+                return false;
+            }
+            // Nobody can add a ref through the cache while we hold the segment lock
+            mediaResource.acquireLock();
+            try {
+                if (mediaResource.getRefCount() != 1) {
+                    return false;
+                }
+                mediaResource.addRef();
+            } finally {
+                mediaResource.releaseLock();
+            }
+            removed = segment.mEntries.remove(key);
+            mSize.addAndGet(-removed.mSize);
+        }
+        entryRemoved(true, key, removed.mValue, null);
+        return true;
+    }
+
+    /**
+     * Evicts all entries from the cache.
+     */
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return total size of the cached resources in kilobytes
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public int hitCount() {
+        int count = 0;
+        for (final Segment<T> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mHitCount;
+            }
+        }
+        return count;
+    }
+
+    public int missCount() {
+        int count = 0;
+        for (final Segment<T> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mMissCount;
+            }
+        }
+        return count;
+    }
+
+    private Segment<T> segmentFor(final String key) {
+        final int hash = key.hashCode();
+        return mSegments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is no larger than the given size.
+     */
+    private void trimToSize(final int maxSize) {
+        if (mSize.get() <= maxSize) {
+            return;
+        }
+        synchronized (mEvictionLock) {
+            while (mSize.get() > maxSize) {
+                final Entry<T> evicted = removeEldest();
+                if (evicted == null) {
+                    break;
+                }
+                entryRemoved(true, evicted.mKey, evicted.mValue, null);
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entry across all segments.
+     * @return the removed entry, or null if the cache is empty
+     */
+    private Entry<T> removeEldest() {
+        while (true) {
+            Segment<T> eldestSegment = null;
+            Entry<T> eldest = null;
+            long eldestAccessTime = Long.MAX_VALUE;
+            for (final Segment<T> segment : mSegments) {
+                synchronized (segment) {
+                    final Iterator<Entry<T>> iterator = segment.mEntries.values().iterator();
+                    if (iterator.hasNext()) {
+                        final Entry<T> entry = iterator.next();
+                        if (entry.mAccessTime < eldestAccessTime) {
+                            eldestSegment = segment;
+                            eldest = entry;
+                            eldestAccessTime = entry.mAccessTime;
+                        }
+                    }
+                }
+            }
+            if (eldest == null) {
+                return null;
+            }
+            synchronized (eldestSegment) {
+                // The entry may have been accessed or removed since the scan; if so look again
+                final Iterator<Entry<T>> iterator = eldestSegment.mEntries.values().iterator();
+                if (iterator.hasNext() && iterator.next() == eldest
+                        && eldest.mAccessTime == eldestAccessTime) {
+                    iterator.remove();
+                    mSize.addAndGet(-eldest.mSize);
+                    return eldest;
+                }
+            }
+        }
     }
 
     /**
-     * Notify the removed entry that is no longer being cached
+     * Notify the removed entry that is no longer being cached. Called without holding any
+     * segment lock.
      */
-    @Override
-    protected synchronized void entryRemoved(final boolean evicted, final String key,
+    protected void entryRemoved(final boolean evicted, final String key,
             final T oldValue, final T newValue) {
         oldValue.release();
     }
@@ -104,10 +329,9 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
      * Measure item size in kilobytes rather than units which is more practical
      * for a media resource cache
      */
-    @Override
     protected int sizeOf(final String key, final T value) {
         final int mediaSizeInKilobytes = value.getMediaSize() / 1024;
         // Never zero-count any resource, count as at least 1KB.
         return mediaSizeInKilobytes == 0 ? 1 : mediaSizeInKilobytes;
     }
-}
\ No newline at end of file
+}
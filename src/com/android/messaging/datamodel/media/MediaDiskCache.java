@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.net.Uri;
+
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Size-bounded, least-recently-used cache of encoded image thumbnails on disk, so that images
+ * don't have to be decoded and scaled down from their full size source again after the process
+ * is restarted.
+ *
+ * Each entry is one file holding a header (the key, when it was written, the orientation, the
+ * length and a checksum of the image) followed by the encoded image. Files that don't match
+ * their header are deleted when read. File names start with a hash of the uri of the source of
+ * the image so that all the entries of a source can be dropped when the source is deleted.
+ *
+ * Dropping a source bumps its generation. A writer takes the generation of its source before it
+ * starts making the image and hands it to {@link #put}, which drops the image if the source was
+ * dropped in the meantime, so an image made from a deleted source can't outlive its removal.
+ */
+public class MediaDiskCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    private static final int MAGIC = 0x42474d44;
+    private static final int VERSION = 1;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final char SOURCE_DELIMITER = '_';
+
+    /**
+     * An encoded image read from the cache
+     */
+    public static class Entry {
+        public final byte[] bytes;
+        public final int orientation;
+
+        Entry(final byte[] bytes, final int orientation) {
+            this.bytes = bytes;
+            this.orientation = orientation;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    // File name to file length in access order, guarded by this. Loaded from the directory on
+    // first use.
+    private LinkedHashMap<String, Long> mIndex;
+    private long mSizeBytes;
+    // Generation of each dropped source by source hash, guarded by this. Sources that were
+    // never dropped are at generation 0.
+    private final HashMap<String, Integer> mSourceGenerations = new HashMap<String, Integer>();
+    // Makes the temporary file of each write unique, so that concurrent writes of the same key
+    // don't write into the same file
+    private final AtomicLong mTempFileCount = new AtomicLong();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mCorruptCount = new AtomicLong();
+
+    public MediaDiskCache(final File directory, final long maxSizeBytes) {
+        Assert.isTrue(maxSizeBytes > 0);
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Reads the image cached for the key, if there is one that is not older than the given age.
+     *
+     * @param key the key of the image request
+     * @param sourceUri the source of the image, as it was given to {@link #put}
+     * @param maxAgeMillis how old the entry may be
+     * @return the cached image, or null if there's none
+     */
+    @DoesNotRunOnMainThread
+    public Entry get(final String key, final Uri sourceUri, final long maxAgeMillis) {
+        Assert.isNotMainThread();
+        final String fileName = getFileName(key, sourceUri);
+        synchronized (this) {
+            // Touch the entry in the index to mark it as used
+            if (ensureIndexLoaded().get(fileName) == null) {
+                mMissCount.incrementAndGet();
+                return null;
+            }
+        }
+        final File file = new File(mDirectory, fileName);
+        final Entry entry = readEntry(file, key, maxAgeMillis);
+        if (entry == null) {
+            remove(fileName);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        // Keep the order across restarts; best effort
+        file.setLastModified(System.currentTimeMillis());
+        mHitCount.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * @return the generation of the source, to pass to {@link #put} for an image made from it
+     */
+    public synchronized int getSourceGeneration(final Uri sourceUri) {
+        final Integer generation = mSourceGenerations.get(hash(sourceUri.toString()));
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Writes an encoded image to the cache, evicting the least recently used entries to make
+     * room for it.
+     *
+     * @param sourceGeneration the generation of the source from before the image was made
+     * @return true if the image was written
+     */
+    @DoesNotRunOnMainThread
+    public boolean put(final String key, final Uri sourceUri, final byte[] bytes,
+            final int orientation, final int sourceGeneration) {
+        Assert.isNotMainThread();
+        if (bytes == null || bytes.length == 0 || bytes.length > mMaxSizeBytes / 2) {
+            return false;
+        }
+        final String fileName = getFileName(key, sourceUri);
+        synchronized (this) {
+            ensureIndexLoaded();
+        }
+        final File tempFile = new File(mDirectory,
+                fileName + '.' + mTempFileCount.incrementAndGet() + TEMP_FILE_SUFFIX);
+        if (!writeEntry(tempFile, key, bytes, orientation)) {
+            tempFile.delete();
+            return false;
+        }
+        final File file = new File(mDirectory, fileName);
+        synchronized (this) {
+            if (getSourceGeneration(sourceUri) != sourceGeneration) {
+                // The source was dropped while the image was being made
+                tempFile.delete();
+                return false;
+            }
+            // Write to a temporary file and rename it so that readers never see a partial file
+            if (!tempFile.renameTo(file)) {
+                LogUtil.w(TAG, "MediaDiskCache: failed to rename " + tempFile);
+                tempFile.delete();
+                return false;
+            }
+            final Long oldLength = mIndex.put(fileName, file.length());
+            if (oldLength != null) {
+                mSizeBytes -= oldLength;
+            }
+            mSizeBytes += file.length();
+            trimToSize();
+        }
+        mWriteCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drops all the cached images made from the given sources, along with those still being made
+     * from them.
+     */
+    @DoesNotRunOnMainThread
+    public void removeSources(final Collection<Uri> sourceUris) {
+        Assert.isNotMainThread();
+        if (sourceUris.isEmpty()) {
+            return;
+        }
+        final Set<String> sourceHashes = new HashSet<String>();
+        for (final Uri sourceUri : sourceUris) {
+            sourceHashes.add(hash(sourceUri.toString()));
+        }
+        synchronized (this) {
+            for (final String sourceHash : sourceHashes) {
+                final Integer generation = mSourceGenerations.get(sourceHash);
+                mSourceGenerations.put(sourceHash, generation == null ? 1 : generation + 1);
+            }
+            final Iterator<Map.Entry<String, Long>> iterator =
+                    ensureIndexLoaded().entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Long> indexEntry = iterator.next();
+                final String fileName = indexEntry.getKey();
+                final int delimiter = fileName.indexOf(SOURCE_DELIMITER);
+                if (delimiter > 0 && sourceHashes.contains(fileName.substring(0, delimiter))) {
+                    iterator.remove();
+                    mSizeBytes -= indexEntry.getValue();
+                    new File(mDirectory, fileName).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached images.
+     */
+    @DoesNotRunOnMainThread
+    public synchronized void clear() {
+        Assert.isNotMainThread();
+        for (final String fileName : ensureIndexLoaded().keySet()) {
+            new File(mDirectory, fileName).delete();
+        }
+        mIndex.clear();
+        mSizeBytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    public long getCorruptCount() {
+        return mCorruptCount.get();
+    }
+
+    public void dump(final PrintWriter writer) {
+        final long hits = getHitCount();
+        final long lookups = hits + getMissCount();
+        final int entries;
+        synchronized (this) {
+            entries = (mIndex == null) ? 0 : mIndex.size();
+        }
+        writer.println("Media disk cache: " + entries + " entries, " + getSizeBytes() + "/"
+                + mMaxSizeBytes + " bytes; " + hits + "/" + lookups + " hits ("
+                + (lookups == 0 ? 0 : hits * 100 / lookups) + "%), " + mWriteCount.get()
+                + " writes, " + getEvictionCount() + " evictions, " + getCorruptCount()
+                + " corrupt");
+    }
+
+    private synchronized void remove(final String fileName) {
+        final Long length = mIndex.remove(fileName);
+        if (length != null) {
+            mSizeBytes -= length;
+        }
+        new File(mDirectory, fileName).delete();
+    }
+
+    private void trimToSize() {
+        Assert.isTrue(Thread.holdsLock(this));
+        final Iterator<Map.Entry<String, Long>> iterator = mIndex.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> indexEntry = iterator.next();
+            iterator.remove();
+            mSizeBytes -= indexEntry.getValue();
+            new File(mDirectory, indexEntry.getKey()).delete();
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Builds the index from the files in the directory, oldest first, the first time it is
+     * needed. Leftover temporary files from writes that didn't finish are deleted.
+     */
+    private LinkedHashMap<String, Long> ensureIndexLoaded() {
+        Assert.isTrue(Thread.holdsLock(this));
+        if (mIndex != null) {
+            return mIndex;
+        }
+        mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true /* accessOrder */);
+        mSizeBytes = 0;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtil.w(TAG, "MediaDiskCache: failed to create " + mDirectory);
+            return mIndex;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return mIndex;
+        }
+        final ArrayList<File> entryFiles = new ArrayList<File>(files.length);
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            } else {
+                entryFiles.add(file);
+            }
+        }
+        Collections.sort(entryFiles, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (final File file : entryFiles) {
+            final long length = file.length();
+            mIndex.put(file.getName(), length);
+            mSizeBytes += length;
+        }
+        trimToSize();
+        return mIndex;
+    }
+
+    private Entry readEntry(final File file, final String key, final long maxAgeMillis) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return corrupt(file);
+            }
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            final int keyLength = in.readInt();
+            if (keyLength < 0 || keyLength > file.length()) {
+                return corrupt(file);
+            }
+            final byte[] fileKeyBytes = new byte[keyLength];
+            in.readFully(fileKeyBytes);
+            if (!Arrays.equals(keyBytes, fileKeyBytes)) {
+                // Another key with the same hash; not corrupt, just not ours
+                return null;
+            }
+            final long writeTimeMillis = in.readLong();
+            final int orientation = in.readInt();
+            final int length = in.readInt();
+            final long checksum = in.readLong();
+            final long headerLength = 4 + 4 + 4 + keyLength + 8 + 4 + 4 + 8;
+            if (length <= 0 || headerLength + length != file.length()) {
+                return corrupt(file);
+            }
+            final long ageMillis = System.currentTimeMillis() - writeTimeMillis;
+            if (ageMillis > maxAgeMillis || ageMillis < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            if (crc.getValue() != checksum) {
+                return corrupt(file);
+            }
+            return new Entry(bytes, orientation);
+        } catch (final FileNotFoundException e) {
+            // Evicted since we looked it up
+            return null;
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: failed to read " + file, e);
+            return corrupt(file);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private Entry corrupt(final File file) {
+        LogUtil.w(TAG, "MediaDiskCache: dropping corrupt entry " + file.getName());
+        mCorruptCount.incrementAndGet();
+        return null;
+    }
+
+    private static boolean writeEntry(final File file, final String key, final byte[] bytes,
+            final int orientation) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(orientation);
+            out.writeInt(bytes.length);
+            out.writeLong(crc.getValue());
+            out.write(bytes);
+            out.close();
+            out = null;
+            return true;
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: failed to write " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static String getFileName(final String key, final Uri sourceUri) {
+        return hash(sourceUri.toString()) + SOURCE_DELIMITER + hash(key);
+    }
+
+    private static String hash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder builder = new StringBuilder(16);
+            // Half of the digest is plenty for file names; the key in the file settles collisions
+            for (int i = 0; i < 8; i++) {
+                builder.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size thread pool for media loading that runs queued tasks by priority (see
+ * {@link MediaRequest#PRIORITY_VISIBLE} and friends) rather than first come first served.
+ *
+ * Within the visible and prefetch priorities the most recently scheduled task runs first, since
+ * while scrolling the newest requests are for the rows that are on screen now. Background tasks
+ * run in the order they were scheduled. Tasks that haven't started yet can be cancelled, which
+ * takes them out of the queue, or moved to another priority.
+ */
+class MediaLoadingScheduler {
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+    /**
+     * A runnable waiting in (or taken from) the scheduler queue
+     */
+    class Task implements Runnable, Comparable<Task> {
+        private final Runnable mRunnable;
+        // Only changed while the task is out of the queue, so the queue ordering stays valid
+        private volatile int mPriority;
+        private volatile long mSequence;
+
+        private Task(final Runnable runnable, final int priority) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = nextSequence();
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        /**
+         * Removes the task from the queue if it hasn't started running
+         * @return true if the task was cancelled and will never run
+         */
+        boolean cancel() {
+            if (mExecutor.remove(this)) {
+                mCancelledCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Moves a task that hasn't started running to the given priority
+         */
+        void setPriority(final int priority) {
+            if (priority != mPriority && mExecutor.remove(this)) {
+                mPriority = priority;
+                mSequence = nextSequence();
+                mExecutor.execute(this);
+            }
+        }
+
+        int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            if (mPriority == MediaRequest.PRIORITY_BACKGROUND) {
+                return Long.compare(mSequence, other.mSequence);
+            }
+            // Last in, first out
+            return Long.compare(other.mSequence, mSequence);
+        }
+    }
+
+    MediaLoadingScheduler(final int threadCount, final int threadPriority) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable);
+                        thread.setPriority(threadPriority);
+                        return thread;
+                    }
+                });
+    }
+
+    private long nextSequence() {
+        return mSequence.incrementAndGet();
+    }
+
+    /**
+     * Queues a runnable at the given priority
+     * @return the task, which can be used to cancel or reprioritize the runnable
+     */
+    Task schedule(final Runnable runnable, final int priority) {
+        final Task task = new Task(runnable, priority);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return number of tasks cancelled before they ran
+     */
+    int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+}
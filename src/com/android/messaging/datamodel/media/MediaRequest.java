@@ -30,6 +30,13 @@ public interface MediaRequest<T extends RefCountedMediaResource> {
     public static final int REQUEST_DECODE_MEDIA = 2;
     public static final int REQUEST_LOAD_MEDIA = 3;
 
+    /** Scheduling priority of a request for media shown on screen right now */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Scheduling priority of a request for media that's about to be shown, e.g. while scrolling */
+    public static final int PRIORITY_PREFETCH = 1;
+    /** Scheduling priority of a request nobody is waiting on, e.g. encoding for the cache */
+    public static final int PRIORITY_BACKGROUND = 2;
+
     /**
      * Returns a unique key used for storing and looking up the MediaRequest.
      */
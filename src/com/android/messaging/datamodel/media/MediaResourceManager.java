@@ -15,24 +15,37 @@
  */
 package com.android.messaging.datamodel.media;
 
-import android.os.AsyncTask;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.android.messaging.util.Assert.RunsOnMainThread;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.ThreadUtil;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * <p>Loads and maintains a set of in-memory LRU caches for different types of media resources.
- * Right now we don't utilize any disk cache as all media urls are expected to be resolved to
- * local content.<p/>
+ * All media urls are expected to be resolved to local content, so the only disk cache is a
+ * {@link MediaDiskCache} of the image thumbnails and avatars that are expensive to make from
+ * their source (see {@link ImageRequestDescriptor#getDiskCacheSourceUri()}), which outlives the
+ * process. It is looked up after a miss in memory, and loaded images are written to it on the
+ * background thread.<p/>
  *
  * <p>The MediaResourceManager takes media loading requests through one of two ways:</p>
  *
@@ -44,12 +57,13 @@ import java.util.concurrent.ThreadFactory;
  *  returns the loaded result, or null if failed.</li>
  * </ol>
  *
- * <p>For each media loading task, MediaResourceManager starts an AsyncTask that runs on a
- * dedicated thread, which calls MediaRequest.loadMediaBlocking() to perform the actual media
- * loading work. As the media resources are loaded, MediaResourceManager notifies the callers
- * (which must implement the MediaResourceLoadListener interface) via onMediaResourceLoaded()
- * callback. Meanwhile, MediaResourceManager also pushes the loaded resource onto its dedicated
- * cache.</p>
+ * <p>For each media loading task, MediaResourceManager queues a task on a dedicated thread pool,
+ * which calls MediaRequest.loadMediaBlocking() to perform the actual media loading work. Queued
+ * tasks run by the priority of their request (see {@link BindableMediaRequest#setPriority(int)}),
+ * most recent first, and are dropped from the queue when their request is unbound. As the media
+ * resources are loaded, MediaResourceManager notifies the callers (which must implement the
+ * MediaResourceLoadListener interface) via onMediaResourceLoaded() callback. Meanwhile,
+ * MediaResourceManager also pushes the loaded resource onto its dedicated cache.</p>
  *
  * <p>The media resource caches ({@link MediaCache}) are maintained as a set of LRU caches. They are
  * created on demand by the incoming MediaRequest's getCacheId() method. The implementations of
@@ -97,21 +111,33 @@ public class MediaResourceManager {
 
     // We use a fixed thread pool for handling media loading tasks. Using a cached thread pool
     // allows for unlimited thread creation which can lead to OOMs so we limit the threads here.
-    private static final Executor MEDIA_LOADING_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final MediaLoadingScheduler MEDIA_LOADING_SCHEDULER =
+            new MediaLoadingScheduler(10, Thread.NORM_PRIORITY);
 
     // A dedicated single thread executor for performing background task after loading the resource
     // on the media loading executor. This includes work such as encoding loaded media to be cached.
     // These tasks are run on a single worker thread with low priority so as not to contend with the
     // media loading tasks.
-    private static final Executor MEDIA_BACKGROUND_EXECUTOR = Executors.newSingleThreadExecutor(
-            new ThreadFactory() {
-                @Override
-                public Thread newThread(final Runnable runnable) {
-                    final Thread encodingThread = new Thread(runnable);
-                    encodingThread.setPriority(Thread.MIN_PRIORITY);
-                    return encodingThread;
-                }
-            });
+    private static final MediaLoadingScheduler MEDIA_BACKGROUND_SCHEDULER =
+            new MediaLoadingScheduler(1, Thread.MIN_PRIORITY);
+
+    /**
+     * Time from requesting media to handing it to the listener, for one type of request
+     */
+    private static class LoadLatency {
+        int mCount;
+        int mCachedCount;
+        long mTotalMillis;
+        long mMaxMillis;
+    }
+
+    // Keyed by request type name, guarded by itself
+    private final TreeMap<String, LoadLatency> mLoadLatencies = new TreeMap<String, LoadLatency>();
+
+    private static final String DISK_CACHE_DIRECTORY = "media_thumbnails";
+
+    // Created on first use, guarded by this
+    private MediaDiskCache mDiskCache;
 
     /**
      * Requests a media resource asynchronously. Upon completion of the media loading task,
@@ -125,7 +151,7 @@ public class MediaResourceManager {
      */
     public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
             final MediaRequest<T> mediaRequest) {
-        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_EXECUTOR);
+        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_SCHEDULER);
     }
 
     /**
@@ -163,6 +189,8 @@ public class MediaResourceManager {
         T loadedResource = null;
         // Try fetching from cache first.
         final T cachedResource = loadMediaFromCache(mediaRequest);
+        final T diskCachedResource =
+                (cachedResource == null) ? loadMediaFromDiskCache(mediaRequest) : null;
         if (cachedResource != null) {
             if (cachedResource.isEncoded()) {
                 // The resource is encoded, issue a decoding request.
@@ -175,11 +203,22 @@ public class MediaResourceManager {
                 // The resource is ready-to-use.
                 loadedResource = cachedResource;
             }
+        } else if (diskCachedResource != null) {
+            final MediaRequest<T> decodeRequest = (MediaRequest<T>) diskCachedResource
+                    .getMediaDecodingRequest(mediaRequest);
+            Assert.notNull(decodeRequest);
+            diskCachedResource.release();
+            loadedResource = loadMediaFromRequest(decodeRequest, chainedRequests);
+            // Keep it in memory as if it had been loaded from the source.
+            if (loadedResource.isCacheable()) {
+                addResourceToMemoryCache(mediaRequest, loadedResource);
+            }
         } else {
             // Actually load the media after cache miss.
             loadedResource = loadMediaFromRequest(mediaRequest, chainedRequests);
         }
-        return new MediaLoadingResult<>(loadedResource, cachedResource != null /* fromCache */,
+        return new MediaLoadingResult<>(loadedResource,
+                cachedResource != null || diskCachedResource != null /* fromCache */,
                 chainedRequests);
     }
 
@@ -202,6 +241,10 @@ public class MediaResourceManager {
     private <T extends RefCountedMediaResource> T loadMediaFromRequest(
             final MediaRequest<T> mediaRequest, final List<MediaRequest<T>> chainedRequests)
                     throws Exception {
+        final Uri diskCacheSourceUri = getDiskCacheSourceUri(mediaRequest);
+        // Taken before the media is loaded, so it's dropped if its source is removed meanwhile
+        final int diskCacheSourceGeneration = (diskCacheSourceUri == null) ? 0 :
+                getDiskCache().getSourceGeneration(diskCacheSourceUri);
         final T resource = mediaRequest.loadMediaBlocking(chainedRequests);
         // mediaRequest.loadMediaBlocking() should never return null without
         // throwing an exception.
@@ -217,73 +260,251 @@ public class MediaResourceManager {
         if (resource.isCacheable()) {
             addResourceToMemoryCache(mediaRequest, resource);
         }
+        if (diskCacheSourceUri != null) {
+            addResourceToDiskCache(mediaRequest, resource, chainedRequests, diskCacheSourceUri,
+                    diskCacheSourceGeneration);
+        }
         return resource;
     }
 
     /**
-     * Schedule an async media request on the given <code>executor</code>.
+     * Looks up an image in the disk cache after a miss in memory.
+     * @return the encoded image with a ref reserved for the caller, or null
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends RefCountedMediaResource> T loadMediaFromDiskCache(
+            final MediaRequest<T> mediaRequest) {
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA) {
+            return null;
+        }
+        final Uri sourceUri = getDiskCacheSourceUri(mediaRequest);
+        if (sourceUri == null) {
+            return null;
+        }
+        final ImageRequestDescriptor descriptor =
+                (ImageRequestDescriptor) mediaRequest.getDescriptor();
+        final MediaDiskCache.Entry entry = getDiskCache().get(mediaRequest.getKey(), sourceUri,
+                descriptor.getDiskCacheMaxAgeMillis());
+        if (entry == null) {
+            return null;
+        }
+        final T resource = (T) new EncodedImageResource(mediaRequest.getKey(), entry.bytes,
+                entry.orientation);
+        resource.addRef();
+        return resource;
+    }
+
+    /**
+     * Writes a newly made image to the disk cache if its request allows it. An image that is
+     * encoded by a chained request is written once encoded, which already happens on the
+     * background thread; otherwise it is encoded for the disk cache on the background thread.
+     */
+    private <T extends RefCountedMediaResource> void addResourceToDiskCache(
+            final MediaRequest<T> mediaRequest, final T resource,
+            final List<MediaRequest<T>> chainedRequests, final Uri sourceUri,
+            final int sourceGeneration) {
+        final String key = mediaRequest.getKey();
+        final int requestType = mediaRequest.getRequestType();
+        if (requestType == MediaRequest.REQUEST_ENCODE_MEDIA &&
+                resource instanceof EncodedImageResource) {
+            final EncodedImageResource encodedResource = (EncodedImageResource) resource;
+            getDiskCache().put(key, sourceUri, encodedResource.getBytes(),
+                    encodedResource.getOrientation(), sourceGeneration);
+        } else if (requestType == MediaRequest.REQUEST_LOAD_MEDIA &&
+                resource instanceof DecodedImageResource &&
+                !hasEncodingRequest(chainedRequests)) {
+            final DecodedImageResource decodedResource = (DecodedImageResource) resource;
+            // Hold a ref so the bitmap isn't recycled or reused before it is encoded.
+            decodedResource.addRef();
+            MEDIA_BACKGROUND_SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getDiskCache().put(key, sourceUri,
+                                decodedResource.getBytesForDiskCache(),
+                                decodedResource.getOrientation(), sourceGeneration);
+                    } finally {
+                        decodedResource.release();
+                    }
+                }
+            }, MediaRequest.PRIORITY_BACKGROUND);
+        }
+    }
+
+    private static <T extends RefCountedMediaResource> boolean hasEncodingRequest(
+            final List<MediaRequest<T>> chainedRequests) {
+        for (final MediaRequest<T> chainedRequest : chainedRequests) {
+            if (chainedRequest.getRequestType() == MediaRequest.REQUEST_ENCODE_MEDIA) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Uri getDiskCacheSourceUri(final MediaRequest<?> mediaRequest) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        return (descriptor instanceof ImageRequestDescriptor) ?
+                ((ImageRequestDescriptor) descriptor).getDiskCacheSourceUri() : null;
+    }
+
+    @VisibleForTesting
+    synchronized MediaDiskCache getDiskCache() {
+        if (mDiskCache == null) {
+            final Context context = Factory.get().getApplicationContext();
+            final int maxSizeBytes = BugleGservices.get().getInt(
+                    BugleGservicesKeys.MEDIA_DISK_CACHE_MAX_SIZE_BYTES,
+                    BugleGservicesKeys.MEDIA_DISK_CACHE_MAX_SIZE_BYTES_DEFAULT);
+            mDiskCache = new MediaDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+                    maxSizeBytes);
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Drops the images made from the given sources from the disk cache, because the sources were
+     * deleted or changed. The files are deleted on the background thread.
+     */
+    public void removeFromDiskCache(final Collection<Uri> sourceUris) {
+        if (sourceUris.isEmpty()) {
+            return;
+        }
+        MEDIA_BACKGROUND_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                getDiskCache().removeSources(sourceUris);
+            }
+        }, MediaRequest.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Schedule an async media request on the given <code>scheduler</code>.
      * @param mediaRequest the media request to be processed asynchronously. May be either an
      * {@link AsyncMediaRequestWrapper} for listening for event callbacks, or a regular media
      * request for fire-and-forget type of behavior.
      */
     private <T extends RefCountedMediaResource> void scheduleAsyncMediaRequest(
-            final MediaRequest<T> mediaRequest, final Executor executor) {
+            final MediaRequest<T> mediaRequest, final MediaLoadingScheduler scheduler) {
         final BindableMediaRequest<T> bindableRequest =
                 (mediaRequest instanceof BindableMediaRequest<?>) ?
                         (BindableMediaRequest<T>) mediaRequest : null;
         if (bindableRequest != null && !bindableRequest.isBound()) {
             return; // Request is obsolete
         }
-        // We don't use SafeAsyncTask here since it enforces the shared thread pool executor
-        // whereas we want a dedicated thread pool executor.
-        AsyncTask<Void, Void, MediaLoadingResult<T>> mediaLoadingTask =
-                new AsyncTask<Void, Void, MediaLoadingResult<T>>() {
-            private Exception mException;
-
+        final long requestTime = SystemClock.elapsedRealtime();
+        final Runnable mediaLoadingTask = new Runnable() {
             @Override
-            protected MediaLoadingResult<T> doInBackground(Void... params) {
-                // Double check the request is still valid by the time we start processing it
-                if (bindableRequest != null && !bindableRequest.isBound()) {
-                    return null; // Request is obsolete
-                }
-                try {
-                    return processMediaRequestInternal(mediaRequest);
-                } catch (Exception e) {
-                    mException = e;
-                    return null;
+            public void run() {
+                MediaLoadingResult<T> result = null;
+                Exception exception = null;
+                if (bindableRequest != null) {
+                    bindableRequest.setPendingTask(null);
                 }
-            }
-
-            @Override
-            protected void onPostExecute(final MediaLoadingResult<T> result) {
-                if (result != null) {
-                    Assert.isNull(mException);
-                    Assert.isTrue(result.loadedResource.getRefCount() > 0);
+                // Double check the request is still valid by the time we start processing it
+                if (bindableRequest == null || bindableRequest.isBound()) {
                     try {
-                        if (bindableRequest != null) {
-                            bindableRequest.onMediaResourceLoaded(
-                                    bindableRequest, result.loadedResource, result.fromCache);
-                        }
-                    } finally {
-                        result.loadedResource.release();
-                        result.scheduleChainedRequests();
+                        result = processMediaRequestInternal(mediaRequest);
+                    } catch (Exception e) {
+                        exception = e;
                     }
-                } else if (mException != null) {
-                    LogUtil.e(LogUtil.BUGLE_TAG, "Asynchronous media loading failed, key=" +
-                            mediaRequest.getKey(), mException);
-                    if (bindableRequest != null) {
-                        bindableRequest.onMediaResourceLoadError(bindableRequest, mException);
+                }
+                final MediaLoadingResult<T> loadResult = result;
+                final Exception loadException = exception;
+                ThreadUtil.getMainThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMediaRequestProcessed(mediaRequest, bindableRequest, loadResult,
+                                loadException, requestTime);
                     }
-                } else {
-                    Assert.isTrue(bindableRequest == null || !bindableRequest.isBound());
-                    if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                        LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
-                                LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+                });
+            }
+        };
+        final int priority = (bindableRequest != null) ? bindableRequest.getPriority() :
+                MediaRequest.PRIORITY_BACKGROUND;
+        final MediaLoadingScheduler.Task task = scheduler.schedule(mediaLoadingTask, priority);
+        if (bindableRequest != null) {
+            bindableRequest.setPendingTask(task);
+        }
+    }
+
+    @RunsOnMainThread
+    private <T extends RefCountedMediaResource> void onMediaRequestProcessed(
+            final MediaRequest<T> mediaRequest, final BindableMediaRequest<T> bindableRequest,
+            final MediaLoadingResult<T> result, final Exception exception,
+            final long requestTime) {
+        if (result != null) {
+            Assert.isNull(exception);
+            Assert.isTrue(result.loadedResource.getRefCount() > 0);
+            try {
+                if (bindableRequest != null) {
+                    if (bindableRequest.isBound()) {
+                        recordLoadLatency(mediaRequest, result.fromCache,
+                                SystemClock.elapsedRealtime() - requestTime);
                     }
+                    bindableRequest.onMediaResourceLoaded(
+                            bindableRequest, result.loadedResource, result.fromCache);
                 }
+            } finally {
+                result.loadedResource.release();
+                result.scheduleChainedRequests();
             }
-        };
-        mediaLoadingTask.executeOnExecutor(executor, (Void) null);
+        } else if (exception != null) {
+            LogUtil.e(LogUtil.BUGLE_TAG, "Asynchronous media loading failed, key=" +
+                    mediaRequest.getKey(), exception);
+            if (bindableRequest != null) {
+                bindableRequest.onMediaResourceLoadError(bindableRequest, exception);
+            }
+        } else {
+            Assert.isTrue(bindableRequest == null || !bindableRequest.isBound());
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
+                        LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+            }
+        }
+    }
+
+    /**
+     * Records the time it took for the media of a request to be handed to its listener, which is
+     * the time until the media can first be drawn.
+     */
+    private void recordLoadLatency(final MediaRequest<?> mediaRequest, final boolean fromCache,
+            final long latencyMillis) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        final String requestType =
+                (descriptor != null ? descriptor : mediaRequest).getClass().getSimpleName();
+        synchronized (mLoadLatencies) {
+            LoadLatency latency = mLoadLatencies.get(requestType);
+            if (latency == null) {
+                latency = new LoadLatency();
+                mLoadLatencies.put(requestType, latency);
+            }
+            latency.mCount++;
+            if (fromCache) {
+                latency.mCachedCount++;
+            }
+            latency.mTotalMillis += latencyMillis;
+            latency.mMaxMillis = Math.max(latency.mMaxMillis, latencyMillis);
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "media request " + requestType + " delivered in " + latencyMillis +
+                    "ms, cached=" + fromCache);
+        }
+    }
+
+    public void dump(final PrintWriter writer) {
+        writer.println("Media loading: " + MEDIA_LOADING_SCHEDULER.getQueuedCount() + " queued, "
+                + MEDIA_LOADING_SCHEDULER.getCancelledCount() + " cancelled; background: "
+                + MEDIA_BACKGROUND_SCHEDULER.getQueuedCount() + " queued");
+        writer.println("Media time to first pixel:");
+        synchronized (mLoadLatencies) {
+            for (final Map.Entry<String, LoadLatency> entry : mLoadLatencies.entrySet()) {
+                final LoadLatency latency = entry.getValue();
+                writer.println(String.format(Locale.US,
+                        "  %s: %d requests (%d cached), avg %d ms, max %d ms", entry.getKey(),
+                        latency.mCount, latency.mCachedCount,
+                        latency.mTotalMillis / latency.mCount, latency.mMaxMillis));
+            }
+        }
+        getDiskCache().dump(writer);
     }
 
     @VisibleForTesting
@@ -318,7 +539,7 @@ public class MediaResourceManager {
          */
         public void scheduleChainedRequests() {
             for (final MediaRequest<T> mediaRequest : mChainedRequests) {
-                scheduleAsyncMediaRequest(mediaRequest, MEDIA_BACKGROUND_EXECUTOR);
+                scheduleAsyncMediaRequest(mediaRequest, MEDIA_BACKGROUND_SCHEDULER);
             }
         }
     }
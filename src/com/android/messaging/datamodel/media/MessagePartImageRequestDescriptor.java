@@ -49,6 +49,12 @@ public class MessagePartImageRequestDescriptor extends UriImageRequestDescriptor
         mMessagePartId = messagePartId;
     }
 
+    @Override
+    public Uri getDiskCacheSourceUri() {
+        // Only parts of stored messages, whose deletion evicts them; not drafts or shared content
+        return mMessagePartId != null ? uri : null;
+    }
+
     @Override
     public void updateSourceDimensions(final int updatedWidth, final int updatedHeight) {
         // If the dimensions of the image do not match then queue a DB update with new size.
@@ -64,14 +64,14 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
     }
 
     @Override
-    public synchronized ImageResource addResourceToCache(final String key,
+    public ImageResource addResourceToCache(final String key,
             final ImageResource imageResource) {
         mReusablePoolAccessor.onResourceEnterCache(imageResource);
         return super.addResourceToCache(key, imageResource);
     }
 
     @Override
-    protected synchronized void entryRemoved(final boolean evicted, final String key,
+    protected void entryRemoved(final boolean evicted, final String key,
             final ImageResource oldValue, final ImageResource newValue) {
         mReusablePoolAccessor.onResourceLeaveCache(oldValue);
         super.entryRemoved(evicted, key, oldValue, newValue);
@@ -117,6 +117,12 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
          */
         private final SparseArray<LinkedList<ImageResource>> mImageListSparseArray;
 
+        /**
+         * Guards the pool structure. This is separate from the cache's own locks so that cache
+         * hits don't contend with the pool. When both are needed, this lock is taken first.
+         */
+        private final Object mPoolLock = new Object();
+
         public ReusableImageResourcePool() {
             mImageListSparseArray = new SparseArray<LinkedList<ImageResource>>();
         }
@@ -227,7 +233,7 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
         }
 
         private void addResourceToPool(final ImageResource imageResource) {
-            synchronized (PoolableImageCache.this) {
+            synchronized (mPoolLock) {
                 final int poolKey = getPoolKey(imageResource);
                 Assert.isTrue(poolKey != INVALID_POOL_KEY);
                 LinkedList<ImageResource> imageList = mImageListSparseArray.get(poolKey);
@@ -240,7 +246,7 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
         }
 
         private void removeResourceFromPool(final ImageResource imageResource) {
-            synchronized (PoolableImageCache.this) {
+            synchronized (mPoolLock) {
                 final int poolKey = getPoolKey(imageResource);
                 Assert.isTrue(poolKey != INVALID_POOL_KEY);
                 final LinkedList<ImageResource> imageList = mImageListSparseArray.get(poolKey);
@@ -255,7 +261,7 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
          * result of this call, the caller will assume ownership of the returned bitmap.
          */
         private Bitmap getReusableBitmapFromPool(final int width, final int height) {
-            synchronized (PoolableImageCache.this) {
+            synchronized (mPoolLock) {
                 final int poolKey = getPoolKey(width, height);
                 if (poolKey != INVALID_POOL_KEY) {
                     final LinkedList<ImageResource> images = mImageListSparseArray.get(poolKey);
@@ -266,22 +272,9 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
                         for (int i = 0; i < images.size(); i++) {
                             final ImageResource image = images.get(i);
                             if (image.getRefCount() == 1) {
-                                image.acquireLock();
-                                if (image.getRefCount() == 1) {
-                                    // The image is only used by the cache, so it's reusable.
-                                    imageToUse = images.remove(i);
-                                    break;
-                                } else {
-                                    // Logically, this shouldn't happen, because as soon as the
-                                    // cache is the only user of this resource, it will not be
-                                    // used by anyone else until the next cache access, but we
-                                    // currently hold on to the cache lock. But technically
-                                    // future changes may violate this assumption, so warn about
-                                    // this.
-                                    LogUtil.w(LogUtil.BUGLE_IMAGE_TAG, "Image refCount changed " +
-                                            "from 1 in getReusableBitmapFromPool()");
-                                    image.releaseLock();
-                                }
+                                // The image is only used by the cache, so it's reusable.
+                                imageToUse = images.remove(i);
+                                break;
                             }
                         }
 
@@ -289,45 +282,40 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
                             return null;
                         }
 
-                        try {
-                            imageToUse.assertLockHeldByCurrentThread();
-
-                            // Only reuse the bitmap if the last time we use was greater than 5s.
-                            // This allows the cache a chance to reuse instead of always taking the
-                            // oldest.
-                            final long timeSinceLastRef = SystemClock.elapsedRealtime() -
-                                    imageToUse.getLastRefAddTimestamp();
-                            if (timeSinceLastRef < MIN_TIME_IN_POOL) {
-                                if (LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE)) {
-                                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "Not reusing reusing " +
-                                            "first available bitmap from the pool because it " +
-                                            "has not been in the pool long enough. " +
-                                            "timeSinceLastRef=" + timeSinceLastRef);
-                                }
-                                // Put back the image and return no reuseable bitmap.
-                                images.addLast(imageToUse);
-                                return null;
+                        // Only reuse the bitmap if the last time we use was greater than 5s.
+                        // This allows the cache a chance to reuse instead of always taking the
+                        // oldest.
+                        final long timeSinceLastRef = SystemClock.elapsedRealtime() -
+                                imageToUse.getLastRefAddTimestamp();
+                        if (timeSinceLastRef < MIN_TIME_IN_POOL) {
+                            if (LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE)) {
+                                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "Not reusing reusing " +
+                                        "first available bitmap from the pool because it " +
+                                        "has not been in the pool long enough. " +
+                                        "timeSinceLastRef=" + timeSinceLastRef);
                             }
+                            // Put back the image and return no reuseable bitmap.
+                            images.addLast(imageToUse);
+                            return null;
+                        }
 
-                            // Add a temp ref on the image resource so it won't be GC'd after
-                            // being removed from the cache.
-                            imageToUse.addRef();
-
-                            // Remove the image resource from the image cache.
-                            final ImageResource removed = remove(imageToUse.getKey());
-                            Assert.isTrue(removed == imageToUse);
+                        // Remove the image resource from the image cache, provided nobody else
+                        // picked up a ref on it since we looked at it. This hands us a temp ref
+                        // on the image resource so it won't be GC'd after being removed.
+                        if (!removeIfUnreferenced(imageToUse.getKey(), imageToUse)) {
+                            // The image is in use again, put it back for a later attempt. If
+                            // it was evicted instead, the eviction takes it out of the pool
+                            // once we release the pool lock.
+                            images.addLast(imageToUse);
+                            return null;
+                        }
 
-                            // Try to reuse the bitmap from the image resource. This will transfer
-                            // ownership of the bitmap object to the caller of this method.
-                            final Bitmap reusableBitmap = imageToUse.reuseBitmap();
+                        // Try to reuse the bitmap from the image resource. This will transfer
+                        // ownership of the bitmap object to the caller of this method.
+                        final Bitmap reusableBitmap = imageToUse.reuseBitmap();
 
-                            imageToUse.release();
-                            return reusableBitmap;
-                        } finally {
-                            // We are either done with the reuse operation, or decided not to use
-                            // the image. Either way, release the lock.
-                            imageToUse.releaseLock();
-                        }
+                        imageToUse.release();
+                        return reusableBitmap;
                     }
                 }
             }
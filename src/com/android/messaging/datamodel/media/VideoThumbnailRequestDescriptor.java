@@ -16,6 +16,8 @@
 package com.android.messaging.datamodel.media;
 
 import android.content.Context;
+import android.net.Uri;
+import android.text.format.DateUtils;
 
 import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.UriUtil;
@@ -30,6 +32,17 @@ public class VideoThumbnailRequestDescriptor extends UriImageRequestDescriptor {
                 ImageUtils.DEFAULT_CIRCLE_STROKE_COLOR /* circleStrokeColor */);
     }
 
+    @Override
+    public Uri getDiskCacheSourceUri() {
+        return uri;
+    }
+
+    @Override
+    public long getDiskCacheMaxAgeMillis() {
+        // Videos in the media store can be edited in place
+        return DateUtils.DAY_IN_MILLIS;
+    }
+
     @Override
     public MediaRequest<ImageResource> buildSyncMediaRequest(Context context) {
         return new VideoThumbnailRequest(context, this);
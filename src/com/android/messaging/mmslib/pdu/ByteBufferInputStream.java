@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream over the content of a ByteBuffer, for PduParser to parse a PDU held in a direct or
+ * memory-mapped buffer without copying it into an array first.
+ *
+ * It extends ByteArrayInputStream only because that is what the parse methods take; the array
+ * of the superclass is empty and unused. Only the methods that PduParser calls are supported.
+ */
+class ByteBufferInputStream extends ByteArrayInputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ByteBuffer mBuffer;
+
+    private int mMark;
+
+    /**
+     * @param buffer the data from its position to its limit is read. The buffer itself is not
+     *        modified.
+     */
+    ByteBufferInputStream(final ByteBuffer buffer) {
+        super(EMPTY);
+        mBuffer = buffer.slice();
+        mMark = 0;
+    }
+
+    @Override
+    public synchronized int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(final long n) {
+        final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readAheadLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+
+    /**
+     * Skips over the next bytes, returning them as a buffer that shares their content rather
+     * than a copy.
+     *
+     * @param length the number of bytes; fewer are returned if fewer are left
+     */
+    synchronized ByteBuffer readSlice(final int length) {
+        final ByteBuffer slice = mBuffer.slice();
+        slice.limit(Math.min(length, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + slice.limit());
+        return slice;
+    }
+}
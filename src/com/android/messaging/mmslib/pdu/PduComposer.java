@@ -19,13 +19,20 @@ package com.android.messaging.mmslib.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
 import androidx.collection.SimpleArrayMap;
 import android.text.TextUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -109,6 +116,12 @@ public class PduComposer {
      */
     private final ContentResolver mResolver;
 
+    /**
+     * Part data left out of mMessage by measure(), in the order it goes in the message.
+     * Null when the part data is copied into mMessage.
+     */
+    private ArrayList<DeferredPartData> mDeferredParts = null;
+
     /**
      * Header of this pdu.
      */
@@ -151,6 +164,84 @@ public class PduComposer {
      * the PDU is invalid.
      */
     public byte[] make() {
+        if (makeMessage() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message and write it to the stream. Unlike {@link #make()}, the data of the
+     * parts is never held in memory: it is copied from the parts' uris straight into the
+     * stream, so memory use doesn't grow with the size of the attachments.
+     *
+     * @param out the stream to write the message to
+     * @return the number of bytes written, or -1 if the PDU is invalid
+     * @throws IOException if the part data or the stream can't be read or written
+     */
+    public long make(final OutputStream out) throws IOException {
+        final long size = measure();
+        if (size < 0) {
+            return -1;
+        }
+        writeTo(out);
+        return size;
+    }
+
+    /**
+     * Make the message and write it to the file descriptor, as {@link #make(OutputStream)} does.
+     * The file descriptor is left open.
+     */
+    public long make(final ParcelFileDescriptor pfd) throws IOException {
+        final OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(pfd.getFileDescriptor()));
+        final long size = make(out);
+        out.flush();
+        return size;
+    }
+
+    /**
+     * Sizing pass of the streaming mode. Makes everything but the part data, which is only
+     * measured, so the size of the whole message is known before any of it is written. Follow
+     * with {@link #writeTo(OutputStream)} to write the message.
+     *
+     * @return the size of the message in bytes, or -1 if the PDU is invalid
+     */
+    public long measure() {
+        mDeferredParts = new ArrayList<DeferredPartData>();
+        if (makeMessage() != PDU_COMPOSE_SUCCESS) {
+            mDeferredParts = null;
+            return -1;
+        }
+        long size = mMessage.size();
+        for (final DeferredPartData deferred : mDeferredParts) {
+            size += deferred.length;
+        }
+        return size;
+    }
+
+    /**
+     * Write the message made by {@link #measure()} to the stream, copying the data of each part
+     * into place from its uri.
+     *
+     * @throws IOException if the part data can't be read, no longer has the length it was
+     *         measured at, or the stream can't be written
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (mDeferredParts == null) {
+            throw new IllegalStateException("measure() must succeed before writeTo()");
+        }
+        final byte[] headers = mMessage.toByteArray();
+        int written = 0;
+        for (final DeferredPartData deferred : mDeferredParts) {
+            out.write(headers, written, deferred.offset - written);
+            written = deferred.offset;
+            writePartData(deferred, out);
+        }
+        out.write(headers, written, headers.length - written);
+    }
+
+    private int makeMessage() {
         // Get Message-type.
         final int type = mPdu.getMessageType();
 
@@ -158,34 +249,34 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return PDU_COMPOSE_CONTENT_ERROR;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return PDU_COMPOSE_CONTENT_ERROR;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
                 if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return PDU_COMPOSE_CONTENT_ERROR;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
                 if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return PDU_COMPOSE_CONTENT_ERROR;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
                 if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return PDU_COMPOSE_CONTENT_ERROR;
                 }
                 break;
             default:
-                return null;
+                return PDU_COMPOSE_CONTENT_ERROR;
         }
 
-        return mMessage.toByteArray();
+        return PDU_COMPOSE_SUCCESS;
     }
 
     /**
@@ -1045,6 +1136,20 @@ public class PduComposer {
             // content
             final int headerLength = attachment.getLength();
 
+            if (mDeferredParts != null) {
+                // Only measured here, the data is copied in by writeTo()
+                final long dataLength = getPartDataLength(part);
+                if (dataLength < 0) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                mStack.pop();
+                appendUintvarInteger(headerLength);
+                appendUintvarInteger(dataLength);
+                mStack.copy();
+                mDeferredParts.add(new DeferredPartData(part, mMessage.size(), dataLength));
+                continue;
+            }
+
             int dataLength = 0; // Just for safety...
             final byte[] partData = part.getData();
 
@@ -1092,6 +1197,136 @@ public class PduComposer {
         return PDU_COMPOSE_SUCCESS;
     }
 
+    /**
+     * @return the length of the part's data, found without reading it where the content
+     * provider reports it, or -1 if the data can't be read
+     */
+    private long getPartDataLength(final PduPart part) {
+        final ByteBuffer partDataBuffer = part.getDataBuffer();
+        if (partDataBuffer != null) {
+            return partDataBuffer.remaining();
+        }
+        final byte[] partData = part.getData();
+        if (partData != null) {
+            return partData.length;
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(part.getDataUri(), "r");
+            if (afd != null && afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return afd.getLength();
+            }
+        } catch (final FileNotFoundException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        // The provider doesn't know, so count it
+        InputStream cr = null;
+        try {
+            final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            cr = mResolver.openInputStream(part.getDataUri());
+            long length = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+            }
+            return length;
+        } catch (final IOException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            return -1;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the data of a part measured by measure() to the stream.
+     */
+    private void writePartData(final DeferredPartData deferred, final OutputStream out)
+            throws IOException {
+        final ByteBuffer partDataBuffer = deferred.part.getDataBuffer();
+        if (partDataBuffer != null) {
+            final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            while (partDataBuffer.hasRemaining()) {
+                final int len = Math.min(buffer.length, partDataBuffer.remaining());
+                partDataBuffer.get(buffer, 0, len);
+                out.write(buffer, 0, len);
+            }
+            return;
+        }
+        final byte[] partData = deferred.part.getData();
+        if (partData != null) {
+            out.write(partData);
+            return;
+        }
+        InputStream cr = null;
+        try {
+            cr = mResolver.openInputStream(deferred.part.getDataUri());
+            if (cr == null) {
+                throw new FileNotFoundException("Can't open " + deferred.part.getDataUri());
+            }
+            final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long length = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+                if (length > deferred.length) {
+                    break;
+                }
+                out.write(buffer, 0, len);
+            }
+            if (length != deferred.length) {
+                // The lengths already written in the headers would be wrong
+                throw new IOException("Part data changed size since it was measured");
+            }
+        } catch (final RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Part data that goes in the message at offset, after the headers before it in mMessage.
+     */
+    private static class DeferredPartData {
+
+        final PduPart part;
+
+        final int offset;
+
+        final long length;
+
+        DeferredPartData(final PduPart part, final int offset, final long length) {
+            this.part = part;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
     /**
      * Record current message informations.
      */
@@ -26,6 +26,7 @@ import com.android.messaging.util.ContentType;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class PduParser {
@@ -113,6 +114,20 @@ public class PduParser {
         mParseContentDisposition = parseContentDisposition;
     }
 
+    /**
+     * Constructor for a pdu held in a buffer, such as a memory-mapped file.
+     * The data of the parts is not copied out of the buffer: each part keeps
+     * a slice of it (see {@link PduPart#getDataBuffer}), so the buffer's
+     * content must not change while the pdu is in use.
+     *
+     * @param pduData pdu data to be parsed, from the buffer's position to its limit
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new ByteBufferInputStream(pduData);
+        mParseContentDisposition = parseContentDisposition;
+    }
+
     /**
      * Parse the pdu.
      *
@@ -928,34 +943,50 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
-                if (partContentType.equalsIgnoreCase(ContentType.MMS_MULTIPART_ALTERNATIVE)) {
-                    // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
-                    // take the first part of children.
-                    part = childBody.getPart(0);
+                boolean isAlternative =
+                        partContentType.equalsIgnoreCase(ContentType.MMS_MULTIPART_ALTERNATIVE);
+                if ((pduDataStream instanceof ByteBufferInputStream)
+                        && (isAlternative || !isTransferEncoded(part))) {
+                    // Leave the data in the buffer, it is copied out when the part is persisted.
+                    ByteBuffer partData =
+                            ((ByteBufferInputStream) pduDataStream).readSlice(dataLength);
+                    if (isAlternative) {
+                        // take the first part of children.
+                        PduBody childBody = parseParts(new ByteBufferInputStream(partData));
+                        part = childBody.getPart(0);
+                    } else {
+                        part.setDataBuffer(partData);
+                    }
                 } else {
-                    // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                    if (isAlternative) {
+                        // parse "multipart/vnd.wap.multipart.alternative".
+                        PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                        // take the first part of children.
+                        part = childBody.getPart(0);
+                    } else {
+                        // Check Content-Transfer-Encoding.
+                        byte[] partDataEncoding = part.getContentTransferEncoding();
+                        if (null != partDataEncoding) {
+                            String encoding = new String(partDataEncoding);
+                            if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                                // Decode "base64" into "binary".
+                                partData = Base64.decodeBase64(partData);
+                            } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                                // Decode "quoted-printable" into "binary".
+                                partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            } else {
+                                // "binary" is the default encoding.
+                            }
                         }
+                        if (null == partData) {
+                            log("Decode part data error!");
+                            return null;
+                        }
+                        part.setData(partData);
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
-                    }
-                    part.setData(partData);
                 }
             }
 
@@ -972,6 +1003,20 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * @return whether the part's data has a Content-Transfer-Encoding that
+     * has to be decoded
+     */
+    private static boolean isTransferEncoded(PduPart part) {
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null == partDataEncoding) {
+            return false;
+        }
+        String encoding = new String(partDataEncoding);
+        return encoding.equalsIgnoreCase(PduPart.P_BASE64)
+                || encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE);
+    }
+
     /**
      * Log status.
      *
@@ -20,6 +20,8 @@ package com.android.messaging.mmslib.pdu;
 import android.net.Uri;
 import android.util.SparseArray;
 
+import java.nio.ByteBuffer;
+
 /**
  * The pdu part.
  */
@@ -117,6 +119,11 @@ public class PduPart {
      */
     private byte[] mPartData = null;
 
+    /**
+     * Part data left in the buffer it was parsed from.
+     */
+    private ByteBuffer mPartDataBuffer = null;
+
     private static final String TAG = "PduPart";
 
     /**
@@ -133,17 +140,49 @@ public class PduPart {
      */
     public void setData(final byte[] data) {
         mPartData = data;
+        mPartDataBuffer = null;
     }
 
     /**
      * @return The part data or null if the data wasn't set or
-     * the data is stored as Uri.
+     * the data is stored as Uri. Data stored as a buffer is copied
+     * into a new array on every call.
      * @see #getDataUri
+     * @see #getDataBuffer
      */
     public byte[] getData() {
+        if (mPartData == null && mPartDataBuffer != null) {
+            // Not kept, so the data only takes heap while it is used
+            final ByteBuffer buffer = mPartDataBuffer.duplicate();
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
         return mPartData;
     }
 
+    /**
+     * Set part data as a buffer. The buffer is kept rather than copied, so
+     * its content must not change while the part is in use. PduParser uses
+     * this to leave the data of parts in the (possibly memory-mapped) buffer
+     * holding the PDU until the part is persisted.
+     *
+     * @param data the data, from the buffer's position to its limit
+     */
+    public void setDataBuffer(final ByteBuffer data) {
+        mPartDataBuffer = data.slice();
+        mPartData = null;
+    }
+
+    /**
+     * @return The part data as a read-only buffer, or null if the data
+     * wasn't set as a buffer.
+     * @see #getData
+     */
+    public ByteBuffer getDataBuffer() {
+        return mPartDataBuffer == null ? null : mPartDataBuffer.asReadOnlyBuffer();
+    }
+
     /**
      * Set data uri. The data are stored as Uri.
      *
@@ -61,6 +61,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Map;
@@ -561,6 +562,15 @@ public class PduPersister {
      * @throws MmsException Failed to load some fields of a PDU.
      */
     public GenericPdu load(final Uri uri) throws MmsException {
+        // Cached pdus that aren't being updated are returned without taking the cache's lock
+        final boolean lookedUp = !PDU_CACHE_INSTANCE.isUpdating(uri);
+        if (lookedUp) {
+            final PduCacheEntry cachedEntry = PDU_CACHE_INSTANCE.get(uri);
+            if (cachedEntry != null) {
+                return cachedEntry.getPdu();
+            }
+        }
+
         GenericPdu pdu = null;
         PduCacheEntry cacheEntry = null;
         int msgBox = 0;
@@ -578,8 +588,9 @@ public class PduPersister {
                     }
                 }
 
-                // Check if the pdu is already loaded
-                cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                // Check if the pdu is already loaded (counting the lookup only if the one above
+                // wasn't, so that a miss is counted once)
+                cacheEntry = lookedUp ? PDU_CACHE_INSTANCE.peek(uri) : PDU_CACHE_INSTANCE.get(uri);
                 if (cacheEntry != null) {
                     return cacheEntry.getPdu();
                 }
@@ -622,7 +633,7 @@ public class PduPersister {
         } finally {
             synchronized (PDU_CACHE_INSTANCE) {
                 if (pdu != null) {
-                    Assert.isNull(PDU_CACHE_INSTANCE.get(uri), "Pdu exists for " + uri);
+                    Assert.isNull(PDU_CACHE_INSTANCE.peek(uri), "Pdu exists for " + uri);
                     // Update the cache entry with the real info
                     cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
                     PDU_CACHE_INSTANCE.put(uri, cacheEntry);
@@ -778,7 +789,9 @@ public class PduPersister {
         }
 
         String contentType = getPartContentType(part);
-        final byte[] data = part.getData();
+        // Only text parts need their data here, so the data of other parts isn't copied out of
+        // the buffer it may have been parsed into
+        final byte[] data = ContentType.TEXT_PLAIN.equals(contentType) ? part.getData() : null;
 
         if (LOCAL_LOGV) {
             LogUtil.v(TAG, "PduPersister.persistPart part: " + uri + " contentType: " +
@@ -844,8 +857,8 @@ public class PduPersister {
 
     /**
      * Save data of the part into storage. The source data may be given
-     * by a byte[] or a Uri. If it's a byte[], directly save it
-     * into storage, otherwise load source data from the dataUri and then
+     * by a byte[], a ByteBuffer or a Uri. If it's a byte[] or a ByteBuffer,
+     * directly save it into storage, otherwise load source data from the dataUri and then
      * save it. If the data is an image, we may scale down it according
      * to user preference.
      *
@@ -866,11 +879,11 @@ public class PduPersister {
         String path = null;
 
         try {
-            final byte[] data = part.getData();
             final int charset = part.getCharset();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
                     || ContentType.TEXT_HTML.equals(contentType)) {
+                final byte[] data = part.getData();
                 // Some phone could send MMS with a text part having empty data
                 // Let's just skip those parts.
                 // EncodedStringValue() throws NPE if data is empty
@@ -882,6 +895,9 @@ public class PduPersister {
                     }
                 }
             } else {
+                // Data left in a buffer by PduParser is written from there, not copied first
+                final ByteBuffer dataBuffer = part.getDataBuffer();
+                final byte[] data = dataBuffer == null ? part.getData() : null;
                 final boolean isDrm = DownloadDrmHelper.isDrmConvertNeeded(contentType);
                 if (isDrm) {
                     if (uri != null) {
@@ -917,7 +933,26 @@ public class PduPersister {
                 if (os == null) {
                     throw new MmsException("Failed to create output stream on " + uri);
                 }
-                if (data == null) {
+                if (dataBuffer != null) {
+                    if (LOCAL_LOGV) {
+                        LogUtil.v(TAG, "Saving data to: " + uri);
+                    }
+                    final byte[] buffer = new byte[8192];
+                    while (dataBuffer.hasRemaining()) {
+                        final int len = Math.min(buffer.length, dataBuffer.remaining());
+                        dataBuffer.get(buffer, 0, len);
+                        if (!isDrm) {
+                            os.write(buffer, 0, len);
+                        } else {
+                            final byte[] convertedData = drmConvertSession.convert(buffer, len);
+                            if (convertedData != null) {
+                                os.write(convertedData, 0, convertedData.length);
+                            } else {
+                                throw new MmsException("Error converting drm data.");
+                            }
+                        }
+                    }
+                } else if (data == null) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri.equals(uri))) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -1201,7 +1236,8 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.getDataBuffer() != null)
+                || (part.getData() != null)
                 || (!uri.equals(part.getDataUri()))) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -23,14 +23,32 @@ import android.net.Uri;
 import android.provider.Telephony.Mms;
 import androidx.collection.SimpleArrayMap;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
+/**
+ * Cache of loaded pdus, keyed by their message uri.
+ *
+ * The cache is bounded by the estimated size of the pdus rather than their number, and
+ * evicts the least recently used ones to make room. Reading from it doesn't take the cache's
+ * lock, which PduPersister holds while waiting for pdus being updated, so cache hits don't wait
+ * behind loads and updates of other messages.
+ */
+public final class PduCache {
     private static final String TAG = "PduCache";
     private static final boolean LOCAL_LOGV = false;
 
+    private static final int MAX_CACHE_SIZE_BYTES = 1024 * 1024;
+
     private static final int MMS_ALL             = 0;
     private static final int MMS_ALL_ID          = 1;
     private static final int MMS_INBOX           = 2;
@@ -71,14 +89,36 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         MATCH_TO_MSGBOX_ID_MAP.put(MMS_OUTBOX, Mms.MESSAGE_BOX_OUTBOX);
     }
 
+    private final LruCache<Uri, PduCacheEntry> mEntries;
+    // Indexes of the cached entries by message box and by thread, guarded by this
     private final SparseArray<HashSet<Uri>> mMessageBoxes;
     private final SimpleArrayMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+    private final Set<Uri> mUpdating;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
 
     private PduCache() {
+        this(MAX_CACHE_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    PduCache(final int maxSizeBytes) {
+        mEntries = new LruCache<Uri, PduCacheEntry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(final Uri key, final PduCacheEntry entry) {
+                return entry.getSize();
+            }
+
+            @Override
+            protected void entryRemoved(final boolean evicted, final Uri key,
+                    final PduCacheEntry oldEntry, final PduCacheEntry newEntry) {
+                removeFromIndexes(key, oldEntry);
+            }
+        };
         mMessageBoxes = new SparseArray<HashSet<Uri>>();
         mThreads = new SimpleArrayMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mUpdating = Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
     }
 
     public static final synchronized PduCache getInstance() {
@@ -91,14 +131,26 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return sInstance;
     }
 
-    @Override
     public synchronized boolean put(Uri uri, PduCacheEntry entry) {
+        Uri finalKey = normalizeKey(uri);
+        setUpdating(uri, false);
+        if (finalKey == null) {
+            return false;
+        }
+        if (entry.getSize() > mEntries.maxSize()) {
+            // It would only push everything else out
+            mEntries.remove(finalKey);
+            return false;
+        }
+        mEntries.put(finalKey, entry);
+
         int msgBoxId = entry.getMessageBox();
         HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
         if (msgBox == null) {
             msgBox = new HashSet<Uri>();
             mMessageBoxes.put(msgBoxId, msgBox);
         }
+        msgBox.add(finalKey);
 
         long threadId = entry.getThreadId();
         HashSet<Uri> thread = mThreads.get(threadId);
@@ -106,15 +158,30 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             thread = new HashSet<Uri>();
             mThreads.put(threadId, thread);
         }
+        thread.add(finalKey);
+        return true;
+    }
 
-        Uri finalKey = normalizeKey(uri);
-        boolean result = super.put(finalKey, entry);
-        if (result) {
-            msgBox.add(finalKey);
-            thread.add(finalKey);
+    /**
+     * @return the cached entry for the uri, or null. Doesn't take the cache's lock.
+     */
+    public PduCacheEntry get(Uri uri) {
+        Uri key = normalizeKey(uri);
+        PduCacheEntry entry = key == null ? null : mEntries.get(key);
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
         }
-        setUpdating(uri, false);
-        return result;
+        return entry;
+    }
+
+    /**
+     * Same as {@link #get} but not counted as a hit or miss.
+     */
+    public PduCacheEntry peek(Uri uri) {
+        Uri key = normalizeKey(uri);
+        return key == null ? null : mEntries.get(key);
     }
 
     public synchronized void setUpdating(Uri uri, boolean updating) {
@@ -125,11 +192,13 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
     }
 
-    public synchronized boolean isUpdating(Uri uri) {
+    /**
+     * Doesn't take the cache's lock.
+     */
+    public boolean isUpdating(Uri uri) {
         return mUpdating.contains(uri);
     }
 
-    @Override
     public synchronized PduCacheEntry purge(Uri uri) {
         int match = URI_MATCHER.match(uri);
         switch (match) {
@@ -162,24 +231,55 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
         mUpdating.remove(key);
-        PduCacheEntry entry = super.purge(key);
-        if (entry != null) {
-            removeFromThreads(key, entry);
-            removeFromMessageBoxes(key, entry);
-            return entry;
-        }
-        return null;
+        return mEntries.remove(key);
     }
 
-    @Override
     public synchronized void purgeAll() {
-        super.purgeAll();
+        // Removed one at a time rather than with evictAll() so they don't count as evictions
+        for (Uri key : mEntries.snapshot().keySet()) {
+            mEntries.remove(key);
+        }
 
         mMessageBoxes.clear();
         mThreads.clear();
         mUpdating.clear();
     }
 
+    /**
+     * @return number of cached entries
+     */
+    public int size() {
+        return mEntries.snapshot().size();
+    }
+
+    /**
+     * @return number of lookups that found an entry
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return number of lookups that didn't find an entry
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return number of entries dropped to make room for others
+     */
+    public int getEvictionCount() {
+        return mEntries.evictionCount();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("MMS pdu cache: " + size() + " entries, "
+                + mEntries.size() + " of " + mEntries.maxSize() + " bytes, "
+                + getHitCount() + " hits, " + getMissCount() + " misses, "
+                + getEvictionCount() + " evictions");
+    }
+
     /**
      * @param uri The Uri to be normalized.
      * @return Uri The normalized key of cached entry.
@@ -220,22 +320,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             if (msgBox != null) {
                 for (Uri key : msgBox) {
                     mUpdating.remove(key);
-                    PduCacheEntry entry = super.purge(key);
-                    if (entry != null) {
-                        removeFromThreads(key, entry);
-                    }
+                    mEntries.remove(key);
                 }
             }
         }
     }
 
-    private void removeFromThreads(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> thread = mThreads.get(entry.getThreadId());
-        if (thread != null) {
-            thread.remove(key);
-        }
-    }
-
     private void purgeByThreadId(long threadId) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purge cache in thread: " + threadId);
@@ -245,16 +335,20 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         if (thread != null) {
             for (Uri key : thread) {
                 mUpdating.remove(key);
-                PduCacheEntry entry = super.purge(key);
-                if (entry != null) {
-                    removeFromMessageBoxes(key, entry);
-                }
+                mEntries.remove(key);
             }
         }
     }
 
-    private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+    /**
+     * Called whenever an entry leaves the cache, whether purged, replaced or evicted.
+     */
+    private synchronized void removeFromIndexes(Uri key, PduCacheEntry entry) {
+        HashSet<Uri> thread = mThreads.get(entry.getThreadId());
+        if (thread != null) {
+            thread.remove(key);
+        }
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
         }
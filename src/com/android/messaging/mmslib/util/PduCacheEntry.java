@@ -18,16 +18,53 @@
 package com.android.messaging.mmslib.util;
 
 import com.android.messaging.mmslib.pdu.GenericPdu;
+import com.android.messaging.mmslib.pdu.MultimediaMessagePdu;
+import com.android.messaging.mmslib.pdu.PduBody;
+import com.android.messaging.mmslib.pdu.PduPart;
+
+import java.nio.ByteBuffer;
 
 public final class PduCacheEntry {
+    // Rough heap taken by the headers of a pdu, and by those of each of its parts
+    private static final int PDU_HEADERS_SIZE_BYTES = 1024;
+    private static final int PART_HEADERS_SIZE_BYTES = 256;
+
     private final GenericPdu mPdu;
     private final int mMessageBox;
     private final long mThreadId;
+    private final int mSize;
 
     public PduCacheEntry(GenericPdu pdu, int msgBox, long threadId) {
         mPdu = pdu;
         mMessageBox = msgBox;
         mThreadId = threadId;
+        mSize = estimateSize(pdu);
+    }
+
+    /**
+     * @return the estimated size of the pdu in bytes, as it was when the entry was made
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    private static int estimateSize(GenericPdu pdu) {
+        int size = PDU_HEADERS_SIZE_BYTES;
+        if (pdu instanceof MultimediaMessagePdu) {
+            final PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            final int partsNum = body == null ? 0 : body.getPartsNum();
+            for (int i = 0; i < partsNum; i++) {
+                final PduPart part = body.getPart(i);
+                size += PART_HEADERS_SIZE_BYTES;
+                final ByteBuffer dataBuffer = part.getDataBuffer();
+                if (dataBuffer != null) {
+                    size += dataBuffer.remaining();
+                } else if (part.getData() != null) {
+                    size += part.getData().length;
+                }
+            }
+        }
+        return size;
     }
 
     public GenericPdu getPdu() {
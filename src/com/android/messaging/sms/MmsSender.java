@@ -44,9 +44,12 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Class that sends chat message via MMS.
@@ -179,17 +182,22 @@ public class MmsSender {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
             writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            // Attachments are streamed from their uris into the file rather than composed
+            // in memory first
+            final PduComposer composer = new PduComposer(context, pdu);
+            final long pduSize = composer.measure();
+            if (pduSize < 0) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduSize > MmsConfig.get(subId).getMaxMessageSize()) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
+            final OutputStream out = new BufferedOutputStream(writer);
+            composer.writeTo(out);
+            out.flush();
         } catch (final IOException e) {
             if (tempFile != null) {
                 tempFile.delete();
@@ -270,23 +278,39 @@ public class MmsSender {
 
     public static RetrieveConf parseRetrieveConf(byte[] data, int subId) {
         if (data != null) {
-            final GenericPdu pdu = new PduParser(
-                    data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse();
-            if (pdu != null) {
-                if (pdu instanceof RetrieveConf) {
-                    return (RetrieveConf) pdu;
-                } else {
-                    LogUtil.e(TAG, "MmsSender: downloaded pdu not RetrieveConf: "
-                            + pdu.getClass().getName());
-                }
-            } else {
-                LogUtil.e(TAG, "MmsSender: downloaded pdu could not be parsed (invalid)");
-            }
+            return toRetrieveConf(new PduParser(
+                    data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse());
         }
         LogUtil.e(TAG, "MmsSender: downloaded pdu is empty");
         return null;
     }
 
+    /**
+     * Parse a downloaded pdu held in a buffer, such as a memory-mapped download file. The data
+     * of the parts stays in the buffer until the message is persisted.
+     */
+    public static RetrieveConf parseRetrieveConf(ByteBuffer data, int subId) {
+        if (data != null && data.hasRemaining()) {
+            return toRetrieveConf(new PduParser(
+                    data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse());
+        }
+        LogUtil.e(TAG, "MmsSender: downloaded pdu is empty");
+        return null;
+    }
+
+    private static RetrieveConf toRetrieveConf(final GenericPdu pdu) {
+        if (pdu == null) {
+            LogUtil.e(TAG, "MmsSender: downloaded pdu could not be parsed (invalid)");
+            return null;
+        }
+        if (!(pdu instanceof RetrieveConf)) {
+            LogUtil.e(TAG, "MmsSender: downloaded pdu not RetrieveConf: "
+                    + pdu.getClass().getName());
+            return null;
+        }
+        return (RetrieveConf) pdu;
+    }
+
     // Process different result code from platform MMS service
     public static int getErrorResultStatus(int resultCode, int httpStatusCode) {
         Assert.isFalse(resultCode == Activity.RESULT_OK);
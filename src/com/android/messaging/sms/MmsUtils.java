@@ -291,8 +291,13 @@ public class MmsUtils {
     public static final int MIN_IMAGE_BYTE_SIZE = 16 * 1024;
     public static final int MAX_VIDEO_ATTACHMENT_COUNT = 1;
 
+    /**
+     * @param transcodedGifUris Collects the scratch space files that GIFs are transcoded into,
+     *                          which the caller must delete once the PDU is persisted or
+     *                          abandoned
+     */
     public static MmsInfo makePduBody(final Context context, final MessageData message,
-            final int subId) {
+            final int subId, final List<Uri> transcodedGifUris) {
         final PduBody pb = new PduBody();
 
         // Compute data size requirements for this message: count up images and total size of
@@ -346,7 +351,8 @@ public class MmsUtils {
                     }
                     smilBody.append(String.format(sSmilImagePart, srcName));
                     totalLength += addPicturePart(context, pb, index, part,
-                            widthLimit, heightLimit, bytesPerImage, srcName, contentType);
+                            widthLimit, heightLimit, bytesPerImage, srcName, contentType,
+                            transcodedGifUris);
                     hasVisualAttachment = true;
                 } else if (ContentType.isVideoType(contentType)) {
                     srcName = String.format("video%06d.%s", index,
@@ -453,7 +459,8 @@ public class MmsUtils {
 
     private static int addPicturePart(final Context context, final PduBody pb, final int index,
             final MessagePartData messagePart, int widthLimit, int heightLimit,
-            final int maxPartSize, final String srcName, final String contentType) {
+            final int maxPartSize, final String srcName, final String contentType,
+            final List<Uri> transcodedGifUris) {
         final Uri imageUri = messagePart.getContentUri();
         final int width = messagePart.getWidth();
         final int height = messagePart.getHeight();
@@ -499,13 +506,15 @@ public class MmsUtils {
             part.setContentType(contentType.getBytes());
         } else {
             part = getResizedImageAsPart(widthLimit, heightLimit, maxPartSize,
-                    width, height, orientation, imageUri, context, contentType);
+                    width, height, orientation, imageUri, context, contentType,
+                    transcodedGifUris);
             if (part == null) {
                 final OutOfMemoryError e = new OutOfMemoryError();
                 LogUtil.e(TAG, "Can't resize image: not enough memory?", e);
                 throw e;
             }
-            imageSize = part.getData().length;
+            imageSize = (part.getData() != null) ? part.getData().length
+                    : getDataLength(context, part.getDataUri());
         }
 
         setPartContentLocationAndId(part, srcName);
@@ -665,13 +674,35 @@ public class MmsUtils {
      *                    image
      * @param imageUri Uri to the image data
      * @param context Needed to open the image
-     * @return A new PduPart containing the resized image data
+     * @param transcodedGifUris Collects the scratch space file a GIF is transcoded into
+     * @return A new PduPart containing the resized image data, or for GIFs referring to the file
+     *         holding it
      */
     private static PduPart getResizedImageAsPart(final int widthLimit,
             final int heightLimit, final int byteLimit, final int width, final int height,
-            final int orientation, final Uri imageUri, final Context context, final String contentType) {
+            final int orientation, final Uri imageUri, final Context context,
+            final String contentType, final List<Uri> transcodedGifUris) {
         final PduPart part = new PduPart();
 
+        if (ImageUtils.isGif(contentType, imageUri)) {
+            // GIFs stay in their file, which is streamed into the PDU when it is persisted. A
+            // transcoded copy is deleted by the caller once that's done, or has failed.
+            final Uri gifUri = ImageResizer.getResizedGifUri(width, height, widthLimit,
+                    heightLimit, byteLimit, imageUri, context);
+            if (gifUri == null) {
+                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                    LogUtil.v(TAG, "Resize GIF failed.");
+                }
+                return null;
+            }
+            if (gifUri != imageUri) {
+                transcodedGifUris.add(gifUri);
+            }
+            part.setDataUri(gifUri);
+            part.setContentType(ContentType.IMAGE_GIF.getBytes());
+            return part;
+        }
+
         final byte[] data = ImageResizer.getResizedImageData(width, height, orientation,
                 widthLimit, heightLimit, byteLimit, imageUri, context, contentType);
         if (data == null) {
@@ -683,9 +714,7 @@ public class MmsUtils {
 
         part.setData(data);
         // Any static images will be compressed into a jpeg
-        final String contentTypeOfResizedImage = ImageUtils.isGif(contentType, imageUri)
-                ? ContentType.IMAGE_GIF : ContentType.IMAGE_JPEG;
-        part.setContentType(contentTypeOfResizedImage.getBytes());
+        part.setContentType(ContentType.IMAGE_JPEG.getBytes());
 
         return part;
     }
@@ -2297,30 +2326,49 @@ public class MmsUtils {
     public static Uri insertSendingMmsMessage(final Context context, final List<String> recipients,
             final MessageData content, final int subId, final String subPhoneNumber,
             final long timestamp) {
-        final SendReq sendReq = createMmsSendReq(
-                context, subId, recipients.toArray(new String[recipients.size()]), content,
-                DEFAULT_DELIVERY_REPORT_MODE,
-                DEFAULT_READ_REPORT_MODE,
-                DEFAULT_EXPIRY_TIME_IN_SECONDS,
-                DEFAULT_PRIORITY,
-                timestamp);
+        final List<Uri> transcodedGifUris = new ArrayList<Uri>();
         Uri messageUri = null;
-        if (sendReq != null) {
-            final Uri outboxUri = MmsUtils.insertSendReq(context, sendReq, subId, subPhoneNumber);
-            if (outboxUri != null) {
-                messageUri = ContentUris.withAppendedId(Telephony.Mms.CONTENT_URI,
-                        ContentUris.parseId(outboxUri));
-                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                    LogUtil.d(TAG, "Mmsutils: Inserted sending MMS message into telephony, uri: "
-                            + outboxUri);
+        try {
+            final SendReq sendReq = createMmsSendReq(
+                    context, subId, recipients.toArray(new String[recipients.size()]), content,
+                    DEFAULT_DELIVERY_REPORT_MODE,
+                    DEFAULT_READ_REPORT_MODE,
+                    DEFAULT_EXPIRY_TIME_IN_SECONDS,
+                    DEFAULT_PRIORITY,
+                    timestamp,
+                    transcodedGifUris);
+            if (sendReq != null) {
+                final Uri outboxUri =
+                        MmsUtils.insertSendReq(context, sendReq, subId, subPhoneNumber);
+                if (outboxUri != null) {
+                    messageUri = ContentUris.withAppendedId(Telephony.Mms.CONTENT_URI,
+                            ContentUris.parseId(outboxUri));
+                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                        LogUtil.d(TAG, "Mmsutils: Inserted sending MMS message into telephony, "
+                                + "uri: " + outboxUri);
+                    }
+                } else {
+                    LogUtil.e(TAG,
+                            "insertSendingMmsMessage: failed to persist message into telephony");
                 }
-            } else {
-                LogUtil.e(TAG, "insertSendingMmsMessage: failed to persist message into telephony");
             }
+        } finally {
+            // The PDU's parts are now copied into telephony, or it was never built or persisted
+            deleteTranscodedGifs(context, transcodedGifUris);
         }
         return messageUri;
     }
 
+    /**
+     * Delete the scratch files that transcoded GIFs were left in for streaming into the PDU
+     */
+    private static void deleteTranscodedGifs(final Context context,
+            final List<Uri> transcodedGifUris) {
+        for (final Uri uri : transcodedGifUris) {
+            context.getContentResolver().delete(uri, null, null);
+        }
+    }
+
     public static MessageData readSendingMmsMessage(final Uri messageUri,
             final String conversationId, final String participantId, final String selfId) {
         MessageData message = null;
@@ -2346,7 +2394,8 @@ public class MmsUtils {
     private static SendReq createMmsSendReq(final Context context, final int subId,
             final String[] recipients, final MessageData message,
             final boolean requireDeliveryReport, final boolean requireReadReport,
-            final long expiryTime, final int priority, final long timestampMillis) {
+            final long expiryTime, final int priority, final long timestampMillis,
+            final List<Uri> transcodedGifUris) {
         Assert.notNull(context);
         if (recipients == null || recipients.length < 1) {
             throw new IllegalArgumentException("MMS sendReq no recipient");
@@ -2370,7 +2419,8 @@ public class MmsUtils {
         try {
             sendReq = createSendReq(context, subId, recipientsCopy,
                     message, requireDeliveryReport,
-                    requireReadReport, expiryTime, priority, timestampMillis);
+                    requireReadReport, expiryTime, priority, timestampMillis,
+                    transcodedGifUris);
         } catch (final InvalidHeaderValueException e) {
             LogUtil.e(TAG, "InvalidHeaderValue creating sendReq PDU");
         } catch (final OutOfMemoryError e) {
@@ -2408,7 +2458,7 @@ public class MmsUtils {
             final String[] recipients, final MessageData message,
             final boolean requireDeliveryReport,
             final boolean requireReadReport, final long expiryTime, final int priority,
-            final long timestampMillis)
+            final long timestampMillis, final List<Uri> transcodedGifUris)
             throws InvalidHeaderValueException {
         final SendReq req = new SendReq();
         // From, per spec
@@ -2428,7 +2478,8 @@ public class MmsUtils {
         // Date
         req.setDate(timestampMillis / 1000L);
         // Body
-        final MmsInfo bodyInfo = MmsUtils.makePduBody(context, message, subId);
+        final MmsInfo bodyInfo = MmsUtils.makePduBody(context, message, subId,
+                transcodedGifUris);
         req.setBody(bodyInfo.mPduBody);
         // Message size
         req.setMessageSize(bodyInfo.mMessageSize);
@@ -223,6 +223,10 @@ public class AsyncImageView extends ImageView implements MediaResourceLoadListen
     }
 
     private void requestImage(final BindableMediaRequest<ImageResource> request) {
+        // Views bound ahead of being attached (e.g. prefetched by a RecyclerView) can wait for
+        // the ones on screen; they are bumped up when attached.
+        request.setPriority(isAttachedToWindow() ? MediaRequest.PRIORITY_VISIBLE :
+                MediaRequest.PRIORITY_PREFETCH);
         mImageRequestBinding.bind(request);
         if (mDelayLoader == null || !mDelayLoader.isDelayLoadingImage()) {
             MediaResourceManager.get().requestMediaResourceAsync(request);
@@ -286,6 +290,8 @@ public class AsyncImageView extends ImageView implements MediaResourceLoadListen
         // reuse the views. In this case, we would like to rebind the original image request.
         if (!mImageRequestBinding.isBound() && mDetachedRequestDescriptor != null) {
             setImageResourceId(mDetachedRequestDescriptor);
+        } else if (mImageRequestBinding.isBound()) {
+            mImageRequestBinding.getData().setPriority(MediaRequest.PRIORITY_VISIBLE);
         }
         mDetachedRequestDescriptor = null;
     }
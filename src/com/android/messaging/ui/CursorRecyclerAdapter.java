@@ -26,6 +26,8 @@ import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.FilterQueryProvider;
 
+import com.android.messaging.datamodel.RowSnapshot;
+
 /**
  * Copy of CursorAdapter suited for RecyclerView.
  *
@@ -74,6 +76,10 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
      * {@hide}
      */
     protected FilterQueryProvider mFilterQueryProvider;
+    /**
+     * Snapshot of the rows of mCursor, if it came with one (see {@link RowSnapshot.DiffCursor})
+     */
+    private RowSnapshot mSnapshot;
 
     /**
      * If set the adapter will call requery() on the cursor whenever a content change
@@ -242,6 +248,7 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
             return null;
         }
         final Cursor oldCursor = mCursor;
+        final int oldCount = getItemCount();
         if (oldCursor != null) {
             if (mChangeObserver != null) {
                 oldCursor.unregisterContentObserver(mChangeObserver);
@@ -258,11 +265,21 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
             if (mDataSetObserver != null) {
                 newCursor.registerDataSetObserver(mDataSetObserver);
             }
+            final RowSnapshot oldSnapshot = mSnapshot;
+            final RowSnapshot.DiffCursor diffCursor = RowSnapshot.DiffCursor.find(newCursor);
+            mSnapshot = diffCursor != null ? diffCursor.getSnapshot() : null;
             mRowIDColumn = newCursor.getColumnIndexOrThrow("_id");
             mDataValid = true;
-            // notify the observers about the new cursor
-            notifyDataSetChanged();
+            if (canDispatchDiff(diffCursor, oldSnapshot, oldCount, newCursor.getCount())) {
+                // Only tell the observers about the rows that changed, so that the rest are
+                // neither rebound nor relaid out and the scroll position and animations survive
+                diffCursor.getDiff().dispatchUpdatesTo(this);
+            } else {
+                // notify the observers about the new cursor
+                notifyDataSetChanged();
+            }
         } else {
+            mSnapshot = null;
             mRowIDColumn = -1;
             mDataValid = false;
             // notify the observers about the lack of a data set
@@ -271,6 +288,18 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
         return oldCursor;
     }
 
+    /**
+     * A diff can only be applied if it was computed from the rows we are showing
+     */
+    private static boolean canDispatchDiff(final RowSnapshot.DiffCursor diffCursor,
+            final RowSnapshot oldSnapshot, final int oldCount, final int newCount) {
+        return diffCursor != null && oldSnapshot != null
+                && diffCursor.getPreviousSnapshot() == oldSnapshot
+                && diffCursor.getDiff() != null
+                && oldSnapshot.size() == oldCount
+                && diffCursor.getSnapshot().size() == newCount;
+    }
+
     /**
      * <p>Converts the cursor into a CharSequence. Subclasses should override this
      * method to convert their results. The default implementation returns an
@@ -320,12 +349,14 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
         @Override
         public void onChanged() {
             mDataValid = true;
+            mSnapshot = null;
             notifyDataSetChanged();
         }
 
         @Override
         public void onInvalidated() {
             mDataValid = false;
+            mSnapshot = null;
             notifyDataSetChanged();
         }
     }
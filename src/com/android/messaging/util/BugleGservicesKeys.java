@@ -56,6 +56,15 @@ public final class BugleGservicesKeys {
     public static final String MESSAGE_RESEND_TIMEOUT_MS = "bugle_resend_timeout_in_millis";
     public static final long MESSAGE_RESEND_TIMEOUT_MS_DEFAULT = 20 * 60 * 1000L;
 
+    /**
+     * Max number of messages to send at once on a subscription, each from a different
+     * conversation. The window shrinks when sends fail and grows back as they succeed. 1 sends
+     * one message at a time.
+     */
+    public static final String MAX_CONCURRENT_SENDS_PER_SUBSCRIPTION =
+            "bugle_max_concurrent_sends_per_subscription";
+    public static final int MAX_CONCURRENT_SENDS_PER_SUBSCRIPTION_DEFAULT = 4;
+
     /**
      * Time in milliseconds of download window for new mms notifications
      */
@@ -100,6 +109,30 @@ public final class BugleGservicesKeys {
     public static final int SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT =
             SMS_SYNC_BATCH_SIZE_MAX_DEFAULT * 4;
 
+    /**
+     * Longest time incremental SMS syncs may be served from the change journal (by telephony row
+     * id) before a cursor pair diff of the sync window is run again as a consistency check.
+     */
+    public static final String SMS_SYNC_CONSISTENCY_CHECK_INTERVAL_MILLIS =
+            "bugle_sms_sync_consistency_check_interval";
+    public static final long SMS_SYNC_CONSISTENCY_CHECK_INTERVAL_MILLIS_DEFAULT =
+            60 * 60 * 1000L;
+
+    /**
+     * Slowest UI query (which waits on the sync transaction for the database) tolerated before
+     * the SMS sync batch size is cut back.
+     */
+    public static final String SMS_SYNC_UI_QUERY_TIME_LIMIT_MILLIS =
+            "bugle_sms_sync_ui_query_time_limit";
+    public static final long SMS_SYNC_UI_QUERY_TIME_LIMIT_MILLIS_DEFAULT = 100;
+
+    /**
+     * Whether a follow on SMS sync batch may read from the telephony provider while the
+     * previous batch is still being written to the local database.
+     */
+    public static final String SMS_SYNC_PIPELINE_ENABLED = "bugle_sms_sync_pipeline_enabled";
+    public static final boolean SMS_SYNC_PIPELINE_ENABLED_DEFAULT = true;
+
     /**
      * Time in ms for sync to backoff from "now" to the latest message that will be sync'd.
      *
@@ -202,6 +235,14 @@ public final class BugleGservicesKeys {
             = "bugle_notification_time_between_rings_seconds";
     public static final int NOTIFICATION_TIME_BETWEEN_RINGS_SECONDS_DEFAULT = 10;
 
+    /**
+     * Time (in milliseconds) to wait for avatars and attachment pictures before posting a message
+     * notification without them. The notification is silently updated once they've loaded.
+     */
+    public static final String NOTIFICATION_IMAGE_LOAD_DEADLINE_MILLIS
+            = "bugle_notification_image_load_deadline_millis";
+    public static final int NOTIFICATION_IMAGE_LOAD_DEADLINE_MILLIS_DEFAULT = 500;
+
     /**
      * The max number of messages to show in a single conversation notification, when a wearable
      * device (i.e. smartwatch) is paired with the phone. Watches have a different UX model and
@@ -218,6 +259,20 @@ public final class BugleGservicesKeys {
      */
     public static final String EXPLAIN_QUERY_PLAN_REGEXP = "bugle_query_plan_regexp";
 
+    /**
+     * Database operations taking at least this long (in ms) are kept, with their query plan,
+     * in the slow query log included in dumpsys.
+     */
+    public static final String SLOW_QUERY_THRESHOLD_MILLIS = "bugle_slow_query_threshold";
+    public static final long SLOW_QUERY_THRESHOLD_MILLIS_DEFAULT = 100;
+
+    /**
+     * Content change notifications for the same uri within this many milliseconds of each other
+     * are sent to observers once. Default is {@value #NOTIFY_CHANGE_WINDOW_MILLIS_DEFAULT}.
+     */
+    public static final String NOTIFY_CHANGE_WINDOW_MILLIS = "bugle_notify_change_window_ms";
+    public static final long NOTIFY_CHANGE_WINDOW_MILLIS_DEFAULT = 100;
+
     /**
      * Whether asserts are fatal on user/userdebug builds.
      * Default is {@value #ASSERTS_FATAL_DEFAULT}.
@@ -295,4 +350,11 @@ public final class BugleGservicesKeys {
      */
     public static final String ENABLE_GIF_TRANSCODING = "bugle_gif_transcoding";
     public static final boolean ENABLE_GIF_TRANSCODING_DEFAULT = true;
+
+    /**
+     * Size limit of the on-disk cache of image thumbnails and avatars, in bytes
+     */
+    public static final String MEDIA_DISK_CACHE_MAX_SIZE_BYTES =
+            "bugle_media_disk_cache_max_size_bytes";
+    public static final int MEDIA_DISK_CACHE_MAX_SIZE_BYTES_DEFAULT = 10 * 1024 * 1024; // 10MB
 }
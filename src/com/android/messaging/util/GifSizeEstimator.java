@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Estimates the size of the GIF {@link GifTranscoder} will produce from a GIF, without
+ * decoding it.
+ * <p>
+ * The transcoder renders every frame at full canvas size, box filters it down to half the width
+ * and height and writes it out with the input's global color table. The estimate walks the
+ * input's blocks (skipping over the LZW data) to count the frames and measure how many bytes each
+ * coded pixel takes, then applies that rate to the output frames.
+ */
+public class GifSizeEstimator {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    private static final int IMAGE_SEPARATOR = 0x2c;
+    private static final int EXTENSION_INTRODUCER = 0x21;
+    private static final int TRAILER = 0x3b;
+
+    // Header plus logical screen descriptor
+    private static final int HEADER_SIZE = 13;
+    // Graphic control extension, image descriptor and LZW minimum code size of an output frame
+    private static final int FRAME_OVERHEAD = 8 + 10 + 1;
+    // Box filtering leaves LZW less redundancy to find, so output pixels cost a bit more than
+    // input pixels
+    private static final float DOWNSCALED_PIXEL_COST_FACTOR = 1.2f;
+
+    /**
+     * What the walk over the input found
+     */
+    @VisibleForTesting
+    static class GifInfo {
+        int mWidth;
+        int mHeight;
+        int mGlobalColorTableSize;
+        int mFrameCount;
+        // Pixels coded by all frames (frames may cover less than the whole canvas)
+        long mCodedPixels;
+        // Bytes of LZW data for all frames
+        long mCodedBytes;
+    }
+
+    /**
+     * @param in stream of the GIF, read up to its trailer but not closed
+     * @return what was found, null if the stream isn't a GIF this can make sense of
+     */
+    @VisibleForTesting
+    static GifInfo parse(final InputStream in) throws IOException {
+        final InputStream stream = new BufferedInputStream(in);
+        if (readByte(stream) != 'G' || readByte(stream) != 'I' || readByte(stream) != 'F') {
+            return null;
+        }
+        skipFully(stream, 3);
+        final GifInfo info = new GifInfo();
+        info.mWidth = readShort(stream);
+        info.mHeight = readShort(stream);
+        final int flags = readByte(stream);
+        skipFully(stream, 2);
+        if ((flags & 0x80) != 0) {
+            info.mGlobalColorTableSize = 3 * (1 << ((flags & 0x07) + 1));
+            skipFully(stream, info.mGlobalColorTableSize);
+        }
+        while (true) {
+            final int block = readByte(stream);
+            if (block == IMAGE_SEPARATOR) {
+                skipFully(stream, 4);
+                final int frameWidth = readShort(stream);
+                final int frameHeight = readShort(stream);
+                final int frameFlags = readByte(stream);
+                if ((frameFlags & 0x80) != 0) {
+                    skipFully(stream, 3 * (1 << ((frameFlags & 0x07) + 1)));
+                }
+                // LZW minimum code size
+                readByte(stream);
+                info.mCodedBytes += skipSubBlocks(stream);
+                info.mCodedPixels += (long) frameWidth * frameHeight;
+                info.mFrameCount++;
+            } else if (block == EXTENSION_INTRODUCER) {
+                // Label
+                readByte(stream);
+                skipSubBlocks(stream);
+            } else if (block == TRAILER) {
+                break;
+            } else {
+                return null;
+            }
+        }
+        return (info.mFrameCount == 0) ? null : info;
+    }
+
+    /**
+     * @return estimated size in bytes of the transcoded GIF
+     */
+    @VisibleForTesting
+    static long estimate(final GifInfo info) {
+        final long outputFramePixels = (long) (info.mWidth / 2) * (info.mHeight / 2);
+        final float bytesPerPixel = (info.mCodedPixels == 0) ? 1.0f
+                : (float) info.mCodedBytes / info.mCodedPixels;
+        return HEADER_SIZE + info.mGlobalColorTableSize + info.mFrameCount * (FRAME_OVERHEAD
+                + (long) (outputFramePixels * bytesPerPixel * DOWNSCALED_PIXEL_COST_FACTOR));
+    }
+
+    /**
+     * @param in stream of the GIF, not closed
+     * @return estimated size in bytes of the transcoded GIF, or -1 if it can't be estimated
+     */
+    public static long estimateTranscodedSize(final InputStream in) {
+        try {
+            final GifInfo info = parse(in);
+            return (info == null) ? -1 : estimate(info);
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "GifSizeEstimator: Couldn't read GIF", e);
+            return -1;
+        }
+    }
+
+    private static int readByte(final InputStream stream) throws IOException {
+        final int value = stream.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static int readShort(final InputStream stream) throws IOException {
+        return readByte(stream) | (readByte(stream) << 8);
+    }
+
+    private static void skipFully(final InputStream stream, final long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                readByte(stream);
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Skip a chain of data sub-blocks up to and including its terminator
+     * @return number of data bytes skipped
+     */
+    private static long skipSubBlocks(final InputStream stream) throws IOException {
+        long total = 0;
+        int length;
+        while ((length = readByte(stream)) != 0) {
+            skipFully(stream, length);
+            total += length;
+        }
+        return total;
+    }
+}
@@ -17,11 +17,14 @@
 package com.android.messaging.util;
 
 import android.content.Context;
+import android.net.Uri;
 import android.text.format.Formatter;
 
 import com.google.common.base.Stopwatch;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -75,6 +78,36 @@ public class GifTranscoder {
         return (long) (fileSize * 0.35f);
     }
 
+    /**
+     * Estimates the size of a GIF transcoded from the GIF at the specified uri from its frame
+     * count, dimensions and how well it compresses (see {@link GifSizeEstimator}), falling back
+     * to the fixed ratio above if the GIF can't be read.
+     *
+     * @param fileSize size of the GIF in bytes
+     */
+    public static long estimateFileSizeAfterTranscode(final Context context, final Uri uri,
+            final long fileSize) {
+        long estimate = -1;
+        InputStream inputStream = null;
+        try {
+            inputStream = context.getContentResolver().openInputStream(uri);
+            if (inputStream != null) {
+                estimate = GifSizeEstimator.estimateTranscodedSize(inputStream);
+            }
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "Couldn't open GIF to estimate its transcoded size", e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        return (estimate < 0) ? estimateFileSizeAfterTranscode(fileSize) : estimate;
+    }
+
     public static boolean canBeTranscoded(int width, int height) {
         if (!isEnabled()) {
             return false;
@@ -43,13 +43,13 @@ import com.android.messaging.datamodel.media.ImageRequest;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.exif.ExifInterface;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.Files;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -356,9 +356,33 @@ public class ImageUtils {
         private static final int MINIMUM_IMAGE_COMPRESSION_QUALITY = 50;
 
         /**
-         * Minimum factor to reduce quality value
+         * Quality to aim for when the picture has to be scaled down to fit
          */
-        private static final double QUALITY_SCALE_DOWN_RATIO = 0.85f;
+        private static final int SCALED_IMAGE_QUALITY = 75;
+
+        /**
+         * Size model: typical size of a camera picture JPEG encoded at each of these qualities,
+         * relative to its size at IMAGE_COMPRESSION_QUALITY
+         */
+        private static final int[] QUALITY_MODEL_QUALITIES = { 0, 50, 60, 70, 75, 80, 85, 90, 95,
+                100 };
+        private static final float[] QUALITY_MODEL_SIZES = { 0.05f, 0.26f, 0.30f, 0.36f, 0.40f,
+                0.46f, 0.54f, 0.68f, 1.0f, 1.9f };
+
+        /**
+         * Fraction of the byte limit that predicted encodings aim for
+         */
+        private static final float SIZE_MODEL_MARGIN = 0.9f;
+
+        /**
+         * Stop searching once the best quality that fits is known to within this many points
+         */
+        private static final int QUALITY_SEARCH_TOLERANCE = 5;
+
+        /**
+         * Maximum encodes of one decoded image while searching for the quality and scale to use
+         */
+        private static final int NUMBER_OF_QUALITY_PROBES = 8;
 
         /**
          * Maximum passes through the resize loop before failing permanently
@@ -366,7 +390,7 @@ public class ImageUtils {
         private static final int NUMBER_OF_RESIZE_ATTEMPTS = 6;
 
         /**
-         * Amount to scale down the picture when it doesn't fit
+         * Minimum amount to scale down the picture when it doesn't fit at the minimum quality
          */
         private static final float MIN_SCALE_DOWN_RATIO = 0.75f;
 
@@ -382,12 +406,14 @@ public class ImageUtils {
         private Bitmap mDecoded;
         // If scaling is needed this holds the scaled bitmap (else should equal mDecoded)
         private Bitmap mScaled;
-        // Current JPEG compression quality to use when compressing image
-        private int mQuality;
+        // Two encode buffers reused across quality probes, one holding the best encoding so far
+        private CappedOutputStream[] mEncodeBuffers;
         // Current factor to scale down decoded image before compressing
         private float mScaleFactor;
         // Flag keeping track of whether cache memory has been reclaimed
         private boolean mHasReclaimedMemory;
+        // Whether the last recode attempt ran out of memory (rather than out of probes)
+        private boolean mRanOutOfMemory;
 
         // Initial size of the image (typically provided but can be UNSPECIFIED_SIZE)
         private int mWidth;
@@ -411,7 +437,8 @@ public class ImageUtils {
         private final int mMemoryClass;
 
         /**
-         * Return resized (compressed) image (else null)
+         * Return resized (compressed) static image (else null). GIFs go through
+         * {@link #getResizedGifUri} instead.
          *
          * @param width The width of the image (if known)
          * @param height The height of the image (if known)
@@ -430,7 +457,35 @@ public class ImageUtils {
                 final String contentType) {
             final ImageResizer resizer = new ImageResizer(width, height, orientation,
                     widthLimit, heightLimit, byteLimit, uri, context, contentType);
-            return resizer.resize();
+            return resizer.resizeStaticImage();
+        }
+
+        /**
+         * Return a GIF to send in place of the given one: a transcoded copy in scratch space,
+         * at half the width and height, if the original is over the byte limit or the width or
+         * height limit; else the original. An original within the byte limit is also sent,
+         * whatever its dimensions, when it can't be transcoded or the transcoded copy wouldn't
+         * fit the byte limit. The data is left in the file to be streamed into the PDU rather
+         * than read into memory.
+         *
+         * @param width The width of the image (if known)
+         * @param height The height of the image (if known)
+         * @param widthLimit The width limit, in pixels
+         * @param heightLimit The height limit, in pixels
+         * @param byteLimit The binary size limit, in bytes
+         * @param uri Uri to the GIF, a file or scratch space uri
+         * @param context Needed to open the image
+         * @return uri of the GIF to send, else null if it is too large to send within the byte
+         *         limit. If this isn't uri it is a new scratch space file that the caller must
+         *         delete once done with it.
+         */
+        public static Uri getResizedGifUri(final int width, final int height,
+                final int widthLimit, final int heightLimit, final int byteLimit, final Uri uri,
+                final Context context) {
+            final ImageResizer resizer = new ImageResizer(width, height,
+                    ExifInterface.Orientation.TOP_LEFT, widthLimit, heightLimit, byteLimit, uri,
+                    context, ContentType.IMAGE_GIF);
+            return resizer.resizeGifImage();
         }
 
         /**
@@ -449,7 +504,6 @@ public class ImageUtils {
             mUri = uri;
             mWidth = width;
             mContext = context;
-            mQuality = IMAGE_COMPRESSION_QUALITY;
             mScaleFactor = 1.0f;
             mHasReclaimedMemory = false;
             mOptions = new BitmapFactory.Options();
@@ -465,17 +519,7 @@ public class ImageUtils {
             mContentType = contentType;
         }
 
-        /**
-         * Try to compress the image
-         *
-         * @return encoded image meeting size requirements else null
-         */
-        private byte[] resize() {
-            return ImageUtils.isGif(mContentType, mUri) ? resizeGifImage() : resizeStaticImage();
-        }
-
-        private byte[] resizeGifImage() {
-            byte[] bytesToReturn = null;
+        private Uri resizeGifImage() {
             final String inputFilePath;
             if (MediaScratchFileProvider.isMediaScratchSpaceUri(mUri)) {
                 inputFilePath = MediaScratchFileProvider.getFileFromUri(mUri).getAbsolutePath();
@@ -486,38 +530,53 @@ public class ImageUtils {
                 inputFilePath = mUri.getPath();
             }
 
-            if (GifTranscoder.canBeTranscoded(mWidth, mHeight)) {
-                // Needed to perform the transcoding so that the gif can continue to play in the
-                // conversation while the sending is taking place
-                final Uri tmpUri = MediaScratchFileProvider.buildMediaScratchSpaceUri("gif");
-                final File outputFile = MediaScratchFileProvider.getFileFromUri(tmpUri);
-                final String outputFilePath = outputFile.getAbsolutePath();
-
-                final boolean success =
-                        GifTranscoder.transcode(mContext, inputFilePath, outputFilePath);
-                if (success) {
-                    try {
-                        bytesToReturn = Files.toByteArray(outputFile);
-                    } catch (IOException e) {
-                        LogUtil.e(TAG, "Could not create FileInputStream with path of "
-                                + outputFilePath, e);
-                    }
+            final long inputSize = new File(inputFilePath).length();
+            final boolean fitsBytes = inputSize <= mByteLimit;
+            final boolean fitsDimensions = mWidth <= mWidthLimit && mHeight <= mHeightLimit;
+            // We can't transcode the gif if its image dimensions would be too small, so send the
+            // original if it fits the byte limit (whatever its dimensions), else give up
+            if (!GifTranscoder.canBeTranscoded(mWidth, mHeight)) {
+                if (!fitsBytes) {
+                    LogUtil.w(TAG, "GIF too large to send: " + inputSize + " bytes, over the "
+                            + "limit of " + mByteLimit + " bytes, and can't be transcoded");
+                    return null;
                 }
-
-                // Need to clean up the new file created to compress the gif
-                mContext.getContentResolver().delete(tmpUri, null, null);
-            } else {
-                // We don't want to transcode the gif because its image dimensions would be too
-                // small so just return the bytes of the original gif
-                try {
-                    bytesToReturn = Files.toByteArray(new File(inputFilePath));
-                } catch (IOException e) {
-                    LogUtil.e(TAG,
-                            "Could not create FileInputStream with path of " + inputFilePath, e);
+                return mUri;
+            }
+            if (fitsBytes && fitsDimensions) {
+                return mUri;
+            }
+            // Transcoding halves the width and height; don't bother if that isn't predicted to
+            // fit the byte limit (e.g. a gif with small frames over a large canvas, which
+            // transcoding renders in full)
+            final long estimatedSize =
+                    GifTranscoder.estimateFileSizeAfterTranscode(mContext, mUri, inputSize);
+            if (estimatedSize > mByteLimit) {
+                if (fitsBytes) {
+                    // Only the dimensions are over, so the original will do
+                    return mUri;
                 }
+                LogUtil.w(TAG, "GIF too large to send: transcoded estimated at " + estimatedSize
+                        + " bytes, over the limit of " + mByteLimit + " bytes");
+                return null;
             }
 
-            return bytesToReturn;
+            // Needed to perform the transcoding so that the gif can continue to play in the
+            // conversation while the sending is taking place
+            final Uri tmpUri = MediaScratchFileProvider.buildMediaScratchSpaceUri("gif");
+            final File outputFile = MediaScratchFileProvider.getFileFromUri(tmpUri);
+            if (GifTranscoder.transcode(mContext, inputFilePath, outputFile.getAbsolutePath())
+                    && outputFile.length() <= mByteLimit) {
+                return tmpUri;
+            }
+            // Need to clean up the new file created to compress the gif
+            mContext.getContentResolver().delete(tmpUri, null, null);
+            if (fitsBytes) {
+                return mUri;
+            }
+            LogUtil.w(TAG, "GIF too large to send: transcoding didn't bring it within the limit "
+                    + "of " + mByteLimit + " bytes");
+            return null;
         }
 
         private byte[] resizeStaticImage() {
@@ -530,7 +589,10 @@ public class ImageUtils {
                 return null;
             }
 
-            //  Decode image - if out of memory - reclaim memory and retry
+            // Decode image once and search for the encoding that fits. If decoding runs out of
+            // memory (or the search can't find a fit) reclaim memory and retry, then subsample.
+            mEncodeBuffers = new CappedOutputStream[] {
+                    new CappedOutputStream(mByteLimit), new CappedOutputStream(mByteLimit) };
             try {
                 for (int attempts = 0; attempts < NUMBER_OF_RESIZE_ATTEMPTS; attempts++) {
                     final byte[] encoded = recodeImage(attempts);
@@ -539,8 +601,7 @@ public class ImageUtils {
                     if (encoded != null && encoded.length <= mByteLimit) {
                         return encoded;
                     } else {
-                        final int currentSize = (encoded == null ? 0 : encoded.length);
-                        updateRecodeParameters(currentSize);
+                        updateRecodeParameters();
                     }
                 }
             } catch (final FileNotFoundException e) {
@@ -665,130 +726,266 @@ public class ImageUtils {
         }
 
         /**
-         * Recode the image from initial Uri to encoded JPEG
+         * Encode buffer holding at most a fixed number of bytes. Bytes written beyond that are
+         * counted but dropped, so an encode that doesn't fit costs no more memory than one that
+         * does, and its size is still known for predicting the next probe.
+         */
+        @VisibleForTesting
+        static class CappedOutputStream extends OutputStream {
+            private final byte[] mBuffer;
+            // Bytes written since the last reset, including those dropped
+            private int mCount;
+
+            CappedOutputStream(final int capacity) {
+                mBuffer = new byte[capacity];
+            }
+
+            @Override
+            public void write(final int b) {
+                if (mCount < mBuffer.length) {
+                    mBuffer[mCount] = (byte) b;
+                }
+                mCount++;
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                final int stored = Math.min(len, mBuffer.length - mCount);
+                if (stored > 0) {
+                    System.arraycopy(b, off, mBuffer, mCount, stored);
+                }
+                mCount += len;
+            }
+
+            void reset() {
+                mCount = 0;
+            }
+
+            /**
+             * @return number of bytes written since the last reset, including those dropped
+             */
+            int size() {
+                return mCount;
+            }
+
+            boolean isOverCapacity() {
+                return mCount > mBuffer.length;
+            }
+
+            /**
+             * @return the bytes written; only valid if they are within the capacity
+             */
+            byte[] toByteArray() {
+                Assert.isFalse(isOverCapacity());
+                return Arrays.copyOf(mBuffer, mCount);
+            }
+        }
+
+        /**
+         * Predicted size of a JPEG encoded at the given quality relative to the size at
+         * IMAGE_COMPRESSION_QUALITY, interpolated from QUALITY_MODEL_SIZES
+         */
+        @VisibleForTesting
+        static float getRelativeEncodedSize(final int quality) {
+            final int clamped = Math.max(QUALITY_MODEL_QUALITIES[0], Math.min(quality,
+                    QUALITY_MODEL_QUALITIES[QUALITY_MODEL_QUALITIES.length - 1]));
+            int i = 1;
+            while (QUALITY_MODEL_QUALITIES[i] < clamped) {
+                i++;
+            }
+            final float fraction = (float) (clamped - QUALITY_MODEL_QUALITIES[i - 1])
+                    / (QUALITY_MODEL_QUALITIES[i] - QUALITY_MODEL_QUALITIES[i - 1]);
+            return QUALITY_MODEL_SIZES[i - 1]
+                    + fraction * (QUALITY_MODEL_SIZES[i] - QUALITY_MODEL_SIZES[i - 1]);
+        }
+
+        /**
+         * Predict the highest quality at which an image will encode to no more than a target
+         * size, given the size it encoded to at another quality
+         * @param targetSize size to fit in
+         * @param quality quality of the measured encode
+         * @param size size of the measured encode
+         * @param minQuality lowest quality to return
+         * @param maxQuality highest quality to return
+         * @return predicted quality, minQuality if nothing in range is predicted to fit
+         */
+        @VisibleForTesting
+        static int predictQuality(final int targetSize, final int quality, final int size,
+                final int minQuality, final int maxQuality) {
+            final float relativeTarget =
+                    targetSize * getRelativeEncodedSize(quality) / Math.max(size, 1);
+            int predicted = maxQuality;
+            while (predicted > minQuality && getRelativeEncodedSize(predicted) > relativeTarget) {
+                predicted--;
+            }
+            return predicted;
+        }
+
+        /**
+         * Factor to further scale down an image so that it is predicted to fit the target size
+         * at SCALED_IMAGE_QUALITY, given the size it encoded to at some quality. Encoded size is
+         * taken to be proportional to the number of pixels.
+         */
+        @VisibleForTesting
+        static float predictScaleDown(final int targetSize, final int quality, final int size) {
+            final float predictedSize = size * getRelativeEncodedSize(SCALED_IMAGE_QUALITY)
+                    / getRelativeEncodedSize(quality);
+            return Math.max(1.0f / MIN_SCALE_DOWN_RATIO,
+                    (float) Math.sqrt(predictedSize / targetSize));
+        }
+
+        /**
+         * Decode the image (unless already decoded), then search for the highest quality, at the
+         * largest scale, at which it encodes within the byte limit. Each quality probe encodes
+         * into a reused buffer; the first probe at each scale is predicted by the size model and
+         * later probes binary search between the qualities known to fit and not to fit.
          * @param attempt Attempt number
-         * @return encoded image
+         * @return encoded image, null if out of memory or no fit was found within the probes
          */
         private byte[] recodeImage(final int attempt) throws FileNotFoundException {
-            byte[] encoded = null;
+            final boolean logv = LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE);
+            mRanOutOfMemory = false;
             try {
-                final ContentResolver cr = mContext.getContentResolver();
-                final boolean logv = LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE);
-                if (logv) {
-                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: attempt=" + attempt
-                            + " limit (w=" + mWidthLimit + " h=" + mHeightLimit + ") quality="
-                            + mQuality + " scale=" + mScaleFactor + " sampleSize=" + mSampleSize);
-                }
-                if (mScaled == null) {
+                if (mDecoded == null) {
+                    mOptions.inSampleSize = mSampleSize;
+                    final ContentResolver cr = mContext.getContentResolver();
+                    try (final InputStream inputStream = cr.openInputStream(mUri)) {
+                        mDecoded = BitmapFactory.decodeStream(inputStream, null, mOptions);
+                    } catch (final FileNotFoundException e) {
+                        throw e;
+                    } catch (final IOException e) {
+                        // Ignore
+                    }
                     if (mDecoded == null) {
-                        mOptions.inSampleSize = mSampleSize;
-                        try (final InputStream inputStream = cr.openInputStream(mUri)) {
-                            mDecoded = BitmapFactory.decodeStream(inputStream, null, mOptions);
-                        } catch (IOException e) {
-                            // Ignore
-                        }
-                        if (mDecoded == null) {
-                            if (logv) {
-                                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                                        "getResizedImageData: got empty decoded bitmap");
-                            }
-                            return null;
+                        if (logv) {
+                            LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
+                                    "getResizedImageData: got empty decoded bitmap");
                         }
+                        return null;
                     }
                     if (logv) {
-                        LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: decoded w,h="
+                        LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: attempt="
+                                + attempt + " sampleSize=" + mSampleSize + " decoded w,h="
                                 + mDecoded.getWidth() + "," + mDecoded.getHeight());
                     }
-                    // Make sure to scale the decoded image if dimension is not within limit
-                    final int decodedWidth = mDecoded.getWidth();
-                    final int decodedHeight = mDecoded.getHeight();
-                    if (decodedWidth > mWidthLimit || decodedHeight > mHeightLimit) {
-                        final float minScaleFactor = Math.max(
-                                mWidthLimit == 0 ? 1.0f :
-                                    (float) decodedWidth / (float) mWidthLimit,
-                                    mHeightLimit == 0 ? 1.0f :
-                                        (float) decodedHeight / (float) mHeightLimit);
-                        if (mScaleFactor < minScaleFactor) {
-                            mScaleFactor = minScaleFactor;
-                        }
+                }
+                // Make sure to scale the decoded image if dimension is not within limit
+                final int decodedWidth = mDecoded.getWidth();
+                final int decodedHeight = mDecoded.getHeight();
+                if (decodedWidth > mWidthLimit || decodedHeight > mHeightLimit) {
+                    final float minScaleFactor = Math.max(
+                            mWidthLimit == 0 ? 1.0f : (float) decodedWidth / (float) mWidthLimit,
+                            mHeightLimit == 0 ? 1.0f :
+                                (float) decodedHeight / (float) mHeightLimit);
+                    if (mScaleFactor < minScaleFactor) {
+                        mScaleFactor = minScaleFactor;
+                        releaseScaled();
+                    }
+                }
+
+                // Aim a little under the limit with predicted qualities, so that the prediction
+                // being slightly off doesn't cost another probe
+                final int targetSize = (int) (mByteLimit * SIZE_MODEL_MARGIN);
+                CappedOutputStream best = null;
+                int fitQuality = MINIMUM_IMAGE_COMPRESSION_QUALITY - 1;
+                int tooBigQuality = IMAGE_COMPRESSION_QUALITY + 1;
+                int quality = IMAGE_COMPRESSION_QUALITY;
+                for (int probe = 0; probe < NUMBER_OF_QUALITY_PROBES; probe++) {
+                    if (mScaled == null && !scaleDecoded()) {
+                        return null;
                     }
-                    if (mScaleFactor > 1.0 || mOrientationParams.rotation != 0) {
-                        mMatrix.reset();
-                        mMatrix.postRotate(mOrientationParams.rotation);
-                        mMatrix.postScale(mOrientationParams.scaleX / mScaleFactor,
-                                mOrientationParams.scaleY / mScaleFactor);
-                        mScaled = Bitmap.createBitmap(mDecoded, 0, 0, decodedWidth, decodedHeight,
-                                mMatrix, false /* filter */);
-                        if (mScaled == null) {
-                            if (logv) {
-                                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                                        "getResizedImageData: got empty scaled bitmap");
-                            }
-                            return null;
+                    final CappedOutputStream buffer = (best == mEncodeBuffers[0])
+                            ? mEncodeBuffers[1] : mEncodeBuffers[0];
+                    buffer.reset();
+                    mScaled.compress(Bitmap.CompressFormat.JPEG, quality, buffer);
+                    final int size = buffer.size();
+                    if (logv) {
+                        LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: Encoded down to "
+                                + size + "@" + mScaled.getWidth() + "/" + mScaled.getHeight()
+                                + "~" + quality);
+                    }
+                    if (!buffer.isOverCapacity()) {
+                        best = buffer;
+                        fitQuality = quality;
+                    } else {
+                        tooBigQuality = quality;
+                    }
+                    if (tooBigQuality - fitQuality <= QUALITY_SEARCH_TOLERANCE) {
+                        if (best != null) {
+                            break;
                         }
+                        // Doesn't fit even at minimum quality - scale down as far as the model
+                        // predicts is needed and search again
+                        mScaleFactor *= predictScaleDown(targetSize, quality, size);
+                        releaseScaled();
+                        fitQuality = MINIMUM_IMAGE_COMPRESSION_QUALITY - 1;
+                        tooBigQuality = IMAGE_COMPRESSION_QUALITY + 1;
+                        quality = SCALED_IMAGE_QUALITY;
                         if (logv) {
-                            LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: scaled w,h="
-                                    + mScaled.getWidth() + "," + mScaled.getHeight());
+                            LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
+                                    "getResizedImageData: Retrying at scale " + mScaleFactor);
                         }
+                    } else if (best == null) {
+                        // Predict from the size model until something fits
+                        quality = predictQuality(targetSize, quality, size, fitQuality + 1,
+                                tooBigQuality - 1);
                     } else {
-                        mScaled = mDecoded;
+                        quality = (fitQuality + tooBigQuality) / 2;
                     }
                 }
-                // Now encode it at current quality
-                encoded = ImageUtils.bitmapToBytes(mScaled, mQuality);
-                if (encoded != null && logv) {
-                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                            "getResizedImageData: Encoded down to " + encoded.length + "@"
-                                    + mScaled.getWidth() + "/" + mScaled.getHeight() + "~"
-                                    + mQuality);
-                }
+                return (best == null) ? null : best.toByteArray();
             } catch (final OutOfMemoryError e) {
                 LogUtil.w(LogUtil.BUGLE_IMAGE_TAG,
                         "getResizedImageData - image too big (OutOfMemoryError), will try "
                                 + " with smaller scale factor");
+                mRanOutOfMemory = true;
                 // fall through and keep trying with more compression
             }
-            return encoded;
+            return null;
         }
 
         /**
-         * When image recode fails this method updates compression parameters for the next attempt
-         * @param currentSize encoded image size (will be 0 if OOM)
+         * Scale and rotate the decoded image by the current scale factor and orientation
+         * @return false if the bitmap could not be created
          */
-        private void updateRecodeParameters(final int currentSize) {
-            final boolean logv = LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE);
-            // Only return data within the limit
-            if (currentSize > 0 &&
-                    mQuality > MINIMUM_IMAGE_COMPRESSION_QUALITY) {
-                // First if everything succeeded but failed to hit target size
-                // Try quality proportioned to sqrt of size over size limit
-                mQuality = Math.max(MINIMUM_IMAGE_COMPRESSION_QUALITY,
-                        Math.min((int) (mQuality * Math.sqrt((1.0 * mByteLimit) / currentSize)),
-                                (int) (mQuality * QUALITY_SCALE_DOWN_RATIO)));
-                if (logv) {
-                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                            "getResizedImageData: Retrying at quality " + mQuality);
-                }
-            } else if (currentSize > 0 &&
-                    mScaleFactor < 2.0 * MIN_SCALE_DOWN_RATIO * MIN_SCALE_DOWN_RATIO) {
-                // JPEG compression failed to hit target size - need smaller image
-                // First try scaling by a little (< factor of 2) just so long resulting scale down
-                // ratio is still significantly bigger than next subsampling step
-                // i.e. mScaleFactor/MIN_SCALE_DOWN_RATIO (new scaling factor) <
-                //       2.0 / MIN_SCALE_DOWN_RATIO (arbitrary limit)
-                mQuality = IMAGE_COMPRESSION_QUALITY;
-                mScaleFactor = mScaleFactor / MIN_SCALE_DOWN_RATIO;
-                if (logv) {
-                    LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                            "getResizedImageData: Retrying at scale " + mScaleFactor);
-                }
-                // Release scaled bitmap to trigger rescaling
-                if (mScaled != null && mScaled != mDecoded) {
-                    mScaled.recycle();
+        private boolean scaleDecoded() {
+            if (mScaleFactor > 1.0 || mOrientationParams.rotation != 0) {
+                mMatrix.reset();
+                mMatrix.postRotate(mOrientationParams.rotation);
+                mMatrix.postScale(mOrientationParams.scaleX / mScaleFactor,
+                        mOrientationParams.scaleY / mScaleFactor);
+                mScaled = Bitmap.createBitmap(mDecoded, 0, 0, mDecoded.getWidth(),
+                        mDecoded.getHeight(), mMatrix, false /* filter */);
+                if (mScaled == null) {
+                    if (LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE)) {
+                        LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
+                                "getResizedImageData: got empty scaled bitmap");
+                    }
+                    return false;
                 }
-                mScaled = null;
-            } else if (currentSize <= 0 && !mHasReclaimedMemory) {
-                // Then before we subsample try cleaning up our cached memory
+            } else {
+                mScaled = mDecoded;
+            }
+            return true;
+        }
+
+        private void releaseScaled() {
+            if (mScaled != null && mScaled != mDecoded) {
+                mScaled.recycle();
+            }
+            mScaled = null;
+        }
+
+        /**
+         * When image recode fails (out of memory, or no fit found) this method frees memory for
+         * the next attempt. Reclaiming cached memory only helps the former; the latter goes
+         * straight to subsampling.
+         */
+        private void updateRecodeParameters() {
+            final boolean logv = LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE);
+            releaseScaled();
+            if (mRanOutOfMemory && !mHasReclaimedMemory) {
+                // First try cleaning up our cached memory
                 Factory.get().reclaimMemory();
                 mHasReclaimedMemory = true;
                 if (logv) {
@@ -796,19 +993,15 @@ public class ImageUtils {
                             "getResizedImageData: Retrying after reclaiming memory ");
                 }
             } else {
-                // Last resort - subsample image by another factor of 2 and try again
+                // Last resort - subsample image by another factor of 2 and try again, keeping
+                // any extra scaling the search found was needed
                 mSampleSize = mSampleSize * 2;
-                mQuality = IMAGE_COMPRESSION_QUALITY;
-                mScaleFactor = 1.0f;
+                mScaleFactor = Math.max(1.0f, mScaleFactor / 2);
                 if (logv) {
                     LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
                             "getResizedImageData: Retrying at sampleSize " + mSampleSize);
                 }
-                // Release all bitmaps to trigger subsampling
-                if (mScaled != null && mScaled != mDecoded) {
-                    mScaled.recycle();
-                }
-                mScaled = null;
+                // Release decoded bitmap to trigger subsampling
                 if (mDecoded != null) {
                     mDecoded.recycle();
                     mDecoded = null;
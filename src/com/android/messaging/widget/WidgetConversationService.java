@@ -105,7 +105,9 @@ public class WidgetConversationService extends RemoteViewsService {
                 LogUtil.w(TAG, "doQuery no conversation id");
                 return null;
             }
-            final Uri uri = MessagingContentProvider.buildConversationMessagesUri(mConversationId);
+            // Only the newest messages are shown, so only load those up front
+            final Uri uri = MessagingContentProvider.buildConversationMessagesUri(mConversationId,
+                    MAX_ITEMS_TO_SHOW);
             if (uri != null) {
                 LogUtil.w(TAG, "doQuery uri: " + uri.toString());
             }
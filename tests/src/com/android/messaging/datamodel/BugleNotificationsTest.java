@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.graphics.Bitmap;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.BugleNotifications.LateImagePoster;
+import com.android.messaging.datamodel.BugleNotifications.NotificationImages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@SmallTest
+public class BugleNotificationsTest extends BugleTestCase {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final List<Bitmap> mPostedAttachments = new ArrayList<Bitmap>();
+
+    private final LateImagePoster mPoster = new LateImagePoster() {
+        @Override
+        public void post(final NotificationState state, final Bitmap avatarIcon,
+                final Bitmap avatarHiRes, final Bitmap attachmentBitmap) {
+            mPostedAttachments.add(attachmentBitmap);
+        }
+    };
+
+    private static NotificationImageLoader.ImageLoad newLoad(final Bitmap bitmap) {
+        return new NotificationImageLoader.ImageLoad() {
+            @Override
+            public Bitmap load() {
+                return bitmap;
+            }
+        };
+    }
+
+    private static NotificationImages newImages(final NotificationImageLoader loader,
+            final Bitmap attachment, final boolean postedWithAllImages) {
+        final NotificationImages images = new NotificationImages(null /* state */);
+        images.mAttachmentIndex = loader.add(newLoad(attachment));
+        images.mPostedWithAllImages = postedWithAllImages;
+        return images;
+    }
+
+    public void testLateImagesRepostOnlyNotificationsMissingThem() {
+        final Bitmap early = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        final Bitmap late = Bitmap.createBitmap(2, 2, Bitmap.Config.ARGB_8888);
+        final NotificationImageLoader loader = new NotificationImageLoader(DIRECT);
+        final List<NotificationImages> imagesList = new ArrayList<NotificationImages>();
+        imagesList.add(newImages(loader, early, true /* postedWithAllImages */));
+        imagesList.add(newImages(loader, late, false /* postedWithAllImages */));
+        loader.start();
+
+        final int generation = BugleNotifications.newNotificationGeneration();
+        assertTrue(BugleNotifications.repostWithLateImages(imagesList, loader, generation,
+                mPoster));
+        assertEquals(1, mPostedAttachments.size());
+        assertSame(late, mPostedAttachments.get(0));
+    }
+
+    public void testSupersededLateImagesDropped() {
+        final Bitmap late = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        final NotificationImageLoader loader = new NotificationImageLoader(DIRECT);
+        final List<NotificationImages> imagesList = new ArrayList<NotificationImages>();
+        imagesList.add(newImages(loader, late, false /* postedWithAllImages */));
+        loader.start();
+
+        final int generation = BugleNotifications.newNotificationGeneration();
+        // Newer notifications (or a cancel) came in before the images loaded
+        BugleNotifications.newNotificationGeneration();
+        assertFalse(BugleNotifications.repostWithLateImages(imagesList, loader, generation,
+                mPoster));
+        assertTrue(mPostedAttachments.isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class ContentChangeDispatcherTest extends BugleTestCase {
+    // Long enough that the scheduled flush never runs during a test
+    private static final long WINDOW_MILLIS = 60 * 1000L;
+
+    /**
+     * Records the uris it would have notified
+     */
+    private static class RecordingDispatcher extends ContentChangeDispatcher {
+        final List<Uri> mDispatched = new ArrayList<Uri>();
+
+        RecordingDispatcher() {
+            super(WINDOW_MILLIS);
+        }
+
+        @Override
+        protected void dispatch(final Uri uri) {
+            mDispatched.add(uri);
+        }
+    }
+
+    private RecordingDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mDispatcher = new RecordingDispatcher();
+    }
+
+    public void testDuplicatesAndDescendantsAreSuppressed() {
+        final Uri conversation = MessagingContentProvider.buildConversationMetadataUri("1");
+        final Uri messages = MessagingContentProvider.buildConversationMessagesUri("1");
+        mDispatcher.notifyChange(conversation);
+        mDispatcher.notifyChange(messages);
+        mDispatcher.notifyChange(conversation);
+        mDispatcher.notifyChange(MessagingContentProvider.CONVERSATIONS_URI);
+        mDispatcher.notifyChange(messages);
+        assertTrue(mDispatcher.mDispatched.isEmpty());
+
+        mDispatcher.flush();
+        // The conversation is covered by the conversation list
+        assertEquals(2, mDispatcher.mDispatched.size());
+        assertEquals(messages, mDispatcher.mDispatched.get(0));
+        assertEquals(MessagingContentProvider.CONVERSATIONS_URI,
+                mDispatcher.mDispatched.get(1));
+        assertEquals(5, mDispatcher.getRequestedCount());
+        assertEquals(2, mDispatcher.getEmittedCount());
+        assertEquals(3, mDispatcher.getSuppressedCount());
+
+        // Nothing is left to send
+        mDispatcher.flush();
+        assertEquals(2, mDispatcher.mDispatched.size());
+    }
+
+    public void testNotificationsAreHeldUntilTransactionEnds() {
+        final SQLiteDatabase sqliteDatabase = SQLiteDatabase.create(null);
+        final DatabaseWrapper database = new DatabaseWrapper(getTestContext(), sqliteDatabase);
+        try {
+            database.beginTransaction();
+            try {
+                mDispatcher.notifyChange(MessagingContentProvider.CONVERSATIONS_URI);
+                mDispatcher.notifyChange(MessagingContentProvider.CONVERSATIONS_URI);
+                // Not visible yet, so not sent yet
+                mDispatcher.flush();
+                assertTrue(mDispatcher.mDispatched.isEmpty());
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            mDispatcher.onTransactionEnded();
+            mDispatcher.flush();
+            assertEquals(1, mDispatcher.mDispatched.size());
+            assertEquals(1, mDispatcher.getSuppressedCount());
+        } finally {
+            sqliteDatabase.close();
+        }
+    }
+}
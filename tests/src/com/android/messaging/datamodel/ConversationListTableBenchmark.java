@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.ConversationListItemData;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Compares loading the conversation list from the view against loading it from the table kept
+ * current by triggers. Timings are logged rather than asserted.
+ */
+@LargeTest
+public class ConversationListTableBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_PERF_TAG;
+    private static final String VIEW = "conversation_list_view";
+    private static final String WHERE_LISTED = ConversationColumns.SORT_TIMESTAMP
+            + " > 0 AND " + ConversationColumns.ARCHIVE_STATUS + " = 0";
+    private static final String SORT_ORDER = ConversationColumns.SORT_TIMESTAMP + " DESC";
+    private static final int CONVERSATION_COUNT = 5000;
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    /**
+     * Adds a conversation with a message from its own sender, the way a received message is
+     * added
+     */
+    private void addConversation(final int index) {
+        final ContentValues participant = new ContentValues();
+        final String destination = Integer.toString(5550000 + index);
+        participant.put(ParticipantColumns.NORMALIZED_DESTINATION, destination);
+        participant.put(ParticipantColumns.DISPLAY_DESTINATION, destination);
+        participant.put(ParticipantColumns.FIRST_NAME, "first " + destination);
+        final long senderId = mDatabase.insert(DatabaseHelper.PARTICIPANTS_TABLE, null,
+                participant);
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "conversation " + index);
+        final long conversationId =
+                mDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation);
+
+        final long timestamp = 1000L + index;
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, conversationId);
+        message.put(MessageColumns.SENDER_PARTICIPANT_ID, senderId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        message.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        message.put(MessageColumns.READ, 0);
+        final long messageId = mDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+
+        final ContentValues latest = new ContentValues();
+        latest.put(ConversationColumns.LATEST_MESSAGE_ID, messageId);
+        latest.put(ConversationColumns.SORT_TIMESTAMP, timestamp);
+        latest.put(ConversationColumns.SNIPPET_TEXT, "message " + messageId);
+        mDatabase.update(DatabaseHelper.CONVERSATIONS_TABLE, latest,
+                ConversationColumns._ID + "=?", new String[] { Long.toString(conversationId) });
+    }
+
+    private long timeListQuery(final String table) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final Cursor cursor = mDatabase.query(table, ConversationListItemData.PROJECTION,
+                WHERE_LISTED, null, null, null, SORT_ORDER);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                count++;
+            }
+            assertEquals(CONVERSATION_COUNT, count);
+        } finally {
+            cursor.close();
+        }
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    public void testListQueryBenchmark() {
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < CONVERSATION_COUNT; i++) {
+                addConversation(i);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        final long viewMillis = timeListQuery(VIEW);
+        final long tableMillis =
+                timeListQuery(ConversationListItemData.getConversationListTable());
+        LogUtil.i(TAG, "ConversationListTableBenchmark: listing " + CONVERSATION_COUNT
+                + " conversations took " + viewMillis + "ms from the view, " + tableMillis
+                + "ms from the table");
+    }
+}
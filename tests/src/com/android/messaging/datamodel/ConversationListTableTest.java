@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.ConversationListItemData;
+import com.android.messaging.datamodel.data.MessageData;
+
+@MediumTest
+public class ConversationListTableTest extends BugleTestCase {
+    private static final String VIEW = "conversation_list_view";
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    private long insertParticipant(final String destination) {
+        final ContentValues participant = new ContentValues();
+        participant.put(ParticipantColumns.NORMALIZED_DESTINATION, destination);
+        participant.put(ParticipantColumns.DISPLAY_DESTINATION, destination);
+        participant.put(ParticipantColumns.FIRST_NAME, "first " + destination);
+        return mDatabase.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, participant);
+    }
+
+    private long insertConversation(final String name) {
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, name);
+        return mDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation);
+    }
+
+    /**
+     * Adds a message from the sender and makes it the conversation's latest message, the way
+     * a received message is added
+     */
+    private long addMessage(final long conversationId, final long senderId,
+            final long timestamp) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, conversationId);
+        message.put(MessageColumns.SENDER_PARTICIPANT_ID, senderId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        message.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        message.put(MessageColumns.READ, 0);
+        final long messageId = mDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.LATEST_MESSAGE_ID, messageId);
+        conversation.put(ConversationColumns.SORT_TIMESTAMP, timestamp);
+        conversation.put(ConversationColumns.SNIPPET_TEXT, "message " + messageId);
+        updateConversation(conversationId, conversation);
+        return messageId;
+    }
+
+    private void updateConversation(final long conversationId, final ContentValues values) {
+        mDatabase.update(DatabaseHelper.CONVERSATIONS_TABLE, values,
+                ConversationColumns._ID + "=?", new String[] { Long.toString(conversationId) });
+    }
+
+    private void assertTableMatchesView() {
+        final Cursor expected = mDatabase.query(VIEW, ConversationListItemData.PROJECTION,
+                null, null, null, null, ConversationColumns._ID);
+        final Cursor actual = mDatabase.query(ConversationListItemData.getConversationListTable(),
+                ConversationListItemData.PROJECTION, null, null, null, null,
+                ConversationColumns._ID);
+        try {
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int column = 0; column < expected.getColumnCount(); column++) {
+                    assertEquals(expected.getColumnName(column), expected.getString(column),
+                            actual.getString(column));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    public void testTriggersKeepTableCurrent() {
+        final long sender = insertParticipant("5551234");
+        final long other = insertParticipant("5556789");
+        final long first = insertConversation("first");
+        final long second = insertConversation("second");
+        assertTableMatchesView();
+
+        final long firstMessage = addMessage(first, sender, 1000L);
+        addMessage(second, other, 2000L);
+        assertTableMatchesView();
+
+        // Reading the latest message changes the row, reading an older one doesn't need to
+        final ContentValues read = new ContentValues();
+        read.put(MessageColumns.READ, 1);
+        mDatabase.update(DatabaseHelper.MESSAGES_TABLE, read, MessageColumns._ID + "=?",
+                new String[] { Long.toString(firstMessage) });
+        assertTableMatchesView();
+        addMessage(first, other, 3000L);
+        mDatabase.update(DatabaseHelper.MESSAGES_TABLE, read, null, null);
+        assertTableMatchesView();
+
+        // Renaming the snippet sender shows up in every conversation it last wrote to
+        final ContentValues name = new ContentValues();
+        name.put(ParticipantColumns.FIRST_NAME, "renamed");
+        mDatabase.update(DatabaseHelper.PARTICIPANTS_TABLE, name, ParticipantColumns._ID + "=?",
+                new String[] { Long.toString(other) });
+        assertTableMatchesView();
+
+        final ContentValues archived = new ContentValues();
+        archived.put(ConversationColumns.ARCHIVE_STATUS, 1);
+        updateConversation(second, archived);
+        assertTableMatchesView();
+
+        mDatabase.delete(DatabaseHelper.CONVERSATIONS_TABLE, ConversationColumns._ID + "=?",
+                new String[] { Long.toString(first) });
+        assertTableMatchesView();
+
+        // Refilling from the view gives the same rows
+        DatabaseHelper.refillConversationListTable(mDatabase);
+        assertTableMatchesView();
+    }
+}
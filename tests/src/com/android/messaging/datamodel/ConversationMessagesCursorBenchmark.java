@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Compares binding every message of a long conversation from the group_concat'ed query the
+ * conversation messages were loaded with before paging against the paged cursor with its
+ * separate parts query. Timings are logged rather than asserted.
+ */
+@LargeTest
+public class ConversationMessagesCursorBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_PERF_TAG;
+
+    private static final int MESSAGE_COUNT = 10000;
+
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+    private String mConversationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mSqliteDatabase);
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "test");
+        mConversationId = Long.toString(
+                mSqliteDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation));
+        mSqliteDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                insertMessageWithImage(1000L + i);
+            }
+            mSqliteDatabase.setTransactionSuccessful();
+        } finally {
+            mSqliteDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private void insertMessageWithImage(final long receivedTimestamp) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, receivedTimestamp);
+        message.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        final long messageId =
+                mSqliteDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+
+        final ContentValues text = new ContentValues();
+        text.put(PartColumns.MESSAGE_ID, messageId);
+        text.put(PartColumns.CONVERSATION_ID, mConversationId);
+        text.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        text.put(PartColumns.TEXT, "message " + messageId);
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, text);
+
+        final ContentValues image = new ContentValues();
+        image.put(PartColumns.MESSAGE_ID, messageId);
+        image.put(PartColumns.CONVERSATION_ID, mConversationId);
+        image.put(PartColumns.CONTENT_TYPE, ContentType.IMAGE_JPEG);
+        image.put(PartColumns.CONTENT_URI, "content://test/image/" + messageId);
+        image.put(PartColumns.WIDTH, 640);
+        image.put(PartColumns.HEIGHT, 480);
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, image);
+    }
+
+    public void testBindBenchmark() {
+        final ConversationMessageData data = new ConversationMessageData();
+
+        long startTime = SystemClock.elapsedRealtime();
+        final Cursor concatenated = mDatabase.rawQuery(
+                ConversationMessageData.getWearableQuerySql(), new String[] { mConversationId });
+        try {
+            while (concatenated.moveToNext()) {
+                data.bind(concatenated);
+            }
+        } finally {
+            concatenated.close();
+        }
+        final long concatenatedMillis = SystemClock.elapsedRealtime() - startTime;
+
+        startTime = SystemClock.elapsedRealtime();
+        final ConversationMessagesCursor paged =
+                new ConversationMessagesCursor(mDatabase, mConversationId, Integer.MAX_VALUE);
+        try {
+            while (paged.moveToNext()) {
+                data.bind(paged);
+            }
+        } finally {
+            paged.close();
+        }
+        final long pagedMillis = SystemClock.elapsedRealtime() - startTime;
+
+        LogUtil.i(TAG, "ConversationMessagesCursorBenchmark: binding " + MESSAGE_COUNT
+                + " messages took " + concatenatedMillis + "ms with group_concat'ed parts, "
+                + pagedMillis + "ms with a parts cursor");
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.MessagePartData;
+import com.android.messaging.util.ContentType;
+
+import java.util.List;
+
+@MediumTest
+public class ConversationMessagesCursorTest extends BugleTestCase {
+    // Spans a few pages, with a partial last page
+    private static final int MESSAGE_COUNT = ConversationMessagesCursor.PAGE_SIZE * 3 + 17;
+
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+    private String mConversationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mSqliteDatabase);
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "test");
+        mConversationId = Long.toString(
+                mSqliteDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation));
+        mSqliteDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                // Pairs of messages share a timestamp, so that ordering relies on the id too
+                insertMessage(1000L + i / 2, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+            }
+            // Drafts are not shown
+            insertMessage(5000L, MessageData.BUGLE_STATUS_OUTGOING_DRAFT);
+            mSqliteDatabase.setTransactionSuccessful();
+        } finally {
+            mSqliteDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private long insertMessage(final long receivedTimestamp, final int status) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, receivedTimestamp);
+        message.put(MessageColumns.STATUS, status);
+        final long messageId =
+                mSqliteDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+        final ContentValues part = new ContentValues();
+        part.put(PartColumns.MESSAGE_ID, messageId);
+        part.put(PartColumns.CONVERSATION_ID, mConversationId);
+        part.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        part.put(PartColumns.TEXT, "message " + messageId + " isn't 'quoted'|");
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, part);
+        return messageId;
+    }
+
+    private void insertImagePart(final long messageId) {
+        final ContentValues part = new ContentValues();
+        part.put(PartColumns.MESSAGE_ID, messageId);
+        part.put(PartColumns.CONVERSATION_ID, mConversationId);
+        part.put(PartColumns.CONTENT_TYPE, ContentType.IMAGE_JPEG);
+        part.put(PartColumns.CONTENT_URI, "content://test/image/" + messageId);
+        part.put(PartColumns.WIDTH, 640);
+        part.put(PartColumns.HEIGHT, 480);
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, part);
+    }
+
+    private void insertMessagesWithImages(final int count) {
+        mSqliteDatabase.delete(DatabaseHelper.MESSAGES_TABLE, null, null);
+        mSqliteDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final long messageId =
+                        insertMessage(1000L + i, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+                insertImagePart(messageId);
+            }
+            mSqliteDatabase.setTransactionSuccessful();
+        } finally {
+            mSqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * The group_concat'ed query, as the conversation messages were loaded before paging
+     */
+    private Cursor queryConcatenatedParts() {
+        return mDatabase.rawQuery(ConversationMessageData.getWearableQuerySql(),
+                new String[] { mConversationId });
+    }
+
+    private static long getId(final ConversationMessagesCursor cursor) {
+        return cursor.getLong(cursor.getColumnIndexOrThrow(MessageColumns._ID));
+    }
+
+    private ConversationMessagesCursor newCursor() {
+        return new ConversationMessagesCursor(mDatabase, mConversationId, Integer.MAX_VALUE);
+    }
+
+    public void testWalksAllMessagesNewestFirst() {
+        final ConversationMessagesCursor cursor = newCursor();
+        try {
+            assertEquals(MESSAGE_COUNT, cursor.getCount());
+            // All pages fit in the window, so they're loaded up front
+            assertEquals(4, cursor.getPageLoadCount());
+            long previousId = Long.MAX_VALUE;
+            int count = 0;
+            while (cursor.moveToNext()) {
+                final long id = getId(cursor);
+                assertTrue(id < previousId);
+                previousId = id;
+                count++;
+            }
+            assertEquals(MESSAGE_COUNT, count);
+            // Moving the cursor through loaded pages never queries
+            assertEquals(4, cursor.getPageLoadCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testCountsAllMessagesButLoadsWindowUpFront() {
+        final ConversationMessagesCursor all = newCursor();
+        final ConversationMessagesCursor windowed = new ConversationMessagesCursor(mDatabase,
+                mConversationId, ConversationMessagesCursor.PAGE_SIZE + 5);
+        try {
+            assertEquals(MESSAGE_COUNT, windowed.getCount());
+            assertEquals(2, windowed.getPageLoadCount());
+            assertEquals(MESSAGE_COUNT, windowed.getRowSnapshot().size());
+            // Older pages are loaded as the cursor reaches them
+            while (windowed.moveToNext()) {
+                assertTrue(all.moveToNext());
+                assertEquals(getId(all), getId(windowed));
+            }
+            assertFalse(all.moveToNext());
+            assertEquals(4, windowed.getPageLoadCount());
+        } finally {
+            all.close();
+            windowed.close();
+        }
+    }
+
+    public void testWindowOfFullPages() {
+        final ConversationMessagesCursor cursor = new ConversationMessagesCursor(mDatabase,
+                mConversationId, ConversationMessagesCursor.PAGE_SIZE * 2);
+        try {
+            assertEquals(MESSAGE_COUNT, cursor.getCount());
+            // Doesn't load a page past the window
+            assertEquals(2, cursor.getPageLoadCount());
+            assertTrue(cursor.moveToPosition(ConversationMessagesCursor.PAGE_SIZE * 2 - 1));
+            assertEquals(2, cursor.getPageLoadCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testJumpsToAnyPosition() {
+        final ConversationMessagesCursor walked = newCursor();
+        final ConversationMessagesCursor jumped = new ConversationMessagesCursor(mDatabase,
+                mConversationId, ConversationMessagesCursor.PAGE_SIZE);
+        try {
+            final long[] ids = new long[MESSAGE_COUNT];
+            while (walked.moveToNext()) {
+                ids[walked.getPosition()] = getId(walked);
+            }
+            // Jumping to the oldest message loads just its page, by keyset
+            assertTrue(jumped.moveToLast());
+            assertEquals(ids[MESSAGE_COUNT - 1], getId(jumped));
+            assertEquals(2, jumped.getPageLoadCount());
+            assertTrue(jumped.moveToPosition(ConversationMessagesCursor.PAGE_SIZE + 5));
+            assertEquals(ids[ConversationMessagesCursor.PAGE_SIZE + 5], getId(jumped));
+            assertTrue(jumped.moveToPosition(ConversationMessagesCursor.PAGE_SIZE * 2));
+            assertEquals(ids[ConversationMessagesCursor.PAGE_SIZE * 2], getId(jumped));
+            assertTrue(jumped.moveToPosition(ConversationMessagesCursor.PAGE_SIZE - 1));
+            assertEquals(ids[ConversationMessagesCursor.PAGE_SIZE - 1], getId(jumped));
+            assertEquals(4, jumped.getPageLoadCount());
+        } finally {
+            walked.close();
+            jumped.close();
+        }
+    }
+
+    public void testKeepsBoundedNumberOfPages() {
+        final int count = ConversationMessagesCursor.PAGE_SIZE
+                * (ConversationMessagesCursor.MAX_LOADED_PAGES + 2);
+        insertMessagesWithImages(count);
+        final ConversationMessagesCursor cursor = newCursor();
+        try {
+            assertEquals(count, cursor.getCount());
+            assertEquals(ConversationMessagesCursor.MAX_LOADED_PAGES,
+                    cursor.getPageLoadCount());
+            // Scroll up from the oldest message, as the conversation view does
+            assertTrue(cursor.moveToLast());
+            long previousId = 0;
+            do {
+                final long id = getId(cursor);
+                assertTrue(id > previousId);
+                previousId = id;
+                assertTrue(cursor.getLoadedPageCount()
+                        <= ConversationMessagesCursor.MAX_LOADED_PAGES);
+            } while (cursor.moveToPrevious());
+            // The newest pages were closed on the way down and loaded again on the way up
+            assertEquals(ConversationMessagesCursor.MAX_LOADED_PAGES * 2 + 2,
+                    cursor.getPageLoadCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBindsSameParts() {
+        insertMessagesWithImages(ConversationMessagesCursor.PAGE_SIZE + 10);
+        final ConversationMessagesCursor paged = newCursor();
+        final Cursor concatenated = queryConcatenatedParts();
+        try {
+            assertEquals(concatenated.getCount(), paged.getCount());
+            final ConversationMessageData expected = new ConversationMessageData();
+            final ConversationMessageData actual = new ConversationMessageData();
+            while (paged.moveToNext()) {
+                assertTrue(concatenated.moveToNext());
+                expected.bind(concatenated);
+                actual.bind(paged);
+                assertEquals(expected.getMessageId(), actual.getMessageId());
+                final List<MessagePartData> expectedParts = expected.getParts();
+                final List<MessagePartData> actualParts = actual.getParts();
+                assertEquals(2, actualParts.size());
+                assertEquals(expectedParts.size(), actualParts.size());
+                for (int i = 0; i < expectedParts.size(); i++) {
+                    final MessagePartData expectedPart = expectedParts.get(i);
+                    final MessagePartData actualPart = actualParts.get(i);
+                    assertEquals(expectedPart.getPartId(), actualPart.getPartId());
+                    assertEquals(expectedPart.getContentType(), actualPart.getContentType());
+                    assertEquals(expectedPart.getContentUri(), actualPart.getContentUri());
+                    assertEquals(expectedPart.getWidth(), actualPart.getWidth());
+                    assertEquals(expectedPart.getHeight(), actualPart.getHeight());
+                    assertEquals(expectedPart.getText(), actualPart.getText());
+                }
+            }
+        } finally {
+            paged.close();
+            concatenated.close();
+        }
+    }
+
+    public void testSnapshotFromLoadedPages() {
+        insertMessagesWithImages(ConversationMessagesCursor.PAGE_SIZE + 10);
+        final ConversationMessagesCursor before = newCursor();
+        final int changedPosition = ConversationMessagesCursor.PAGE_SIZE + 2;
+        assertTrue(before.moveToPosition(changedPosition));
+        final ContentValues values = new ContentValues();
+        values.put(PartColumns.WIDTH, 320);
+        mSqliteDatabase.update(DatabaseHelper.PARTS_TABLE, values,
+                PartColumns.MESSAGE_ID + "=? AND " + PartColumns.WIDTH + " > 0",
+                new String[] { String.valueOf(getId(before)) });
+        final ConversationMessagesCursor after = newCursor();
+        try {
+            final int pageLoadCount = after.getPageLoadCount();
+            final RowSnapshot beforeSnapshot = before.getRowSnapshot();
+            final RowSnapshot afterSnapshot = after.getRowSnapshot();
+            // Taken without any more queries
+            assertEquals(pageLoadCount, after.getPageLoadCount());
+            assertEquals(after.getCount(), afterSnapshot.size());
+            assertEquals(-1, after.getPosition());
+
+            // The message with the changed part and its neighbors
+            final int[] changed = new int[2];
+            afterSnapshot.diffFrom(beforeSnapshot).dispatchUpdatesTo(new ListUpdateCallback() {
+                @Override
+                public void onInserted(final int position, final int count) {
+                    fail("inserted " + position);
+                }
+
+                @Override
+                public void onRemoved(final int position, final int count) {
+                    fail("removed " + position);
+                }
+
+                @Override
+                public void onMoved(final int fromPosition, final int toPosition) {
+                    fail("moved " + fromPosition);
+                }
+
+                @Override
+                public void onChanged(final int position, final int count,
+                        final Object payload) {
+                    if (changed[1] == 0) {
+                        changed[0] = position;
+                    }
+                    changed[1] += count;
+                }
+            });
+            assertEquals(changedPosition - 1, changed[0]);
+            assertEquals(3, changed[1]);
+        } finally {
+            before.close();
+            after.close();
+        }
+    }
+
+    public void testSnapshotCoversMessagesNotLoaded() {
+        final int window = ConversationMessagesCursor.PAGE_SIZE;
+        final ConversationMessagesCursor before =
+                new ConversationMessagesCursor(mDatabase, mConversationId, window);
+        assertTrue(before.moveToLast());
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.STATUS,
+                MessageData.BUGLE_STATUS_INCOMING_EXPIRED_OR_NOT_AVAILABLE);
+        mSqliteDatabase.update(DatabaseHelper.MESSAGES_TABLE, values, MessageColumns._ID + "=?",
+                new String[] { String.valueOf(getId(before)) });
+        final ConversationMessagesCursor after =
+                new ConversationMessagesCursor(mDatabase, mConversationId, window);
+        try {
+            final RowSnapshot beforeSnapshot = before.getRowSnapshot();
+            final RowSnapshot afterSnapshot = after.getRowSnapshot();
+            // Taken without loading the older pages
+            assertEquals(1, after.getPageLoadCount());
+            assertEquals(MESSAGE_COUNT, afterSnapshot.size());
+
+            // The oldest message, whose status changed, and its neighbor
+            final int[] changed = new int[2];
+            afterSnapshot.diffFrom(beforeSnapshot).dispatchUpdatesTo(new ListUpdateCallback() {
+                @Override
+                public void onInserted(final int position, final int count) {
+                    fail("inserted " + position);
+                }
+
+                @Override
+                public void onRemoved(final int position, final int count) {
+                    fail("removed " + position);
+                }
+
+                @Override
+                public void onMoved(final int fromPosition, final int toPosition) {
+                    fail("moved " + fromPosition);
+                }
+
+                @Override
+                public void onChanged(final int position, final int count,
+                        final Object payload) {
+                    if (changed[1] == 0) {
+                        changed[0] = position;
+                    }
+                    changed[1] += count;
+                }
+            });
+            assertEquals(MESSAGE_COUNT - 2, changed[0]);
+            assertEquals(2, changed[1]);
+        } finally {
+            before.close();
+            after.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class DatabaseStatsTest extends BugleTestCase {
+
+    public void testNormalizeReplacesLiterals() {
+        assertEquals("SELECT _id FROM messages WHERE conversation_id=? AND text=?",
+                DatabaseStats.normalize("SELECT  _id FROM messages\n WHERE conversation_id=12 "
+                        + "AND text='it''s'"));
+        assertEquals("SELECT * FROM parts WHERE message_id IN (?)",
+                DatabaseStats.normalize("SELECT * FROM parts WHERE message_id IN (1, 2, 3)"));
+        assertEquals("SELECT * FROM parts WHERE message_id IN (?)",
+                DatabaseStats.normalize("SELECT * FROM parts WHERE message_id IN (?,?,?)"));
+        // Digits inside identifiers are kept
+        assertEquals("SELECT part1 FROM t2", DatabaseStats.normalize("SELECT part1 FROM t2"));
+    }
+
+    public void testSameShapeSharesHistogram() {
+        final DatabaseStats stats = new DatabaseStats(100);
+        assertFalse(stats.record("SELECT * FROM messages WHERE _id=1", 5000000L));
+        assertTrue(stats.record("SELECT * FROM messages WHERE _id=2", 150000000L));
+        stats.recordSlow("SELECT * FROM messages WHERE _id=2", 150000000L, "SCAN TABLE messages");
+
+        final StringWriter dump = new StringWriter();
+        stats.dump(new PrintWriter(dump));
+        final String output = dump.toString();
+        assertTrue(output, output.contains("2 ops"));
+        assertTrue(output, output.contains("SELECT * FROM messages WHERE _id=?"));
+        assertTrue(output, output.contains("SCAN TABLE messages"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Compares inserting 50k message rows through ContentValues with the typed bulk insert. Timings
+ * are logged rather than asserted.
+ */
+@LargeTest
+public class DatabaseWrapperBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_TAG;
+
+    private static final int MESSAGE_COUNT = 50000;
+
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        mSqliteDatabase.execSQL("CREATE TABLE " + DatabaseWrapperTest.TABLE
+                + " (_id INTEGER PRIMARY KEY, "
+                + "conversation_id INT, sender_id INT, received_timestamp INT, seen INT, "
+                + "read INT, sms_message_uri TEXT UNIQUE)");
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private long countRows() {
+        return mDatabase.queryNumEntries(DatabaseWrapperTest.TABLE, null, null);
+    }
+
+    public void testBulkInsertBenchmark() {
+        long startTime = SystemClock.elapsedRealtime();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                final ContentValues values = new ContentValues();
+                values.put(DatabaseWrapperTest.COLUMNS[0], i % 100);
+                values.put(DatabaseWrapperTest.COLUMNS[1], i % 50);
+                values.put(DatabaseWrapperTest.COLUMNS[2], 1000L + i);
+                values.put(DatabaseWrapperTest.COLUMNS[3], 1);
+                values.put(DatabaseWrapperTest.COLUMNS[4], 0);
+                values.put(DatabaseWrapperTest.COLUMNS[5], "content://sms/" + i);
+                mDatabase.insert(DatabaseWrapperTest.TABLE, null, values);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        final long contentValuesMillis = SystemClock.elapsedRealtime() - startTime;
+        assertEquals(MESSAGE_COUNT, countRows());
+        mDatabase.delete(DatabaseWrapperTest.TABLE, null, null);
+
+        startTime = SystemClock.elapsedRealtime();
+        mDatabase.beginTransaction();
+        try {
+            final DatabaseWrapper.BulkInsert insert = mDatabase.getBulkInsertInTransaction(
+                    DatabaseWrapperTest.TABLE, DatabaseWrapperTest.COLUMNS,
+                    SQLiteDatabase.CONFLICT_NONE);
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                insert.bindLong(1, i % 100)
+                        .bindLong(2, i % 50)
+                        .bindLong(3, 1000L + i)
+                        .bindLong(4, 1)
+                        .bindLong(5, 0)
+                        .bindString(6, "content://sms/" + i)
+                        .execute();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        final long bulkInsertMillis = SystemClock.elapsedRealtime() - startTime;
+        assertEquals(MESSAGE_COUNT, countRows());
+
+        LogUtil.i(TAG, "DatabaseWrapperBenchmark: " + MESSAGE_COUNT + " inserts took "
+                + contentValuesMillis + "ms with ContentValues, " + bulkInsertMillis
+                + "ms with bulk insert");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+@MediumTest
+public class DatabaseWrapperTest extends BugleTestCase {
+    static final String TABLE = "messages";
+    static final String[] COLUMNS = new String[] {
+        "conversation_id", "sender_id", "received_timestamp", "seen", "read", "sms_message_uri"
+    };
+
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        mSqliteDatabase.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY, "
+                + "conversation_id INT, sender_id INT, received_timestamp INT, seen INT, "
+                + "read INT, sms_message_uri TEXT UNIQUE)");
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private long countRows() {
+        return mDatabase.queryNumEntries(TABLE, null, null);
+    }
+
+    public void testStatementCacheReturnsSameStatement() {
+        mDatabase.beginTransaction();
+        try {
+            final String sql = "SELECT COUNT(*) FROM " + TABLE;
+            final SQLiteStatement statement = mDatabase.getStatementInTransaction(sql);
+            assertSame(statement, mDatabase.getStatementInTransaction(sql));
+            assertEquals(0, statement.simpleQueryForLong());
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    public void testBulkUpsertReplacesConflictingRow() {
+        mDatabase.beginTransaction();
+        try {
+            for (int read = 0; read < 2; read++) {
+                mDatabase.getBulkInsertInTransaction(TABLE, COLUMNS,
+                        SQLiteDatabase.CONFLICT_REPLACE)
+                        .bindLong(1, 1)
+                        .bindLong(2, 2)
+                        .bindLong(3, 1000)
+                        .bindLong(4, 1)
+                        .bindLong(5, read)
+                        .bindString(6, "content://sms/1")
+                        .execute();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        assertEquals(1, countRows());
+    }
+
+    public void testStatementDroppedFromCacheStaysOpenUntilTransactionEnds() {
+        final String sql = "SELECT COUNT(*) FROM " + TABLE;
+        SQLiteStatement statement;
+        mDatabase.beginTransaction();
+        try {
+            statement = mDatabase.getStatementInTransaction(sql);
+            // Push it out of the cache
+            for (int i = 0; i < 100; i++) {
+                mDatabase.getStatementInTransaction(sql + " WHERE _id > " + i);
+            }
+            assertNotSame(statement, mDatabase.getStatementInTransaction(sql));
+            assertEquals(0, statement.simpleQueryForLong());
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        mDatabase.beginTransaction();
+        try {
+            statement.simpleQueryForLong();
+            fail("statement dropped from the cache was not closed");
+        } catch (final IllegalStateException e) {
+            // Expected
+        } finally {
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Times building the frequent and the all contacts cursors (as the contact picker does on each
+ * load) for up to 50k contacts, after a few warm up builds. Timings are logged rather than
+ * asserted.
+ */
+@LargeTest
+public class FrequentContactsCursorBuilderBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+    private static final int[] CONTACT_COUNTS = new int[] { 1000, 10000, 50000 };
+    private static final int FREQUENT_COUNT = 50;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * An all contacts cursor with a mobile and a home number for each contact
+     */
+    private static Cursor makeAllContactsCursor(final int contactCount) {
+        final MatrixCursor cursor = new MatrixCursor(ContactUtil.PhoneQuery.PROJECTION);
+        for (int i = 0; i < contactCount; i++) {
+            final String lookupKey = "lookup" + i;
+            cursor.addRow(new Object[] { Long.valueOf(i), "Contact " + i, null,
+                    "(425) 555-" + i, Phone.TYPE_MOBILE,
+                    null, lookupKey, Long.valueOf(2 * i), "Contact " + i });
+            cursor.addRow(new Object[] { Long.valueOf(i), "Contact " + i, null,
+                    "(206) 555-" + i, Phone.TYPE_HOME,
+                    null, lookupKey, Long.valueOf(2 * i + 1), "Contact " + i });
+        }
+        return cursor;
+    }
+
+    private static Cursor makeFrequentsCursor(final int contactCount) {
+        final MatrixCursor cursor = new MatrixCursor(ContactUtil.FrequentContactQuery.PROJECTION);
+        for (int i = 0; i < FREQUENT_COUNT; i++) {
+            // Every so often through the whole list
+            final int contact = i * (contactCount / FREQUENT_COUNT);
+            cursor.addRow(new Object[] { Long.valueOf(contact), "Contact " + contact, null,
+                    "lookup" + contact });
+        }
+        return cursor;
+    }
+
+    public void testBuildBenchmark() {
+        for (final int contactCount : CONTACT_COUNTS) {
+            final FrequentContactsCursorBuilder builder = new FrequentContactsCursorBuilder()
+                    .setAllContacts(makeAllContactsCursor(contactCount))
+                    .setFrequents(makeFrequentsCursor(contactCount));
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                builder.build(false);
+                builder.build(true);
+            }
+            final long startTime = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertEquals(2 * FREQUENT_COUNT, builder.build(false).getCount());
+                assertEquals(2 * contactCount, builder.build(true).getCount());
+            }
+            final long averageMillis =
+                    (SystemClock.elapsedRealtime() - startTime) / ITERATIONS;
+            LogUtil.i(TAG, "FrequentContactsCursorBuilderBenchmark: building the contact lists for "
+                    + contactCount + " contacts took " + averageMillis + "ms");
+        }
+    }
+}
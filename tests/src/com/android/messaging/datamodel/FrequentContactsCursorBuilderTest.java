@@ -44,7 +44,9 @@ public class FrequentContactsCursorBuilderTest extends BugleTestCase {
                     actual.getString(ContactUtil.INDEX_DISPLAY_NAME));
             assertEquals(expected.getString(ContactUtil.INDEX_PHOTO_URI),
                     actual.getString(ContactUtil.INDEX_PHOTO_URI));
-            assertEquals(expected.getString(ContactUtil.INDEX_PHONE_EMAIL),
+            // Numbers are normalized to digits and '+'
+            assertEquals(FrequentContactsCursorBuilder.normalizeNumber(
+                    expected.getString(ContactUtil.INDEX_PHONE_EMAIL)),
                     actual.getString(ContactUtil.INDEX_PHONE_EMAIL));
             assertEquals(expected.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE),
                     actual.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE));
@@ -55,18 +57,18 @@ public class FrequentContactsCursorBuilderTest extends BugleTestCase {
 
     public void testIncompleteBuild() {
         final FrequentContactsCursorBuilder builder = new FrequentContactsCursorBuilder();
-        assertNull(builder.build());
-        assertNull(builder.setFrequents(TestDataFactory.getStrequentContactsCursor()).build());
+        assertNull(builder.build(false));
+        assertNull(builder.setFrequents(TestDataFactory.getStrequentContactsCursor()).build(false));
         builder.resetBuilder();
-        assertNull(builder.build());
-        assertNull(builder.setAllContacts(TestDataFactory.getAllContactListCursor()).build());
+        assertNull(builder.build(false));
+        assertNull(builder.setAllContacts(TestDataFactory.getAllContactListCursor()).build(false));
     }
 
     public void testBuildOnce() {
         final Cursor cursor = new FrequentContactsCursorBuilder()
             .setAllContacts(TestDataFactory.getAllContactListCursor())
             .setFrequents(TestDataFactory.getStrequentContactsCursor())
-            .build();
+            .build(false);
         assertNotNull(cursor);
         verifyBuiltCursor(TestDataFactory.getFrequentContactListCursor(), cursor);
     }
@@ -76,16 +78,46 @@ public class FrequentContactsCursorBuilderTest extends BugleTestCase {
         final Cursor firstCursor = builder
             .setAllContacts(TestDataFactory.getAllContactListCursor())
             .setFrequents(TestDataFactory.getStrequentContactsCursor())
-            .build();
+            .build(false);
         assertNotNull(firstCursor);
         builder.resetBuilder();
-        assertNull(builder.build());
+        assertNull(builder.build(false));
 
         final Cursor secondCursor = builder
                 .setAllContacts(TestDataFactory.getAllContactListCursor())
                 .setFrequents(TestDataFactory.getStrequentContactsCursor())
-                .build();
+                .build(false);
         assertNotNull(firstCursor);
         verifyBuiltCursor(TestDataFactory.getFrequentContactListCursor(), secondCursor);
     }
+
+    public void testNormalizeNumber() {
+        assertNull(FrequentContactsCursorBuilder.normalizeNumber(null));
+        assertEquals("+14255551234",
+                FrequentContactsCursorBuilder.normalizeNumber("+1 (425) 555-1234"));
+        final String clean = "4255551234";
+        assertSame(clean, FrequentContactsCursorBuilder.normalizeNumber(clean));
+        assertEquals("", FrequentContactsCursorBuilder.normalizeNumber("abc"));
+    }
+
+    public void testBuildAllContacts() {
+        final Cursor cursor = new FrequentContactsCursorBuilder()
+                .setAllContacts(TestDataFactory.getAllContactListCursor())
+                .setFrequents(TestDataFactory.getStrequentContactsCursor())
+                .build(true);
+        // Mike Jones has the same number and type as Anna Kinney, so only Anna's is kept
+        assertEquals(4, cursor.getCount());
+        final Cursor all = TestDataFactory.getAllContactListCursor();
+        for (int i = 0; i < cursor.getCount(); i++) {
+            assertTrue(all.moveToPosition(i));
+            assertTrue(cursor.moveToPosition(i));
+            assertEquals(all.getLong(ContactUtil.INDEX_DATA_ID),
+                    cursor.getLong(ContactUtil.INDEX_DATA_ID));
+            assertEquals(all.getString(ContactUtil.INDEX_DISPLAY_NAME),
+                    cursor.getString(ContactUtil.INDEX_DISPLAY_NAME));
+            assertEquals(all.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE),
+                    cursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE));
+        }
+        assertTrue(cursor.isNull(ContactUtil.INDEX_SORT_KEY));
+    }
 }
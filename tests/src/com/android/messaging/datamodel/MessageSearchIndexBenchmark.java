@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+
+import java.util.Random;
+
+/**
+ * Measures how fast messages are indexed as they are inserted, and how long searches take
+ * compared with scanning the parts table. Timings are logged rather than asserted.
+ */
+@LargeTest
+public class MessageSearchIndexBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_PERF_TAG;
+    private static final int BENCHMARK_MESSAGE_COUNT = 500000;
+    private static final String[] WORDS = new String[] {
+        "hello", "dinner", "tonight", "running", "late", "meeting", "call", "me", "when",
+        "you", "can", "thanks", "see", "tomorrow", "weekend", "plans", "birthday", "party",
+        "traffic", "home", "office", "lunch", "coffee", "movie", "tickets", "flight", "airport",
+    };
+
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+    private long mConversationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mSqliteDatabase);
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "test");
+        mConversationId =
+                mSqliteDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private void insertMessage(final long receivedTimestamp, final String text) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, receivedTimestamp);
+        message.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        final long messageId =
+                mSqliteDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+        final ContentValues part = new ContentValues();
+        part.put(PartColumns.MESSAGE_ID, messageId);
+        part.put(PartColumns.CONVERSATION_ID, mConversationId);
+        part.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        part.put(PartColumns.TEXT, text);
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, part);
+    }
+
+    private int countResults(final String query) {
+        final Cursor cursor = mDatabase.rawQuery(MessageSearchIndex.getQuerySql(),
+                new String[] { MessageSearchIndex.buildMatchExpression(query) });
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String makeText(final Random random) {
+        final StringBuilder text = new StringBuilder();
+        final int wordCount = 3 + random.nextInt(15);
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private long timeQuery(final String sql, final String arg) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final Cursor cursor = mDatabase.rawQuery(sql, new String[] { arg });
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    public void testSearchBenchmark() {
+        final Random random = new Random(0);
+        final long startTime = SystemClock.elapsedRealtime();
+        mSqliteDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < BENCHMARK_MESSAGE_COUNT; i++) {
+                insertMessage(1000L + i, makeText(random));
+            }
+            // A rare word, in a few messages only
+            insertMessage(1000L + BENCHMARK_MESSAGE_COUNT, "the zanzibar trip");
+            mSqliteDatabase.setTransactionSuccessful();
+        } finally {
+            mSqliteDatabase.endTransaction();
+        }
+        final long insertMillis = SystemClock.elapsedRealtime() - startTime;
+        LogUtil.i(TAG, "MessageSearchIndexBenchmark: inserting and indexing "
+                + BENCHMARK_MESSAGE_COUNT + " messages took " + insertMillis + "ms ("
+                + (BENCHMARK_MESSAGE_COUNT * 1000L / Math.max(insertMillis, 1)) + " messages/s)");
+
+        final String scanSql = "SELECT " + PartColumns._ID + " FROM "
+                + DatabaseHelper.PARTS_TABLE + " WHERE " + PartColumns.TEXT + " LIKE ? LIMIT "
+                + MessageSearchIndex.MAX_RESULTS;
+        for (final String query : new String[] { "zanzibar", "birthday party", "tick" }) {
+            final long searchMillis = timeQuery(MessageSearchIndex.getQuerySql(),
+                    MessageSearchIndex.buildMatchExpression(query));
+            final long scanMillis = timeQuery(scanSql, "%" + query + "%");
+            LogUtil.i(TAG, "MessageSearchIndexBenchmark: searching for '" + query + "' took "
+                    + searchMillis + "ms with the index, " + scanMillis + "ms scanning parts");
+        }
+        assertEquals(1, countResults("zanzibar"));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.MessageSearchIndex.Columns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.ContentType;
+
+@MediumTest
+public class MessageSearchIndexTest extends BugleTestCase {
+    private SQLiteDatabase mSqliteDatabase;
+    private DatabaseWrapper mDatabase;
+    private long mConversationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mSqliteDatabase = SQLiteDatabase.create(null);
+        DatabaseHelper.rebuildTables(mSqliteDatabase);
+        mDatabase = new DatabaseWrapper(getTestContext(), mSqliteDatabase);
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "test");
+        mConversationId =
+                mSqliteDatabase.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSqliteDatabase.close();
+        super.tearDown();
+    }
+
+    private long insertMessage(final long receivedTimestamp, final int status,
+            final String text) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, receivedTimestamp);
+        message.put(MessageColumns.STATUS, status);
+        final long messageId =
+                mSqliteDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+        final ContentValues part = new ContentValues();
+        part.put(PartColumns.MESSAGE_ID, messageId);
+        part.put(PartColumns.CONVERSATION_ID, mConversationId);
+        part.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        part.put(PartColumns.TEXT, text);
+        mSqliteDatabase.insert(DatabaseHelper.PARTS_TABLE, null, part);
+        return messageId;
+    }
+
+    private long insertMessage(final long receivedTimestamp, final String text) {
+        return insertMessage(receivedTimestamp, MessageData.BUGLE_STATUS_INCOMING_COMPLETE, text);
+    }
+
+    private Cursor search(final String query) {
+        return mDatabase.rawQuery(MessageSearchIndex.getQuerySql(),
+                new String[] { MessageSearchIndex.buildMatchExpression(query) });
+    }
+
+    private int countResults(final String query) {
+        final Cursor cursor = search(query);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBuildMatchExpression() {
+        assertNull(MessageSearchIndex.buildMatchExpression(null));
+        assertNull(MessageSearchIndex.buildMatchExpression("  \" "));
+        assertEquals("\"din*\"", MessageSearchIndex.buildMatchExpression("din"));
+        assertEquals("\"dinner\" \"to*\"",
+                MessageSearchIndex.buildMatchExpression(" dinner  \"to "));
+        // Operators are searched for as words
+        assertEquals("\"a\" \"OR\" \"-b*\"", MessageSearchIndex.buildMatchExpression("a OR -b"));
+    }
+
+    public void testSearchRanksAndSnippets() {
+        final long older = insertMessage(1000L, "dinner tonight? dinner at eight");
+        final long newer = insertMessage(2000L, "about dinner");
+        insertMessage(3000L, "lunch instead");
+        insertMessage(4000L, MessageData.BUGLE_STATUS_OUTGOING_DRAFT, "draft dinner");
+
+        final Cursor cursor = search("dinn");
+        try {
+            // Drafts are not found, and the message mentioning dinner twice comes first
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToNext());
+            assertEquals(older, cursor.getLong(cursor.getColumnIndexOrThrow(Columns.MESSAGE_ID)));
+            assertEquals(2, cursor.getInt(cursor.getColumnIndexOrThrow(Columns.MATCH_COUNT)));
+            assertEquals("test",
+                    cursor.getString(cursor.getColumnIndexOrThrow(Columns.CONVERSATION_NAME)));
+            final String snippet = cursor.getString(cursor.getColumnIndexOrThrow(Columns.SNIPPET));
+            assertTrue(snippet, snippet.contains(MessageSearchIndex.SNIPPET_MATCH_START + "dinner"
+                    + MessageSearchIndex.SNIPPET_MATCH_END));
+            assertTrue(cursor.moveToNext());
+            assertEquals(newer, cursor.getLong(cursor.getColumnIndexOrThrow(Columns.MESSAGE_ID)));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, countResults("dinner eight"));
+        assertEquals(0, countResults("dinner \"breakfast"));
+    }
+
+    public void testIndexFollowsParts() {
+        final long messageId = insertMessage(1000L, "see you tomorrow");
+        assertEquals(1, countResults("tomorrow"));
+
+        final ContentValues text = new ContentValues();
+        text.put(PartColumns.TEXT, "see you next week");
+        mSqliteDatabase.update(DatabaseHelper.PARTS_TABLE, text,
+                PartColumns.MESSAGE_ID + "=?", new String[] { Long.toString(messageId) });
+        assertEquals(0, countResults("tomorrow"));
+        assertEquals(1, countResults("week"));
+
+        // Deleting the message deletes its parts
+        mSqliteDatabase.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + "=?",
+                new String[] { Long.toString(messageId) });
+        assertEquals(0, countResults("week"));
+
+        // Rebuilding from the parts table gives the same index
+        insertMessage(2000L, "see you tomorrow");
+        mSqliteDatabase.execSQL(MessageSearchIndex.getRebuildSql());
+        assertEquals(1, countResults("tomorrow"));
+        assertEquals(0, countResults("week"));
+    }
+
+    public void testSearchFoldsCaseAndAccents() {
+        insertMessage(1000L, "Café au lait at ÉCOLE");
+        assertEquals(1, countResults("café"));
+        final String createSql = DatabaseUtils.stringForQuery(mSqliteDatabase,
+                "SELECT sql FROM sqlite_master WHERE name=?",
+                new String[] { MessageSearchIndex.getTableName() });
+        if (!createSql.contains("unicode61")) {
+            // The simple tokenizer this falls back to only folds ASCII
+            return;
+        }
+        assertEquals(1, countResults("CAFÉ"));
+        assertEquals(1, countResults("cafe"));
+        assertEquals(1, countResults("ecole"));
+    }
+}
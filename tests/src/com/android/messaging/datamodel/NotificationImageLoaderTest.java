@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.graphics.Bitmap;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class NotificationImageLoaderTest extends BugleTestCase {
+    private static final Executor NEW_THREAD = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            new Thread(runnable).start();
+        }
+    };
+
+    private static NotificationImageLoader.ImageLoad newLoad(final Bitmap bitmap,
+            final CountDownLatch release) {
+        return new NotificationImageLoader.ImageLoad() {
+            @Override
+            public Bitmap load() {
+                if (release != null) {
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        return null;
+                    }
+                }
+                return bitmap;
+            }
+        };
+    }
+
+    public void testAllLoadedInTime() {
+        final Bitmap avatar = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        final NotificationImageLoader loader = new NotificationImageLoader(NEW_THREAD);
+        final int avatarIndex = loader.add(newLoad(avatar, null));
+        final int failedIndex = loader.add(newLoad(null, null));
+        loader.start();
+
+        assertTrue(loader.await(10000));
+        assertSame(avatar, loader.getBitmap(avatarIndex));
+        assertNull(loader.getBitmap(failedIndex));
+        assertTrue(loader.isLoaded(failedIndex));
+        // Images a notification doesn't have
+        assertNull(loader.getBitmap(-1));
+        assertTrue(loader.isLoaded(-1));
+
+        final boolean[] ran = new boolean[1];
+        loader.runWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertTrue(ran[0]);
+    }
+
+    public void testLateImages() throws Exception {
+        final Bitmap avatar = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        final Bitmap picture = Bitmap.createBitmap(2, 2, Bitmap.Config.ARGB_8888);
+        final CountDownLatch release = new CountDownLatch(1);
+        final NotificationImageLoader loader = new NotificationImageLoader(NEW_THREAD);
+        final int avatarIndex = loader.add(newLoad(avatar, null));
+        final int pictureIndex = loader.add(newLoad(picture, release));
+        loader.start();
+
+        assertFalse(loader.await(100));
+        assertTrue(loader.isLoaded(avatarIndex));
+        assertSame(avatar, loader.getBitmap(avatarIndex));
+        assertFalse(loader.isLoaded(pictureIndex));
+        assertNull(loader.getBitmap(pictureIndex));
+
+        final CountDownLatch updated = new CountDownLatch(1);
+        loader.runWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                assertSame(picture, loader.getBitmap(pictureIndex));
+                updated.countDown();
+            }
+        });
+        assertEquals(1, updated.getCount());
+        release.countDown();
+        assertTrue(updated.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.MatrixCursor;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class RowSnapshotTest extends BugleTestCase {
+    private static final String[] COLUMNS = new String[] { "_id", "snippet" };
+
+    private static RowSnapshot snapshotOf(final Object[]... rows) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (final Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return RowSnapshot.create(cursor);
+    }
+
+    /**
+     * Records the updates dispatched by a diff as strings
+     */
+    private static class RecordingCallback implements ListUpdateCallback {
+        final List<String> mUpdates = new ArrayList<String>();
+
+        @Override
+        public void onInserted(final int position, final int count) {
+            mUpdates.add("insert " + position + " " + count);
+        }
+
+        @Override
+        public void onRemoved(final int position, final int count) {
+            mUpdates.add("remove " + position + " " + count);
+        }
+
+        @Override
+        public void onMoved(final int fromPosition, final int toPosition) {
+            mUpdates.add("move " + fromPosition + " " + toPosition);
+        }
+
+        @Override
+        public void onChanged(final int position, final int count, final Object payload) {
+            mUpdates.add("change " + position + " " + count);
+        }
+    }
+
+    private static List<String> diff(final RowSnapshot from, final RowSnapshot to) {
+        final RecordingCallback callback = new RecordingCallback();
+        to.diffFrom(from).dispatchUpdatesTo(callback);
+        return callback.mUpdates;
+    }
+
+    public void testUnchangedRowsAreNotUpdated() {
+        final RowSnapshot before = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" }, new Object[] { 3, null });
+        final RowSnapshot after = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" }, new Object[] { 3, null });
+        assertTrue(diff(before, after).isEmpty());
+    }
+
+    public void testIncomingMessageMovesConversationToTop() {
+        final RowSnapshot before = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" }, new Object[] { 3, "c" });
+        // Conversation 3 gets a new message, so its snippet changes and it moves to the top
+        final RowSnapshot after = snapshotOf(
+                new Object[] { 3, "new" }, new Object[] { 1, "a" }, new Object[] { 2, "b" });
+        final List<String> updates = diff(before, after);
+        // Only the one row is moved and rebound
+        assertEquals(updates.toString(), 2, updates.size());
+        assertTrue(updates.toString(), updates.get(0).startsWith("move")
+                || updates.get(1).startsWith("move"));
+        assertTrue(updates.toString(), updates.contains("change 0 1"));
+    }
+
+    public void testInsertAndRemove() {
+        final RowSnapshot before = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" });
+        final RowSnapshot after = snapshotOf(
+                new Object[] { 2, "b" }, new Object[] { 4, "d" });
+        final List<String> updates = diff(before, after);
+        // Updates are dispatched from the end of the list backwards
+        assertTrue(updates.toString(), updates.contains("insert 2 1"));
+        assertTrue(updates.toString(), updates.contains("remove 0 1"));
+        assertEquals(2, updates.size());
+    }
+
+    public void testNeighborsAndReverse() {
+        final RowSnapshot before = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" }).includeNeighbors();
+        final RowSnapshot after = snapshotOf(
+                new Object[] { 1, "a" }, new Object[] { 2, "b" }, new Object[] { 3, "c" })
+                .includeNeighbors();
+        // The row next to the new one is redrawn too
+        final List<String> updates = diff(before, after);
+        assertTrue(updates.toString(), updates.contains("insert 2 1"));
+        assertTrue(updates.toString(), updates.contains("change 1 1"));
+        assertEquals(2, updates.size());
+
+        assertTrue(diff(after.reverse(), after.reverse()).isEmpty());
+        assertEquals(3, after.reverse().size());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class SyncBatchSizeControllerTest extends BugleTestCase {
+    private static final long TARGET_MILLIS = 400;
+    private static final long UI_LIMIT_MILLIS = 100;
+    private static final int MIN = 80;
+    private static final int MAX = 1000;
+
+    private static int write(final SyncBatchSizeController controller, final int messages,
+            final long txnTimeMillis, final long uiQueryTimeMillis) {
+        return controller.onBatchWritten(messages, txnTimeMillis, uiQueryTimeMillis,
+                TARGET_MILLIS, UI_LIMIT_MILLIS, MIN, MAX);
+    }
+
+    public void testIncreasesAdditivelyWithinTarget() {
+        final SyncBatchSizeController controller = new SyncBatchSizeController();
+        assertEquals(MIN + MIN, write(controller, MIN, 40, 0));
+        assertEquals(MIN * 3, write(controller, MIN * 2, 80, 0));
+    }
+
+    public void testDecreasesMultiplicativelyOverTarget() {
+        final SyncBatchSizeController controller = new SyncBatchSizeController();
+        write(controller, 800, 200, 0);
+        // Slow transaction halves the batch
+        assertEquals(440, write(controller, 800, 600, 0));
+    }
+
+    public void testDecreasesOnSlowUiQuery() {
+        final SyncBatchSizeController controller = new SyncBatchSizeController();
+        write(controller, 400, 40, 0);
+        assertEquals(240, write(controller, 480, 48, UI_LIMIT_MILLIS + 1));
+    }
+
+    public void testClampedToLimits() {
+        final SyncBatchSizeController controller = new SyncBatchSizeController();
+        assertEquals(MIN, write(controller, 100, 10000, 0));
+        for (int i = 0; i < 50; i++) {
+            write(controller, controller.getBatchSize(), 1, 0);
+        }
+        assertEquals(MAX, controller.getBatchSize());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+@SmallTest
+public class SyncChangeJournalTest extends BugleTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+    }
+
+    public void testGetRowId() {
+        assertEquals(12, SyncChangeJournal.getRowId(Uri.parse("content://sms/12")));
+        assertEquals(7, SyncChangeJournal.getRowId(Uri.parse("content://sms/inbox/7")));
+        assertEquals(3, SyncChangeJournal.getRowId(Uri.parse("content://mms/3")));
+        assertEquals(-1, SyncChangeJournal.getRowId(Uri.parse("content://mms-sms/")));
+        assertEquals(-1, SyncChangeJournal.getRowId(Uri.parse("content://sms/inbox")));
+        assertEquals(-1, SyncChangeJournal.getRowId(Uri.parse("content://sms/conversations/3")));
+        assertEquals(-1, SyncChangeJournal.getRowId(Uri.parse("content://mms/part/5")));
+        assertEquals(-1, SyncChangeJournal.getRowId(null));
+    }
+
+    public void testUsableOnlyAfterConsistencyCheck() {
+        final SyncChangeJournal journal = new SyncChangeJournal();
+        journal.onChange(Uri.parse("content://sms/12"));
+        assertFalse(journal.isUsable(1000L));
+
+        journal.onConsistencyCheck(1000L);
+        assertFalse(journal.hasPendingChanges());
+        journal.onChange(Uri.parse("content://sms/12"));
+        journal.onChange(Uri.parse("content://mms/4"));
+        assertTrue(journal.isUsable(2000L));
+
+        final long[] smsIds = journal.drainSmsIds();
+        final long[] mmsIds = journal.drainMmsIds();
+        assertEquals(1, smsIds.length);
+        assertEquals(12, smsIds[0]);
+        assertEquals(1, mmsIds.length);
+        assertEquals(4, mmsIds[0]);
+        assertFalse(journal.hasPendingChanges());
+    }
+
+    public void testUnknownChangeOverflows() {
+        final SyncChangeJournal journal = new SyncChangeJournal();
+        journal.onConsistencyCheck(1000L);
+        journal.onChange(Uri.parse("content://sms/12"));
+        journal.onChange(Uri.parse("content://sms/conversations/3"));
+        assertTrue(journal.hasPendingChanges());
+        assertFalse(journal.isUsable(2000L));
+    }
+
+    public void testMmsSmsCompanionNotificationsIgnored() {
+        final SyncChangeJournal journal = new SyncChangeJournal();
+        journal.onConsistencyCheck(1000L);
+        // What telephony sends for a new SMS and a new MMS
+        journal.onChange(Uri.parse("content://sms/12"));
+        journal.onChange(Uri.parse("content://mms-sms/"));
+        journal.onChange(Uri.parse("content://mms-sms/conversations/"));
+        journal.onChange(Uri.parse("content://mms/4"));
+        journal.onChange(Uri.parse("content://mms-sms/"));
+        assertTrue(journal.isUsable(2000L));
+        assertEquals(1, journal.drainSmsIds().length);
+        assertEquals(1, journal.drainMmsIds().length);
+    }
+
+    public void testMmsSmsOnlyChangeLeavesNothingPending() {
+        final SyncChangeJournal journal = new SyncChangeJournal();
+        journal.onConsistencyCheck(1000L);
+        journal.onChange(Uri.parse("content://mms-sms/"));
+        // So the sync it triggers diffs the cursor pair
+        assertFalse(journal.hasPendingChanges());
+        assertFalse(journal.isUsable(2000L));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class ActionCoalescerTest extends BugleTestCase {
+    private static final String KEY_COUNT = "count";
+
+    private static class CountingAction extends Action {
+        private final String mCoalescingKey;
+
+        CountingAction(final String coalescingKey) {
+            mCoalescingKey = coalescingKey;
+            actionParameters.putInt(KEY_COUNT, 1);
+        }
+
+        @Override
+        protected String getCoalescingKey() {
+            return mCoalescingKey;
+        }
+
+        @Override
+        protected void coalesce(final Action duplicate) {
+            actionParameters.putInt(KEY_COUNT, actionParameters.getInt(KEY_COUNT)
+                    + duplicate.actionParameters.getInt(KEY_COUNT));
+        }
+
+        @Override
+        public void writeToParcel(final Parcel parcel, final int flags) {
+            writeActionToParcel(parcel, flags);
+        }
+    }
+
+    public void testDuplicatesMergeIntoPendingAction() {
+        final ActionCoalescer coalescer = new ActionCoalescer();
+        final CountingAction first = new CountingAction("key");
+        assertFalse(coalescer.coalesce(first));
+        for (int i = 0; i < 9; i++) {
+            assertTrue(coalescer.coalesce(new CountingAction("key")));
+        }
+        assertFalse(coalescer.coalesce(new CountingAction("other")));
+        assertEquals(10, first.actionParameters.getInt(KEY_COUNT));
+        assertEquals(9, coalescer.getSavedExecutions(CountingAction.class));
+    }
+
+    public void testNoMergeOnceExecutionStarted() {
+        final ActionCoalescer coalescer = new ActionCoalescer();
+        final CountingAction first = new CountingAction("key");
+        assertFalse(coalescer.coalesce(first));
+        coalescer.onExecutionStarting(first);
+        final CountingAction second = new CountingAction("key");
+        assertFalse(coalescer.coalesce(second));
+        assertTrue(coalescer.coalesce(new CountingAction("key")));
+        assertEquals(1, first.actionParameters.getInt(KEY_COUNT));
+        assertEquals(2, second.actionParameters.getInt(KEY_COUNT));
+    }
+
+    public void testActionsWithoutKeyNeverMerge() {
+        final ActionCoalescer coalescer = new ActionCoalescer();
+        assertFalse(coalescer.coalesce(new CountingAction(null)));
+        assertFalse(coalescer.coalesce(new CountingAction(null)));
+        assertEquals(0, coalescer.getSavedExecutions(CountingAction.class));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ActionExecutionLanesTest extends BugleTestCase {
+
+    private static class LaneTestAction extends Action {
+        private final int mLane;
+        private final String mOrderingKey;
+
+        LaneTestAction(final int lane, final String orderingKey) {
+            mLane = lane;
+            mOrderingKey = orderingKey;
+        }
+
+        @Override
+        protected int getLane() {
+            return mLane;
+        }
+
+        @Override
+        protected String getOrderingKey() {
+            return mOrderingKey;
+        }
+
+        @Override
+        public void writeToParcel(final Parcel parcel, final int flags) {
+            writeActionToParcel(parcel, flags);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+    }
+
+    public void testSameOrderingKeyRunsInOrder() throws InterruptedException {
+        final ActionExecutionLanes lanes = new ActionExecutionLanes("test", 4, 1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final int count = 20;
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            lanes.execute(new LaneTestAction(Action.LANE_INTERACTIVE, "conversation:1"),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            order.add(index);
+                            done.countDown();
+                        }
+                    });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    public void testBusyBulkLaneDoesNotBlockInteractive() throws InterruptedException {
+        final ActionExecutionLanes lanes = new ActionExecutionLanes("test", 1, 1);
+        final CountDownLatch releaseBulk = new CountDownLatch(1);
+        final CountDownLatch interactiveDone = new CountDownLatch(1);
+        lanes.execute(new LaneTestAction(Action.LANE_BULK, "sync"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseBulk.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        lanes.execute(new LaneTestAction(Action.LANE_INTERACTIVE, "send"), new Runnable() {
+            @Override
+            public void run() {
+                interactiveDone.countDown();
+            }
+        });
+        assertTrue(interactiveDone.await(1, TimeUnit.SECONDS));
+        releaseBulk.countDown();
+    }
+
+    public void testOrderingKeyAppliesAcrossLanes() throws InterruptedException {
+        final ActionExecutionLanes lanes = new ActionExecutionLanes("test", 2, 1, 1);
+        final CountDownLatch releaseBulk = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+        lanes.execute(new LaneTestAction(Action.LANE_BULK, "conversation:1"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseBulk.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add("delete");
+                done.countDown();
+            }
+        });
+        lanes.execute(new LaneTestAction(Action.LANE_SEND, "conversation:1"), new Runnable() {
+            @Override
+            public void run() {
+                order.add("send");
+                done.countDown();
+            }
+        });
+        // The send lane is idle, but the send has to wait for the bulk stage
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(order.isEmpty());
+        releaseBulk.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("delete", order.get(0));
+        assertEquals("send", order.get(1));
+    }
+
+    public void testAwaitIdleOrQueuedWork() throws InterruptedException {
+        final ActionExecutionLanes lanes = new ActionExecutionLanes("test", 1, 1);
+        assertTrue(lanes.awaitIdleOrQueuedWork(0));
+
+        final CountDownLatch release = new CountDownLatch(1);
+        lanes.execute(new LaneTestAction(Action.LANE_BULK, "sync"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // Busy with nothing else queued: the service has to keep its job open
+        assertFalse(lanes.awaitIdleOrQueuedWork(50));
+        // More work queued: the service can move on to it
+        lanes.onWorkQueued();
+        assertTrue(lanes.awaitIdleOrQueuedWork(50));
+        lanes.onWorkDequeued();
+        assertFalse(lanes.awaitIdleOrQueuedWork(50));
+        // Drained
+        release.countDown();
+        assertTrue(lanes.awaitIdleOrQueuedWork(5000));
+    }
+}
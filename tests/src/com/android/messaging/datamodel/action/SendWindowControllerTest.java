@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class SendWindowControllerTest extends BugleTestCase {
+    private static final int MAX_WINDOW = 4;
+    private static final int SUB_1 = 1;
+    private static final int SUB_2 = 2;
+
+    public void testWindowHalvesOnFailureAndGrowsBack() {
+        final SendWindowController controller = new SendWindowController();
+        assertEquals(MAX_WINDOW, controller.getWindow(SUB_1, MAX_WINDOW));
+
+        controller.onSendResult(SUB_1, false /* succeeded */, MAX_WINDOW);
+        assertEquals(2, controller.getWindow(SUB_1, MAX_WINDOW));
+        controller.onSendResult(SUB_1, false /* succeeded */, MAX_WINDOW);
+        controller.onSendResult(SUB_1, false /* succeeded */, MAX_WINDOW);
+        // Never below one message at a time
+        assertEquals(1, controller.getWindow(SUB_1, MAX_WINDOW));
+        // Other subscriptions are unaffected
+        assertEquals(MAX_WINDOW, controller.getWindow(SUB_2, MAX_WINDOW));
+
+        controller.onSendResult(SUB_1, true /* succeeded */, MAX_WINDOW);
+        assertEquals(2, controller.getWindow(SUB_1, MAX_WINDOW));
+        for (int i = 0; i < MAX_WINDOW; i++) {
+            controller.onSendResult(SUB_1, true /* succeeded */, MAX_WINDOW);
+        }
+        assertEquals(MAX_WINDOW, controller.getWindow(SUB_1, MAX_WINDOW));
+
+        // Lowering the max takes effect straight away
+        assertEquals(1, controller.getWindow(SUB_1, 1));
+    }
+
+    public void testOutboxDrainTime() {
+        final SendWindowController controller = new SendWindowController();
+        controller.onOutboxState(SUB_1, 0, 1000);
+        assertEquals(0, controller.getDrainCount(SUB_1));
+
+        controller.onOutboxState(SUB_1, 3, 1000);
+        controller.onSendResult(SUB_1, true /* succeeded */, MAX_WINDOW);
+        controller.onOutboxState(SUB_1, 2, 1500);
+        controller.onOutboxState(SUB_1, 0, 3000);
+        assertEquals(1, controller.getDrainCount(SUB_1));
+        assertEquals(2000, controller.getAverageDrainMillis(SUB_1));
+
+        controller.onOutboxState(SUB_1, 1, 5000);
+        controller.onOutboxState(SUB_1, 0, 6000);
+        assertEquals(2, controller.getDrainCount(SUB_1));
+        assertEquals(1500, controller.getAverageDrainMillis(SUB_1));
+        assertEquals(0, controller.getDrainCount(SUB_2));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import androidx.collection.LongSparseArray;
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.sms.MmsUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class SyncMmsPrefetchTest extends BugleTestCase {
+    private static LongSparseArray<Object> makeIds(final long[] ids) {
+        final LongSparseArray<Object> mmses = new LongSparseArray<Object>();
+        for (final long id : ids) {
+            mmses.put(id, Boolean.TRUE);
+        }
+        return mmses;
+    }
+
+    private static SyncMmsPrefetch.QueryPlan plan(final LongSparseArray<Object> mmses) {
+        return SyncMmsPrefetch.planQueries(mmses, SyncMmsPrefetch.MAX_RANGE_GAP,
+                MmsUtils.MAX_IDS_PER_QUERY);
+    }
+
+    private static void assertCovered(final LongSparseArray<Object> mmses,
+            final SyncMmsPrefetch.QueryPlan plan) {
+        for (int i = 0; i < mmses.size(); i++) {
+            final long id = mmses.keyAt(i);
+            boolean covered = false;
+            for (int r = 0; r < plan.mRanges.length; r += 2) {
+                covered |= (id >= plan.mRanges[r] && id <= plan.mRanges[r + 1]);
+            }
+            for (final String[] ids : plan.mIdLists) {
+                assertTrue(ids.length <= MmsUtils.MAX_IDS_PER_QUERY);
+                covered |= Arrays.asList(ids).contains(Long.toString(id));
+            }
+            assertTrue("id " + id + " not covered", covered);
+        }
+    }
+
+    public void testPlanQueriesEmpty() {
+        assertEquals(0, plan(makeIds(new long[0])).getQueryCount());
+    }
+
+    public void testPlanQueriesSplitsOnGap() {
+        final SyncMmsPrefetch.QueryPlan plan = SyncMmsPrefetch.planQueries(
+                makeIds(new long[] { 1, 2, 3, 50, 200, 201, 300 }), 64, 3);
+        // Runs of at least 3 ids are ranges, the rest go into IN lists
+        assertEquals(2, plan.mRanges.length);
+        assertEquals(1, plan.mRanges[0]);
+        assertEquals(50, plan.mRanges[1]);
+        assertEquals(1, plan.mIdLists.size());
+        assertEquals(Arrays.asList("200", "201", "300"), Arrays.asList(plan.mIdLists.get(0)));
+    }
+
+    /**
+     * Part queries for a few typical id layouts of a 1000 message sync batch never outnumber one
+     * IN list per {@link MmsUtils#MAX_IDS_PER_QUERY} ids.
+     */
+    public void testNeverMoreQueriesThanInLists() {
+        final int count = 1000;
+        final Random random = new Random(42);
+
+        final long[] contiguous = new long[count];
+        final long[] interleaved = new long[count];
+        final long[] sparse = new long[count];
+        final long[] mixed = new long[count];
+        long interleavedId = 1;
+        long sparseId = 1;
+        long mixedId = 1;
+        for (int i = 0; i < count; i++) {
+            contiguous[i] = i + 1;
+            // Other MMS (e.g. drafts or messages outside the window) between batch messages
+            interleavedId += 1 + random.nextInt(8);
+            interleaved[i] = interleavedId;
+            // Mostly far apart, e.g. an incremental window over a long history
+            sparseId += 1 + random.nextInt(1000);
+            sparse[i] = sparseId;
+            // Runs of a few messages far apart
+            mixedId += (i % 10 == 0) ? 100 + random.nextInt(1000) : 1;
+            mixed[i] = mixedId;
+        }
+
+        final int inListQueries =
+                (count + MmsUtils.MAX_IDS_PER_QUERY - 1) / MmsUtils.MAX_IDS_PER_QUERY;
+        for (final long[] ids : new long[][] { contiguous, interleaved, sparse, mixed }) {
+            final LongSparseArray<Object> mmses = makeIds(ids);
+            final SyncMmsPrefetch.QueryPlan plan = plan(mmses);
+            assertCovered(mmses, plan);
+            assertTrue(plan.getQueryCount() <= inListQueries);
+        }
+        assertEquals(1, plan(makeIds(contiguous)).getQueryCount());
+        assertEquals(1, plan(makeIds(interleaved)).getQueryCount());
+        assertEquals(inListQueries, plan(makeIds(sparse)).getQueryCount());
+    }
+
+    public void testNeverMoreQueriesThanInListsForAnyCount() {
+        final Random random = new Random(7);
+        for (int count = 1; count <= 3 * MmsUtils.MAX_IDS_PER_QUERY; count += 7) {
+            final long[] ids = new long[count];
+            long id = 1;
+            for (int i = 0; i < count; i++) {
+                id += 1 + (random.nextBoolean() ? 0 : random.nextInt(200));
+                ids[i] = id;
+            }
+            final LongSparseArray<Object> mmses = makeIds(ids);
+            final SyncMmsPrefetch.QueryPlan plan = plan(mmses);
+            assertCovered(mmses, plan);
+            assertTrue(plan.getQueryCount() <= (count + MmsUtils.MAX_IDS_PER_QUERY - 1)
+                    / MmsUtils.MAX_IDS_PER_QUERY);
+        }
+    }
+}
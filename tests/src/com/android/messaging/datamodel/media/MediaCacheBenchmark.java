@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.LogUtil;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares cache hit throughput at 1, 4 and 10 threads (the size of the media loading executor)
+ * against a single synchronized LruCache, as MediaCache used to be. Timings are logged rather
+ * than asserted.
+ */
+@LargeTest
+public class MediaCacheBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+    private static final int KB = 1024;
+    private static final int ENTRY_COUNT = 64;
+    private static final int HITS_PER_THREAD = 100000;
+
+    private static String keyFor(final int i) {
+        return "image" + i;
+    }
+
+    public void testHitThroughputBenchmark() throws InterruptedException {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(ENTRY_COUNT, 0, "TestCache");
+        final SynchronizedCache baseline = new SynchronizedCache(ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.addResourceToCache(keyFor(i), new FakeImageResource(1 * KB, keyFor(i)));
+            baseline.addResourceToCache(keyFor(i), new FakeImageResource(1 * KB, keyFor(i)));
+        }
+
+        for (final int threads : new int[] { 1, 4, 10 }) {
+            final long baselineMillis = runHits(threads, new Fetcher() {
+                @Override
+                public FakeImageResource fetch(final String key) {
+                    return baseline.fetchResourceFromCache(key);
+                }
+            });
+            final long stripedMillis = runHits(threads, new Fetcher() {
+                @Override
+                public FakeImageResource fetch(final String key) {
+                    return cache.fetchResourceFromCache(key);
+                }
+            });
+            LogUtil.i(TAG, "MediaCacheBenchmark: " + threads + " threads x " + HITS_PER_THREAD
+                    + " hits took " + baselineMillis + "ms synchronized, " + stripedMillis
+                    + "ms striped");
+        }
+        assertEquals(ENTRY_COUNT, cache.size());
+    }
+
+    private interface Fetcher {
+        FakeImageResource fetch(String key);
+    }
+
+    private static long runHits(final int threadCount, final Fetcher fetcher)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < HITS_PER_THREAD; i++) {
+                            final FakeImageResource resource =
+                                    fetcher.fetch(keyFor((i + offset) % ENTRY_COUNT));
+                            assertNotNull(resource);
+                            resource.release();
+                        }
+                    } catch (final InterruptedException e) {
+                        // Fall through, the count below is still expected to drop
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        done.await();
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    /**
+     * The previous MediaCache implementation: an LruCache guarded by a single lock
+     */
+    private static class SynchronizedCache extends LruCache<String, FakeImageResource> {
+        SynchronizedCache(final int maxSize) {
+            super(maxSize);
+        }
+
+        synchronized FakeImageResource fetchResourceFromCache(final String key) {
+            final FakeImageResource ret = get(key);
+            if (ret != null) {
+                ret.addRef();
+            }
+            return ret;
+        }
+
+        synchronized FakeImageResource addResourceToCache(final String key,
+                final FakeImageResource resource) {
+            resource.addRef();
+            return put(key, resource);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+
+@MediumTest
+public class MediaCacheTest extends BugleTestCase {
+    private static final int KB = 1024;
+
+    public void testEvictsLeastRecentlyUsedAcrossSegments() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(3, 0, "TestCache");
+        final FakeImageResource image1 = new FakeImageResource(1 * KB, "image1");
+        final FakeImageResource image2 = new FakeImageResource(1 * KB, "image2");
+        final FakeImageResource image3 = new FakeImageResource(1 * KB, "image3");
+        cache.addResourceToCache("image1", image1);
+        cache.addResourceToCache("image2", image2);
+        cache.addResourceToCache("image3", image3);
+
+        // Touch image1 so image2 becomes the least recently used
+        cache.fetchResourceFromCache("image1").release();
+        cache.addResourceToCache("image4", new FakeImageResource(1 * KB, "image4"));
+
+        assertEquals(3, cache.size());
+        assertTrue(image2.isClosed());
+        assertNull(cache.fetchResourceFromCache("image2"));
+        assertFalse(image1.isClosed());
+        assertFalse(image3.isClosed());
+    }
+
+    public void testEvictionReleasesOnlyTheCacheRef() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(1, 0, "TestCache");
+        final FakeImageResource image1 = new FakeImageResource(1 * KB, "image1");
+        cache.addResourceToCache("image1", image1);
+        final FakeImageResource fetched = cache.fetchResourceFromCache("image1");
+        assertEquals(2, fetched.getRefCount());
+
+        cache.addResourceToCache("image2", new FakeImageResource(1 * KB, "image2"));
+        assertEquals(1, image1.getRefCount());
+        assertFalse(image1.isClosed());
+        fetched.release();
+        assertTrue(image1.isClosed());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+    }
+
+    public void testRemoveIfUnreferenced() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(10, 0, "TestCache");
+        final FakeImageResource image1 = new FakeImageResource(1 * KB, "image1");
+        cache.addResourceToCache("image1", image1);
+
+        final FakeImageResource fetched = cache.fetchResourceFromCache("image1");
+        assertFalse(cache.removeIfUnreferenced("image1", image1));
+        fetched.release();
+
+        assertTrue(cache.removeIfUnreferenced("image1", image1));
+        assertNull(cache.fetchResourceFromCache("image1"));
+        // The caller now holds the only ref
+        assertEquals(1, image1.getRefCount());
+        image1.release();
+        assertTrue(image1.isClosed());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+@SmallTest
+public class MediaDiskCacheTest extends BugleTestCase {
+    private static final int IMAGE_SIZE = 1000;
+    private static final Uri SOURCE_1 = Uri.parse("content://mms/part/1");
+    private static final Uri SOURCE_2 = Uri.parse("content://mms/part/2");
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "media_disk_cache_test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new MediaDiskCache(mDirectory, IMAGE_SIZE * 10).clear();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static byte[] makeImage(final int seed) {
+        final byte[] image = new byte[IMAGE_SIZE];
+        Arrays.fill(image, (byte) seed);
+        return image;
+    }
+
+    public void testReadBackAcrossInstances() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        assertNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+        assertTrue(cache.put("key1", SOURCE_1, makeImage(1), 6, 0));
+
+        MediaDiskCache.Entry entry = cache.get("key1", SOURCE_1, Long.MAX_VALUE);
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(makeImage(1), entry.bytes));
+        assertEquals(6, entry.orientation);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // As after a restart
+        final MediaDiskCache reloaded = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        entry = reloaded.get("key1", SOURCE_1, Long.MAX_VALUE);
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(makeImage(1), entry.bytes));
+        assertEquals(cache.getSizeBytes(), reloaded.getSizeBytes());
+
+        // Too old to be served
+        assertNull(reloaded.get("key1", SOURCE_1, -1));
+        assertNull(reloaded.get("key1", SOURCE_1, Long.MAX_VALUE));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        // Room for two images with their headers, but not three
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 2 + 200);
+        assertTrue(cache.put("key1", SOURCE_1, makeImage(1), 0, 0));
+        assertTrue(cache.put("key2", SOURCE_1, makeImage(2), 0, 0));
+        assertNotNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+
+        assertTrue(cache.put("key3", SOURCE_1, makeImage(3), 0, 0));
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+        assertNull(cache.get("key2", SOURCE_1, Long.MAX_VALUE));
+        assertNotNull(cache.get("key3", SOURCE_1, Long.MAX_VALUE));
+
+        // Too big to cache at all
+        assertFalse(cache.put("key4", SOURCE_1, new byte[IMAGE_SIZE * 2], 0, 0));
+    }
+
+    public void testCorruptEntryIsDropped() throws Exception {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        assertTrue(cache.put("key1", SOURCE_1, makeImage(1), 0, 0));
+
+        final File file = new File(mDirectory, MediaDiskCache.getFileName("key1", SOURCE_1));
+        final RandomAccessFile corrupter = new RandomAccessFile(file, "rw");
+        try {
+            corrupter.seek(file.length() - 1);
+            corrupter.write(7);
+        } finally {
+            corrupter.close();
+        }
+
+        assertNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+        assertEquals(1, cache.getCorruptCount());
+        assertFalse(file.exists());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    public void testRemoveSources() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        assertTrue(cache.put("small", SOURCE_1, makeImage(1), 0, 0));
+        assertTrue(cache.put("large", SOURCE_1, makeImage(2), 0, 0));
+        assertTrue(cache.put("small", SOURCE_2, makeImage(3), 0, 0));
+
+        cache.removeSources(Collections.singletonList(SOURCE_1));
+        assertNull(cache.get("small", SOURCE_1, Long.MAX_VALUE));
+        assertNull(cache.get("large", SOURCE_1, Long.MAX_VALUE));
+        assertNotNull(cache.get("small", SOURCE_2, Long.MAX_VALUE));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    public void testImageOfRemovedSourceIsDropped() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        // Taken before making the image, which the source is removed during
+        final int generation = cache.getSourceGeneration(SOURCE_1);
+        final int otherGeneration = cache.getSourceGeneration(SOURCE_2);
+        cache.removeSources(Collections.singletonList(SOURCE_1));
+
+        assertFalse(cache.put("key1", SOURCE_1, makeImage(1), 0, generation));
+        assertNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+        assertTrue(cache.put("key1", SOURCE_2, makeImage(2), 0, otherGeneration));
+
+        // Images made after the removal are cached again
+        assertTrue(cache.put("key1", SOURCE_1, makeImage(3), 0,
+                cache.getSourceGeneration(SOURCE_1)));
+        assertNotNull(cache.get("key1", SOURCE_1, Long.MAX_VALUE));
+        // No temporary files are left behind
+        for (final String fileName : mDirectory.list()) {
+            assertFalse(fileName, fileName.endsWith(".tmp"));
+        }
+    }
+
+    public void testConcurrentPutsOfSameKey() throws Exception {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, IMAGE_SIZE * 10);
+        final Thread[] threads = new Thread[4];
+        final boolean[] written = new boolean[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        written[index] |= cache.put("key1", SOURCE_1, makeImage(index), 0, 0);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (final boolean threadWritten : written) {
+            assertTrue(threadWritten);
+        }
+        // Whichever write landed last, the entry is whole
+        final MediaDiskCache.Entry entry = cache.get("key1", SOURCE_1, Long.MAX_VALUE);
+        assertNotNull(entry);
+        assertEquals(0, cache.getCorruptCount());
+        final byte[] expected = makeImage(entry.bytes[0]);
+        assertTrue(Arrays.equals(expected, entry.bytes));
+        // Held once in the index
+        assertTrue(cache.getSizeBytes() < IMAGE_SIZE * 2);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class MediaLoadingSchedulerTest extends BugleTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private MediaLoadingScheduler mScheduler;
+    private CountDownLatch mBlocker;
+    private List<String> mOrder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new MediaLoadingScheduler(1, Thread.NORM_PRIORITY);
+        mOrder = new ArrayList<String>();
+        // Occupy the only thread so that everything scheduled next waits in the queue
+        mBlocker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mBlocker.await();
+                } catch (final InterruptedException e) {
+                    // Fall through
+                }
+            }
+        }, MediaRequest.PRIORITY_VISIBLE);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private MediaLoadingScheduler.Task schedule(final String name, final int priority) {
+        return mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mOrder) {
+                    mOrder.add(name);
+                }
+            }
+        }, priority);
+    }
+
+    private void runQueued(final String... expectedOrder) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, Integer.MAX_VALUE);
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        synchronized (mOrder) {
+            assertEquals(Arrays.asList(expectedOrder), mOrder);
+        }
+    }
+
+    public void testPriorityThenLifoOrder() throws InterruptedException {
+        schedule("background1", MediaRequest.PRIORITY_BACKGROUND);
+        schedule("background2", MediaRequest.PRIORITY_BACKGROUND);
+        schedule("prefetch", MediaRequest.PRIORITY_PREFETCH);
+        schedule("visible1", MediaRequest.PRIORITY_VISIBLE);
+        schedule("visible2", MediaRequest.PRIORITY_VISIBLE);
+        runQueued("visible2", "visible1", "prefetch", "background1", "background2");
+    }
+
+    public void testCancelledTaskNeverRuns() throws InterruptedException {
+        final MediaLoadingScheduler.Task task =
+                schedule("cancelled", MediaRequest.PRIORITY_VISIBLE);
+        schedule("kept", MediaRequest.PRIORITY_VISIBLE);
+        assertTrue(task.cancel());
+        assertEquals(1, mScheduler.getCancelledCount());
+        runQueued("kept");
+        assertFalse(task.cancel());
+    }
+
+    public void testReprioritizedTaskMoves() throws InterruptedException {
+        final MediaLoadingScheduler.Task task =
+                schedule("prefetch", MediaRequest.PRIORITY_PREFETCH);
+        schedule("visible", MediaRequest.PRIORITY_VISIBLE);
+        task.setPriority(MediaRequest.PRIORITY_VISIBLE);
+        assertEquals(MediaRequest.PRIORITY_VISIBLE, task.getPriority());
+        runQueued("prefetch", "visible");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class PduComposerTest extends BugleTestCase {
+    private File mAttachmentFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mAttachmentFile != null) {
+            mAttachmentFile.delete();
+        }
+        super.tearDown();
+    }
+
+    private Uri writeAttachment(final byte[] data) throws IOException {
+        if (mAttachmentFile == null) {
+            mAttachmentFile =
+                    File.createTempFile("attachment", ".jpg", getContext().getCacheDir());
+        }
+        final FileOutputStream out = new FileOutputStream(mAttachmentFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return Uri.fromFile(mAttachmentFile);
+    }
+
+    private static PduPart makePart(final String contentType, final String name) {
+        final PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(name.getBytes());
+        part.setContentId(("<" + name + ">").getBytes());
+        return part;
+    }
+
+    private SendReq makeSendReq(final Uri imageUri) throws Exception {
+        final SendReq sendReq = new SendReq(ContentType.MMS_MULTIPART_RELATED.getBytes(),
+                new EncodedStringValue(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR),
+                PduHeaders.CURRENT_MMS_VERSION, "transaction".getBytes());
+        sendReq.addTo(new EncodedStringValue("5551234"));
+        final PduBody body = new PduBody();
+        final PduPart text = makePart(ContentType.TEXT_PLAIN, "text.txt");
+        text.setCharset(CharacterSets.UTF_8);
+        text.setData("hello".getBytes());
+        body.addPart(text);
+        final PduPart image = makePart(ContentType.IMAGE_JPEG, "image.jpg");
+        image.setDataUri(imageUri);
+        body.addPart(image);
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    public void testStreamedMessageMatchesComposedMessage() throws Exception {
+        // Bigger than the copy buffer, and long enough to need a multi-octet uintvar length
+        final byte[] imageData = new byte[100000];
+        for (int i = 0; i < imageData.length; i++) {
+            imageData[i] = (byte) i;
+        }
+        final SendReq sendReq = makeSendReq(writeAttachment(imageData));
+
+        final byte[] composed = new PduComposer(getContext(), sendReq).make();
+        assertNotNull(composed);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long size = new PduComposer(getContext(), sendReq).make(out);
+        assertEquals(composed.length, size);
+        assertTrue(Arrays.equals(composed, out.toByteArray()));
+
+        final GenericPdu parsed = new PduParser(out.toByteArray(), true).parse();
+        assertTrue(parsed instanceof SendReq);
+        final PduPart image = ((SendReq) parsed).getBody().getPart(1);
+        assertTrue(Arrays.equals(imageData, image.getData()));
+    }
+
+    public void testWriteFailsWhenPartChangesSize() throws Exception {
+        final SendReq sendReq = makeSendReq(writeAttachment(new byte[1000]));
+        final PduComposer composer = new PduComposer(getContext(), sendReq);
+        assertTrue(composer.measure() > 1000);
+
+        writeAttachment(new byte[2000]);
+        try {
+            composer.writeTo(new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    public void testMissingPartFailsToMeasure() throws Exception {
+        final SendReq sendReq = makeSendReq(Uri.fromFile(
+                new File(getContext().getCacheDir(), "missing.jpg")));
+        assertEquals(-1, new PduComposer(getContext(), sendReq).measure());
+    }
+}
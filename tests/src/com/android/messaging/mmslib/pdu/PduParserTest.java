@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@SmallTest
+public class PduParserTest extends BugleTestCase {
+    private static final byte[] TEXT = "hello".getBytes();
+
+    private static byte[] makeImageData() {
+        final byte[] imageData = new byte[50000];
+        for (int i = 0; i < imageData.length; i++) {
+            imageData[i] = (byte) (i * 7);
+        }
+        return imageData;
+    }
+
+    private static PduPart makePart(final String contentType, final String name,
+            final byte[] data) {
+        final PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(name.getBytes());
+        part.setContentId(("<" + name + ">").getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    private byte[] makePdu(final byte[] imageData) throws Exception {
+        final SendReq sendReq = new SendReq(ContentType.MMS_MULTIPART_RELATED.getBytes(),
+                new EncodedStringValue(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR),
+                PduHeaders.CURRENT_MMS_VERSION, "transaction".getBytes());
+        sendReq.addTo(new EncodedStringValue("5551234"));
+        final PduBody body = new PduBody();
+        final PduPart text = makePart(ContentType.TEXT_PLAIN, "text.txt", TEXT);
+        text.setCharset(CharacterSets.UTF_8);
+        body.addPart(text);
+        body.addPart(makePart(ContentType.IMAGE_JPEG, "image.jpg", imageData));
+        sendReq.setBody(body);
+        return new PduComposer(getContext(), sendReq).make();
+    }
+
+    private static void assertParts(final GenericPdu pdu, final byte[] imageData) {
+        assertTrue(pdu instanceof SendReq);
+        final PduBody body = ((SendReq) pdu).getBody();
+        assertEquals(2, body.getPartsNum());
+        assertTrue(Arrays.equals(TEXT, body.getPart(0).getData()));
+        assertTrue(Arrays.equals(imageData, body.getPart(1).getData()));
+    }
+
+    public void testBufferParseLeavesPartDataInBuffer() throws Exception {
+        final byte[] imageData = makeImageData();
+        final byte[] pdu = makePdu(imageData);
+        assertParts(new PduParser(pdu, true).parse(), imageData);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(pdu.length);
+        buffer.put(pdu);
+        buffer.flip();
+        final GenericPdu parsed = new PduParser(buffer, true).parse();
+        assertParts(parsed, imageData);
+        // The buffer itself was not moved
+        assertEquals(0, buffer.position());
+
+        final PduPart image = ((SendReq) parsed).getBody().getPart(1);
+        final ByteBuffer imageBuffer = image.getDataBuffer();
+        assertNotNull(imageBuffer);
+        assertTrue(imageBuffer.isDirect());
+        assertEquals(imageData.length, imageBuffer.remaining());
+        assertEquals(ByteBuffer.wrap(imageData), imageBuffer);
+    }
+
+    public void testParseMappedFile() throws Exception {
+        final byte[] imageData = makeImageData();
+        final File file = File.createTempFile("pdu", null, getContext().getCacheDir());
+        try {
+            Files.write(makePdu(imageData), file);
+            assertParts(new PduParser(Files.map(file), true).parse(), imageData);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTruncatedBuffer() throws Exception {
+        final byte[] pdu = makePdu(makeImageData());
+        final ByteBuffer buffer = ByteBuffer.wrap(pdu, 0, pdu.length - 100);
+        final GenericPdu parsed = new PduParser(buffer, true).parse();
+        // The data of the last part is cut short to what there is
+        assertNotNull(parsed);
+        final ByteBuffer image = ((SendReq) parsed).getBody().getPart(1).getDataBuffer();
+        assertEquals(50000 - 100, image.remaining());
+    }
+}
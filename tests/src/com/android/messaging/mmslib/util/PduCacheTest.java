@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.util;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.mmslib.pdu.PduBody;
+import com.android.messaging.mmslib.pdu.PduPart;
+import com.android.messaging.mmslib.pdu.RetrieveConf;
+
+@SmallTest
+public class PduCacheTest extends BugleTestCase {
+    private static final int PART_SIZE = 10000;
+
+    private static Uri messageUri(final long id) {
+        return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+    }
+
+    private static PduCacheEntry makeEntry(final int partSize, final int msgBox,
+            final long threadId) throws Exception {
+        final PduPart part = new PduPart();
+        part.setData(new byte[partSize]);
+        final PduBody body = new PduBody();
+        body.addPart(part);
+        final RetrieveConf pdu = new RetrieveConf();
+        pdu.setBody(body);
+        return new PduCacheEntry(pdu, msgBox, threadId);
+    }
+
+    public void testEntrySizeCountsPartData() throws Exception {
+        final PduCacheEntry small = makeEntry(1, Mms.MESSAGE_BOX_INBOX, 1);
+        final PduCacheEntry large = makeEntry(PART_SIZE, Mms.MESSAGE_BOX_INBOX, 1);
+        assertEquals(PART_SIZE - 1, large.getSize() - small.getSize());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        final int entrySize = makeEntry(PART_SIZE, Mms.MESSAGE_BOX_INBOX, 1).getSize();
+        final PduCache cache = new PduCache(entrySize * 3);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(cache.put(messageUri(i), makeEntry(PART_SIZE, Mms.MESSAGE_BOX_INBOX, 1)));
+        }
+        // Message box uris find the same entries
+        assertNotNull(cache.get(Uri.withAppendedPath(Mms.Inbox.CONTENT_URI, "1")));
+
+        assertTrue(cache.put(messageUri(4), makeEntry(PART_SIZE, Mms.MESSAGE_BOX_INBOX, 1)));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(messageUri(1)));
+        assertNull(cache.get(messageUri(2)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Too big to cache at all
+        assertFalse(cache.put(messageUri(5), makeEntry(PART_SIZE * 4, Mms.MESSAGE_BOX_INBOX, 1)));
+        assertNull(cache.peek(messageUri(5)));
+        assertEquals(3, cache.size());
+    }
+
+    public void testPurgeByMessageBoxAndThread() throws Exception {
+        final PduCache cache = new PduCache(PART_SIZE * 10);
+        cache.put(messageUri(1), makeEntry(1, Mms.MESSAGE_BOX_INBOX, 1));
+        cache.put(messageUri(2), makeEntry(1, Mms.MESSAGE_BOX_SENT, 1));
+        cache.put(messageUri(3), makeEntry(1, Mms.MESSAGE_BOX_INBOX, 2));
+
+        cache.purge(Mms.Inbox.CONTENT_URI);
+        assertNull(cache.peek(messageUri(1)));
+        assertNotNull(cache.peek(messageUri(2)));
+        assertNull(cache.peek(messageUri(3)));
+
+        cache.put(messageUri(3), makeEntry(1, Mms.MESSAGE_BOX_INBOX, 2));
+        cache.purge(ContentUris.withAppendedId(
+                Uri.parse("content://mms-sms/conversations"), 1));
+        assertNull(cache.peek(messageUri(2)));
+        assertNotNull(cache.peek(messageUri(3)));
+
+        // Purging doesn't count as evicting
+        cache.purgeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
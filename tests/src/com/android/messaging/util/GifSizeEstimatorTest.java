@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+@SmallTest
+public class GifSizeEstimatorTest extends BugleTestCase {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 100;
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value & 0xff);
+        out.write(value >> 8);
+    }
+
+    /**
+     * Structure of a GIF with the given number of full canvas frames, each with 150 bytes of
+     * (meaningless) LZW data
+     */
+    private static byte[] makeGif(final int frames) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('G');
+        out.write('I');
+        out.write('F');
+        out.write('8');
+        out.write('9');
+        out.write('a');
+        writeShort(out, WIDTH);
+        writeShort(out, HEIGHT);
+        // Global color table of 4 colors
+        out.write(0x81);
+        out.write(0);
+        out.write(0);
+        out.write(new byte[12], 0, 12);
+        for (int i = 0; i < frames; i++) {
+            // Graphic control extension
+            out.write(0x21);
+            out.write(0xf9);
+            out.write(4);
+            out.write(new byte[4], 0, 4);
+            out.write(0);
+            // Image descriptor
+            out.write(0x2c);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, WIDTH);
+            writeShort(out, HEIGHT);
+            out.write(0);
+            // LZW minimum code size and data sub-blocks
+            out.write(2);
+            out.write(100);
+            out.write(new byte[100], 0, 100);
+            out.write(50);
+            out.write(new byte[50], 0, 50);
+            out.write(0);
+        }
+        out.write(0x3b);
+        return out.toByteArray();
+    }
+
+    public void testParse() throws Exception {
+        final GifSizeEstimator.GifInfo info =
+                GifSizeEstimator.parse(new ByteArrayInputStream(makeGif(3)));
+        assertNotNull(info);
+        assertEquals(WIDTH, info.mWidth);
+        assertEquals(HEIGHT, info.mHeight);
+        assertEquals(12, info.mGlobalColorTableSize);
+        assertEquals(3, info.mFrameCount);
+        assertEquals(3L * WIDTH * HEIGHT, info.mCodedPixels);
+        assertEquals(3L * 150, info.mCodedBytes);
+    }
+
+    public void testEstimateScalesWithFrames() {
+        final long oneFrame =
+                GifSizeEstimator.estimateTranscodedSize(new ByteArrayInputStream(makeGif(1)));
+        final long threeFrames =
+                GifSizeEstimator.estimateTranscodedSize(new ByteArrayInputStream(makeGif(3)));
+        // Quarter of the pixels at a little more than the input's 150 bytes per frame
+        assertTrue(oneFrame > 13 + 12 + 150 / 4);
+        assertTrue(oneFrame < 13 + 12 + 150 / 2);
+        assertEquals(2 * (oneFrame - 13 - 12), threeFrames - oneFrame);
+    }
+
+    public void testUnreadableGif() {
+        final byte[] gif = makeGif(2);
+        assertEquals(-1, GifSizeEstimator.estimateTranscodedSize(
+                new ByteArrayInputStream(Arrays.copyOf(gif, gif.length / 2))));
+        assertEquals(-1, GifSizeEstimator.estimateTranscodedSize(
+                new ByteArrayInputStream("not a gif".getBytes())));
+    }
+}
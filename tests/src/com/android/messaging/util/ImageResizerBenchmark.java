@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.util.exif.ExifInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares ImageResizer against the quality/scale stepping loop it replaced, resizing camera
+ * pictures for MMS. Pictures are read from the "resize_corpus" directory in the app's external
+ * files dir (adb push a set of camera JPEGs there); if there are none, synthetic 12MP pictures
+ * are used. Timings and sizes are logged rather than asserted.
+ */
+@LargeTest
+public class ImageResizerBenchmark extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    private static final int BYTE_LIMIT = 300 * 1024;
+    private static final int WIDTH_LIMIT = 2048;
+    private static final int HEIGHT_LIMIT = 2048;
+    private static final int SYNTHETIC_WIDTH = 4000;
+    private static final int SYNTHETIC_HEIGHT = 3000;
+    private static final int SYNTHETIC_COUNT = 3;
+
+    private final List<File> mCorpus = new ArrayList<File>();
+    private final List<File> mSynthetic = new ArrayList<File>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        final File corpusDir = getContext().getExternalFilesDir("resize_corpus");
+        final File[] files = (corpusDir == null) ? null : corpusDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.getName().toLowerCase().endsWith(".jpg")) {
+                    mCorpus.add(file);
+                }
+            }
+        }
+        if (mCorpus.isEmpty()) {
+            for (int i = 0; i < SYNTHETIC_COUNT; i++) {
+                final File file =
+                        new File(getContext().getCacheDir(), "resize_bench_" + i + ".jpg");
+                writeSyntheticPicture(file, i);
+                mSynthetic.add(file);
+            }
+            mCorpus.addAll(mSynthetic);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : mSynthetic) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Gradients with noise on top, which compresses about as badly as a busy camera picture
+     */
+    private static void writeSyntheticPicture(final File file, final int seed) throws Exception {
+        final Bitmap bitmap = Bitmap.createBitmap(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT,
+                Color.rgb(30 * seed, 90, 160), Color.rgb(220, 200 - 40 * seed, 40),
+                Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, paint);
+        final Random random = new Random(seed);
+        final int[] row = new int[SYNTHETIC_WIDTH];
+        for (int y = 0; y < SYNTHETIC_HEIGHT; y++) {
+            bitmap.getPixels(row, 0, SYNTHETIC_WIDTH, 0, y, SYNTHETIC_WIDTH, 1);
+            for (int x = 0; x < SYNTHETIC_WIDTH; x++) {
+                final int noise = random.nextInt(48) - 24;
+                final int pixel = row[x];
+                row[x] = Color.rgb(clamp(Color.red(pixel) + noise),
+                        clamp(Color.green(pixel) + noise), clamp(Color.blue(pixel) + noise));
+            }
+            bitmap.setPixels(row, 0, SYNTHETIC_WIDTH, 0, y, SYNTHETIC_WIDTH, 1);
+        }
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    private static int clamp(final int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Samples Java plus native heap use on a background thread, keeping the peak
+     */
+    private static class HeapSampler extends Thread {
+        private volatile boolean mStopped;
+        private long mBaseline;
+        private long mPeak;
+
+        private static long getHeapUsed() {
+            final Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory()
+                    + Debug.getNativeHeapAllocatedSize();
+        }
+
+        @Override
+        public synchronized void start() {
+            System.gc();
+            mBaseline = getHeapUsed();
+            mPeak = mBaseline;
+            super.start();
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                mPeak = Math.max(mPeak, getHeapUsed());
+                SystemClock.sleep(2);
+            }
+        }
+
+        long finish() throws InterruptedException {
+            mStopped = true;
+            join();
+            return mPeak - mBaseline;
+        }
+    }
+
+    private interface Resizer {
+        byte[] resize(Uri uri);
+    }
+
+    /**
+     * @return number of pictures the resizer failed to fit in the limits
+     */
+    private int runResizer(final String name, final Resizer resizer) throws Exception {
+        int failures = 0;
+        long totalMillis = 0;
+        long maxPeakHeap = 0;
+        long totalBytes = 0;
+        for (final File file : mCorpus) {
+            final HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            final long start = SystemClock.elapsedRealtime();
+            final byte[] resized = resizer.resize(Uri.fromFile(file));
+            final long millis = SystemClock.elapsedRealtime() - start;
+            final long peakHeap = sampler.finish();
+            if (resized == null || resized.length > BYTE_LIMIT) {
+                LogUtil.w(TAG, "ImageResizerBenchmark: " + name + " failed on " + file.getName());
+                failures++;
+                continue;
+            }
+            LogUtil.i(TAG, "ImageResizerBenchmark: " + name + " " + file.getName() + " "
+                    + millis + " ms, peak heap " + peakHeap / 1024 + " KB, "
+                    + resized.length + " bytes");
+            totalMillis += millis;
+            maxPeakHeap = Math.max(maxPeakHeap, peakHeap);
+            totalBytes += resized.length;
+        }
+        LogUtil.i(TAG, "ImageResizerBenchmark: " + name + " total " + totalMillis + " ms, max "
+                + "peak heap " + maxPeakHeap / 1024 + " KB, avg "
+                + totalBytes / Math.max(1, mCorpus.size() - failures)
+                + " bytes over " + (mCorpus.size() - failures) + " pictures, " + failures
+                + " failed");
+        return failures;
+    }
+
+    public void testBenchmark() throws Exception {
+        final int failures = runResizer("search", new Resizer() {
+            @Override
+            public byte[] resize(final Uri uri) {
+                return ImageUtils.ImageResizer.getResizedImageData(
+                        MessagingContentProvider.UNSPECIFIED_SIZE,
+                        MessagingContentProvider.UNSPECIFIED_SIZE,
+                        ExifInterface.Orientation.TOP_LEFT, WIDTH_LIMIT, HEIGHT_LIMIT,
+                        BYTE_LIMIT, uri, getContext(), ContentType.IMAGE_JPEG);
+            }
+        });
+        runResizer("stepping", new Resizer() {
+            @Override
+            public byte[] resize(final Uri uri) {
+                return resizeByStepping(uri);
+            }
+        });
+        assertEquals(0, failures);
+    }
+
+    /**
+     * The resize loop ImageResizer used before: lower quality by at least 15% per attempt down
+     * to 50, then scale down by 0.75 and start again from quality 95, encoding into a new stream
+     * each time.
+     */
+    private byte[] resizeByStepping(final Uri uri) {
+        try {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(uri.getPath(), options);
+            int sampleSize = 1;
+            while (options.outWidth / sampleSize >= WIDTH_LIMIT * 1.5f
+                    || options.outHeight / sampleSize >= HEIGHT_LIMIT * 1.5f
+                    || (options.outWidth / sampleSize) * (options.outHeight / sampleSize)
+                            >= BYTE_LIMIT * 8 * 1.5f * 1.5f) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            final Bitmap decoded = BitmapFactory.decodeFile(uri.getPath(), options);
+            float scaleFactor = Math.max(1.0f, Math.max(
+                    (float) decoded.getWidth() / WIDTH_LIMIT,
+                    (float) decoded.getHeight() / HEIGHT_LIMIT));
+            int quality = 95;
+            Bitmap scaled = null;
+            try {
+                for (int attempts = 0; attempts < 6; attempts++) {
+                    if (scaled == null) {
+                        if (scaleFactor > 1.0f) {
+                            final Matrix matrix = new Matrix();
+                            matrix.postScale(1 / scaleFactor, 1 / scaleFactor);
+                            scaled = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(),
+                                    decoded.getHeight(), matrix, false /* filter */);
+                        } else {
+                            scaled = decoded;
+                        }
+                    }
+                    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    scaled.compress(Bitmap.CompressFormat.JPEG, quality, os);
+                    final byte[] encoded = os.toByteArray();
+                    if (encoded.length <= BYTE_LIMIT) {
+                        return encoded;
+                    }
+                    if (quality > 50) {
+                        quality = Math.max(50, Math.min(
+                                (int) (quality * Math.sqrt((1.0 * BYTE_LIMIT) / encoded.length)),
+                                (int) (quality * 0.85f)));
+                    } else {
+                        quality = 95;
+                        scaleFactor = scaleFactor / 0.75f;
+                        if (scaled != decoded) {
+                            scaled.recycle();
+                        }
+                        scaled = null;
+                    }
+                }
+            } finally {
+                if (scaled != null && scaled != decoded) {
+                    scaled.recycle();
+                }
+                decoded.recycle();
+            }
+        } catch (final OutOfMemoryError e) {
+            LogUtil.w(TAG, "ImageResizerBenchmark: stepping resize ran out of memory");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ImageUtils.ImageResizer;
+
+import java.util.Arrays;
+
+@SmallTest
+public class ImageResizerTest extends BugleTestCase {
+
+    public void testRelativeEncodedSizeIsMonotonic() {
+        assertEquals(1.0f, ImageResizer.getRelativeEncodedSize(95), 0.001f);
+        float previous = 0;
+        for (int quality = 0; quality <= 100; quality++) {
+            final float size = ImageResizer.getRelativeEncodedSize(quality);
+            assertTrue("quality " + quality, size > previous);
+            previous = size;
+        }
+    }
+
+    public void testPredictQuality() {
+        // Already fits at the measured quality
+        assertEquals(95, ImageResizer.predictQuality(1000, 95, 1000, 50, 95));
+        // Needs a little over 0.46 of the size at 95
+        assertEquals(80, ImageResizer.predictQuality(470, 95, 1000, 50, 95));
+        // Works from a measurement at a lower quality too
+        assertEquals(80, ImageResizer.predictQuality(470, 70, 360, 50, 95));
+        // Nothing fits
+        assertEquals(50, ImageResizer.predictQuality(100, 95, 1000, 50, 95));
+    }
+
+    public void testPredictScaleDown() {
+        // Four times too big at the quality scaled images aim for halves each dimension
+        assertEquals(2.0f, ImageResizer.predictScaleDown(100, 75, 400), 0.01f);
+        // Always scales down by at least the minimum step
+        assertEquals(1 / 0.75f, ImageResizer.predictScaleDown(100, 75, 101), 0.01f);
+    }
+
+    public void testCappedOutputStream() {
+        final ImageResizer.CappedOutputStream stream = new ImageResizer.CappedOutputStream(4);
+        stream.write(new byte[] { 1, 2, 3 }, 0, 3);
+        stream.write(4);
+        assertFalse(stream.isOverCapacity());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, stream.toByteArray()));
+
+        // Bytes beyond the capacity are counted but not kept
+        stream.write(new byte[] { 5, 6, 7 }, 1, 2);
+        assertTrue(stream.isOverCapacity());
+        assertEquals(6, stream.size());
+
+        stream.reset();
+        stream.write(new byte[] { 8, 9 }, 0, 2);
+        assertFalse(stream.isOverCapacity());
+        assertTrue(Arrays.equals(new byte[] { 8, 9 }, stream.toByteArray()));
+    }
+}